@@ -0,0 +1,106 @@
+package engine.graph;
+
+import engine.SceneOctree;
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FrustumCullingFilterBenchmark {
+
+    private static final float BOUNDING_RADIUS = 1.5f;
+
+    /**
+     * The camera turns around the center of the scene by this angle at every operation, a full turn every 2 seconds at
+     * 60 frames per second, so that the octree does not cull the same frustum over and over
+     */
+    private static final float TURN_ANGLE = (float) Math.toRadians(3);
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int items;
+
+    private FrustumCullingFilter filter;
+
+    private List<GameItem> gameItems;
+
+    private SceneOctree spatialIndex;
+
+    private Matrix4f projectionMatrix;
+
+    private Matrix4f viewMatrix;
+
+    private float extent;
+
+    private float angle;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        // Keep the density of the scene constant, about a third of the items end up inside the frustum
+        extent = (float) Math.cbrt(items) * 10;
+        gameItems = new ArrayList<>(items);
+        spatialIndex = new SceneOctree();
+        // The items only need the bounding radius of their mesh for both filters to test the same spheres, so the
+        // mesh is described without uploading buffers, which would need a GL context
+        Mesh mesh = Mesh.withoutBuffers(FloatBuffer.wrap(new float[]{0, 0, 0, 1, 0, 0, 0, 0, 1}), null,
+                                        IntBuffer.wrap(new int[]{0, 1, 2}), null, null);
+        mesh.setBoundingRadius(BOUNDING_RADIUS);
+        for (int i = 0; i < items; i++) {
+            GameItem gameItem = new GameItem(mesh);
+            gameItem.setPosition((random.nextFloat() - 0.5f) * extent, (random.nextFloat() - 0.5f) * extent,
+                                 (random.nextFloat() - 0.5f) * extent);
+            gameItem.setScale(0.5f + random.nextFloat());
+            gameItems.add(gameItem);
+            spatialIndex.add(gameItem);
+        }
+
+        projectionMatrix = new Matrix4f().setPerspective((float) Math.toRadians(60), 16f / 9f, 0.01f, extent);
+        viewMatrix = new Matrix4f();
+        filter = new FrustumCullingFilter();
+        angle = 0;
+    }
+
+    @Benchmark
+    public List<GameItem> filterList() {
+        turnCamera();
+        filter.filter(gameItems, BOUNDING_RADIUS);
+        return gameItems;
+    }
+
+    @Benchmark
+    public SceneOctree filterOctree() {
+        turnCamera();
+        filter.filter(spatialIndex);
+        return spatialIndex;
+    }
+
+    private void turnCamera() {
+        angle += TURN_ANGLE;
+        float distance = extent / 2;
+        viewMatrix.setLookAt((float) Math.sin(angle) * distance, 0, (float) Math.cos(angle) * distance,
+                             0, 0, 0, 0, 1, 0);
+        filter.updateFrustum(projectionMatrix, viewMatrix);
+    }
+}
@@ -0,0 +1,59 @@
+package engine.graph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the vertex data of a height map without uploading it, the mesh itself needs an OpenGL context.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class HeightMapMeshBenchmark {
+
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    private ByteBuffer heightMapImage;
+
+    @Setup
+    public void setUp() {
+        heightMapImage = createHeightMapImage(size, size);
+    }
+
+    @Benchmark
+    public HeightMapMesh build() {
+        return new HeightMapMesh(-0.1f, 0.1f, heightMapImage, size, size, 40);
+    }
+
+    /**
+     * @return a RGBA image of rolling hills, the layout used by the PNG decoder of the terrain
+     */
+    public static ByteBuffer createHeightMapImage(int width, int height) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(4 * width * height);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                double value = Math.sin(col * 0.05) * Math.cos(row * 0.03) * 0.5 + 0.5;
+                byte grey = (byte) (value * 255);
+                buf.put(grey).put(grey).put(grey).put((byte) 255);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,188 @@
+package engine.graph;
+
+import engine.Plane;
+import engine.SceneLight;
+import engine.SceneOctree;
+import engine.graph.lights.DirectionalLight;
+import engine.graph.lights.PointLight;
+import engine.graph.lights.SpotLight;
+import engine.items.GameItem;
+import engine.items.ITerrain;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done every frame once the scene is loaded, which must not allocate: the view space copies of the lights, the
+ * plane and camera updates and the frustum culling. When run through {@link #main(String[])}, as gradle jmhAllocations
+ * does, the run fails if any of them allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class SteadyStateAllocationBenchmark {
+
+    /**
+     * Largest allocation allowed per operation, a single object would take at least 16 bytes, anything below is the
+     * noise of the measurement
+     */
+    private static final double MAX_BYTES_PER_OP = 1;
+
+    private static final int NUM_ITEMS = 10000;
+
+    private static final int NUM_LIGHTS = 5;
+
+    private static final float CAMERA_DISTANCE = 0.05f;
+
+    private Renderer renderer;
+
+    private SceneLight sceneLight;
+
+    private Plane plane;
+
+    private ITerrain terrain;
+
+    private Camera camera;
+
+    private Matrix4f projectionMatrix;
+
+    private FrustumCullingFilter filter;
+
+    private SceneOctree spatialIndex;
+
+    private Map<Mesh, List<GameItem>> meshMap;
+
+    @Setup
+    public void setUp() {
+        renderer = new Renderer();
+        sceneLight = new SceneLight();
+        sceneLight.setAmbientLight(new Vector3f(0.3f, 0.3f, 0.3f));
+        PointLight[] pointLights = new PointLight[NUM_LIGHTS];
+        SpotLight[] spotLights = new SpotLight[NUM_LIGHTS];
+        for (int i = 0; i < NUM_LIGHTS; i++) {
+            pointLights[i] = new PointLight(new Vector3f(1, 1, 1), new Vector3f(i, 10, -i), 1.0f,
+                                            new PointLight.Attenuation(0, 0, 1));
+            spotLights[i] = new SpotLight(new PointLight(pointLights[i]), new Vector3f(0, -1, 0),
+                                          (float) Math.cos(Math.toRadians(30)));
+        }
+        sceneLight.setPointLightList(pointLights);
+        sceneLight.setSpotLightList(spotLights);
+        sceneLight.setDirectionalLight(new DirectionalLight(new Vector3f(1, 1, 1), new Vector3f(0, 1, 1), 1.0f));
+
+        plane = new Plane((Mesh[]) null);
+        plane.setPosition(0, 100, 0);
+        terrain = new ITerrain() {
+            @Override
+            public float getHeight(float x, float z) {
+                return (float) Math.sin(x * 0.01f) * (float) Math.cos(z * 0.01f);
+            }
+
+            @Override
+            public GameItem[] getGameItems() {
+                return new GameItem[0];
+            }
+        };
+        camera = new Camera();
+        projectionMatrix = new Matrix4f().setPerspective((float) Math.toRadians(60), 16f / 9f, 0.01f, 1000f);
+
+        // Culling only needs the bounding radius, the mesh is described without uploading buffers, which would need
+        // a GL context
+        Mesh mesh = Mesh.withoutBuffers(FloatBuffer.wrap(new float[]{0, 0, 0, 1, 0, 0, 0, 0, 1}), null,
+                                        IntBuffer.wrap(new int[]{0, 1, 2}), null, null);
+        mesh.setBoundingRadius(1.5f);
+        Random random = new Random(42);
+        List<GameItem> gameItems = new ArrayList<>(NUM_ITEMS);
+        spatialIndex = new SceneOctree();
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            GameItem gameItem = new GameItem(mesh);
+            gameItem.setPosition((random.nextFloat() - 0.5f) * 1000, random.nextFloat() * 100,
+                                 (random.nextFloat() - 0.5f) * 1000);
+            gameItems.add(gameItem);
+            spatialIndex.add(gameItem);
+        }
+        meshMap = new HashMap<>();
+        meshMap.put(mesh, gameItems);
+        filter = new FrustumCullingFilter();
+    }
+
+    @Benchmark
+    public Renderer transformLights() {
+        renderer.updateViewLights(camera.getViewMatrix(), sceneLight);
+        return renderer;
+    }
+
+    @Benchmark
+    public Camera updatePlaneAndCamera() {
+        plane.update(terrain, 1.0f);
+        camera.followPlane(plane, CAMERA_DISTANCE);
+        camera.updateViewMatrix();
+        return camera;
+    }
+
+    @Benchmark
+    public SceneOctree cullOctree() {
+        filter.updateFrustum(projectionMatrix, camera.updateViewMatrix());
+        filter.filter(spatialIndex);
+        return spatialIndex;
+    }
+
+    @Benchmark
+    public Map<Mesh, List<GameItem>> cullMeshes() {
+        filter.updateFrustum(projectionMatrix, camera.updateViewMatrix());
+        filter.filter(meshMap);
+        return meshMap;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Runner runner = new Runner(new OptionsBuilder()
+                                           .include(SteadyStateAllocationBenchmark.class.getName())
+                                           .addProfiler(GCProfiler.class)
+                                           .build());
+        List<String> failures = new ArrayList<>();
+        for (RunResult runResult : runner.run()) {
+            String benchmark = runResult.getParams().getBenchmark();
+            Result allocated = null;
+            for (Map.Entry<String, Result> entry : runResult.getSecondaryResults().entrySet()) {
+                if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+                    allocated = entry.getValue();
+                }
+            }
+            if (allocated == null) {
+                throw new IllegalStateException("No allocation measured for " + benchmark
+                                                        + ", the JVM does not report thread allocations");
+            }
+            if (allocated.getScore() > MAX_BYTES_PER_OP) {
+                failures.add(benchmark + " allocates " + allocated.getScore() + " bytes per operation");
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(String.join("\n", failures));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package engine.graph;
+
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TransformationBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int items;
+
+    private Transformation transformation;
+
+    private GameItem[] gameItems;
+
+    private Matrix4f viewMatrix;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        gameItems = new GameItem[items];
+        for (int i = 0; i < items; i++) {
+            GameItem gameItem = new GameItem();
+            gameItem.setPosition(random.nextFloat() * 1000, random.nextFloat() * 100, random.nextFloat() * 1000);
+            gameItem.getRotation().rotateXYZ(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            gameItem.setScale(0.5f + random.nextFloat());
+            gameItems[i] = gameItem;
+        }
+        transformation = new Transformation();
+        viewMatrix = new Matrix4f().setLookAt(0, 50, 0, 500, 0, 500, 0, 1, 0);
+    }
+
+    @Benchmark
+    public void buildModelMatrix(Blackhole bh) {
+        for (GameItem gameItem : gameItems) {
+            bh.consume(transformation.buildModelMatrix(gameItem).m30());
+        }
+    }
+
+    @Benchmark
+    public void buildModelViewMatrix(Blackhole bh) {
+        for (GameItem gameItem : gameItems) {
+            bh.consume(transformation.buildModelViewMatrix(gameItem, viewMatrix).m30());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package engine.items;
+
+import engine.graph.HeightMapMesh;
+import engine.graph.HeightMapMeshBenchmark;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Height queries on a terrain built the same way as the game one, with random positions spread over all the blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class TerrainBenchmark {
+
+    private static final int QUERIES = 1024;
+
+    private static final int TERRAIN_SIZE = 5;
+
+    private static final float SCALE = 500;
+
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    private Terrain terrain;
+
+    private Vector3f[] positions;
+
+    private float[] xz;
+
+    private float[] heights;
+
+    @Setup
+    public void setUp() {
+        HeightMapMesh heightMapMesh = new HeightMapMesh(-0.1f, 0.1f,
+                HeightMapMeshBenchmark.createHeightMapImage(size, size), size, size, 40);
+        terrain = new Terrain(TERRAIN_SIZE, SCALE, heightMapMesh, null);
+
+        Random random = new Random(42);
+        float extent = TERRAIN_SIZE * SCALE * HeightMapMesh.getXLength();
+        positions = new Vector3f[QUERIES];
+        xz = new float[QUERIES * 2];
+        heights = new float[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            positions[i] = new Vector3f((random.nextFloat() - 0.5f) * extent, 0,
+                                        (random.nextFloat() - 0.5f) * extent);
+            xz[i * 2] = positions[i].x;
+            xz[i * 2 + 1] = positions[i].z;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void getHeight(Blackhole bh) {
+        for (Vector3f position : positions) {
+            bh.consume(terrain.getHeight(position));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public float[] getHeights() {
+        terrain.getHeights(xz, heights);
+        return heights;
+    }
+}
@@ -0,0 +1,117 @@
+package engine.loaders.obj;
+
+import engine.graph.MeshData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses OBJ content into vertex data, the mesh upload needs an OpenGL context and is left out. The synthetic models
+ * are parsed from memory, the game models are read from the classpath on each invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class OBJLoaderBenchmark {
+
+    /**
+     * A triangulated grid with the given number of faces, kept in memory
+     */
+    @State(Scope.Benchmark)
+    public static class SyntheticModel {
+
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int faces;
+
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        ByteBuffer data;
+
+        @Setup
+        public void setUp() {
+            int quads = (faces + 1) / 2;
+            int cells = (int) Math.ceil(Math.sqrt(quads));
+            int side = cells + 1;
+            StringBuilder lines = new StringBuilder();
+            lines.append("# synthetic grid\n");
+            for (int z = 0; z < side; z++) {
+                for (int x = 0; x < side; x++) {
+                    lines.append("v ").append(x * 0.5f).append(' ').append((float) Math.sin(x * 0.1)).append(' ')
+                            .append(z * 0.5f).append('\n');
+                    lines.append("vt ").append((float) x / cells).append(' ').append((float) z / cells).append('\n');
+                    lines.append("vn 0.0 1.0 0.0\n");
+                }
+            }
+            lines.append("usemtl grid\n");
+            int written = 0;
+            for (int z = 0; z < cells && written < faces; z++) {
+                for (int x = 0; x < cells && written < faces; x++) {
+                    int topLeft = z * side + x + 1;
+                    int topRight = topLeft + 1;
+                    int bottomLeft = topLeft + side;
+                    int bottomRight = bottomLeft + 1;
+                    lines.append(face(topLeft, bottomLeft, topRight));
+                    written++;
+                    if (written < faces) {
+                        lines.append(face(topRight, bottomLeft, bottomRight));
+                        written++;
+                    }
+                }
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.US_ASCII);
+            data = ByteBuffer.allocateDirect(bytes.length);
+            data.put(bytes).flip();
+        }
+
+        private static String face(int v0, int v1, int v2) {
+            return "f " + v0 + "/" + v0 + "/" + v0 + " " + v1 + "/" + v1 + "/" + v1 + " " + v2 + "/" + v2 + "/" + v2 + "\n";
+        }
+    }
+
+    /**
+     * Models shipped with the game, read from the classpath on each invocation
+     */
+    @State(Scope.Benchmark)
+    public static class GameModel {
+
+        @Param({"/models/skybox.obj", "/models/ob/skycraper/skycraper001.obj", "/models/plane/FA-22_Raptor.obj",
+                "/models/city2/The_City.obj"})
+        public String model;
+    }
+
+    @Benchmark
+    public MeshData parseSynthetic(SyntheticModel state) {
+        return OBJLoader.parseMeshData(state.data.duplicate(), null, state.parallel);
+    }
+
+    @Benchmark
+    public MeshData loadGameModel(GameModel state) throws Exception {
+        return OBJLoader.loadMeshData(state.model);
+    }
+
+    @Benchmark
+    public MeshData[] loadGameModelByMaterial(GameModel state) throws Exception {
+        return OBJParser.parseByMaterial(OBJLoader.readFile(state.model), true, new ArrayList<>());
+    }
+
+    @Benchmark
+    public ByteBuffer readGameModel(GameModel state) throws Exception {
+        return OBJLoader.readFile(state.model);
+    }
+}
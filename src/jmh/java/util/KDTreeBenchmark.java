@@ -0,0 +1,64 @@
+package util;
+
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the tree over small random triangles. The tree keeps the list it is given, so each invocation works on a
+ * copy of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class KDTreeBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int triangles;
+
+    private List<KDTree.Triangle> triangleList;
+
+    private KDTree.Box bounds;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        float extent = (float) Math.cbrt(triangles) * 10;
+        triangleList = new ArrayList<>(triangles);
+        for (int i = 0; i < triangles; i++) {
+            Vector3f center = new Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat()).mul(extent);
+            KDTree.Triangle triangle = new KDTree.Triangle();
+            triangle.v0 = new Vector3f(center).add(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            triangle.v1 = new Vector3f(center).add(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            triangle.v2 = new Vector3f(center).add(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            triangleList.add(triangle);
+        }
+        bounds = new KDTree.Box();
+        bounds.min = new Vector3f();
+        bounds.max = new Vector3f(extent + 1);
+    }
+
+    @Benchmark
+    public KDTree buildTree() {
+        KDTree tree = new KDTree();
+        tree.buildTree(new ArrayList<>(triangleList), bounds);
+        return tree;
+    }
+}
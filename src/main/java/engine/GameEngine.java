@@ -1,11 +1,21 @@
 package engine;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 public class GameEngine implements Runnable {
 
     public static final int TARGET_FPS = 75;
 
     public static final int TARGET_UPS = 30;
 
+    /**
+     * Frames drawn so far, advanced on the game loop thread before the drawing of each frame starts
+     */
+    private static volatile int frameCount;
+
     private final Window window;
 
     private final Thread gameLoopThread;
@@ -16,6 +26,8 @@ public class GameEngine implements Runnable {
 
     private final MouseInput mouseInput;
 
+    private ExecutorService simulationExecutor;
+
     private double lastFps;
     
     private int fps;
@@ -63,9 +75,20 @@ public class GameEngine implements Runnable {
         gameLogic.init(window);
         lastFps = timer.getTime();
         fps = 0;
+        if (window.getWindowOptions().pipelinedRendering) {
+            simulationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SIMULATION_THREAD");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
-    protected void gameLoop() {
+    protected void gameLoop() throws Exception {
+        if (simulationExecutor != null) {
+            pipelinedGameLoop();
+            return;
+        }
         float elapsedTime;
         float accumulator = 0f;
         float interval = 1f / TARGET_UPS;
@@ -82,6 +105,7 @@ public class GameEngine implements Runnable {
                 accumulator -= interval;
             }
 
+            frameCount++;
             render();
 
             if ( !window.isvSync() ) {
@@ -90,7 +114,65 @@ public class GameEngine implements Runnable {
         }
     }
 
+    /**
+     * Same loop as {@link #gameLoop()} except that the updates of the next frame, and the preparation of its draw
+     * commands, run on the simulation thread while this thread, which owns the GL context, draws the frame prepared
+     * during the previous iteration.
+     */
+    private void pipelinedGameLoop() throws Exception {
+        float accumulator = 0f;
+        float interval = 1f / TARGET_UPS;
+
+        boolean running = true;
+        while (running && !window.windowShouldClose()) {
+            accumulator += timer.getElapsedTime();
+
+            // Input is polled here, GLFW must be used from this thread
+            input();
+
+            gameLogic.swapFrames();
+            // Advanced before the simulation starts, what it drops is stamped with the frame drawn below, which may
+            // still use it
+            frameCount++;
+
+            final float pending = accumulator;
+            Future<Float> simulation = simulationExecutor.submit(() -> simulate(pending, interval));
+
+            render();
+
+            accumulator = simulation.get();
+
+            if ( !window.isvSync() ) {
+                sync();
+            }
+        }
+    }
+
+    /**
+     * Resources dropped from the scene while this count was n may be drawn until the count reaches n + 1, the frame
+     * drawn from then on was prepared after they were dropped.
+     */
+    public static int getFrameCount() {
+        return frameCount;
+    }
+
+    private float simulate(float accumulator, float interval) {
+        while (accumulator >= interval) {
+            update(interval);
+            accumulator -= interval;
+        }
+        gameLogic.prepareFrame(window);
+        return accumulator;
+    }
+
     protected void cleanup() {
+        if (simulationExecutor != null) {
+            simulationExecutor.shutdownNow();
+            try {
+                simulationExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+            }
+        }
         gameLogic.cleanup();
     }
     
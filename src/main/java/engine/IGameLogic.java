@@ -9,6 +9,20 @@ public interface IGameLogic {
     void update(float interval, MouseInput mouseInput, Window window);
     
     void render(Window window);
+
+    /**
+     * Called on the simulation thread after the updates of a frame when the rendering is pipelined, it must capture
+     * everything {@link #render(Window)} needs so the scene can be updated again while that frame is drawn.
+     */
+    default void prepareFrame(Window window) {
+    }
+
+    /**
+     * Called on the game loop thread, while no frame is being prepared, to make the last prepared frame the one drawn
+     * by the following {@link #render(Window)}.
+     */
+    default void swapFrames() {
+    }
     
     void cleanup();
 }
\ No newline at end of file
@@ -2,7 +2,7 @@ package engine;
 
 import engine.graph.Mesh;
 import engine.items.GameItem;
-import engine.items.Terrain;
+import engine.items.ITerrain;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
 
@@ -26,6 +26,7 @@ public class Plane extends GameItem {
 	private double speedDirectionAngle = NEGATIVE_RIGHT_ANGLE;
 	private Vector3f positionOffset;
 	private Vector3f rotationOffset;
+	private Quaternionf realRotation;
 
 	private boolean isInAir = true;
 
@@ -37,9 +38,15 @@ public class Plane extends GameItem {
 		initialize();
 	}
 
+	public Plane(Mesh[] meshes) {
+		super(meshes);
+		initialize();
+	}
+
 	private void initialize() {
 		positionOffset = new Vector3f();
 		rotationOffset = new Vector3f();
+		realRotation = new Quaternionf();
 		scale = WORLD_SCALE;
 		recentTime = System.currentTimeMillis();
 		stabilizePlaneModel();
@@ -103,15 +110,15 @@ public class Plane extends GameItem {
 		return true;
 	}
 
-	public void update(Terrain terrain, float sensitivity) {
+	public void update(ITerrain terrain, float sensitivity) {
 		updateRotation(terrain, sensitivity);
 		updatePosition(terrain, sensitivity);
 	}
 
-	private void updatePosition(Terrain terrain, float sensitivity) {
+	private void updatePosition(ITerrain terrain, float sensitivity) {
 		positionOffset.mul(sensitivity);
-		final Quaternionf planeRealRotation = Utils.deepCopy(rotation).rotateX(90);
-		position.add(positionOffset.rotate(planeRealRotation));
+		realRotation.set(rotation).rotateX(90);
+		position.add(positionOffset.rotate(realRotation));
 		final float height = terrain.getHeight(position) + 2;
 //		position.y += GRAVITY * difference * Math.sin(Math.toRadians(speedDirectionAngle));
 		position.y += positionOffset.y;
@@ -119,7 +126,7 @@ public class Plane extends GameItem {
 			isInAir = false;
 			if (speedDirectionAngle > CRASH_LIMIT_ANGLE) {
 				speedDirectionAngle = NEGATIVE_RIGHT_ANGLE;
-				rotation.set(new Quaternionf());
+				rotation.identity();
 				stabilizePlaneModel();
 			}
 			position.y = height;
@@ -129,7 +136,7 @@ public class Plane extends GameItem {
 		positionOffset.zero();
 	}
 
-	private void updateRotation(Terrain terrain, float sensitivity) {
+	private void updateRotation(ITerrain terrain, float sensitivity) {
 		rotation.rotate(
 				rotationOffset.x,
 				rotationOffset.y,
@@ -6,12 +6,15 @@ import engine.graph.particles.IParticleEmitter;
 import engine.graph.weather.Fog;
 import engine.items.GameItem;
 import engine.items.SkyBox;
-import engine.items.Terrain;
+import engine.items.ITerrain;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Scene {
 
@@ -19,13 +22,21 @@ public class Scene {
 
     private final Map<InstancedMesh, List<GameItem>> instancedMeshMap;
 
+    private final SceneOctree spatialIndex;
+
+    private final Set<GameItem> movedItems;
+
+    private final Set<GameItem> changedItems;
+
+    private final Set<Mesh> changedMeshes;
+
     private SkyBox skyBox;
 
     private SceneLight sceneLight;
 
     private Fog fog;
 
-    private Terrain terrain;
+    private ITerrain terrain;
 
     private boolean renderShadows;
     
@@ -33,9 +44,17 @@ public class Scene {
 
     private Plane plane;
 
+    private int modCount;
+
+    private int changesModCount;
+
     public Scene() {
         meshMap = new HashMap<>();
         instancedMeshMap = new HashMap<>();
+        spatialIndex = new SceneOctree();
+        movedItems = Collections.newSetFromMap(new IdentityHashMap<>());
+        changedItems = Collections.newSetFromMap(new IdentityHashMap<>());
+        changedMeshes = Collections.newSetFromMap(new IdentityHashMap<>());
         fog = Fog.NOFOG;
         renderShadows = true;
     }
@@ -48,7 +67,71 @@ public class Scene {
         return instancedMeshMap;
     }
 
-    public void setTerrain(Terrain terrain) {
+    public SceneOctree getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * Must be called when a game item already in the scene has been moved or scaled
+     */
+    public void updateGameItem(GameItem gameItem) {
+        spatialIndex.update(gameItem);
+        movedItems.add(gameItem);
+    }
+
+    /**
+     * @return the items passed to {@link #updateGameItem(GameItem)} since the last {@link #clearMovedItems()}
+     */
+    public Set<GameItem> getMovedItems() {
+        return movedItems;
+    }
+
+    public void clearMovedItems() {
+        movedItems.clear();
+    }
+
+    /**
+     * @return a counter incremented each time game items are added to or removed from the scene or change meshes,
+     * cached views of the mesh maps compare it to know when they are out of date
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * @return the items added, removed or given other meshes since the last {@link #clearChanges()}
+     */
+    public Set<GameItem> getChangedItems() {
+        return changedItems;
+    }
+
+    /**
+     * @return the meshes whose item lists changed since the last {@link #clearChanges()}, including the ones no longer
+     * in the mesh maps
+     */
+    public Set<Mesh> getChangedMeshes() {
+        return changedMeshes;
+    }
+
+    /**
+     * @return the modification counter at the last {@link #clearChanges()}, a cached view up to date at that count
+     * only has to apply the changed items and meshes, any other one has to be rebuilt
+     */
+    public int getChangesModCount() {
+        return changesModCount;
+    }
+
+    public void clearChanges() {
+        changedItems.clear();
+        changedMeshes.clear();
+        changesModCount = modCount;
+    }
+
+    public boolean contains(GameItem gameItem) {
+        return spatialIndex.contains(gameItem);
+    }
+
+    public void setTerrain(ITerrain terrain) {
         this.terrain = terrain;
         addGameItems(terrain.getGameItems());
     }
@@ -62,20 +145,70 @@ public class Scene {
         int numGameItems = gameItems != null ? gameItems.length : 0;
         for (int i = 0; i < numGameItems; i++) {
             GameItem gameItem = gameItems[i];
-            Mesh[] meshes = gameItem.getMeshes();
-            for (Mesh mesh : meshes) {
-                boolean instancedMesh = mesh instanceof InstancedMesh;
-                List<GameItem> list = instancedMesh ? instancedMeshMap.get(mesh) : meshMap.get(mesh);
-                if (list == null) {
-                    list = new ArrayList<>();
-                    if (instancedMesh) {
-                        instancedMeshMap.put((InstancedMesh)mesh, list);
-                    } else {
-                        meshMap.put(mesh, list);
-                    }
+            spatialIndex.add(gameItem);
+            addToMeshMaps(gameItem);
+            changedItems.add(gameItem);
+        }
+        if (numGameItems > 0) {
+            modCount++;
+        }
+    }
+
+    /**
+     * Removes an item from the scene. Meshes left without items are dropped from the mesh maps but not cleaned up,
+     * they belong to the caller.
+     */
+    public void removeGameItem(GameItem gameItem) {
+        spatialIndex.remove(gameItem);
+        movedItems.remove(gameItem);
+        removeFromMeshMaps(gameItem);
+        changedItems.add(gameItem);
+        modCount++;
+    }
+
+    /**
+     * Makes an item of the scene draw a single other mesh, such as another level of detail, moving it from the list
+     * of its old meshes to the one of the new mesh. The item stays in the spatial index and the cached
+     * views only update its own entries, see {@link #getChangedItems()}.
+     */
+    public void setGameItemMesh(GameItem gameItem, Mesh mesh) {
+        removeFromMeshMaps(gameItem);
+        gameItem.setMesh(mesh);
+        addToMeshMaps(gameItem);
+        // The new mesh may have another bounding radius
+        spatialIndex.update(gameItem);
+        changedItems.add(gameItem);
+        modCount++;
+    }
+
+    private void addToMeshMaps(GameItem gameItem) {
+        for (Mesh mesh : gameItem.getMeshes()) {
+            boolean instancedMesh = mesh instanceof InstancedMesh;
+            List<GameItem> list = instancedMesh ? instancedMeshMap.get(mesh) : meshMap.get(mesh);
+            if (list == null) {
+                list = new ArrayList<>();
+                if (instancedMesh) {
+                    instancedMeshMap.put((InstancedMesh)mesh, list);
+                } else {
+                    meshMap.put(mesh, list);
+                }
+            }
+            list.add(gameItem);
+            changedMeshes.add(mesh);
+        }
+    }
+
+    private void removeFromMeshMaps(GameItem gameItem) {
+        for (Mesh mesh : gameItem.getMeshes()) {
+            Map<? extends Mesh, List<GameItem>> map = mesh instanceof InstancedMesh ? instancedMeshMap : meshMap;
+            List<GameItem> list = map.get(mesh);
+            if (list != null) {
+                list.remove(gameItem);
+                if (list.isEmpty()) {
+                    map.remove(mesh);
                 }
-                list.add(gameItem);
             }
+            changedMeshes.add(mesh);
         }
     }
 
@@ -135,7 +268,7 @@ public class Scene {
         this.particleEmitters = particleEmitters;
     }
 
-    public Terrain getTerrain() {
+    public ITerrain getTerrain() {
         return terrain;
     }
 
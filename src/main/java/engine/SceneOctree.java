@@ -0,0 +1,549 @@
+package engine;
+
+import engine.graph.Mesh;
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Loose octree holding the game items of a {@link Scene}. Each node bounds its items with a box grown by their
+ * largest bounding radius, at most twice its own size, so an item is stored in a single node picked from its position
+ * and bounding radius, and moving items only need to be reinserted when they leave that node.
+ * <p>
+ * Leaves are only split once they hold more than {@link #LEAF_CAPACITY} items, and subtrees left with few items are
+ * merged back into a single leaf, so that culling visits about as many nodes as there are items to test together.
+ * Nodes keep the bounding spheres of their items in a flat array (x, y, z, radius) next to the flag last set on each
+ * of them, so that culling only reads the items whose flag changes. The octree is expected to be the only one setting
+ * the inside frustum flag of its items.
+ */
+public class SceneOctree {
+
+    private static final int MAX_DEPTH = 10;
+
+    private static final int LEAF_CAPACITY = 16;
+
+    /**
+     * Subtrees are merged at half the capacity, so that a leaf does not split and merge as a single item comes and goes
+     */
+    private static final int MERGE_COUNT = LEAF_CAPACITY / 2;
+
+    private static final float INITIAL_HALF_SIZE = 64.0f;
+
+    /**
+     * Culling states of an item, or of a node when all the items of its subtree share it
+     */
+    private static final byte CULL_UNKNOWN = 0;
+
+    private static final byte CULL_INSIDE = 1;
+
+    private static final byte CULL_OUTSIDE = 2;
+
+    private static final int NUM_PLANES = 6;
+
+    /**
+     * Frustum planes of the current cull, normalized (a, b, c, d) one after the other
+     */
+    private final float[] planes;
+
+    /**
+     * Sum of the absolute values of the normal of every plane, the distance from the center of a cube to its farthest
+     * corner along the normal is the half size of the cube times this
+     */
+    private final float[] planeExtents;
+
+    private Node root;
+
+    private final Map<GameItem, Node> itemNodes;
+
+    public SceneOctree() {
+        root = new Node(null, 0, 0, 0, INITIAL_HALF_SIZE, 0);
+        itemNodes = new IdentityHashMap<>();
+        planes = new float[NUM_PLANES * 4];
+        planeExtents = new float[NUM_PLANES];
+    }
+
+    public void add(GameItem gameItem) {
+        if (itemNodes.containsKey(gameItem)) {
+            update(gameItem);
+            return;
+        }
+        insert(gameItem, getBoundingRadius(gameItem));
+    }
+
+    public void remove(GameItem gameItem) {
+        Node node = itemNodes.remove(gameItem);
+        if (node != null) {
+            node.removeItem(node.indexOf(gameItem));
+            node.decrementCount();
+            merge(node);
+        }
+    }
+
+    /**
+     * Must be called after the position or scale of an item has changed. Items which are still contained in the
+     * node they were stored in are left there, only their bounding sphere is updated.
+     */
+    public void update(GameItem gameItem) {
+        Node node = itemNodes.get(gameItem);
+        if (node == null) {
+            return;
+        }
+        float radius = getBoundingRadius(gameItem);
+        Vector3f pos = gameItem.getPosition();
+        if (radius <= node.halfSize && node.contains(pos.x, pos.y, pos.z)) {
+            node.setSphere(node.indexOf(gameItem), pos.x, pos.y, pos.z, radius);
+            node.growRadius(radius);
+            return;
+        }
+        remove(gameItem);
+        insert(gameItem, radius);
+    }
+
+    public boolean contains(GameItem gameItem) {
+        return itemNodes.containsKey(gameItem);
+    }
+
+    public int size() {
+        return itemNodes.size();
+    }
+
+    /**
+     * Updates the inside frustum flag of every item. Nodes completely inside or outside of the frustum decide the
+     * flag for their whole subtree with a single test, and are not visited at all when they already were at the last
+     * cull and got no new item since, as the flags of their items are still right.
+     */
+    public void cull(Matrix4f prjViewMatrix) {
+        extractPlanes(prjViewMatrix);
+        cull(root);
+    }
+
+    private void cull(Node node) {
+        if (node.count == 0) {
+            return;
+        }
+        byte result = testCube(node.x, node.y, node.z, node.halfSize + node.maxRadius);
+        if (result == CULL_UNKNOWN) {
+            node.cullState = CULL_UNKNOWN;
+            testItems(node);
+            if (node.children != null) {
+                for (Node child : node.children) {
+                    if (child != null) {
+                        cull(child);
+                    }
+                }
+            }
+        } else if (node.cullState != result) {
+            setCullState(node, result);
+        }
+    }
+
+    private void testItems(Node node) {
+        float[] spheres = node.spheres;
+        for (int i = 0; i < node.size; i++) {
+            int sphere = i * 4;
+            boolean inside = testSphere(spheres[sphere], spheres[sphere + 1], spheres[sphere + 2],
+                                        spheres[sphere + 3]);
+            node.setItemState(i, inside ? CULL_INSIDE : CULL_OUTSIDE);
+        }
+    }
+
+    /**
+     * @return {@link #CULL_INSIDE} or {@link #CULL_OUTSIDE} when the cube is completely inside or outside of the
+     * frustum, {@link #CULL_UNKNOWN} when it intersects it
+     */
+    private byte testCube(float x, float y, float z, float halfSize) {
+        byte result = CULL_INSIDE;
+        for (int plane = 0; plane < NUM_PLANES; plane++) {
+            int p = plane * 4;
+            float distance = planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3];
+            float extent = planeExtents[plane] * halfSize;
+            if (distance < -extent) {
+                return CULL_OUTSIDE;
+            }
+            if (distance < extent) {
+                result = CULL_UNKNOWN;
+            }
+        }
+        return result;
+    }
+
+    private boolean testSphere(float x, float y, float z, float radius) {
+        for (int plane = 0; plane < NUM_PLANES; plane++) {
+            int p = plane * 4;
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void extractPlanes(Matrix4f m) {
+        setPlane(0, m.m03() + m.m00(), m.m13() + m.m10(), m.m23() + m.m20(), m.m33() + m.m30());
+        setPlane(1, m.m03() - m.m00(), m.m13() - m.m10(), m.m23() - m.m20(), m.m33() - m.m30());
+        setPlane(2, m.m03() + m.m01(), m.m13() + m.m11(), m.m23() + m.m21(), m.m33() + m.m31());
+        setPlane(3, m.m03() - m.m01(), m.m13() - m.m11(), m.m23() - m.m21(), m.m33() - m.m31());
+        setPlane(4, m.m03() + m.m02(), m.m13() + m.m12(), m.m23() + m.m22(), m.m33() + m.m32());
+        setPlane(5, m.m03() - m.m02(), m.m13() - m.m12(), m.m23() - m.m22(), m.m33() - m.m32());
+    }
+
+    private void setPlane(int plane, float a, float b, float c, float d) {
+        float invLength = 1.0f / (float) Math.sqrt(a * a + b * b + c * c);
+        planes[plane * 4] = a * invLength;
+        planes[plane * 4 + 1] = b * invLength;
+        planes[plane * 4 + 2] = c * invLength;
+        planes[plane * 4 + 3] = d * invLength;
+        planeExtents[plane] = (Math.abs(a) + Math.abs(b) + Math.abs(c)) * invLength;
+    }
+
+    private void setCullState(Node node, byte cullState) {
+        node.cullState = cullState;
+        for (int i = 0; i < node.size; i++) {
+            node.setItemState(i, cullState);
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child != null && child.count > 0) {
+                    setCullState(child, cullState);
+                }
+            }
+        }
+    }
+
+    private void insert(GameItem gameItem, float radius) {
+        Vector3f pos = gameItem.getPosition();
+        Node node = root;
+        if (!Float.isFinite(pos.x) || !Float.isFinite(pos.y) || !Float.isFinite(pos.z) || !Float.isFinite(radius)) {
+            // Cannot be placed, keep it at the root so it is still culled
+            node.addItem(gameItem, pos.x, pos.y, pos.z, radius);
+            node.incrementCount(0);
+            itemNodes.put(gameItem, node);
+            return;
+        }
+        while (radius > root.halfSize || !root.contains(pos.x, pos.y, pos.z)) {
+            growRoot(pos);
+        }
+        node = root;
+        while (node.children != null && radius <= node.halfSize / 2) {
+            node = node.getChild(node.octant(pos.x, pos.y, pos.z));
+        }
+        node.addItem(gameItem, pos.x, pos.y, pos.z, radius);
+        node.incrementCount(radius);
+        itemNodes.put(gameItem, node);
+        if (node.children == null && node.size > LEAF_CAPACITY) {
+            split(node);
+        }
+    }
+
+    /**
+     * Moves the items of a leaf small enough for its children down to them, splitting the children in turn while
+     * they are over capacity
+     */
+    private void split(Node node) {
+        if (node.depth >= MAX_DEPTH) {
+            return;
+        }
+        node.children = new Node[8];
+        float[] spheres = node.spheres;
+        int i = 0;
+        while (i < node.size) {
+            int sphere = i * 4;
+            float x = spheres[sphere];
+            float y = spheres[sphere + 1];
+            float z = spheres[sphere + 2];
+            float radius = spheres[sphere + 3];
+            if (radius <= node.halfSize / 2 && node.contains(x, y, z)) {
+                GameItem gameItem = node.items[i];
+                Node child = node.getChild(node.octant(x, y, z));
+                child.addItem(gameItem, x, y, z, radius);
+                // The item stays counted by the node and its ancestors, and new children are not culled yet
+                child.count++;
+                child.maxRadius = Math.max(child.maxRadius, radius);
+                itemNodes.put(gameItem, child);
+                node.removeItem(i);
+            } else {
+                i++;
+            }
+        }
+        for (Node child : node.children) {
+            if (child != null && child.size > LEAF_CAPACITY) {
+                split(child);
+            }
+        }
+    }
+
+    /**
+     * Drops the nodes left empty by the removal of an item, then merges back into a single leaf the largest subtree
+     * above them which has no more than {@link #MERGE_COUNT} items left
+     */
+    private void merge(Node node) {
+        while (node.count == 0 && node.parent != null) {
+            Node parent = node.parent;
+            parent.removeChild(node);
+            node = parent;
+        }
+        Node merged = null;
+        for (Node ancestor = node; ancestor != null && ancestor.count <= MERGE_COUNT; ancestor = ancestor.parent) {
+            merged = ancestor;
+        }
+        if (merged == null || merged.children == null) {
+            return;
+        }
+        for (Node child : merged.children) {
+            if (child != null) {
+                moveItems(child, merged);
+            }
+        }
+        merged.children = null;
+        merged.resetCullState();
+    }
+
+    private void moveItems(Node from, Node to) {
+        for (int i = 0; i < from.size; i++) {
+            int sphere = i * 4;
+            GameItem gameItem = from.items[i];
+            to.addItem(gameItem, from.spheres[sphere], from.spheres[sphere + 1], from.spheres[sphere + 2],
+                       from.spheres[sphere + 3]);
+            itemNodes.put(gameItem, to);
+        }
+        if (from.children != null) {
+            for (Node child : from.children) {
+                if (child != null) {
+                    moveItems(child, to);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubles the size of the tree towards the given position, the old root becomes one of the new root children.
+     */
+    private void growRoot(Vector3f pos) {
+        Node oldRoot = root;
+        float half = oldRoot.halfSize;
+        float dx = pos.x >= oldRoot.x ? half : -half;
+        float dy = pos.y >= oldRoot.y ? half : -half;
+        float dz = pos.z >= oldRoot.z ? half : -half;
+        Node newRoot = new Node(null, oldRoot.x + dx, oldRoot.y + dy, oldRoot.z + dz, half * 2, 0);
+        int octant = newRoot.octant(oldRoot.x, oldRoot.y, oldRoot.z);
+        newRoot.children = new Node[8];
+        newRoot.children[octant] = oldRoot;
+        newRoot.count = oldRoot.count;
+        newRoot.maxRadius = oldRoot.maxRadius;
+        oldRoot.parent = newRoot;
+        oldRoot.incrementDepth();
+        root = newRoot;
+    }
+
+    private static float getBoundingRadius(GameItem gameItem) {
+        float radius = 0;
+        Mesh[] meshes = gameItem.getMeshes();
+        if (meshes != null) {
+            for (Mesh mesh : meshes) {
+                radius = Math.max(radius, mesh.getBoundingRadius());
+            }
+        }
+        return radius * gameItem.getScale();
+    }
+
+    private static class Node {
+
+        private static final int INITIAL_CAPACITY = 4;
+
+        Node parent;
+
+        final float x;
+
+        final float y;
+
+        final float z;
+
+        final float halfSize;
+
+        int depth;
+
+        Node[] children;
+
+        GameItem[] items;
+
+        /**
+         * Bounding spheres of the items, x, y, z and radius one after the other
+         */
+        float[] spheres;
+
+        /**
+         * Culling state of every item, that is the inside frustum flag last set on it by the octree
+         */
+        byte[] itemStates;
+
+        /**
+         * Number of items stored in this node
+         */
+        int size;
+
+        /**
+         * Number of items stored in this node and its descendants
+         */
+        int count;
+
+        /**
+         * Largest bounding radius of the items stored in this node and its descendants, which bounds them with a box
+         * of {@link #halfSize} plus this radius around the center of the node. It only shrinks when the node is
+         * dropped.
+         */
+        float maxRadius;
+
+        /**
+         * State this node and all its descendants were set to by the last cull, reset as soon as an item comes in
+         */
+        byte cullState;
+
+        Node(Node parent, float x, float y, float z, float halfSize, int depth) {
+            this.parent = parent;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.halfSize = halfSize;
+            this.depth = depth;
+            items = new GameItem[INITIAL_CAPACITY];
+            spheres = new float[INITIAL_CAPACITY * 4];
+            itemStates = new byte[INITIAL_CAPACITY];
+        }
+
+        boolean contains(float px, float py, float pz) {
+            return px >= x - halfSize && px < x + halfSize
+                    && py >= y - halfSize && py < y + halfSize
+                    && pz >= z - halfSize && pz < z + halfSize;
+        }
+
+        int octant(float px, float py, float pz) {
+            return (px >= x ? 1 : 0) | (py >= y ? 2 : 0) | (pz >= z ? 4 : 0);
+        }
+
+        Node getChild(int octant) {
+            if (children == null) {
+                children = new Node[8];
+            }
+            Node child = children[octant];
+            if (child == null) {
+                float offset = halfSize / 2;
+                child = new Node(this,
+                                 x + ((octant & 1) != 0 ? offset : -offset),
+                                 y + ((octant & 2) != 0 ? offset : -offset),
+                                 z + ((octant & 4) != 0 ? offset : -offset),
+                                 offset, depth + 1);
+                children[octant] = child;
+            }
+            return child;
+        }
+
+        void removeChild(Node child) {
+            boolean empty = true;
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == child) {
+                    children[i] = null;
+                }
+                empty &= children[i] == null;
+            }
+            if (empty) {
+                children = null;
+            }
+        }
+
+        /**
+         * Adds the item with an unknown culling state, its flag will be set by the next cull
+         */
+        void addItem(GameItem gameItem, float px, float py, float pz, float radius) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                spheres = Arrays.copyOf(spheres, size * 2 * 4);
+                itemStates = Arrays.copyOf(itemStates, size * 2);
+            }
+            items[size] = gameItem;
+            itemStates[size] = CULL_UNKNOWN;
+            setSphere(size, px, py, pz, radius);
+            size++;
+        }
+
+        /**
+         * Removes the item at the given index, replacing it with the last one
+         */
+        void removeItem(int index) {
+            size--;
+            items[index] = items[size];
+            itemStates[index] = itemStates[size];
+            System.arraycopy(spheres, size * 4, spheres, index * 4, 4);
+            items[size] = null;
+        }
+
+        int indexOf(GameItem gameItem) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == gameItem) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void setSphere(int index, float px, float py, float pz, float radius) {
+            int sphere = index * 4;
+            spheres[sphere] = px;
+            spheres[sphere + 1] = py;
+            spheres[sphere + 2] = pz;
+            spheres[sphere + 3] = radius;
+        }
+
+        /**
+         * Sets the inside frustum flag of the item at the given index, the item itself is only read when it changes
+         */
+        void setItemState(int index, byte state) {
+            if (itemStates[index] != state) {
+                itemStates[index] = state;
+                GameItem gameItem = items[index];
+                if (!gameItem.isDisableFrustumCulling()) {
+                    gameItem.setInsideFrustum(state == CULL_INSIDE);
+                }
+            }
+        }
+
+        void incrementCount(float radius) {
+            for (Node node = this; node != null; node = node.parent) {
+                node.count++;
+                node.maxRadius = Math.max(node.maxRadius, radius);
+                node.cullState = CULL_UNKNOWN;
+            }
+        }
+
+        void resetCullState() {
+            for (Node node = this; node != null; node = node.parent) {
+                node.cullState = CULL_UNKNOWN;
+            }
+        }
+
+        void growRadius(float radius) {
+            for (Node node = this; node != null && node.maxRadius < radius; node = node.parent) {
+                node.maxRadius = radius;
+            }
+        }
+
+        void decrementCount() {
+            for (Node node = this; node != null; node = node.parent) {
+                node.count--;
+            }
+        }
+
+        void incrementDepth() {
+            depth++;
+            if (children != null) {
+                for (Node child : children) {
+                    if (child != null) {
+                        child.incrementDepth();
+                    }
+                }
+            }
+        }
+    }
+}
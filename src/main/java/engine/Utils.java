@@ -6,6 +6,7 @@ import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -26,7 +27,7 @@ public class Utils {
 
     public static String loadResource(String fileName) throws Exception {
         String result;
-        try (InputStream in = Utils.class.getClass().getResourceAsStream(fileName);
+        try (InputStream in = Utils.class.getResourceAsStream(fileName);
                 Scanner scanner = new Scanner(in, "UTF-8")) {
             result = scanner.useDelimiter("\\A").next();
         }
@@ -35,7 +36,7 @@ public class Utils {
 
     public static List<String> readAllLines(String fileName) throws Exception {
         List<String> list = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(Utils.class.getClass().getResourceAsStream(fileName)))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(Utils.class.getResourceAsStream(fileName)))) {
             String line;
             while ((line = br.readLine()) != null) {
                 list.add(line);
@@ -58,6 +59,15 @@ public class Utils {
         return floatArr;
     }
 
+    /**
+     * @return the absolute path of a resource of the class path, as needed by loaders reading files by themselves
+     */
+    public static String getResourcePath(String resource) {
+        String fileName = Thread.currentThread().getContextClassLoader()
+                .getResource(resource).getFile();
+        return new File(fileName).getAbsolutePath();
+    }
+
     public static boolean existsResourceFile(String fileName) {
         boolean result;
         try (InputStream is = Utils.class.getResourceAsStream(fileName)) {
@@ -252,6 +252,30 @@ public class Window {
 
         public boolean antialiasing;
 
-        public boolean frustumCulling;        
+        public boolean frustumCulling;
+
+        public boolean multiDrawIndirect;
+
+        public boolean streamInstanceData;
+
+        public boolean soaFrustumCulling;
+
+        public boolean pipelinedRendering;
+
+        public boolean chunkedTerrain;
+
+        public boolean asyncLoading;
+
+        public boolean compressedTextures;
+
+        public boolean textureStreaming;
+
+        public boolean sharedGeometry;
+
+        public boolean compactVertices;
+
+        public boolean optimizeMeshes;
+
+        public boolean levelsOfDetail;
     }
 }
@@ -0,0 +1,307 @@
+package engine.graph;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Software encoder of the S3TC block compressed formats: BC1 (DXT1) for opaque images and BC3 (DXT5) for images with
+ * alpha. Both split the image in 4x4 texel blocks and store each block as two 565 colours plus a 2 bit index per
+ * texel, BC3 adds two alpha values plus a 3 bit index per texel.
+ * <p>
+ * Colour endpoints are the extremes of the block texels along their principal axis, which gives a quality close to
+ * the usual offline tools for a fraction of their time.
+ */
+public class BlockCompressor {
+
+    public static final int BC1_BLOCK_BYTES = 8;
+
+    public static final int BC3_BLOCK_BYTES = 16;
+
+    /**
+     * Number of block rows compressed by each parallel task
+     */
+    private static final int BAND_BLOCK_ROWS = 16;
+
+    private static final int POWER_ITERATIONS = 4;
+
+    private BlockCompressor() {
+    }
+
+    /**
+     * @return the size in bytes of an image compressed with blocks of the given size
+     */
+    public static int getCompressedSize(int width, int height, int blockBytes) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * blockBytes;
+    }
+
+    /**
+     * @return whether any texel of an RGBA image is not fully opaque
+     */
+    public static boolean hasAlpha(ByteBuffer rgba, int width, int height) {
+        int base = rgba.position();
+        for (int i = 0, n = width * height; i < n; i++) {
+            if (rgba.get(base + i * 4 + 3) != (byte) 0xFF) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses an RGBA image, from its position, into the destination from its position. Neither position moves.
+     * Blocks crossing the right or bottom border repeat the border texels.
+     *
+     * @param alpha Whether to encode BC3, BC1 otherwise
+     */
+    public static void compress(ByteBuffer rgba, int width, int height, boolean alpha, ByteBuffer dest) {
+        int blockRows = (height + 3) / 4;
+        if (blockRows <= BAND_BLOCK_ROWS) {
+            compressRows(rgba, width, height, alpha, dest, 0, blockRows);
+        } else {
+            ForkJoinPool.commonPool().invoke(new CompressTask(rgba, width, height, alpha, dest, 0, blockRows));
+        }
+    }
+
+    /**
+     * Halves an RGBA image with a box filter, odd sides repeat their last texel. Writes the result from the position of
+     * the destination, neither position moves.
+     */
+    public static void downsample(ByteBuffer rgba, int width, int height, ByteBuffer dest) {
+        int base = rgba.position();
+        int destBase = dest.position();
+        int halfWidth = Math.max(1, width / 2);
+        int halfHeight = Math.max(1, height / 2);
+        for (int y = 0; y < halfHeight; y++) {
+            int y0 = Math.min(y * 2, height - 1);
+            int y1 = Math.min(y * 2 + 1, height - 1);
+            for (int x = 0; x < halfWidth; x++) {
+                int x0 = Math.min(x * 2, width - 1);
+                int x1 = Math.min(x * 2 + 1, width - 1);
+                int out = destBase + (y * halfWidth + x) * 4;
+                for (int c = 0; c < 4; c++) {
+                    int sum = (rgba.get(base + (y0 * width + x0) * 4 + c) & 0xFF)
+                            + (rgba.get(base + (y0 * width + x1) * 4 + c) & 0xFF)
+                            + (rgba.get(base + (y1 * width + x0) * 4 + c) & 0xFF)
+                            + (rgba.get(base + (y1 * width + x1) * 4 + c) & 0xFF);
+                    dest.put(out + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+    }
+
+    private static void compressRows(ByteBuffer rgba, int width, int height, boolean alpha, ByteBuffer dest,
+                                     int fromBlockRow, int toBlockRow) {
+        int base = rgba.position();
+        int blockBytes = alpha ? BC3_BLOCK_BYTES : BC1_BLOCK_BYTES;
+        int blockCols = (width + 3) / 4;
+        int[] block = new int[16 * 4];
+        for (int blockRow = fromBlockRow; blockRow < toBlockRow; blockRow++) {
+            for (int blockCol = 0; blockCol < blockCols; blockCol++) {
+                for (int i = 0; i < 16; i++) {
+                    int x = Math.min(blockCol * 4 + (i & 3), width - 1);
+                    int y = Math.min(blockRow * 4 + (i >> 2), height - 1);
+                    int texel = base + (y * width + x) * 4;
+                    block[i * 4] = rgba.get(texel) & 0xFF;
+                    block[i * 4 + 1] = rgba.get(texel + 1) & 0xFF;
+                    block[i * 4 + 2] = rgba.get(texel + 2) & 0xFF;
+                    block[i * 4 + 3] = rgba.get(texel + 3) & 0xFF;
+                }
+                int out = dest.position() + (blockRow * blockCols + blockCol) * blockBytes;
+                if (alpha) {
+                    encodeAlpha(block, dest, out);
+                    out += 8;
+                }
+                encodeColour(block, dest, out);
+            }
+        }
+    }
+
+    private static void encodeAlpha(int[] block, ByteBuffer dest, int out) {
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < 16; i++) {
+            int a = block[i * 4 + 3];
+            min = Math.min(min, a);
+            max = Math.max(max, a);
+        }
+        dest.put(out, (byte) max);
+        dest.put(out + 1, (byte) min);
+        long bits = 0;
+        if (max > min) {
+            // With alpha0 > alpha1 index 0 is alpha0, 1 is alpha1 and 2 to 7 interpolate from alpha0 to alpha1
+            int range = max - min;
+            for (int i = 0; i < 16; i++) {
+                int step = ((max - block[i * 4 + 3]) * 7 + range / 2) / range;
+                int index = step == 0 ? 0 : step == 7 ? 1 : step + 1;
+                bits |= (long) index << (3 * i);
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            dest.put(out + 2 + i, (byte) (bits >>> (8 * i)));
+        }
+    }
+
+    private static void encodeColour(int[] block, ByteBuffer dest, int out) {
+        float meanR = 0;
+        float meanG = 0;
+        float meanB = 0;
+        for (int i = 0; i < 16; i++) {
+            meanR += block[i * 4];
+            meanG += block[i * 4 + 1];
+            meanB += block[i * 4 + 2];
+        }
+        meanR /= 16;
+        meanG /= 16;
+        meanB /= 16;
+
+        float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+        for (int i = 0; i < 16; i++) {
+            float r = block[i * 4] - meanR;
+            float g = block[i * 4 + 1] - meanG;
+            float b = block[i * 4 + 2] - meanB;
+            rr += r * r;
+            rg += r * g;
+            rb += r * b;
+            gg += g * g;
+            gb += g * b;
+            bb += b * b;
+        }
+        // Principal axis of the texels by power iteration on their covariance
+        float axisR = 1;
+        float axisG = 1;
+        float axisB = 1;
+        for (int i = 0; i < POWER_ITERATIONS; i++) {
+            float r = rr * axisR + rg * axisG + rb * axisB;
+            float g = rg * axisR + gg * axisG + gb * axisB;
+            float b = rb * axisR + gb * axisG + bb * axisB;
+            float length = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+            if (length == 0) {
+                break;
+            }
+            axisR = r / length;
+            axisG = g / length;
+            axisB = b / length;
+        }
+
+        float minProj = Float.POSITIVE_INFINITY;
+        float maxProj = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < 16; i++) {
+            float proj = (block[i * 4] - meanR) * axisR + (block[i * 4 + 1] - meanG) * axisG
+                    + (block[i * 4 + 2] - meanB) * axisB;
+            minProj = Math.min(minProj, proj);
+            maxProj = Math.max(maxProj, proj);
+        }
+        float axisLengthSq = axisR * axisR + axisG * axisG + axisB * axisB;
+        float minT = axisLengthSq > 0 ? minProj / axisLengthSq : 0;
+        float maxT = axisLengthSq > 0 ? maxProj / axisLengthSq : 0;
+        // Inset the endpoints a little, the extremes are usually outliers
+        float inset = (maxT - minT) / 16;
+        minT += inset;
+        maxT -= inset;
+
+        int colour0 = toRgb565(meanR + axisR * maxT, meanG + axisG * maxT, meanB + axisB * maxT);
+        int colour1 = toRgb565(meanR + axisR * minT, meanG + axisG * minT, meanB + axisB * minT);
+        if (colour0 < colour1) {
+            int swap = colour0;
+            colour0 = colour1;
+            colour1 = swap;
+        }
+
+        int indices = 0;
+        if (colour0 != colour1) {
+            // colour0 > colour1 selects the four colours mode: colour0, colour1, 2/3 colour0 + 1/3 colour1, and
+            // 1/3 colour0 + 2/3 colour1
+            int[] palette = new int[12];
+            expand565(colour0, palette, 0);
+            expand565(colour1, palette, 3);
+            for (int c = 0; c < 3; c++) {
+                palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+                palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+            }
+            for (int i = 0; i < 16; i++) {
+                int best = 0;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; p++) {
+                    int dr = block[i * 4] - palette[p * 3];
+                    int dg = block[i * 4 + 1] - palette[p * 3 + 1];
+                    int db = block[i * 4 + 2] - palette[p * 3 + 2];
+                    int distance = dr * dr + dg * dg + db * db;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = p;
+                    }
+                }
+                indices |= best << (2 * i);
+            }
+        }
+        dest.put(out, (byte) colour0);
+        dest.put(out + 1, (byte) (colour0 >> 8));
+        dest.put(out + 2, (byte) colour1);
+        dest.put(out + 3, (byte) (colour1 >> 8));
+        for (int i = 0; i < 4; i++) {
+            dest.put(out + 4 + i, (byte) (indices >>> (8 * i)));
+        }
+    }
+
+    private static int toRgb565(float r, float g, float b) {
+        int r5 = Math.round(clamp(r) * 31 / 255);
+        int g6 = Math.round(clamp(g) * 63 / 255);
+        int b5 = Math.round(clamp(b) * 31 / 255);
+        return (r5 << 11) | (g6 << 5) | b5;
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static void expand565(int colour, int[] rgb, int offset) {
+        int r5 = (colour >> 11) & 0x1F;
+        int g6 = (colour >> 5) & 0x3F;
+        int b5 = colour & 0x1F;
+        rgb[offset] = (r5 << 3) | (r5 >> 2);
+        rgb[offset + 1] = (g6 << 2) | (g6 >> 4);
+        rgb[offset + 2] = (b5 << 3) | (b5 >> 2);
+    }
+
+    private static class CompressTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer rgba;
+
+        private final int width;
+
+        private final int height;
+
+        private final boolean alpha;
+
+        private final ByteBuffer dest;
+
+        private final int fromBlockRow;
+
+        private final int toBlockRow;
+
+        CompressTask(ByteBuffer rgba, int width, int height, boolean alpha, ByteBuffer dest, int fromBlockRow,
+                     int toBlockRow) {
+            this.rgba = rgba;
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            this.dest = dest;
+            this.fromBlockRow = fromBlockRow;
+            this.toBlockRow = toBlockRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlockRow - fromBlockRow <= BAND_BLOCK_ROWS) {
+                compressRows(rgba, width, height, alpha, dest, fromBlockRow, toBlockRow);
+                return;
+            }
+            int middle = (fromBlockRow + toBlockRow) >>> 1;
+            invokeAll(new CompressTask(rgba, width, height, alpha, dest, fromBlockRow, middle),
+                      new CompressTask(rgba, width, height, alpha, dest, middle, toBlockRow));
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package engine.graph;
 
 import engine.Plane;
-import engine.Utils;
 import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
@@ -9,21 +8,33 @@ import org.joml.Vector3f;
 public class Camera {
 
     public static final int TILT_OF_CAMERA = 15;
+
+    private static final float PLANE_MODEL_ANGLE = (float) Math.toRadians(90);
+
+    private static final float TILT_SIN = (float) Math.sin(Math.toRadians(TILT_OF_CAMERA));
+
+    private static final float TILT_COS = (float) Math.cos(Math.toRadians(TILT_OF_CAMERA));
+
     private final Vector3f position;
 
     private final Quaternionf rotation;
     
     private Matrix4f viewMatrix;
+
+    private final Quaternionf planeRotation;
+
+    private final Vector3f cameraUponPlane;
     
     public Camera() {
-        position = new Vector3f();
-        rotation = new Quaternionf();
+        this(new Vector3f(), new Quaternionf());
         viewMatrix = new Matrix4f();
     }
     
     public Camera(Vector3f position, Quaternionf rotation) {
         this.position = position;
         this.rotation = rotation;
+        planeRotation = new Quaternionf();
+        cameraUponPlane = new Vector3f();
     }
 
     public Vector3f getPosition() {
@@ -45,18 +56,14 @@ public class Camera {
     }
 
     public void followPlane(Plane plane, float distance) {
-        final Vector3f planePosition = Utils.deepCopy(plane.getPosition());
-		final Quaternionf planeRotation = Utils.deepCopy(plane.getRotation()).rotateX((float)Math.toRadians(90));
-
+		planeRotation.set(plane.getRotation()).rotateX(PLANE_MODEL_ANGLE);
 
+		// conjugate() works in place, the second call restores the plane rotation
 		rotation.set(planeRotation.conjugate());
-        final Vector3f cameraUponPlane = new Vector3f(
-                0,
-                (float) Math.sin(Math.toRadians(TILT_OF_CAMERA)) * distance,
-                (float) Math.cos(Math.toRadians(TILT_OF_CAMERA)) * distance);
+        cameraUponPlane.set(0, TILT_SIN * distance, TILT_COS * distance);
 
         position.set(cameraUponPlane
-				.rotate(planeRotation.conjugate()).add(planePosition));
+				.rotate(planeRotation.conjugate()).add(plane.getPosition()));
 	}
 
     public Quaternionf getRotation() {
@@ -0,0 +1,178 @@
+package engine.graph;
+
+import engine.Scene;
+import engine.SceneLight;
+import engine.Window;
+import engine.graph.lights.DirectionalLight;
+import engine.graph.lights.PointLight;
+import engine.graph.lights.SpotLight;
+import engine.graph.weather.Fog;
+import engine.items.SkyBox;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Everything the renderer needs to draw a frame, copied from the {@link Scene} at the end of the simulation step:
+ * camera matrices, lights, fog and the draw commands of the visible items. The GL thread draws from a snapshot while
+ * the simulation thread updates the scene and records the next one, so nothing in here points to mutable scene state.
+ * Light and fog objects are reused between frames.
+ */
+public class FrameSnapshot {
+
+    private final Matrix4f viewMatrix;
+
+    private final Matrix4f projectionMatrix;
+
+    private final RenderCommandList meshCommands;
+
+    private final RenderCommandList instancedMeshCommands;
+
+    private final SceneLight sceneLight;
+
+    private final Fog fog;
+
+    private SkyBox skyBox;
+
+    private boolean renderShadows;
+
+    private boolean sceneChanged;
+
+    private boolean ready;
+
+    public FrameSnapshot() {
+        viewMatrix = new Matrix4f();
+        projectionMatrix = new Matrix4f();
+        meshCommands = new RenderCommandList();
+        instancedMeshCommands = new RenderCommandList();
+        sceneLight = new SceneLight();
+        sceneLight.setAmbientLight(new Vector3f());
+        sceneLight.setSkyBoxLight(new Vector3f());
+        fog = new Fog();
+    }
+
+    /**
+     * Copies the camera, lights and fog of the scene, draw commands are recorded separately.
+     */
+    public void capture(Window window, Camera camera, Scene scene, boolean sceneChanged) {
+        viewMatrix.set(camera.getViewMatrix());
+        Window.updateProjectionMatrix(projectionMatrix, window.getWidth(), window.getHeight());
+        captureLights(scene.getSceneLight());
+
+        Fog sceneFog = scene.getFog();
+        fog.setActive(sceneFog.isActive());
+        fog.getColour().set(sceneFog.getColour());
+        fog.setDensity(sceneFog.getDensity());
+
+        skyBox = scene.getSkyBox();
+        renderShadows = scene.isRenderShadows();
+        this.sceneChanged = sceneChanged;
+        meshCommands.clear();
+        instancedMeshCommands.clear();
+    }
+
+    private void captureLights(SceneLight source) {
+        setOrClear(sceneLight.getAmbientLight(), source.getAmbientLight());
+        setOrClear(sceneLight.getSkyBoxLight(), source.getSkyBoxLight());
+
+        PointLight[] pointLights = source.getPointLightList();
+        if (pointLights == null) {
+            sceneLight.setPointLightList(null);
+        } else {
+            PointLight[] copies = sceneLight.getPointLightList();
+            if (copies == null || copies.length != pointLights.length) {
+                copies = new PointLight[pointLights.length];
+                for (int i = 0; i < copies.length; i++) {
+                    copies[i] = new PointLight(pointLights[i]);
+                }
+                sceneLight.setPointLightList(copies);
+            }
+            for (int i = 0; i < copies.length; i++) {
+                copies[i].set(pointLights[i]);
+            }
+        }
+
+        SpotLight[] spotLights = source.getSpotLightList();
+        if (spotLights == null) {
+            sceneLight.setSpotLightList(null);
+        } else {
+            SpotLight[] copies = sceneLight.getSpotLightList();
+            if (copies == null || copies.length != spotLights.length) {
+                copies = new SpotLight[spotLights.length];
+                for (int i = 0; i < copies.length; i++) {
+                    copies[i] = new SpotLight(spotLights[i]);
+                }
+                sceneLight.setSpotLightList(copies);
+            }
+            for (int i = 0; i < copies.length; i++) {
+                copies[i].set(spotLights[i]);
+            }
+        }
+
+        DirectionalLight directionalLight = source.getDirectionalLight();
+        if (directionalLight == null) {
+            sceneLight.setDirectionalLight(null);
+        } else if (sceneLight.getDirectionalLight() == null) {
+            sceneLight.setDirectionalLight(new DirectionalLight(directionalLight));
+        } else {
+            sceneLight.getDirectionalLight().set(directionalLight);
+        }
+    }
+
+    private static void setOrClear(Vector3f dest, Vector3f value) {
+        if (value != null) {
+            dest.set(value);
+        } else {
+            dest.zero();
+        }
+    }
+
+    public Matrix4f getViewMatrix() {
+        return viewMatrix;
+    }
+
+    public Matrix4f getProjectionMatrix() {
+        return projectionMatrix;
+    }
+
+    public RenderCommandList getMeshCommands() {
+        return meshCommands;
+    }
+
+    public RenderCommandList getInstancedMeshCommands() {
+        return instancedMeshCommands;
+    }
+
+    public SceneLight getSceneLight() {
+        return sceneLight;
+    }
+
+    public Fog getFog() {
+        return fog;
+    }
+
+    /**
+     * The sky box is shared with the scene, its transformation is never changed by the simulation
+     */
+    public SkyBox getSkyBox() {
+        return skyBox;
+    }
+
+    public boolean isRenderShadows() {
+        return renderShadows;
+    }
+
+    public boolean isSceneChanged() {
+        return sceneChanged;
+    }
+
+    /**
+     * @return false until a frame has been recorded
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+}
@@ -3,6 +3,7 @@ package engine.graph;
 import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import engine.SceneOctree;
 import engine.items.GameItem;
 
 import java.util.List;
@@ -27,6 +28,14 @@ public class FrustumCullingFilter {
         frustumInt.set(prjViewMatrix);
     }
 
+    public Matrix4f getProjViewMatrix() {
+        return prjViewMatrix;
+    }
+
+    public void filter(SceneOctree spatialIndex) {
+        spatialIndex.cull(prjViewMatrix);
+    }
+
     public void filter(Map<? extends Mesh, List<GameItem>> mapMesh) {
         for (Map.Entry<? extends Mesh, List<GameItem>> entry : mapMesh.entrySet()) {
             List<GameItem> gameItems = entry.getValue();
@@ -0,0 +1,261 @@
+package engine.graph;
+
+import engine.loaders.assimp.TextureCache;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memByteBuffer;
+import static org.lwjgl.util.xxhash.XXHash.XXH64;
+
+/**
+ * Meshes shared by content, so that identical geometry loaded several times, from the same file or from different
+ * ones, is uploaded once and drawn in a single batch. The vertex and index payloads are hashed with XXH64 when the mesh
+ * is requested, a mesh is shared with the previous requests having the same hash, element counts and material. The
+ * buffers are not kept, so a second hash with another seed is compared too, and two payloads only collide when both
+ * hashes do.
+ * <p>
+ * Each request holds a reference on the mesh, given back by {@link Mesh#cleanUp()}, the buffers are deleted with the
+ * last one. Shared meshes must not be modified afterwards, so only the loaders whose meshes are used as they are
+ * request them from here. Must be called from the GL thread.
+ */
+public class GeometryRegistry {
+
+    private static final long SEED = 0;
+
+    private static final long CHECK_SEED = 0x9E3779B97F4A7C15L;
+
+    private static GeometryRegistry INSTANCE;
+
+    private final Map<Long, List<Entry>> entriesByHash;
+
+    private final Map<Mesh, Entry> entriesByMesh;
+
+    private boolean enabled;
+
+    private long hits;
+
+    private long misses;
+
+    private GeometryRegistry() {
+        entriesByHash = new HashMap<>();
+        entriesByMesh = new IdentityHashMap<>();
+    }
+
+    public static synchronized GeometryRegistry getInstance() {
+        if ( INSTANCE == null ) {
+            INSTANCE = new GeometryRegistry();
+        }
+        return INSTANCE;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Meshes already shared stay so, disabling only makes the next requests create their own mesh
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Takes a reference on a mesh with the remaining content of the buffers and the material, creating it if there is
+     * none yet. The buffers are not kept.
+     * <p>
+     * The caller gives the reference it holds on the texture of the material, when the mesh already exists it is
+     * given back to the {@link TextureCache} since the shared mesh holds its own.
+     */
+    public synchronized Mesh getMesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals,
+                                     IntBuffer indices, Material material) {
+        return getMesh(positions, textCoords, normals, indices, null, material);
+    }
+
+    /**
+     * Same as {@link #getMesh(FloatBuffer, FloatBuffer, FloatBuffer, IntBuffer, Material)} for a mesh with levels of
+     * detail, whose indices all come one after the other. Their content being hashed with the rest, meshes only match
+     * when they have the same levels.
+     */
+    public synchronized Mesh getMesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals,
+                                     IntBuffer indices, LodChain lods, Material material) {
+        if ( !enabled ) {
+            return createMesh(positions, textCoords, normals, indices, lods, material);
+        }
+        long hash = hash(positions, textCoords, normals, indices, SEED);
+        long checkHash = hash(positions, textCoords, normals, indices, CHECK_SEED);
+
+        List<Entry> entries = entriesByHash.computeIfAbsent(hash, k -> new ArrayList<>(1));
+        for (Entry entry : entries) {
+            if ( entry.matches(checkHash, positions, textCoords, normals, indices, material)
+                    && entry.mesh.getNumLods() == (lods != null ? lods.getNumLods() : 1) ) {
+                hits++;
+                entry.refCount++;
+                if ( material != null && material.getTexture() != null ) {
+                    TextureCache.getInstance().release(material.getTexture());
+                }
+                return entry.mesh;
+            }
+        }
+        misses++;
+        Entry entry = new Entry(hash, checkHash, createMesh(positions, textCoords, normals, indices, lods, material),
+                                positions, textCoords, normals, indices, material);
+        entries.add(entry);
+        entriesByMesh.put(entry.mesh, entry);
+        return entry.mesh;
+    }
+
+    private static long hash(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+                             long seed) {
+        long hash = XXH64(memByteBuffer(memAddress(positions), positions.remaining() * Float.BYTES), seed);
+        hash = XXH64(memByteBuffer(memAddress(textCoords), textCoords.remaining() * Float.BYTES), hash);
+        hash = XXH64(memByteBuffer(memAddress(normals), normals.remaining() * Float.BYTES), hash);
+        return XXH64(memByteBuffer(memAddress(indices), indices.remaining() * Integer.BYTES), hash);
+    }
+
+    private static Mesh createMesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals,
+                                   IntBuffer indices, LodChain lods, Material material) {
+        Mesh mesh = new Mesh(positions, textCoords, normals, indices, lods);
+        mesh.setMaterial(material);
+        return mesh;
+    }
+
+    /**
+     * Gives back a reference taken on a mesh
+     *
+     * @return true if the mesh is still referenced and must not be deleted yet, false if it does not come from this
+     * registry or was its last reference
+     */
+    public synchronized boolean release(Mesh mesh) {
+        Entry entry = entriesByMesh.get(mesh);
+        if ( entry == null ) {
+            return false;
+        }
+        if ( --entry.refCount > 0 ) {
+            return true;
+        }
+        entriesByMesh.remove(mesh);
+        List<Entry> entries = entriesByHash.get(entry.hash);
+        entries.remove(entry);
+        if ( entries.isEmpty() ) {
+            entriesByHash.remove(entry.hash);
+        }
+        return false;
+    }
+
+    public synchronized Stats getStats() {
+        int references = 0;
+        for (Entry entry : entriesByMesh.values()) {
+            references += entry.refCount;
+        }
+        return new Stats(hits, misses, entriesByMesh.size(), references);
+    }
+
+    /**
+     * Deletes every mesh still referenced, for the owners sharing a mesh that only clean up the meshes of the scene
+     * once. Must be called from the GL thread.
+     */
+    public synchronized void cleanup() {
+        List<Mesh> meshes = new ArrayList<>(entriesByMesh.keySet());
+        for (Mesh mesh : meshes) {
+            Entry entry = entriesByMesh.get(mesh);
+            entry.refCount = 1;
+            mesh.cleanUp();
+        }
+        entriesByHash.clear();
+        entriesByMesh.clear();
+    }
+
+    private static class Entry {
+
+        final long hash;
+
+        final long checkHash;
+
+        final Mesh mesh;
+
+        final int numPositions;
+
+        final int numTextCoords;
+
+        final int numNormals;
+
+        final int numIndices;
+
+        /**
+         * The material requested, the mesh one may be given a default afterwards
+         */
+        final Material material;
+
+        int refCount;
+
+        Entry(long hash, long checkHash, Mesh mesh, FloatBuffer positions, FloatBuffer textCoords,
+              FloatBuffer normals, IntBuffer indices, Material material) {
+            this.hash = hash;
+            this.checkHash = checkHash;
+            this.mesh = mesh;
+            numPositions = positions.remaining();
+            numTextCoords = textCoords.remaining();
+            numNormals = normals.remaining();
+            numIndices = indices.remaining();
+            this.material = material;
+            refCount = 1;
+        }
+
+        boolean matches(long checkHash, FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals,
+                        IntBuffer indices, Material material) {
+            return this.checkHash == checkHash
+                    && numPositions == positions.remaining() && numTextCoords == textCoords.remaining()
+                    && numNormals == normals.remaining() && numIndices == indices.remaining()
+                    && sameMaterial(this.material, material);
+        }
+
+        /**
+         * Materials of different models are different objects, they match when they look the same and use the same
+         * cached textures
+         */
+        private static boolean sameMaterial(Material a, Material b) {
+            if ( a == b ) {
+                return true;
+            }
+            if ( a == null || b == null ) {
+                return false;
+            }
+            return a.getReflectance() == b.getReflectance()
+                    && a.getTexture() == b.getTexture() && a.getNormalMap() == b.getNormalMap()
+                    && a.getAmbientColour().equals(b.getAmbientColour())
+                    && a.getDiffuseColour().equals(b.getDiffuseColour())
+                    && a.getSpecularColour().equals(b.getSpecularColour());
+        }
+    }
+
+    public static class Stats {
+
+        public final long hits;
+
+        public final long misses;
+
+        public final int numMeshes;
+
+        public final int numReferences;
+
+        Stats(long hits, long misses, int numMeshes, int numReferences) {
+            this.hits = hits;
+            this.misses = misses;
+            this.numMeshes = numMeshes;
+            this.numReferences = numReferences;
+        }
+
+        @Override
+        public String toString() {
+            return "shared meshes: " + numMeshes + " (" + numReferences + " references), hits: " + hits
+                    + ", misses: " + misses;
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package engine.graph;
 
 import org.joml.Vector3f;
-import engine.Utils;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class HeightMapMesh {
 
     private static final int MAX_COLOUR = 255 * 255 * 255;
 
+    /**
+     * Number of vertices built by each parallel task
+     */
+    private static final int BAND_VERTICES = 64 * 1024;
+
     public static final float STARTX = -0.5f;
 
     public static final float STARTZ = -0.5f;
@@ -19,38 +23,71 @@ public class HeightMapMesh {
 
     private final float maxY;
 
-    private final Mesh mesh;
-    
-    private final float[][] heightArray;
+    private Mesh mesh;
+
+    private MeshData meshData;
+
+    /**
+     * Heights before scaling, row after row
+     */
+    private final float[] heights;
+
+    private final int numRows;
+
+    private final int numCols;
 
 
     public HeightMapMesh(float minY, float maxY, ByteBuffer heightMapImage, int width, int height, String textureFile, int textInc) throws Exception {
+        this(minY, maxY, heightMapImage, width, height, textInc);
+        createMesh(new Texture(textureFile));
+    }
+
+    /**
+     * Builds the heights and the vertex data without creating any OpenGL object, {@link #getMesh()} returns null.
+     */
+    public HeightMapMesh(float minY, float maxY, ByteBuffer heightMapImage, int width, int height, int textInc) {
         this.minY = minY;
         this.maxY = maxY;
         
-        heightArray = new float[height][width];
-        
-        Texture texture = new Texture(textureFile);
+        heights = new float[height * width];
+        numRows = height;
+        numCols = width;
+
+        float[] posArr = new float[width * height * 3];
+        float[] textCoordsArr = new float[width * height * 2];
+        float[] normalsArr = new float[width * height * 3];
+        int[] indicesArr = new int[Math.max(width - 1, 0) * Math.max(height - 1, 0) * 6];
+
+        // Rows are written in bands in parallel, normals need the positions of the neighbour rows so they come after
+        runInBands(height, width, (fromRow, toRow) -> buildVertices(fromRow, toRow, heightMapImage, width, height,
+                                                                    textInc, posArr, textCoordsArr, indicesArr));
+        runInBands(height, width, (fromRow, toRow) -> calcNormals(fromRow, toRow, posArr, normalsArr, width, height));
+        if (MeshOptimizer.isEnabled()) {
+            // The heights are kept apart in grid order, the vertices can move
+            MeshOptimizer.optimize(posArr, textCoordsArr, normalsArr, indicesArr);
+        }
+        this.meshData = new MeshData(posArr, textCoordsArr, normalsArr, indicesArr);
+    }
 
+    private void buildVertices(int fromRow, int toRow, ByteBuffer heightMapImage, int width, int height, int textInc,
+                               float[] posArr, float[] textCoordsArr, int[] indicesArr) {
         float incx = getXLength() / (width - 1);
         float incz = getZLength() / (height - 1);
 
-        List<Float> positions = new ArrayList<>();
-        List<Float> textCoords = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
-
-        for (int row = 0; row < height; row++) {
+        for (int row = fromRow; row < toRow; row++) {
+            int index = row * (width - 1) * 6;
             for (int col = 0; col < width; col++) {
+                int vertex = row * width + col;
                 // Create vertex for current position
-                positions.add(STARTX + col * incx); // x
                 float currentHeight = getHeight(col, row, width, heightMapImage);
-                heightArray[row][col] = currentHeight;
-                positions.add(currentHeight); //y
-                positions.add(STARTZ + row * incz); //z
+                heights[vertex] = currentHeight;
+                posArr[vertex * 3] = STARTX + col * incx;
+                posArr[vertex * 3 + 1] = currentHeight;
+                posArr[vertex * 3 + 2] = STARTZ + row * incz;
 
                 // Set texture coordinates
-                textCoords.add((float) textInc * (float) col / (float) width);
-                textCoords.add((float) textInc * (float) row / (float) height);
+                textCoordsArr[vertex * 2] = (float) textInc * (float) col / (float) width;
+                textCoordsArr[vertex * 2 + 1] = (float) textInc * (float) row / (float) height;
 
                 // Create indices
                 if (col < width - 1 && row < height - 1) {
@@ -59,35 +96,60 @@ public class HeightMapMesh {
                     int rightBottom = (row + 1) * width + col + 1;
                     int rightTop = row * width + col + 1;
 
-                    indices.add(leftTop);
-                    indices.add(leftBottom);
-                    indices.add(rightTop);
+                    indicesArr[index++] = leftTop;
+                    indicesArr[index++] = leftBottom;
+                    indicesArr[index++] = rightTop;
 
-                    indices.add(rightTop);
-                    indices.add(leftBottom);
-                    indices.add(rightBottom);
+                    indicesArr[index++] = rightTop;
+                    indicesArr[index++] = leftBottom;
+                    indicesArr[index++] = rightBottom;
                 }
             }
         }
-        float[] posArr = Utils.listToArray(positions);
-        int[] indicesArr = indices.stream().mapToInt(i -> i).toArray();
-        float[] textCoordsArr = Utils.listToArray(textCoords);
-        float[] normalsArr = calcNormals(posArr, width, height);
-        this.mesh = new Mesh(posArr, textCoordsArr, normalsArr, indicesArr);
+    }
+
+    /**
+     * Creates the mesh of a height map built without one. Must be called from the GL thread.
+     */
+    public Mesh createMesh(Texture texture) {
+        this.mesh = meshData.createMesh();
         Material material = new Material(texture, 0.0f);
         mesh.setMaterial(material);
+        // The vertex data lives in the GPU from now on
+        meshData = null;
+        return mesh;
     }
 
     public Mesh getMesh() {
         return mesh;
     }
+
+    /**
+     * @return the vertex data, or null once it has been uploaded to the mesh
+     */
+    public MeshData getMeshData() {
+        return meshData;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumCols() {
+        return numCols;
+    }
+
+    /**
+     * @return the heights before scaling, {@link #getNumCols()} values per row
+     */
+    public float[] getHeights() {
+        return heights;
+    }
     
     public float getHeight(int row, int col) {
         float result = 0;
-        if ( row >= 0 && row < heightArray.length ) {
-            if ( col >= 0 && col < heightArray[row].length ) {
-                result = heightArray[row][col];
-            }
+        if (row >= 0 && row < numRows && col >= 0 && col < numCols) {
+            result = heights[row * numCols + col];
         }
         return result;
     }
@@ -100,7 +162,8 @@ public class HeightMapMesh {
         return Math.abs(-STARTZ*2);
     }
 
-    private float[] calcNormals(float[] posArr, int width, int height) {
+    private static void calcNormals(int fromRow, int toRow, float[] posArr, float[] normalsArr, int width,
+                                    int height) {
         Vector3f v0 = new Vector3f();
         Vector3f v1 = new Vector3f();
         Vector3f v2 = new Vector3f();
@@ -110,9 +173,8 @@ public class HeightMapMesh {
         Vector3f v23 = new Vector3f();
         Vector3f v34 = new Vector3f();
         Vector3f v41 = new Vector3f();
-        List<Float> normals = new ArrayList<>();
         Vector3f normal = new Vector3f();
-        for (int row = 0; row < height; row++) {
+        for (int row = fromRow; row < toRow; row++) {
             for (int col = 0; col < width; col++) {
                 if (row > 0 && row < height -1 && col > 0 && col < width -1) {
                     int i0 = row*width*3 + col*3;
@@ -123,40 +185,40 @@ public class HeightMapMesh {
                     int i1 = row*width*3 + (col-1)*3;
                     v1.x = posArr[i1];
                     v1.y = posArr[i1 + 1];
-                    v1.z = posArr[i1 + 2];                    
-                    v1 = v1.sub(v0);
+                    v1.z = posArr[i1 + 2];
+                    v1.sub(v0);
 
                     int i2 = (row+1)*width*3 + col*3;
                     v2.x = posArr[i2];
                     v2.y = posArr[i2 + 1];
                     v2.z = posArr[i2 + 2];
-                    v2 = v2.sub(v0);
+                    v2.sub(v0);
 
                     int i3 = (row)*width*3 + (col+1)*3;
                     v3.x = posArr[i3];
                     v3.y = posArr[i3 + 1];
                     v3.z = posArr[i3 + 2];
-                    v3 = v3.sub(v0);
+                    v3.sub(v0);
 
                     int i4 = (row-1)*width*3 + col*3;
                     v4.x = posArr[i4];
                     v4.y = posArr[i4 + 1];
                     v4.z = posArr[i4 + 2];
-                    v4 = v4.sub(v0);
-                    
+                    v4.sub(v0);
+
                     v1.cross(v2, v12);
                     v12.normalize();
 
                     v2.cross(v3, v23);
                     v23.normalize();
-                    
+
                     v3.cross(v4, v34);
                     v34.normalize();
-                    
+
                     v4.cross(v1, v41);
                     v41.normalize();
-                    
-                    normal = v12.add(v23).add(v34).add(v41);
+
+                    normal.set(v12).add(v23).add(v34).add(v41);
                     normal.normalize();
                 } else {
                     normal.x = 0;
@@ -164,12 +226,25 @@ public class HeightMapMesh {
                     normal.z = 0;
                 }
                 normal.normalize();
-                normals.add(normal.x);
-                normals.add(normal.y);
-                normals.add(normal.z);
+                int n = (row * width + col) * 3;
+                normalsArr[n] = normal.x;
+                normalsArr[n + 1] = normal.y;
+                normalsArr[n + 2] = normal.z;
             }
         }
-        return Utils.listToArray(normals);
+    }
+
+    /**
+     * Splits the rows in bands of about {@link #BAND_VERTICES} vertices built on the common fork/join pool, small
+     * maps are built by the calling thread alone.
+     */
+    private static void runInBands(int numRows, int width, RowBand band) {
+        int bandRows = Math.max(1, BAND_VERTICES / Math.max(width, 1));
+        if (numRows <= bandRows) {
+            band.build(0, numRows);
+        } else {
+            ForkJoinPool.commonPool().invoke(new BandTask(band, 0, numRows, bandRows));
+        }
     }
 
     private float getHeight(int x, int z, int width, ByteBuffer buffer) {
@@ -187,4 +262,38 @@ public class HeightMapMesh {
         return argb;        
     }
 
+    private interface RowBand {
+
+        void build(int fromRow, int toRow);
+    }
+
+    private static class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RowBand band;
+
+        private final int fromRow;
+
+        private final int toRow;
+
+        private final int bandRows;
+
+        BandTask(RowBand band, int fromRow, int toRow, int bandRows) {
+            this.band = band;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= bandRows) {
+                band.build(fromRow, toRow);
+            } else {
+                int mid = (fromRow + toRow) >>> 1;
+                invokeAll(new BandTask(band, fromRow, mid, bandRows), new BandTask(band, mid, toRow, bandRows));
+            }
+        }
+    }
 }
@@ -0,0 +1,767 @@
+package engine.graph;
+
+import engine.Scene;
+import engine.graph.anim.AnimGameItem;
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Packs the static (non instanced, non animated) meshes of a scene into shared vertex and index arenas and
+ * submits every visible item with one glMultiDrawElementsIndirect call per texture set. Each mesh gets its own ranges
+ * of the arenas, allocated from free lists, so meshes coming and going only copy their own data.
+ * <p>
+ * Model matrices, material indices and selection flags are streamed into a shader storage buffer indexed by
+ * the base instance of each indirect command, so no uniforms are set per item.
+ */
+public class IndirectMeshBatch {
+
+    public static final int DRAW_DATA_BINDING = 0;
+
+    public static final int MATERIALS_BINDING = 1;
+
+    private static final int DRAW_ID_ATTRIBUTE = 3;
+
+    private static final int FLOAT_SIZE_BYTES = 4;
+
+    private static final int INT_SIZE_BYTES = 4;
+
+    private static final int SHORT_SIZE_BYTES = 2;
+
+    private static final int MATRIX_SIZE_BYTES = 4 * 4 * FLOAT_SIZE_BYTES;
+
+    /**
+     * count, instanceCount, firstIndex, baseVertex, baseInstance
+     */
+    private static final int COMMAND_SIZE_BYTES = 5 * INT_SIZE_BYTES;
+
+    /**
+     * std430 layout: mat4 modelMatrix, int materialIndex, float selected, padded to 16 bytes
+     */
+    private static final int DRAW_DATA_SIZE_BYTES = MATRIX_SIZE_BYTES + 4 * INT_SIZE_BYTES;
+
+    /**
+     * std430 layout: vec4 ambient, vec4 diffuse, vec4 specular, int hasTexture, int hasNormalMap,
+     * float reflectance, padded to 16 bytes
+     */
+    private static final int MATERIAL_SIZE_BYTES = 3 * 4 * FLOAT_SIZE_BYTES + 4 * INT_SIZE_BYTES;
+
+    private static final int MIN_CAPACITY = 64;
+
+    /**
+     * Vertices and indices the arenas start with, they double when they run out of space
+     */
+    private static final int MIN_ARENA_VERTICES = 16 * 1024;
+
+    private static final int MIN_ARENA_INDICES = 3 * MIN_ARENA_VERTICES;
+
+    private final List<MeshRange> ranges;
+
+    private final List<Bucket> buckets;
+
+    private final Map<Mesh, MeshRange> rangesByMesh;
+
+    private final List<Integer> bufferIds;
+
+    private final FreeList freeVertices;
+
+    private final FreeList freeIndices;
+
+    private final List<Material> materials;
+
+    private final Map<Material, MaterialSlot> materialSlots;
+
+    private final Deque<Integer> freeMaterialIndices;
+
+    private int vaoId;
+
+    private VertexLayout layout;
+
+    private int indexType;
+
+    private int[] streamArenas;
+
+    private int indicesArena;
+
+    private int vertexCapacity;
+
+    private int indexCapacity;
+
+    private int drawIdVbo;
+
+    private int drawDataSsbo;
+
+    private int materialsSsbo;
+
+    private int commandsBuffer;
+
+    private int capacity;
+
+    private ByteBuffer drawDataBuffer;
+
+    private ByteBuffer commandBuffer;
+
+    private int sceneModCount;
+
+    public IndirectMeshBatch() {
+        ranges = new ArrayList<>();
+        buckets = new ArrayList<>();
+        rangesByMesh = new IdentityHashMap<>();
+        bufferIds = new ArrayList<>();
+        freeVertices = new FreeList();
+        freeIndices = new FreeList();
+        materials = new ArrayList<>();
+        materialSlots = new IdentityHashMap<>();
+        freeMaterialIndices = new ArrayDeque<>();
+        sceneModCount = -1;
+    }
+
+    public static boolean isSupported() {
+        return GL.getCapabilities().OpenGL43;
+    }
+
+    public boolean contains(Mesh mesh) {
+        return rangesByMesh.containsKey(mesh);
+    }
+
+    /**
+     * Brings the arenas up to date with the meshes added to or removed from the scene since the last call. Every mesh
+     * has its own range in the arenas, a mesh coming or going only copies or frees that range, so that meshes
+     * replaced while streaming do not repack the whole batch. When the batch was up to date at the last
+     * {@link Scene#clearChanges()}, only the meshes changed since are looked at.
+     */
+    public void update(Scene scene) {
+        int modCount = scene.getModCount();
+        if (modCount == sceneModCount) {
+            return;
+        }
+        boolean incremental = sceneModCount == scene.getChangesModCount();
+        sceneModCount = modCount;
+        Map<Mesh, List<GameItem>> meshMap = scene.getGameMeshes();
+
+        Collection<Mesh> candidates;
+        if (incremental) {
+            candidates = scene.getChangedMeshes();
+            for (Mesh mesh : candidates) {
+                MeshRange range = rangesByMesh.get(mesh);
+                if (range != null) {
+                    updateRange(range, meshMap);
+                }
+            }
+        } else {
+            candidates = meshMap.keySet();
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                updateRange(ranges.get(i), meshMap);
+            }
+        }
+        if (ranges.isEmpty()) {
+            // Nothing left in the arenas, the format is chosen again from the current meshes
+            deleteBuffers();
+            chooseFormat(meshMap);
+            candidates = meshMap.keySet();
+        }
+
+        List<Mesh> added = new ArrayList<>();
+        int addedVertices = 0;
+        int addedIndices = 0;
+        for (Mesh mesh : candidates) {
+            List<GameItem> gameItems = meshMap.get(mesh);
+            if (gameItems == null || rangesByMesh.containsKey(mesh) || !isBatchable(mesh, gameItems)
+                    || mesh.getLayout() != layout || mesh.getIndexType() != indexType || mesh.getNumIndices() == 0) {
+                continue;
+            }
+            added.add(mesh);
+            addedVertices += mesh.getNumVertices();
+            addedIndices += mesh.getNumIndices();
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        if (vaoId == 0) {
+            createBuffers();
+        }
+        glBindVertexArray(vaoId);
+        // Grown once for all the meshes added, rather than doubling several times over
+        if (freeVertices.getFree() < addedVertices) {
+            growVertices(addedVertices - freeVertices.getFree());
+        }
+        if (freeIndices.getFree() < addedIndices) {
+            growIndices(addedIndices - freeIndices.getFree());
+        }
+        boolean newMaterial = false;
+        for (Mesh mesh : added) {
+            newMaterial |= addRange(mesh, meshMap.get(mesh));
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+        if (newMaterial) {
+            uploadMaterials(materials);
+        }
+    }
+
+    private void updateRange(MeshRange range, Map<Mesh, List<GameItem>> meshMap) {
+        List<GameItem> gameItems = meshMap.get(range.mesh);
+        if (gameItems == null || !isBatchable(range.mesh, gameItems)) {
+            removeRange(range);
+        } else {
+            // Items may come and go, the ranges read the lists when drawing
+            range.gameItems = gameItems;
+        }
+    }
+
+    /**
+     * @return whether the mesh introduced a material
+     */
+    private boolean addRange(Mesh mesh, List<GameItem> gameItems) {
+        int numVertices = mesh.getNumVertices();
+        int baseVertex = freeVertices.allocate(numVertices);
+        if (baseVertex < 0) {
+            // The free space is split in blocks too small
+            growVertices(numVertices);
+            baseVertex = freeVertices.allocate(numVertices);
+        }
+        int numIndices = mesh.getNumIndices();
+        int firstIndex = freeIndices.allocate(numIndices);
+        if (firstIndex < 0) {
+            growIndices(numIndices);
+            firstIndex = freeIndices.allocate(numIndices);
+        }
+        for (int stream = 0; stream < streamArenas.length; stream++) {
+            int stride = layout.getStride(stream);
+            copyBuffer(mesh.getStreamVboId(stream), streamArenas[stream], 0, baseVertex * (long) stride,
+                       numVertices * (long) stride);
+        }
+        int indexBytes = getIndexBytes();
+        copyBuffer(mesh.getIndicesVboId(), indicesArena, 0, firstIndex * (long) indexBytes,
+                   numIndices * (long) indexBytes);
+
+        Material material = mesh.getMaterial();
+        MaterialSlot slot = materialSlots.get(material);
+        boolean newMaterial = slot == null;
+        if (newMaterial) {
+            Integer index = freeMaterialIndices.poll();
+            if (index == null) {
+                index = materials.size();
+                materials.add(material);
+            } else {
+                materials.set(index, material);
+            }
+            slot = new MaterialSlot(index);
+            materialSlots.put(material, slot);
+        }
+        slot.refCount++;
+
+        MeshRange range = new MeshRange(mesh, gameItems, firstIndex, baseVertex, material, slot.index,
+                                        getBucket(material));
+        ranges.add(range);
+        rangesByMesh.put(mesh, range);
+        range.bucket.ranges.add(range);
+        return newMaterial;
+    }
+
+    private void removeRange(MeshRange range) {
+        ranges.remove(range);
+        rangesByMesh.remove(range.mesh);
+        freeVertices.free(range.baseVertex, range.mesh.getNumVertices());
+        freeIndices.free(range.firstIndex, range.mesh.getNumIndices());
+
+        range.bucket.ranges.remove(range);
+        if (range.bucket.ranges.isEmpty()) {
+            buckets.remove(range.bucket);
+        }
+        MaterialSlot slot = materialSlots.get(range.material);
+        if (--slot.refCount == 0) {
+            materialSlots.remove(range.material);
+            materials.set(slot.index, null);
+            freeMaterialIndices.push(slot.index);
+        }
+    }
+
+    private void createBuffers() {
+        vaoId = glGenVertexArrays();
+        glBindVertexArray(vaoId);
+        drawDataSsbo = glGenBuffers();
+        bufferIds.add(drawDataSsbo);
+        commandsBuffer = glGenBuffers();
+        bufferIds.add(commandsBuffer);
+        drawIdVbo = glGenBuffers();
+        bufferIds.add(drawIdVbo);
+        materialsSsbo = glGenBuffers();
+        bufferIds.add(materialsSsbo);
+        capacity = 0;
+        ensureCapacity(MIN_CAPACITY);
+    }
+
+    /**
+     * Moves the vertex arenas to larger buffers with room for at least the given number of vertices more, the
+     * vertices already there are copied once on the GPU. The vertex array of the batch must be bound.
+     */
+    private void growVertices(int extraVertices) {
+        int oldCapacity = vertexCapacity;
+        vertexCapacity = Math.max(MIN_ARENA_VERTICES, Math.max(oldCapacity * 2, oldCapacity + extraVertices));
+        for (int stream = 0; stream < streamArenas.length; stream++) {
+            int stride = layout.getStride(stream);
+            streamArenas[stream] = growArena(GL_ARRAY_BUFFER, streamArenas[stream], oldCapacity * (long) stride,
+                                             vertexCapacity * (long) stride);
+        }
+        // One arena per stream holding the attributes drawn by this batch, in the layout of the meshes
+        for (int attribute = VertexLayout.POSITION; attribute <= VertexLayout.NORMAL; attribute++) {
+            glBindBuffer(GL_ARRAY_BUFFER, streamArenas[layout.getStream(attribute)]);
+            layout.setupAttribute(attribute, 0);
+        }
+        freeVertices.free(oldCapacity, vertexCapacity - oldCapacity);
+    }
+
+    private void growIndices(int extraIndices) {
+        int oldCapacity = indexCapacity;
+        indexCapacity = Math.max(MIN_ARENA_INDICES, Math.max(oldCapacity * 2, oldCapacity + extraIndices));
+        int indexBytes = getIndexBytes();
+        indicesArena = growArena(GL_ELEMENT_ARRAY_BUFFER, indicesArena, oldCapacity * (long) indexBytes,
+                                 indexCapacity * (long) indexBytes);
+        freeIndices.free(oldCapacity, indexCapacity - oldCapacity);
+    }
+
+    private int growArena(int target, int oldVbo, long oldSize, long newSize) {
+        int vboId = createArena(target, newSize);
+        if (oldVbo != 0) {
+            copyBuffer(oldVbo, vboId, 0, 0, oldSize);
+            glDeleteBuffers(oldVbo);
+            bufferIds.remove(Integer.valueOf(oldVbo));
+        }
+        return vboId;
+    }
+
+    private int getIndexBytes() {
+        return indexType == GL_UNSIGNED_SHORT ? SHORT_SIZE_BYTES : INT_SIZE_BYTES;
+    }
+
+    /**
+     * The arenas hold a single vertex layout and index type, the ones most batchable meshes have. The meshes in
+     * another format stay in the classic path.
+     */
+    private void chooseFormat(Map<Mesh, List<GameItem>> meshMap) {
+        Map<VertexLayout, int[]> counts = new IdentityHashMap<>();
+        int bestCount = 0;
+        for (Map.Entry<Mesh, List<GameItem>> entry : meshMap.entrySet()) {
+            Mesh mesh = entry.getKey();
+            if (!isBatchable(mesh, entry.getValue())) {
+                continue;
+            }
+            int[] layoutCounts = counts.computeIfAbsent(mesh.getLayout(), k -> new int[2]);
+            int count = ++layoutCounts[mesh.getIndexType() == GL_UNSIGNED_SHORT ? 0 : 1];
+            if (count > bestCount) {
+                bestCount = count;
+                layout = mesh.getLayout();
+                indexType = mesh.getIndexType();
+            }
+        }
+        if (bestCount == 0) {
+            layout = VertexLayout.SEPARATE;
+            indexType = GL_UNSIGNED_INT;
+        }
+        streamArenas = new int[layout.getNumStreams()];
+    }
+
+    private static boolean isBatchable(Mesh mesh, List<GameItem> gameItems) {
+        if (mesh instanceof InstancedMesh) {
+            return false;
+        }
+        // Skinned items need their joint matrices, keep them in the classic path
+        for (GameItem gameItem : gameItems) {
+            if (gameItem instanceof AnimGameItem) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Bucket getBucket(Material material) {
+        Texture texture = material.getTexture();
+        Texture normalMap = material.getNormalMap();
+        for (Bucket bucket : buckets) {
+            if (bucket.texture == texture && bucket.normalMap == normalMap) {
+                return bucket;
+            }
+        }
+        Bucket bucket = new Bucket(texture, normalMap);
+        buckets.add(bucket);
+        return bucket;
+    }
+
+    private int createArena(int target, long size) {
+        int vboId = glGenBuffers();
+        bufferIds.add(vboId);
+        glBindBuffer(target, vboId);
+        glBufferData(target, size, GL_STATIC_DRAW);
+        return vboId;
+    }
+
+    private static void copyBuffer(int srcId, int dstId, long srcOffset, long dstOffset, long size) {
+        glBindBuffer(GL_COPY_READ_BUFFER, srcId);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, dstId);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, srcOffset, dstOffset, size);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+
+    private void uploadMaterials(List<Material> materials) {
+        // Slots of the materials no longer used are left zeroed
+        ByteBuffer buffer = MemoryUtil.memCalloc(Math.max(1, materials.size()) * MATERIAL_SIZE_BYTES);
+        try {
+            for (int i = 0; i < materials.size(); i++) {
+                Material material = materials.get(i);
+                if (material == null) {
+                    continue;
+                }
+                int offset = i * MATERIAL_SIZE_BYTES;
+                putVector(buffer, offset, material.getAmbientColour());
+                putVector(buffer, offset + 16, material.getDiffuseColour());
+                putVector(buffer, offset + 32, material.getSpecularColour());
+                buffer.putInt(offset + 48, material.isTextured() ? 1 : 0);
+                buffer.putInt(offset + 52, material.hasNormalMap() ? 1 : 0);
+                buffer.putFloat(offset + 56, material.getReflectance());
+                buffer.putFloat(offset + 60, 0);
+            }
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, materialsSsbo);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, buffer, GL_STATIC_DRAW);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private static void putVector(ByteBuffer buffer, int offset, Vector4f value) {
+        buffer.putFloat(offset, value.x);
+        buffer.putFloat(offset + 4, value.y);
+        buffer.putFloat(offset + 8, value.z);
+        buffer.putFloat(offset + 12, value.w);
+    }
+
+    private void ensureCapacity(int draws) {
+        if (draws <= capacity) {
+            return;
+        }
+        capacity = Math.max(draws, Math.max(MIN_CAPACITY, capacity * 2));
+        freeClientBuffers();
+        drawDataBuffer = MemoryUtil.memAlloc(capacity * DRAW_DATA_SIZE_BYTES);
+        commandBuffer = MemoryUtil.memAlloc(capacity * COMMAND_SIZE_BYTES);
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, drawDataSsbo);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, (long) capacity * DRAW_DATA_SIZE_BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandsBuffer);
+        glBufferData(GL_DRAW_INDIRECT_BUFFER, (long) capacity * COMMAND_SIZE_BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+
+        // Each command uses its own index as base instance, this per instance attribute turns it into a draw id
+        IntBuffer drawIds = MemoryUtil.memAllocInt(capacity);
+        try {
+            for (int i = 0; i < capacity; i++) {
+                drawIds.put(i, i);
+            }
+            glBindVertexArray(vaoId);
+            glBindBuffer(GL_ARRAY_BUFFER, drawIdVbo);
+            glBufferData(GL_ARRAY_BUFFER, drawIds, GL_STATIC_DRAW);
+            glVertexAttribIPointer(DRAW_ID_ATTRIBUTE, 1, GL_INT, 0, 0);
+            glVertexAttribDivisor(DRAW_ID_ATTRIBUTE, 1);
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+        } finally {
+            MemoryUtil.memFree(drawIds);
+        }
+    }
+
+    /**
+     * @param frustumCuller culler holding the visible items of this frame, when null the inside frustum flag of
+     *                      the items is used
+     */
+    public void render(Transformation transformation, ShaderProgram shaderProgram, SoaFrustumCuller frustumCuller) {
+        int maxDraws = 0;
+        for (MeshRange range : ranges) {
+            maxDraws += range.gameItems.size();
+        }
+        if (maxDraws == 0) {
+            return;
+        }
+        glBindVertexArray(vaoId);
+        ensureCapacity(maxDraws);
+
+        int drawCount = 0;
+        for (Bucket bucket : buckets) {
+            bucket.firstCommand = drawCount;
+            for (MeshRange range : bucket.ranges) {
+                if (frustumCuller != null) {
+                    GameItem[] items = frustumCuller.getItems();
+                    int[] visible = frustumCuller.getVisibleIndices();
+                    int end = frustumCuller.getVisibleEnd(range.mesh);
+                    for (int i = frustumCuller.getVisibleStart(range.mesh); i < end; i++) {
+                        GameItem gameItem = items[visible[i]];
+                        writeDraw(drawCount, range, gameItem, transformation.buildModelMatrix(gameItem));
+                        drawCount++;
+                    }
+                    continue;
+                }
+                for (GameItem gameItem : range.gameItems) {
+                    if (gameItem.isInsideFrustum()) {
+                        writeDraw(drawCount, range, gameItem, transformation.buildModelMatrix(gameItem));
+                        drawCount++;
+                    }
+                }
+            }
+            bucket.commandCount = drawCount - bucket.firstCommand;
+        }
+        if (drawCount == 0) {
+            glBindVertexArray(0);
+            return;
+        }
+
+        drawDataBuffer.position(0).limit(drawCount * DRAW_DATA_SIZE_BYTES);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, drawDataSsbo);
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, drawDataBuffer);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        drawDataBuffer.clear();
+
+        commandBuffer.position(0).limit(drawCount * COMMAND_SIZE_BYTES);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandsBuffer);
+        glBufferSubData(GL_DRAW_INDIRECT_BUFFER, 0, commandBuffer);
+        commandBuffer.clear();
+
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, DRAW_DATA_BINDING, drawDataSsbo);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, MATERIALS_BINDING, materialsSsbo);
+
+        glEnableVertexAttribArray(0);
+        glEnableVertexAttribArray(1);
+        glEnableVertexAttribArray(2);
+        glEnableVertexAttribArray(DRAW_ID_ATTRIBUTE);
+
+        for (Bucket bucket : buckets) {
+            if (bucket.commandCount == 0) {
+                continue;
+            }
+            if (bucket.texture != null) {
+                glActiveTexture(GL_TEXTURE0);
+                glBindTexture(GL_TEXTURE_2D, bucket.texture.getId());
+                shaderProgram.setUniform("numCols", bucket.texture.getNumCols());
+                shaderProgram.setUniform("numRows", bucket.texture.getNumRows());
+            }
+            if (bucket.normalMap != null) {
+                glActiveTexture(GL_TEXTURE1);
+                glBindTexture(GL_TEXTURE_2D, bucket.normalMap.getId());
+            }
+            glMultiDrawElementsIndirect(GL_TRIANGLES, indexType,
+                                        (long) bucket.firstCommand * COMMAND_SIZE_BYTES, bucket.commandCount, 0);
+        }
+
+        glDisableVertexAttribArray(0);
+        glDisableVertexAttribArray(1);
+        glDisableVertexAttribArray(2);
+        glDisableVertexAttribArray(DRAW_ID_ATTRIBUTE);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        glBindVertexArray(0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    private void writeDraw(int drawIndex, MeshRange range, GameItem gameItem, Matrix4f modelMatrix) {
+        int offset = drawIndex * DRAW_DATA_SIZE_BYTES;
+        modelMatrix.get(offset, drawDataBuffer);
+        drawDataBuffer.putInt(offset + MATRIX_SIZE_BYTES, range.materialIndex);
+        drawDataBuffer.putFloat(offset + MATRIX_SIZE_BYTES + 4, gameItem.isSelected() ? 1.0f : 0.0f);
+
+        offset = drawIndex * COMMAND_SIZE_BYTES;
+        commandBuffer.putInt(offset, range.mesh.getLodIndexCount(gameItem.getLod()));
+        commandBuffer.putInt(offset + 4, 1);
+        commandBuffer.putInt(offset + 8, range.firstIndex + range.mesh.getLodFirstIndex(gameItem.getLod()));
+        commandBuffer.putInt(offset + 12, range.baseVertex);
+        commandBuffer.putInt(offset + 16, drawIndex);
+    }
+
+    private void freeClientBuffers() {
+        if (drawDataBuffer != null) {
+            MemoryUtil.memFree(drawDataBuffer);
+            drawDataBuffer = null;
+        }
+        if (commandBuffer != null) {
+            MemoryUtil.memFree(commandBuffer);
+            commandBuffer = null;
+        }
+    }
+
+    private void deleteBuffers() {
+        for (int bufferId : bufferIds) {
+            glDeleteBuffers(bufferId);
+        }
+        bufferIds.clear();
+        if (vaoId != 0) {
+            glDeleteVertexArrays(vaoId);
+            vaoId = 0;
+        }
+        freeClientBuffers();
+        ranges.clear();
+        buckets.clear();
+        rangesByMesh.clear();
+        capacity = 0;
+        streamArenas = null;
+        indicesArena = 0;
+        vertexCapacity = 0;
+        indexCapacity = 0;
+        freeVertices.clear();
+        freeIndices.clear();
+        materials.clear();
+        materialSlots.clear();
+        freeMaterialIndices.clear();
+    }
+
+    public void cleanup() {
+        deleteBuffers();
+        sceneModCount = -1;
+    }
+
+    private static class MeshRange {
+
+        final Mesh mesh;
+
+        List<GameItem> gameItems;
+
+        final int firstIndex;
+
+        final int baseVertex;
+
+        /**
+         * The material the range has been added with, the one of the mesh may be changed afterwards
+         */
+        final Material material;
+
+        final int materialIndex;
+
+        final Bucket bucket;
+
+        MeshRange(Mesh mesh, List<GameItem> gameItems, int firstIndex, int baseVertex, Material material,
+                  int materialIndex, Bucket bucket) {
+            this.mesh = mesh;
+            this.gameItems = gameItems;
+            this.firstIndex = firstIndex;
+            this.baseVertex = baseVertex;
+            this.material = material;
+            this.materialIndex = materialIndex;
+            this.bucket = bucket;
+        }
+    }
+
+    private static class MaterialSlot {
+
+        final int index;
+
+        int refCount;
+
+        MaterialSlot(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * First fit allocator of the ranges of an arena. The free blocks are kept sorted by start and merged with their
+     * neighbours when freed.
+     */
+    private static class FreeList {
+
+        private final List<int[]> blocks = new ArrayList<>();
+
+        private int free;
+
+        /**
+         * @return the start of the range, or -1 if no free block is large enough
+         */
+        int allocate(int size) {
+            for (int i = 0; i < blocks.size(); i++) {
+                int[] block = blocks.get(i);
+                if (block[1] >= size) {
+                    int start = block[0];
+                    block[0] += size;
+                    block[1] -= size;
+                    if (block[1] == 0) {
+                        blocks.remove(i);
+                    }
+                    free -= size;
+                    return start;
+                }
+            }
+            return -1;
+        }
+
+        void free(int start, int size) {
+            if (size == 0) {
+                return;
+            }
+            free += size;
+            int i = 0;
+            while (i < blocks.size() && blocks.get(i)[0] < start) {
+                i++;
+            }
+            int[] previous = i > 0 ? blocks.get(i - 1) : null;
+            int[] next = i < blocks.size() ? blocks.get(i) : null;
+            if (previous != null && previous[0] + previous[1] == start) {
+                previous[1] += size;
+                if (next != null && start + size == next[0]) {
+                    previous[1] += next[1];
+                    blocks.remove(i);
+                }
+            } else if (next != null && start + size == next[0]) {
+                next[0] = start;
+                next[1] += size;
+            } else {
+                blocks.add(i, new int[]{start, size});
+            }
+        }
+
+        int getFree() {
+            return free;
+        }
+
+        void clear() {
+            blocks.clear();
+            free = 0;
+        }
+    }
+
+    private static class Bucket {
+
+        final Texture texture;
+
+        final Texture normalMap;
+
+        final List<MeshRange> ranges;
+
+        int firstCommand;
+
+        int commandCount;
+
+        Bucket(Texture texture, Texture normalMap) {
+            this.texture = texture;
+            this.normalMap = normalMap;
+            ranges = new ArrayList<>();
+        }
+    }
+}
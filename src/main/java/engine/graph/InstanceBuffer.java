@@ -0,0 +1,187 @@
+package engine.graph;
+
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+
+/**
+ * Instance data of a plain {@link Mesh} drawn for several game items at once, with the same layout as the one of an
+ * {@link InstancedMesh}: model matrix, texture offsets and selected flag. The instances are grouped by level of
+ * detail, every level being drawn from its own slice of the buffer.
+ */
+class InstanceBuffer {
+
+    private static final int FLOAT_SIZE_BYTES = 4;
+
+    private static final int MATRIX_SIZE_FLOATS = 4 * 4;
+
+    private static final int INSTANCE_SIZE_FLOATS = InstancedMesh.INSTANCE_SIZE_FLOATS;
+
+    private static final int INSTANCE_SIZE_BYTES = INSTANCE_SIZE_FLOATS * FLOAT_SIZE_BYTES;
+
+    private static final int FIRST_ATTRIBUTE = 5;
+
+    private static final int NUM_ATTRIBUTES = 4 + 2;
+
+    private final int vboId;
+
+    /**
+     * First instance of every level, the instances of the last one end at lodStart[numLods]
+     */
+    private final int[] lodStart;
+
+    /**
+     * Next free instance of every level while the data is written
+     */
+    private final int[] lodEnd;
+
+    private FloatBuffer data;
+
+    InstanceBuffer(int numLods) {
+        vboId = glGenBuffers();
+        lodStart = new int[numLods + 1];
+        lodEnd = new int[numLods];
+        data = MemoryUtil.memAllocFloat(64 * INSTANCE_SIZE_FLOATS);
+    }
+
+    int getVboId() {
+        return vboId;
+    }
+
+    /**
+     * Counts the instances of every level and reserves their slices, before the instances are written
+     *
+     * @param lods Level of every instance, clamped to the levels of the mesh
+     */
+    void begin(int[] lods, int start, int end) {
+        Arrays.fill(lodStart, 0);
+        for (int i = start; i < end; i++) {
+            lodStart[clampLod(lods[i]) + 1]++;
+        }
+        reserve();
+    }
+
+    void begin(GameItem[] gameItems, int[] indices, int start, int end) {
+        Arrays.fill(lodStart, 0);
+        for (int i = start; i < end; i++) {
+            lodStart[clampLod(gameItems[indices[i]].getLod()) + 1]++;
+        }
+        reserve();
+    }
+
+    void begin(Iterable<GameItem> gameItems) {
+        Arrays.fill(lodStart, 0);
+        for (GameItem gameItem : gameItems) {
+            if (gameItem.isInsideFrustum()) {
+                lodStart[clampLod(gameItem.getLod()) + 1]++;
+            }
+        }
+        reserve();
+    }
+
+    private void reserve() {
+        for (int lod = 0; lod < lodEnd.length; lod++) {
+            lodStart[lod + 1] += lodStart[lod];
+            lodEnd[lod] = lodStart[lod];
+        }
+        int capacity = lodStart[lodEnd.length] * INSTANCE_SIZE_FLOATS;
+        if (capacity > data.capacity()) {
+            data = MemoryUtil.memRealloc(data, Math.max(capacity, data.capacity() * 2));
+        }
+        data.clear();
+    }
+
+    private int clampLod(int lod) {
+        return Math.min(lod, lodEnd.length - 1);
+    }
+
+    void put(GameItem gameItem, Matrix4f modelMatrix, Texture text) {
+        int offset = lodEnd[clampLod(gameItem.getLod())]++ * INSTANCE_SIZE_FLOATS;
+        modelMatrix.get(offset, data);
+        float textXOffset = 0;
+        float textYOffset = 0;
+        if (text != null) {
+            int col = gameItem.getTextPos() % text.getNumCols();
+            int row = gameItem.getTextPos() / text.getNumCols();
+            textXOffset = (float) col / text.getNumCols();
+            textYOffset = (float) row / text.getNumRows();
+        }
+        data.put(offset + MATRIX_SIZE_FLOATS, textXOffset);
+        data.put(offset + MATRIX_SIZE_FLOATS + 1, textYOffset);
+        data.put(offset + MATRIX_SIZE_FLOATS + 2, gameItem.isSelected() ? 1 : 0);
+    }
+
+    /**
+     * Copies an instance already laid out by a {@link RenderCommandList}
+     */
+    void put(float[] commandData, int command, int lod) {
+        int offset = lodEnd[clampLod(lod)]++ * INSTANCE_SIZE_FLOATS;
+        for (int i = 0; i < INSTANCE_SIZE_FLOATS; i++) {
+            data.put(offset + i, commandData[command * INSTANCE_SIZE_FLOATS + i]);
+        }
+    }
+
+    /**
+     * Uploads the written instances and draws every level with one instanced draw, the vertex array of the mesh
+     * must be bound
+     */
+    void draw(Mesh mesh) {
+        int numInstances = lodStart[lodEnd.length];
+        if (numInstances == 0) {
+            return;
+        }
+        data.limit(numInstances * INSTANCE_SIZE_FLOATS);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, data, GL_STREAM_DRAW);
+        for (int i = 0; i < NUM_ATTRIBUTES; i++) {
+            glEnableVertexAttribArray(FIRST_ATTRIBUTE + i);
+        }
+        for (int lod = 0; lod < lodEnd.length; lod++) {
+            int count = lodStart[lod + 1] - lodStart[lod];
+            if (count > 0) {
+                // Without a base instance in GL 3.3 the attributes are pointed to the slice of the level
+                setupAttributes((long) lodStart[lod] * INSTANCE_SIZE_BYTES);
+                mesh.drawLodInstanced(lod, count);
+            }
+        }
+        for (int i = 0; i < NUM_ATTRIBUTES; i++) {
+            glDisableVertexAttribArray(FIRST_ATTRIBUTE + i);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    private static void setupAttributes(long offset) {
+        int attribute = FIRST_ATTRIBUTE;
+        // Model matrix
+        for (int i = 0; i < 4; i++) {
+            glVertexAttribPointer(attribute, 4, GL_FLOAT, false, INSTANCE_SIZE_BYTES, offset);
+            glVertexAttribDivisor(attribute, 1);
+            attribute++;
+            offset += 4 * FLOAT_SIZE_BYTES;
+        }
+        // Texture offsets
+        glVertexAttribPointer(attribute, 2, GL_FLOAT, false, INSTANCE_SIZE_BYTES, offset);
+        glVertexAttribDivisor(attribute, 1);
+        attribute++;
+        offset += 2 * FLOAT_SIZE_BYTES;
+        // Selected
+        glVertexAttribPointer(attribute, 1, GL_FLOAT, false, INSTANCE_SIZE_BYTES, offset);
+        glVertexAttribDivisor(attribute, 1);
+    }
+
+    void cleanup() {
+        glDeleteBuffers(vboId);
+        if (data != null) {
+            MemoryUtil.memFree(data);
+            data = null;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package engine.graph;
 
 import org.joml.Matrix4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 import org.lwjgl.system.MemoryUtil;
 import engine.items.GameItem;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.List;
 
@@ -13,6 +16,7 @@ import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
 import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.opengl.GL42.glDrawElementsInstancedBaseInstance;
 
 public class InstancedMesh extends Mesh {
 
@@ -26,7 +30,7 @@ public class InstancedMesh extends Mesh {
 
     private static final int INSTANCE_SIZE_BYTES = MATRIX_SIZE_BYTES + FLOAT_SIZE_BYTES * 2 + FLOAT_SIZE_BYTES;
 
-    private static final int INSTANCE_SIZE_FLOATS = MATRIX_SIZE_FLOATS + 3;
+    static final int INSTANCE_SIZE_FLOATS = MATRIX_SIZE_FLOATS + 3;
 
     private final int numInstances;
 
@@ -34,8 +38,14 @@ public class InstancedMesh extends Mesh {
 
     private FloatBuffer instanceDataBuffer;
 
+    private PersistentRingBuffer instanceStream;
+
+    private int streamedInstances;
+
+    private int streamedBaseInstance;
+
     public InstancedMesh(float[] positions, float[] textCoords, float[] normals, int[] indices, int numInstances) {
-        super(positions, textCoords, normals, indices, createEmptyIntArray(MAX_WEIGHTS * positions.length / 3, 0), createEmptyFloatArray(MAX_WEIGHTS * positions.length / 3, 0));
+        super(positions, textCoords, normals, indices);
 
         this.numInstances = numInstances;
 
@@ -45,6 +55,13 @@ public class InstancedMesh extends Mesh {
         vboIdList.add(instanceDataVBO);
         instanceDataBuffer = MemoryUtil.memAllocFloat(numInstances * INSTANCE_SIZE_FLOATS);
         glBindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
+        setupInstanceAttributes();
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    private void setupInstanceAttributes() {
         int start = 5;
         int strideStart = 0;
         // Model matrix
@@ -64,10 +81,6 @@ public class InstancedMesh extends Mesh {
         // Selected
         glVertexAttribPointer(start, 1, GL_FLOAT, false, INSTANCE_SIZE_BYTES, strideStart);
         glVertexAttribDivisor(start, 1);
-        start++;
-
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        glBindVertexArray(0);
     }
 
     @Override
@@ -77,6 +90,107 @@ public class InstancedMesh extends Mesh {
             MemoryUtil.memFree(this.instanceDataBuffer);
             this.instanceDataBuffer = null;
         }
+        if (this.instanceStream != null) {
+            this.instanceStream.cleanup();
+            this.instanceStream = null;
+        }
+    }
+
+    /**
+     * Streamed instances are drawn from their section of the ring buffer with a base instance, which needs
+     * GL 4.2 or ARB_base_instance on top of the ring buffer requirements
+     */
+    public static boolean isStreamingSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return PersistentRingBuffer.isSupported() && (caps.OpenGL42 || caps.GL_ARB_base_instance);
+    }
+
+    public boolean isStreaming() {
+        return instanceStream != null;
+    }
+
+    /**
+     * Writes the instance data of the game items directly into the next section of a persistently mapped ring
+     * buffer. The data stays valid for every {@link #renderStreamedInstances()} call until the next update, so
+     * several passes (shadow cascades, scene) can draw it without uploading it again. Once streaming, the instance
+     * attributes point to the ring buffer, so the mesh must no longer be drawn with the chunked path.
+     */
+    public void updateStreamedInstances(List<GameItem> gameItems, Transformation transformation) {
+        int length = gameItems.size();
+        ensureStreamCapacity(length);
+
+        ByteBuffer data = instanceStream.nextSection();
+        int offset = instanceStream.getSectionOffset();
+        Texture text = getMaterial().getTexture();
+        for (GameItem gameItem : gameItems) {
+            Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+            modelMatrix.get(offset, data);
+            float textXOffset = 0;
+            float textYOffset = 0;
+            if (text != null) {
+                int col = gameItem.getTextPos() % text.getNumCols();
+                int row = gameItem.getTextPos() / text.getNumCols();
+                textXOffset = (float) col / text.getNumCols();
+                textYOffset = (float) row / text.getNumRows();
+            }
+            data.putFloat(offset + MATRIX_SIZE_BYTES, textXOffset);
+            data.putFloat(offset + MATRIX_SIZE_BYTES + FLOAT_SIZE_BYTES, textYOffset);
+            data.putFloat(offset + MATRIX_SIZE_BYTES + FLOAT_SIZE_BYTES * 2, gameItem.isSelected() ? 1 : 0);
+            offset += INSTANCE_SIZE_BYTES;
+        }
+        streamedInstances = length;
+        streamedBaseInstance = instanceStream.getSectionOffset() / INSTANCE_SIZE_BYTES;
+    }
+
+    /**
+     * Same as {@link #updateStreamedInstances(List, Transformation)} for instance data already laid out by a
+     * {@link RenderCommandList}, commands [start, end) are copied.
+     */
+    public void updateStreamedInstances(float[] instanceData, int start, int end) {
+        int length = end - start;
+        ensureStreamCapacity(length);
+
+        ByteBuffer data = instanceStream.nextSection();
+        int offset = instanceStream.getSectionOffset();
+        for (int i = start * INSTANCE_SIZE_FLOATS, last = end * INSTANCE_SIZE_FLOATS; i < last; i++) {
+            data.putFloat(offset, instanceData[i]);
+            offset += FLOAT_SIZE_BYTES;
+        }
+        streamedInstances = length;
+        streamedBaseInstance = instanceStream.getSectionOffset() / INSTANCE_SIZE_BYTES;
+    }
+
+    private void ensureStreamCapacity(int length) {
+        int capacity = instanceStream != null ? instanceStream.getSectionSize() / INSTANCE_SIZE_BYTES : 0;
+        if (length > capacity) {
+            createInstanceStream(Math.max(length, Math.max(numInstances, capacity * 2)));
+        }
+    }
+
+    public void renderStreamedInstances() {
+        if (streamedInstances == 0) {
+            return;
+        }
+        initRender();
+
+        glDrawElementsInstancedBaseInstance(
+                GL_TRIANGLES, getVertexCount(), getIndexType(), 0, streamedInstances, streamedBaseInstance);
+
+        endRender();
+    }
+
+    private void createInstanceStream(int capacity) {
+        if (instanceStream != null) {
+            instanceStream.cleanup();
+        }
+        instanceStream = new PersistentRingBuffer(GL_ARRAY_BUFFER, capacity * INSTANCE_SIZE_BYTES);
+
+        // Point the per instance attributes to the ring buffer, sections are selected with the base instance
+        glBindVertexArray(vaoId);
+        glBindBuffer(GL_ARRAY_BUFFER, instanceStream.getBufferId());
+        setupInstanceAttributes();
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
     }
 
     @Override
@@ -119,6 +233,27 @@ public class InstancedMesh extends Mesh {
         endRender();
     }
 
+    /**
+     * Draws the commands [start, end) of a {@link RenderCommandList}, whose data is already laid out as instance data
+     */
+    public void renderCommandsInstanced(float[] instanceData, int start, int end) {
+        initRender();
+
+        glBindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
+        for (int i = start; i < end; i += numInstances) {
+            int count = Math.min(numInstances, end - i);
+            instanceDataBuffer.clear();
+            instanceDataBuffer.put(instanceData, i * INSTANCE_SIZE_FLOATS, count * INSTANCE_SIZE_FLOATS);
+            instanceDataBuffer.flip();
+            glBufferData(GL_ARRAY_BUFFER, instanceDataBuffer, GL_DYNAMIC_READ);
+
+            glDrawElementsInstanced(GL_TRIANGLES, getVertexCount(), getIndexType(), 0, count);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        endRender();
+    }
+
     private void renderChunkInstanced(List<GameItem> gameItems, boolean billBoard, Transformation transformation, Matrix4f viewMatrix) {
         this.instanceDataBuffer.clear();
 
@@ -152,7 +287,7 @@ public class InstancedMesh extends Mesh {
         glBufferData(GL_ARRAY_BUFFER, instanceDataBuffer, GL_DYNAMIC_READ);
 
         glDrawElementsInstanced(
-                GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0, gameItems.size());
+                GL_TRIANGLES, getVertexCount(), getIndexType(), 0, gameItems.size());
 
         glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
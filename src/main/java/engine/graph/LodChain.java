@@ -0,0 +1,51 @@
+package engine.graph;
+
+/**
+ * Levels of detail of a mesh, as built by the {@link MeshSimplifier}. Every level draws the vertices of the mesh with
+ * an index list of its own, the lists are stored one after the other in the index buffer, the finest first.
+ */
+public class LodChain {
+
+    private final int[] indexCounts;
+
+    private final int[] firstIndices;
+
+    private final float[] errors;
+
+    /**
+     * @param indexCounts Number of indices of every level
+     * @param errors      Largest distance, in model units, between every level and the full mesh, 0 for the first
+     */
+    public LodChain(int[] indexCounts, float[] errors) {
+        this.indexCounts = indexCounts;
+        this.errors = errors;
+        firstIndices = new int[indexCounts.length];
+        for (int lod = 1; lod < indexCounts.length; lod++) {
+            firstIndices[lod] = firstIndices[lod - 1] + indexCounts[lod - 1];
+        }
+    }
+
+    public int getNumLods() {
+        return indexCounts.length;
+    }
+
+    public int getIndexCount(int lod) {
+        return indexCounts[lod];
+    }
+
+    public int getFirstIndex(int lod) {
+        return firstIndices[lod];
+    }
+
+    public float getError(int lod) {
+        return errors[lod];
+    }
+
+    /**
+     * @return the number of indices of all the levels
+     */
+    public int getTotalIndexCount() {
+        int last = indexCounts.length - 1;
+        return firstIndices[last] + indexCounts[last];
+    }
+}
@@ -0,0 +1,140 @@
+package engine.graph;
+
+import engine.Scene;
+import engine.Window;
+import engine.items.GameItem;
+import org.joml.Vector3f;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the level of detail of the items whose meshes have some, the coarsest level whose error stays below
+ * {@link #ERROR_PROPERTY} pixels once projected on screen. The error of a level is the largest one of the meshes of the
+ * item, which all use the same level.
+ * <p>
+ * Items move to a finer level as soon as they need it, but only to a coarser one once its error is well below the
+ * threshold, so that items around the switching distance do not keep popping between two levels.
+ */
+public class LodSelector {
+
+    /**
+     * Largest error, in pixels, allowed on screen
+     */
+    public static final String ERROR_PROPERTY = "hittheground.lodErrorPixels";
+
+    private static final float DEFAULT_MAX_ERROR_PIXELS = 1;
+
+    private static final float LOD_HYSTERESIS = 1.5f;
+
+    private final float maxErrorPixels;
+
+    /**
+     * Items already given their level by this update, those with several meshes are met several times
+     */
+    private final Set<GameItem> selectedItems;
+
+    private int numItems;
+
+    private long fullTriangles;
+
+    private long drawnTriangles;
+
+    public LodSelector() {
+        maxErrorPixels = Float.parseFloat(System.getProperty(ERROR_PROPERTY,
+                                                             Float.toString(DEFAULT_MAX_ERROR_PIXELS)));
+        selectedItems = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Selects the level of every item of the scene drawing a mesh with levels of detail, from the thread updating the
+     * scene
+     *
+     * @param viewportHeight Height of the viewport in pixels
+     */
+    public void update(Scene scene, Vector3f cameraPosition, int viewportHeight) {
+        // Pixels covered by one world unit seen from one unit away
+        float pixelsPerUnit = viewportHeight / (2 * (float) Math.tan(Window.FOV / 2));
+        numItems = 0;
+        fullTriangles = 0;
+        drawnTriangles = 0;
+        for (Map.Entry<Mesh, List<GameItem>> entry : scene.getGameMeshes().entrySet()) {
+            if (entry.getKey().getNumLods() < 2) {
+                continue;
+            }
+            for (GameItem gameItem : entry.getValue()) {
+                if (selectedItems.add(gameItem)) {
+                    int lod = selectLod(gameItem, cameraPosition, pixelsPerUnit);
+                    gameItem.setLod(lod);
+                    numItems++;
+                    for (Mesh mesh : gameItem.getMeshes()) {
+                        fullTriangles += mesh.getVertexCount() / 3;
+                        drawnTriangles += mesh.getLodIndexCount(lod) / 3;
+                    }
+                }
+            }
+        }
+        selectedItems.clear();
+    }
+
+    private int selectLod(GameItem gameItem, Vector3f cameraPosition, float pixelsPerUnit) {
+        Mesh[] meshes = gameItem.getMeshes();
+        int numLods = 1;
+        float radius = 0;
+        for (Mesh mesh : meshes) {
+            numLods = Math.max(numLods, mesh.getNumLods());
+            radius = Math.max(radius, mesh.getBoundingRadius() * gameItem.getScale());
+        }
+        float distance = Math.max(gameItem.getPosition().distance(cameraPosition) - radius, Window.Z_NEAR);
+        float pixelsPerModelUnit = gameItem.getScale() * pixelsPerUnit / distance;
+
+        int lod = 0;
+        while (lod + 1 < numLods && getError(meshes, lod + 1) * pixelsPerModelUnit <= maxErrorPixels) {
+            lod++;
+        }
+        int current = gameItem.getLod();
+        while (lod > current && getError(meshes, lod) * pixelsPerModelUnit * LOD_HYSTERESIS > maxErrorPixels) {
+            lod--;
+        }
+        return lod;
+    }
+
+    private static float getError(Mesh[] meshes, int lod) {
+        float error = 0;
+        for (Mesh mesh : meshes) {
+            error = Math.max(error, mesh.getLodError(lod));
+        }
+        return error;
+    }
+
+    public Stats getStats() {
+        return new Stats(numItems, fullTriangles, drawnTriangles);
+    }
+
+    /**
+     * Triangles of the items with levels of detail at the last update, whether they are visible or not
+     */
+    public static class Stats {
+
+        public final int numItems;
+
+        public final long fullTriangles;
+
+        public final long drawnTriangles;
+
+        Stats(int numItems, long fullTriangles, long drawnTriangles) {
+            this.numItems = numItems;
+            this.fullTriangles = fullTriangles;
+            this.drawnTriangles = drawnTriangles;
+        }
+
+        @Override
+        public String toString() {
+            return "items with levels of detail: " + numItems + ", triangles: " + fullTriangles + " -> "
+                    + drawnTriangles;
+        }
+    }
+}
@@ -2,110 +2,196 @@ package engine.graph;
 
 import org.lwjgl.system.MemoryUtil;
 import engine.items.GameItem;
+import engine.loaders.assimp.TextureCache;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
 
 public class Mesh {
 
 	public static final int MAX_WEIGHTS = 4;
 
+	/**
+	 * Items sharing a static mesh from which they are drawn with instanced draws instead of one draw each
+	 */
+	public static final int MIN_INSTANCES = 4;
+
 	protected final int vaoId;
 
 	protected final List<Integer> vboIdList;
 
 	private final int vertexCount;
 
+	private final int numVertices;
+
+	private final VertexLayout layout;
+
+	/**
+	 * GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+	 */
+	private final int indexType;
+
+	/**
+	 * Levels of detail stored after the indices of the mesh, or null if it has none
+	 */
+	private final LodChain lods;
+
+	/**
+	 * Whether the mesh was given joint indices or weights, whatever its layout
+	 */
+	private final boolean hasJoints;
+
 	private Material material;
 
 	private float boundingRadius;
 
+	/**
+	 * Created on the first instanced draw
+	 */
+	private InstanceBuffer instances;
+
 	public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indices) {
-		this(positions, textCoords, normals, indices, createEmptyIntArray(MAX_WEIGHTS * positions.length / 3, 0),
-			 createEmptyFloatArray(MAX_WEIGHTS * positions.length / 3, 0));
+		this(positions, textCoords, normals, indices, null, null);
 	}
 
+	/**
+	 * Null joint indices and weights make a static mesh
+	 */
 	public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indices, int[] jointIndices,
 				float[] weights) {
-		vertexCount = indices.length;
-		vboIdList = new ArrayList<>();
-		boundingRadius = 0.8f;
-		vaoId = glGenVertexArrays();
+		this(FloatBuffer.wrap(positions), FloatBuffer.wrap(textCoords), FloatBuffer.wrap(normals),
+			 IntBuffer.wrap(indices), jointIndices != null ? IntBuffer.wrap(jointIndices) : null,
+			 weights != null ? FloatBuffer.wrap(weights) : null);
+	}
+
+	/**
+	 * Uploads the remaining content of the buffers, as it is when they are off heap and the layout of the mesh stores
+	 * them unchanged, such as a mapped cache file. The buffers are not kept.
+	 */
+	public Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices) {
+		this(positions, textCoords, normals, indices, null, null, null);
+	}
+
+	/**
+	 * Same as {@link #Mesh(FloatBuffer, FloatBuffer, FloatBuffer, IntBuffer)} with the indices of every level of detail
+	 * of the chain one after the other, null lods make a mesh without levels
+	 */
+	public Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+				LodChain lods) {
+		this(positions, textCoords, normals, indices, null, null, lods);
+	}
+
+	/**
+	 * Same as {@link #Mesh(FloatBuffer, FloatBuffer, FloatBuffer, IntBuffer)} for skinned meshes, null joint indices
+	 * and weights make a static mesh. The {@link VertexLayout} is picked from the content.
+	 */
+	public Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+				IntBuffer jointIndices, FloatBuffer weights) {
+		this(positions, textCoords, normals, indices, jointIndices, weights, null);
+	}
+
+	private Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+				 IntBuffer jointIndices, FloatBuffer weights, LodChain lods) {
+		this(positions, textCoords, indices, jointIndices, weights, lods, true);
 		glBindVertexArray(vaoId);
-		prepareVBOS(positions, textCoords, normals, indices, jointIndices, weights);
+		Buffer[] sources = {positions, textCoords, normals, weights, jointIndices};
+		for (int stream = 0; stream < layout.getNumStreams(); stream++) {
+			// The streams of the separate layout are the attributes, stored as they come
+			prepareStream(stream, layout.isCompact() ? null : sources[stream], positions, textCoords, normals,
+						  weights, jointIndices);
+		}
+		prepareIndices(indices);
 
 		glBindBuffer(GL_ARRAY_BUFFER, 0);
 		glBindVertexArray(0);
 	}
 
-	private void prepareVBOS(float[] positions, float[] textCoords, float[] normals,
-							 int[] indices, int[] jointIndices, float[] weights) {
-		prepareVBO(positions, 0, 3);
-		prepareVBO(textCoords, 1, 2);
-		prepareVBO(normals, 2, 3);
-		prepareVBO(weights, 3, 4);
-		prepareVBO(jointIndices, 4, 4);
-		prepareVBO(indices);
+	/**
+	 * Describes the content without creating any GL object when upload is false
+	 */
+	private Mesh(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, IntBuffer jointIndices,
+				 FloatBuffer weights, LodChain lods, boolean upload) {
+		layout = VertexLayout.forMesh(textCoords, jointIndices);
+		// The separate layout has joint streams even for static meshes, only the content tells
+		hasJoints = jointIndices != null || weights != null;
+		this.lods = lods;
+		vertexCount = lods != null ? lods.getIndexCount(0) : indices.remaining();
+		numVertices = positions.remaining() / 3;
+		indexType = layout.isShortIndices(numVertices) ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+		vboIdList = new ArrayList<>();
+		boundingRadius = 0.8f;
+		vaoId = upload ? glGenVertexArrays() : 0;
+	}
 
+	/**
+	 * Mesh of the given content without any GL object, for the code running without a context such as the tests and
+	 * benchmarks. Everything but the rendering and the clean up is usable.
+	 */
+	static Mesh withoutBuffers(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices,
+							   IntBuffer jointIndices, FloatBuffer weights) {
+		return new Mesh(positions, textCoords, indices, jointIndices, weights, null, false);
 	}
 
-	private void prepareVBO(float[] data, int index, int size) {
-		FloatBuffer buffer = null;
-		try {
-			int vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			buffer = MemoryUtil.memAllocFloat(data.length);
-			buffer.put(data).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(index, size, GL_FLOAT, false, 0, 0);
-		} finally {
-			if (buffer != null) {
-				MemoryUtil.memFree(buffer);
+	private void prepareStream(int stream, Buffer source, FloatBuffer positions, FloatBuffer textCoords,
+							   FloatBuffer normals, FloatBuffer weights, IntBuffer jointIndices) {
+		int vboId = glGenBuffers();
+		vboIdList.add(vboId);
+		glBindBuffer(GL_ARRAY_BUFFER, vboId);
+		if (source instanceof FloatBuffer && source.isDirect()) {
+			glBufferData(GL_ARRAY_BUFFER, (FloatBuffer) source, GL_STATIC_DRAW);
+		} else if (source instanceof IntBuffer && source.isDirect()) {
+			glBufferData(GL_ARRAY_BUFFER, (IntBuffer) source, GL_STATIC_DRAW);
+		} else {
+			ByteBuffer data = layout.pack(stream, numVertices, positions, textCoords, normals, weights, jointIndices);
+			try {
+				glBufferData(GL_ARRAY_BUFFER, data, GL_STATIC_DRAW);
+			} finally {
+				MemoryUtil.memFree(data);
 			}
 		}
-	}
-
-	private void prepareVBO(int[] data, int index, int size) {
-		IntBuffer buffer = null;
-		try {
-			int vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			buffer = MemoryUtil.memAllocInt(data.length);
-			buffer.put(data).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(index, size, GL_FLOAT, false, 0, 0);
-		} finally {
-			if (buffer != null) {
-				MemoryUtil.memFree(buffer);
+		for (int attribute = 0; attribute < VertexLayout.JOINT_INDICES + 1; attribute++) {
+			if (layout.getStream(attribute) == stream) {
+				layout.setupAttribute(attribute, 0);
 			}
 		}
 	}
 
-	private void prepareVBO(int[] data) {
-		IntBuffer buffer = null;
+	private void prepareIndices(IntBuffer indices) {
+		int vboId = glGenBuffers();
+		vboIdList.add(vboId);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
+		if (indexType == GL_UNSIGNED_INT && indices.isDirect()) {
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+			return;
+		}
+		int numIndices = indices.remaining();
+		ByteBuffer data = MemoryUtil.memAlloc(numIndices * getIndexBytes()).order(ByteOrder.nativeOrder());
 		try {
-			int vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			buffer = MemoryUtil.memAllocInt(data.length);
-			buffer.put(data).flip();
-			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ELEMENT_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
-		} finally {
-			if (buffer != null) {
-				MemoryUtil.memFree(buffer);
+			for (int i = 0, base = indices.position(); i < numIndices; i++) {
+				if (indexType == GL_UNSIGNED_SHORT) {
+					data.putShort((short) indices.get(base + i));
+				} else {
+					data.putInt(indices.get(base + i));
+				}
 			}
+			data.flip();
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, data, GL_STATIC_DRAW);
+		} finally {
+			MemoryUtil.memFree(data);
 		}
 	}
 
@@ -125,6 +211,62 @@ public class Mesh {
 		return vertexCount;
 	}
 
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	public VertexLayout getLayout() {
+		return layout;
+	}
+
+	public int getIndexType() {
+		return indexType;
+	}
+
+	int getIndexBytes() {
+		return indexType == GL_UNSIGNED_SHORT ? 2 : 4;
+	}
+
+	/**
+	 * @return the number of indices of all the levels of detail
+	 */
+	public int getNumIndices() {
+		return lods != null ? lods.getTotalIndexCount() : vertexCount;
+	}
+
+	/**
+	 * @return the number of levels of detail, 1 for a mesh without levels
+	 */
+	public int getNumLods() {
+		return lods != null ? lods.getNumLods() : 1;
+	}
+
+	/**
+	 * @param lod Level of detail, the coarsest level is used past it
+	 */
+	public int getLodIndexCount(int lod) {
+		return lods != null ? lods.getIndexCount(Math.min(lod, lods.getNumLods() - 1)) : vertexCount;
+	}
+
+	public int getLodFirstIndex(int lod) {
+		return lods != null ? lods.getFirstIndex(Math.min(lod, lods.getNumLods() - 1)) : 0;
+	}
+
+	/**
+	 * @return the largest distance between the level and the full mesh, in model units
+	 */
+	public float getLodError(int lod) {
+		return lods != null ? lods.getError(Math.min(lod, lods.getNumLods() - 1)) : 0;
+	}
+
+	final int getStreamVboId(int stream) {
+		return vboIdList.get(stream);
+	}
+
+	final int getIndicesVboId() {
+		return vboIdList.get(layout.getNumStreams());
+	}
+
 	public float getBoundingRadius() {
 		return boundingRadius;
 	}
@@ -151,21 +293,23 @@ public class Mesh {
 
 		// Draw the mesh
 		glBindVertexArray(getVaoId());
-		glEnableVertexAttribArray(0);
-		glEnableVertexAttribArray(1);
-		glEnableVertexAttribArray(2);
-		glEnableVertexAttribArray(3);
-		glEnableVertexAttribArray(4);
+		for (int attribute = 0; attribute <= VertexLayout.JOINT_INDICES; attribute++) {
+			if (layout.hasAttribute(attribute)) {
+				glEnableVertexAttribArray(attribute);
+			}
+		}
+		if (!layout.isSkinned()) {
+			// Without weights the shaders take the vertex as it is
+			glVertexAttrib4f(VertexLayout.JOINT_WEIGHTS, 0, 0, 0, 0);
+		}
 //		glEnableVertexAttribArray(5);
 	}
 
 	protected void endRender() {
 		// Restore state
-		glDisableVertexAttribArray(0);
-		glDisableVertexAttribArray(1);
-		glDisableVertexAttribArray(2);
-		glDisableVertexAttribArray(3);
-		glDisableVertexAttribArray(4);
+		for (int attribute = 0; attribute <= VertexLayout.JOINT_INDICES; attribute++) {
+			glDisableVertexAttribArray(attribute);
+		}
 //		glDisableVertexAttribArray(5);
 		glBindVertexArray(0);
 
@@ -175,7 +319,7 @@ public class Mesh {
 	public void render() {
 		initRender();
 
-		glDrawElements(GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0);
+		glDrawElements(GL_TRIANGLES, getVertexCount(), indexType, 0);
 
 		endRender();
 	}
@@ -188,14 +332,131 @@ public class Mesh {
 				// Set up data requiered by gameItem
 				consumer.accept(gameItem);
 				// Render this game item
-				glDrawElements(GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0);
+				drawLod(gameItem.getLod());
 			}
 		}
 
 		endRender();
 	}
 
+	/**
+	 * Renders the game items referenced by indices[start, end), as produced by the {@link SoaFrustumCuller}
+	 */
+	public void renderList(GameItem[] gameItems, int[] indices, int start, int end, Consumer<GameItem> consumer) {
+		initRender();
+
+		for (int i = start; i < end; i++) {
+			GameItem gameItem = gameItems[indices[i]];
+			consumer.accept(gameItem);
+			drawLod(gameItem.getLod());
+		}
+
+		endRender();
+	}
+
+	/**
+	 * Replays the commands [start, end) of a {@link RenderCommandList}, the consumer receives the command index
+	 *
+	 * @param lods Level of detail of every command, as given by {@link RenderCommandList#getLods()}
+	 */
+	public void renderCommands(int start, int end, int[] lods, IntConsumer consumer) {
+		initRender();
+
+		for (int i = start; i < end; i++) {
+			consumer.accept(i);
+			drawLod(lods[i]);
+		}
+
+		endRender();
+	}
+
+	/**
+	 * @return whether items drawing this mesh should rather be drawn by one of the renderInstanced methods, as meshes
+	 * with joints can not
+	 */
+	public boolean isDrawnInstanced(int numItems) {
+		return numItems >= MIN_INSTANCES && !hasJoints;
+	}
+
+	/**
+	 * Same as {@link #renderList(List, Consumer)} with one instanced draw per level of detail, the instance data
+	 * taking the place of the per item uniforms
+	 */
+	public void renderInstanced(List<GameItem> gameItems, Transformation transformation) {
+		initInstances();
+		instances.begin(gameItems);
+		Texture text = material != null ? material.getTexture() : null;
+		for (GameItem gameItem : gameItems) {
+			if (gameItem.isInsideFrustum()) {
+				instances.put(gameItem, transformation.buildModelMatrix(gameItem), text);
+			}
+		}
+		renderInstances();
+	}
+
+	/**
+	 * Same as {@link #renderList(GameItem[], int[], int, int, Consumer)} with one instanced draw per level of detail
+	 */
+	public void renderInstanced(GameItem[] gameItems, int[] indices, int start, int end,
+								Transformation transformation) {
+		initInstances();
+		instances.begin(gameItems, indices, start, end);
+		Texture text = material != null ? material.getTexture() : null;
+		for (int i = start; i < end; i++) {
+			GameItem gameItem = gameItems[indices[i]];
+			instances.put(gameItem, transformation.buildModelMatrix(gameItem), text);
+		}
+		renderInstances();
+	}
+
+	/**
+	 * Same as {@link #renderCommands(int, int, int[], IntConsumer)} with one instanced draw per level of detail, the
+	 * command data being laid out as instance data
+	 */
+	public void renderInstanced(float[] commandData, int[] lods, int start, int end) {
+		initInstances();
+		instances.begin(lods, start, end);
+		for (int i = start; i < end; i++) {
+			instances.put(commandData, i, lods[i]);
+		}
+		renderInstances();
+	}
+
+	private void initInstances() {
+		if (instances == null) {
+			instances = new InstanceBuffer(getNumLods());
+		}
+	}
+
+	private void renderInstances() {
+		initRender();
+
+		instances.draw(this);
+
+		endRender();
+	}
+
+	void drawLodInstanced(int lod, int numInstances) {
+		glDrawElementsInstanced(GL_TRIANGLES, getLodIndexCount(lod), indexType,
+								(long) getLodFirstIndex(lod) * getIndexBytes(), numInstances);
+	}
+
+	private void drawLod(int lod) {
+		if (lods == null) {
+			glDrawElements(GL_TRIANGLES, vertexCount, indexType, 0);
+		} else {
+			glDrawElements(GL_TRIANGLES, getLodIndexCount(lod), indexType,
+						   (long) getLodFirstIndex(lod) * getIndexBytes());
+		}
+	}
+
+	/**
+	 * Deletes the mesh, or only gives back the reference taken on it when it is shared by the {@link GeometryRegistry}
+	 */
 	public void cleanUp() {
+		if (GeometryRegistry.getInstance().release(this)) {
+			return;
+		}
 		glDisableVertexAttribArray(0);
 
 		// Delete the VBOs
@@ -203,10 +464,14 @@ public class Mesh {
 		for (int vboId : vboIdList) {
 			glDeleteBuffers(vboId);
 		}
+		if (instances != null) {
+			instances.cleanup();
+			instances = null;
+		}
 
-		// Delete the texture
+		// Delete the texture, unless it is shared through the cache
 		Texture texture = material.getTexture();
-		if (texture != null) {
+		if (texture != null && !TextureCache.getInstance().release(texture)) {
 			texture.cleanup();
 		}
 
@@ -223,22 +488,14 @@ public class Mesh {
 		for (int vboId : vboIdList) {
 			glDeleteBuffers(vboId);
 		}
+		if (instances != null) {
+			instances.cleanup();
+			instances = null;
+		}
 
 		// Delete the VAO
 		glBindVertexArray(0);
 		glDeleteVertexArrays(vaoId);
 	}
 
-	protected static float[] createEmptyFloatArray(int length, float defaultValue) {
-		float[] result = new float[length];
-		Arrays.fill(result, defaultValue);
-		return result;
-	}
-
-	protected static int[] createEmptyIntArray(int length, int defaultValue) {
-		int[] result = new int[length];
-		Arrays.fill(result, defaultValue);
-		return result;
-	}
-
 }
@@ -0,0 +1,47 @@
+package engine.graph;
+
+/**
+ * Vertex data of a mesh kept on the CPU side, before it is uploaded to a {@link Mesh}. Loaders produce it without
+ * touching OpenGL, so it can be built and inspected without a GL context.
+ */
+public class MeshData {
+
+    private final float[] positions;
+
+    private final float[] textCoords;
+
+    private final float[] normals;
+
+    private final int[] indices;
+
+    public MeshData(float[] positions, float[] textCoords, float[] normals, int[] indices) {
+        this.positions = positions;
+        this.textCoords = textCoords;
+        this.normals = normals;
+        this.indices = indices;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getTextCoords() {
+        return textCoords;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public Mesh createMesh() {
+        return new Mesh(positions, textCoords, normals, indices);
+    }
+
+    public InstancedMesh createInstancedMesh(int numInstances) {
+        return new InstancedMesh(positions, textCoords, normals, indices, numInstances);
+    }
+}
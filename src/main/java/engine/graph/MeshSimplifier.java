@@ -0,0 +1,645 @@
+package engine.graph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Builds the levels of detail of a mesh with greedy edge collapses ordered by their quadric error (Garland and
+ * Heckbert, "Surface Simplification Using Quadric Error Metrics"). Every collapse moves a vertex onto one of its
+ * neighbours, so the levels only use the vertices of the mesh and each one costs an index list, described by a
+ * {@link LodChain}.
+ * <p>
+ * The vertices sharing a position, split for their texture coordinates or normals, are collapsed together: each one
+ * moves to the vertex it shares a triangle with at the other end of the edge, a collapse which would tear a seam open
+ * is rejected. Border vertices only slide along the border, which is kept in place by quadrics of its own, and
+ * collapses folding a triangle over or pinching the surface are rejected too.
+ * <p>
+ * Simplifying costs much more than drawing, loaders run it when cooking their meshes so that cached meshes are stored
+ * with their levels.
+ */
+public class MeshSimplifier {
+
+    /**
+     * Number of levels, the full mesh included, built for every mesh
+     */
+    public static final String LODS_PROPERTY = "hittheground.meshLods";
+
+    private static final int DEFAULT_LODS = 4;
+
+    /**
+     * Triangles of every level relative to the previous one
+     */
+    private static final float LOD_RATIO = 0.5f;
+
+    /**
+     * A level is only kept when it has at most this fraction of the triangles of the previous one
+     */
+    private static final float MIN_REDUCTION = 0.8f;
+
+    private static final double BORDER_WEIGHT = 10;
+
+    /**
+     * Smallest cosine of the angle a collapse may turn the normal of a triangle by
+     */
+    private static final double MIN_NORMAL_DOT = 0.2;
+
+    private static final int QUADRIC_SIZE = 10;
+
+    private static volatile boolean enabled;
+
+    private final float[] positions;
+
+    private final int[] triangles;
+
+    private final boolean[] removed;
+
+    private int numLiveTriangles;
+
+    /**
+     * First vertex with the same position, the one standing for all of them
+     */
+    private final int[] node;
+
+    private final int[][] nodeTriangles;
+
+    private final int[] numNodeTriangles;
+
+    private final double[] quadrics;
+
+    private final boolean[] border;
+
+    private final boolean[] locked;
+
+    private final boolean[] collapsed;
+
+    private final int[] version;
+
+    private final int[] mark;
+
+    private final int[] wedgeMap;
+
+    private final int[] wedgeMark;
+
+    private int stamp;
+
+    private final PriorityQueue<Collapse> heap;
+
+    private MeshSimplifier(float[] positions, int[] indices) {
+        this.positions = positions;
+        int numVertices = positions.length / 3;
+        triangles = indices.clone();
+        removed = new boolean[indices.length / 3];
+        node = new int[numVertices];
+        nodeTriangles = new int[numVertices][];
+        numNodeTriangles = new int[numVertices];
+        quadrics = new double[numVertices * QUADRIC_SIZE];
+        border = new boolean[numVertices];
+        locked = new boolean[numVertices];
+        collapsed = new boolean[numVertices];
+        version = new int[numVertices];
+        mark = new int[numVertices];
+        wedgeMap = new int[numVertices];
+        wedgeMark = new int[numVertices];
+        heap = new PriorityQueue<>();
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MeshSimplifier.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of levels to build, the full mesh included
+     */
+    public static int getNumLods() {
+        return Math.max(1, Integer.getInteger(LODS_PROPERTY, DEFAULT_LODS));
+    }
+
+    /**
+     * Same as {@link #simplify(float[], int[], int)} for the remaining content of buffers, which is left untouched
+     */
+    public static Result simplify(FloatBuffer positions, IntBuffer indices, int numLods) {
+        float[] positionsArr = new float[positions.remaining()];
+        int[] indicesArr = new int[indices.remaining()];
+        positions.duplicate().get(positionsArr);
+        indices.duplicate().get(indicesArr);
+        return simplify(positionsArr, indicesArr, numLods);
+    }
+
+    /**
+     * Builds up to numLods levels of a triangle mesh, the first one being the mesh itself. The mesh is not modified.
+     *
+     * @return the indices of all the levels one after the other with their chain, or null if no coarser level could be
+     * built
+     */
+    public static Result simplify(float[] positions, int[] indices, int numLods) {
+        int numVertices = positions.length / 3;
+        if (numLods < 2 || indices.length < 6 || indices.length % 3 != 0 || positions.length % 3 != 0) {
+            return null;
+        }
+        for (int index : indices) {
+            if (index < 0 || index >= numVertices) {
+                return null;
+            }
+        }
+        MeshSimplifier simplifier = new MeshSimplifier(positions, indices);
+        simplifier.weld();
+        simplifier.buildAdjacency();
+        simplifier.buildQuadrics();
+        return simplifier.buildLevels(indices, numLods);
+    }
+
+    private void weld() {
+        int numVertices = node.length;
+        Integer[] order = new Integer[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Float.compare(positions[a * 3], positions[b * 3]);
+            if (cmp == 0) {
+                cmp = Float.compare(positions[a * 3 + 1], positions[b * 3 + 1]);
+            }
+            if (cmp == 0) {
+                cmp = Float.compare(positions[a * 3 + 2], positions[b * 3 + 2]);
+            }
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        int first = 0;
+        for (int i = 0; i < numVertices; i++) {
+            int v = order[i];
+            if (i == 0 || !samePosition(order[first], v)) {
+                first = i;
+            }
+            node[v] = order[first];
+        }
+    }
+
+    private boolean samePosition(int a, int b) {
+        return positions[a * 3] == positions[b * 3] && positions[a * 3 + 1] == positions[b * 3 + 1]
+                && positions[a * 3 + 2] == positions[b * 3 + 2];
+    }
+
+    private void buildAdjacency() {
+        int numTriangles = removed.length;
+        for (int t = 0; t < numTriangles; t++) {
+            int a = node[triangles[t * 3]];
+            int b = node[triangles[t * 3 + 1]];
+            int c = node[triangles[t * 3 + 2]];
+            if (a == b || b == c || c == a) {
+                // Degenerate triangles are dropped from the coarser levels
+                removed[t] = true;
+                continue;
+            }
+            numLiveTriangles++;
+            addTriangle(a, t);
+            addTriangle(b, t);
+            addTriangle(c, t);
+        }
+    }
+
+    private void addTriangle(int n, int t) {
+        int[] list = nodeTriangles[n];
+        if (list == null) {
+            list = nodeTriangles[n] = new int[6];
+        } else if (numNodeTriangles[n] == list.length) {
+            list = nodeTriangles[n] = Arrays.copyOf(list, list.length * 2);
+        }
+        list[numNodeTriangles[n]++] = t;
+    }
+
+    private void buildQuadrics() {
+        Map<Long, Integer> edgeUses = new HashMap<>();
+        long numVertices = node.length;
+        double[] normal = new double[3];
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t] || !getNormal(t, -1, -1, normal)) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int n = node[triangles[t * 3 + k]];
+                addPlane(n, normal[0], normal[1], normal[2], n, 1);
+                int next = node[triangles[t * 3 + (k + 1) % 3]];
+                edgeUses.merge(Math.min(n, next) * numVertices + Math.max(n, next), 1, Integer::sum);
+            }
+        }
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t] || !getNormal(t, -1, -1, normal)) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int a = node[triangles[t * 3 + k]];
+                int b = node[triangles[t * 3 + (k + 1) % 3]];
+                int uses = edgeUses.get(Math.min(a, b) * numVertices + Math.max(a, b));
+                if (uses > 2) {
+                    locked[a] = true;
+                    locked[b] = true;
+                } else if (uses == 1) {
+                    border[a] = true;
+                    border[b] = true;
+                    // Plane through the border edge, perpendicular to its triangle
+                    double ex = positions[b * 3] - positions[a * 3];
+                    double ey = positions[b * 3 + 1] - positions[a * 3 + 1];
+                    double ez = positions[b * 3 + 2] - positions[a * 3 + 2];
+                    double px = ey * normal[2] - ez * normal[1];
+                    double py = ez * normal[0] - ex * normal[2];
+                    double pz = ex * normal[1] - ey * normal[0];
+                    double length = Math.sqrt(px * px + py * py + pz * pz);
+                    if (length > 0) {
+                        addPlane(a, px / length, py / length, pz / length, a, BORDER_WEIGHT);
+                        addPlane(b, px / length, py / length, pz / length, a, BORDER_WEIGHT);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to the quadric of a node the squared distance to the plane with the given normal going through a vertex
+     */
+    private void addPlane(int n, double nx, double ny, double nz, int through, double weight) {
+        double d = -(nx * positions[through * 3] + ny * positions[through * 3 + 1] + nz * positions[through * 3 + 2]);
+        int q = n * QUADRIC_SIZE;
+        quadrics[q] += weight * nx * nx;
+        quadrics[q + 1] += weight * nx * ny;
+        quadrics[q + 2] += weight * nx * nz;
+        quadrics[q + 3] += weight * nx * d;
+        quadrics[q + 4] += weight * ny * ny;
+        quadrics[q + 5] += weight * ny * nz;
+        quadrics[q + 6] += weight * ny * d;
+        quadrics[q + 7] += weight * nz * nz;
+        quadrics[q + 8] += weight * nz * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    /**
+     * @return the error of the sum of the quadrics of two nodes at the position of the second one
+     */
+    private double getError(int a, int b) {
+        double x = positions[b * 3];
+        double y = positions[b * 3 + 1];
+        double z = positions[b * 3 + 2];
+        int qa = a * QUADRIC_SIZE;
+        int qb = b * QUADRIC_SIZE;
+        double[] q = quadrics;
+        double error = (q[qa] + q[qb]) * x * x + 2 * (q[qa + 1] + q[qb + 1]) * x * y
+                + 2 * (q[qa + 2] + q[qb + 2]) * x * z + 2 * (q[qa + 3] + q[qb + 3]) * x
+                + (q[qa + 4] + q[qb + 4]) * y * y + 2 * (q[qa + 5] + q[qb + 5]) * y * z
+                + 2 * (q[qa + 6] + q[qb + 6]) * y
+                + (q[qa + 7] + q[qb + 7]) * z * z + 2 * (q[qa + 8] + q[qb + 8]) * z
+                + q[qa + 9] + q[qb + 9];
+        return Math.max(error, 0);
+    }
+
+    /**
+     * Computes the unit normal of a triangle, with the node from moved to the position of the node to
+     *
+     * @return false if the triangle has no area
+     */
+    private boolean getNormal(int t, int from, int to, double[] normal) {
+        int a = node[triangles[t * 3]];
+        int b = node[triangles[t * 3 + 1]];
+        int c = node[triangles[t * 3 + 2]];
+        a = a == from ? to : a;
+        b = b == from ? to : b;
+        c = c == from ? to : c;
+        double abx = positions[b * 3] - positions[a * 3];
+        double aby = positions[b * 3 + 1] - positions[a * 3 + 1];
+        double abz = positions[b * 3 + 2] - positions[a * 3 + 2];
+        double acx = positions[c * 3] - positions[a * 3];
+        double acy = positions[c * 3 + 1] - positions[a * 3 + 1];
+        double acz = positions[c * 3 + 2] - positions[a * 3 + 2];
+        double nx = aby * acz - abz * acy;
+        double ny = abz * acx - abx * acz;
+        double nz = abx * acy - aby * acx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            return false;
+        }
+        normal[0] = nx / length;
+        normal[1] = ny / length;
+        normal[2] = nz / length;
+        return true;
+    }
+
+    private Result buildLevels(int[] indices, int numLods) {
+        for (int n = 0; n < node.length; n++) {
+            if (node[n] == n && numNodeTriangles[n] > 0) {
+                pushCollapses(n, true);
+            }
+        }
+
+        int[][] levels = new int[numLods][];
+        float[] errors = new float[numLods];
+        levels[0] = indices;
+        int numLevels = 1;
+        int previousTriangles = numLiveTriangles;
+        double maxError = 0;
+        double[] before = new double[3];
+        double[] after = new double[3];
+        while (numLevels < numLods) {
+            int target = (int) (previousTriangles * LOD_RATIO);
+            Collapse collapse;
+            while (numLiveTriangles > target && (collapse = heap.poll()) != null) {
+                if (collapsed[collapse.from] || collapsed[collapse.to] || version[collapse.from] != collapse.fromVersion
+                        || version[collapse.to] != collapse.toVersion) {
+                    continue;
+                }
+                if (collapse(collapse.from, collapse.to, before, after)) {
+                    maxError = Math.max(maxError, collapse.error);
+                }
+            }
+            if (numLiveTriangles == 0 || numLiveTriangles > previousTriangles * MIN_REDUCTION) {
+                break;
+            }
+            levels[numLevels] = getLiveIndices();
+            errors[numLevels] = (float) Math.sqrt(maxError);
+            numLevels++;
+            previousTriangles = numLiveTriangles;
+        }
+        if (numLevels < 2) {
+            return null;
+        }
+
+        int[] indexCounts = new int[numLevels];
+        int totalIndices = 0;
+        for (int lod = 0; lod < numLevels; lod++) {
+            indexCounts[lod] = levels[lod].length;
+            totalIndices += indexCounts[lod];
+        }
+        int[] allIndices = new int[totalIndices];
+        for (int lod = 0, offset = 0; lod < numLevels; lod++) {
+            System.arraycopy(levels[lod], 0, allIndices, offset, indexCounts[lod]);
+            offset += indexCounts[lod];
+        }
+        return new Result(allIndices, new LodChain(indexCounts, Arrays.copyOf(errors, numLevels)));
+    }
+
+    private int[] getLiveIndices() {
+        int[] indices = new int[numLiveTriangles * 3];
+        int count = 0;
+        for (int t = 0; t < removed.length; t++) {
+            if (!removed[t]) {
+                indices[count++] = triangles[t * 3];
+                indices[count++] = triangles[t * 3 + 1];
+                indices[count++] = triangles[t * 3 + 2];
+            }
+        }
+        if (MeshOptimizer.isEnabled()) {
+            MeshOptimizer.optimizeTriangles(positions, indices, node.length);
+        }
+        return indices;
+    }
+
+    /**
+     * Queues the collapses of the edges of a node
+     *
+     * @param initial Whether the edges are queued for the first time, each one is then queued from its lowest node
+     */
+    private void pushCollapses(int n, boolean initial) {
+        int neighbourStamp = ++stamp;
+        int[] list = nodeTriangles[n];
+        for (int i = 0; i < numNodeTriangles[n]; i++) {
+            int t = list[i];
+            for (int k = 0; k < 3; k++) {
+                int neighbour = node[triangles[t * 3 + k]];
+                if (neighbour == n || mark[neighbour] == neighbourStamp || initial && neighbour < n) {
+                    continue;
+                }
+                mark[neighbour] = neighbourStamp;
+                // Both directions are queued, the cheapest may turn out to break the surface
+                if (canCollapse(n, neighbour)) {
+                    heap.add(new Collapse(n, neighbour, getError(n, neighbour), version[n], version[neighbour]));
+                }
+                if (canCollapse(neighbour, n)) {
+                    heap.add(new Collapse(neighbour, n, getError(neighbour, n), version[neighbour], version[n]));
+                }
+            }
+        }
+    }
+
+    private boolean canCollapse(int from, int to) {
+        return !locked[from] && (!border[from] || border[to] && countSharedTriangles(from, to) == 1);
+    }
+
+    private int countSharedTriangles(int a, int b) {
+        int shared = 0;
+        int[] list = nodeTriangles[a];
+        for (int i = 0; i < numNodeTriangles[a]; i++) {
+            if (!removed[list[i]] && hasNode(list[i], b)) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    private boolean hasNode(int t, int n) {
+        return node[triangles[t * 3]] == n || node[triangles[t * 3 + 1]] == n || node[triangles[t * 3 + 2]] == n;
+    }
+
+    /**
+     * Moves the node from onto the node to, unless the collapse breaks the surface
+     *
+     * @return whether the collapse has been made
+     */
+    private boolean collapse(int from, int to, double[] before, double[] after) {
+        if (!canCollapse(from, to)) {
+            return false;
+        }
+        int[] list = nodeTriangles[from];
+        int count = numNodeTriangles[from];
+
+        // The vertices at both ends of the edge must only share the ones opposite to it
+        int neighbourStamp = ++stamp;
+        int sharedTriangles = 0;
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t]) {
+                continue;
+            }
+            if (hasNode(t, to)) {
+                sharedTriangles++;
+            }
+            for (int k = 0; k < 3; k++) {
+                mark[node[triangles[t * 3 + k]]] = neighbourStamp;
+            }
+        }
+        if (sharedTriangles == 0) {
+            return false;
+        }
+        int commonNeighbours = 0;
+        int[] toList = nodeTriangles[to];
+        int linkStamp = ++stamp;
+        for (int i = 0; i < numNodeTriangles[to]; i++) {
+            int t = toList[i];
+            if (removed[t]) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int n = node[triangles[t * 3 + k]];
+                if (n != from && n != to && mark[n] == neighbourStamp) {
+                    mark[n] = linkStamp;
+                    commonNeighbours++;
+                }
+            }
+        }
+        if (commonNeighbours != sharedTriangles) {
+            return false;
+        }
+
+        // Every vertex moves to the one it shares a triangle with, seam vertices must keep being distinct
+        int wedgeStamp = ++stamp;
+        int numWedges = 0;
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t] || !hasNode(t, to)) {
+                continue;
+            }
+            int wedge = -1;
+            int target = -1;
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[t * 3 + k];
+                if (node[v] == from) {
+                    wedge = v;
+                } else if (node[v] == to) {
+                    target = v;
+                }
+            }
+            if (wedgeMark[wedge] != wedgeStamp) {
+                wedgeMark[wedge] = wedgeStamp;
+                wedgeMap[wedge] = target;
+                numWedges++;
+            } else if (wedgeMap[wedge] != target) {
+                return false;
+            }
+        }
+        int targetStamp = ++stamp;
+        int numTargets = 0;
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t] || hasNode(t, to)) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[t * 3 + k];
+                if (node[v] == from && wedgeMark[v] != wedgeStamp) {
+                    return false;
+                }
+            }
+            if (!getNormal(t, -1, -1, before) || !getNormal(t, from, to, after)
+                    || before[0] * after[0] + before[1] * after[1] + before[2] * after[2] < MIN_NORMAL_DOT) {
+                return false;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t] || !hasNode(t, to)) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[t * 3 + k];
+                if (node[v] == to && wedgeMark[v] != targetStamp) {
+                    wedgeMark[v] = targetStamp;
+                    numTargets++;
+                }
+            }
+        }
+        if (numWedges > 1 && numTargets != numWedges) {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t]) {
+                continue;
+            }
+            if (hasNode(t, to)) {
+                removed[t] = true;
+                numLiveTriangles--;
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[t * 3 + k];
+                if (node[v] == from) {
+                    triangles[t * 3 + k] = wedgeMap[v];
+                }
+            }
+            addTriangle(to, t);
+        }
+        // Only the triangles still drawn are kept, the moved vertices now stand for the node to
+        int live = 0;
+        toList = nodeTriangles[to];
+        for (int i = 0; i < numNodeTriangles[to]; i++) {
+            if (!removed[toList[i]]) {
+                toList[live++] = toList[i];
+            }
+        }
+        numNodeTriangles[to] = live;
+        nodeTriangles[from] = null;
+        numNodeTriangles[from] = 0;
+        collapsed[from] = true;
+        for (int q = 0; q < QUADRIC_SIZE; q++) {
+            quadrics[to * QUADRIC_SIZE + q] += quadrics[from * QUADRIC_SIZE + q];
+        }
+        version[to]++;
+        pushCollapses(to, false);
+        return true;
+    }
+
+    private static class Collapse implements Comparable<Collapse> {
+
+        final int from;
+
+        final int to;
+
+        final double error;
+
+        final int fromVersion;
+
+        final int toVersion;
+
+        Collapse(int from, int to, double error, int fromVersion, int toVersion) {
+            this.from = from;
+            this.to = to;
+            this.error = error;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        @Override
+        public int compareTo(Collapse other) {
+            return Double.compare(error, other.error);
+        }
+    }
+
+    public static class Result {
+
+        /**
+         * Indices of all the levels, the finest first
+         */
+        public final int[] indices;
+
+        public final LodChain lods;
+
+        Result(int[] indices, LodChain lods) {
+            this.indices = indices;
+            this.lods = lods;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("triangles:");
+            for (int lod = 0; lod < lods.getNumLods(); lod++) {
+                sb.append(' ').append(lods.getIndexCount(lod) / 3).append(" (").append(lods.getError(lod)).append(')');
+            }
+            return sb.toString();
+        }
+    }
+}
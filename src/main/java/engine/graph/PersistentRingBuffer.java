@@ -0,0 +1,126 @@
+package engine.graph;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL.getCapabilities;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * A buffer object allocated once with immutable storage and kept persistently mapped. It is split in
+ * {@link #NUM_SECTIONS} sections that are written in turn, each one guarded by a fence so the CPU never overwrites
+ * data the GPU is still reading. The fence of a section is inserted once, when the next section is taken, so that
+ * every draw reading it in between is covered by a single sync object.
+ */
+public class PersistentRingBuffer {
+
+    public static final int NUM_SECTIONS = 3;
+
+    private static final long WAIT_TIMEOUT_NS = 1_000_000L;
+
+    private final int target;
+
+    private final int bufferId;
+
+    private final int sectionSize;
+
+    private final long[] fences;
+
+    private ByteBuffer mappedBuffer;
+
+    private int section;
+
+    /**
+     * Whether the current section has been handed out and needs a fence once left
+     */
+    private boolean sectionWritten;
+
+    public PersistentRingBuffer(int target, int sectionSize) {
+        this.target = target;
+        this.sectionSize = sectionSize;
+        fences = new long[NUM_SECTIONS];
+        section = NUM_SECTIONS - 1;
+
+        int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+        long size = (long) sectionSize * NUM_SECTIONS;
+        bufferId = glGenBuffers();
+        glBindBuffer(target, bufferId);
+        glBufferStorage(target, size, flags);
+        mappedBuffer = glMapBufferRange(target, 0, size, flags);
+        glBindBuffer(target, 0);
+    }
+
+    public static boolean isSupported() {
+        GLCapabilities caps = getCapabilities();
+        return caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+    }
+
+    public int getBufferId() {
+        return bufferId;
+    }
+
+    public int getSectionSize() {
+        return sectionSize;
+    }
+
+    /**
+     * Fences the current section, which must no longer be read by commands issued later on, then moves to the next
+     * section, waiting for the GPU to release it if needed.
+     *
+     * @return The whole mapped buffer, writes must start at {@link #getSectionOffset()}
+     */
+    public ByteBuffer nextSection() {
+        if (sectionWritten) {
+            fences[section] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+        section = (section + 1) % NUM_SECTIONS;
+        waitFence(section);
+        sectionWritten = true;
+        return mappedBuffer;
+    }
+
+    public int getSectionOffset() {
+        return section * sectionSize;
+    }
+
+    private void waitFence(int index) {
+        long fence = fences[index];
+        if (fence == 0) {
+            return;
+        }
+        while (true) {
+            int result = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT_NS);
+            if (result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED) {
+                break;
+            }
+            if (result == GL_WAIT_FAILED) {
+                // The GPU may still be reading the section, writing it now would corrupt the frame
+                glDeleteSync(fence);
+                fences[index] = 0;
+                throw new IllegalStateException("Waiting for the fence of ring buffer section " + index + " failed");
+            }
+        }
+        glDeleteSync(fence);
+        fences[index] = 0;
+    }
+
+    public void cleanup() {
+        for (int i = 0; i < NUM_SECTIONS; i++) {
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+        }
+        if (mappedBuffer != null) {
+            glBindBuffer(target, bufferId);
+            glUnmapBuffer(target);
+            glBindBuffer(target, 0);
+            mappedBuffer = null;
+        }
+        glDeleteBuffers(bufferId);
+    }
+}
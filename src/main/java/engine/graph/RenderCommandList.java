@@ -0,0 +1,227 @@
+package engine.graph;
+
+import engine.graph.anim.AnimGameItem;
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draw commands recorded on the simulation side and replayed on the GL thread. Commands are grouped in runs sharing
+ * the same mesh (and so the same material). The per command data is kept in a flat float array with the same layout
+ * as the instance data of an {@link InstancedMesh}: model matrix, texture offsets and selected flag, so instanced runs
+ * can be uploaded as they are.
+ * <p>
+ * Once recorded the list does not reference the game items, the GL thread may replay it while the items are being
+ * updated for the next frame.
+ */
+public class RenderCommandList {
+
+    public static final int COMMAND_SIZE_FLOATS = InstancedMesh.INSTANCE_SIZE_FLOATS;
+
+    /**
+     * Below this number of commands the data is written by the recording thread alone
+     */
+    public static final int PARALLEL_THRESHOLD = 2048;
+
+    private static final int MATRIX_SIZE_FLOATS = 16;
+
+    private Mesh[] meshes;
+
+    private int[] runStart;
+
+    private int numRuns;
+
+    private GameItem[] items;
+
+    private int numCommands;
+
+    private float[] data;
+
+    private int[] lods;
+
+    private Matrix4f[][] jointMatrices;
+
+    public RenderCommandList() {
+        meshes = new Mesh[16];
+        runStart = new int[17];
+        items = new GameItem[256];
+        data = new float[256 * COMMAND_SIZE_FLOATS];
+        lods = new int[256];
+        jointMatrices = new Matrix4f[256][];
+    }
+
+    public void clear() {
+        Arrays.fill(meshes, 0, numRuns, null);
+        Arrays.fill(items, 0, numCommands, null);
+        Arrays.fill(jointMatrices, 0, numCommands, null);
+        numRuns = 0;
+        numCommands = 0;
+        runStart[0] = 0;
+    }
+
+    /**
+     * Adds a run drawing the given items with a mesh. Only the item references are stored here, the command data is
+     * written by {@link #build()}.
+     */
+    public void addRun(Mesh mesh, List<GameItem> gameItems) {
+        int count = gameItems.size();
+        if (count == 0) {
+            return;
+        }
+        ensureRunCapacity(numRuns + 1);
+        ensureCommandCapacity(numCommands + count);
+        for (int i = 0; i < count; i++) {
+            items[numCommands + i] = gameItems.get(i);
+        }
+        meshes[numRuns] = mesh;
+        numCommands += count;
+        numRuns++;
+        runStart[numRuns] = numCommands;
+    }
+
+    private void ensureRunCapacity(int capacity) {
+        if (capacity > meshes.length) {
+            int length = Math.max(capacity, meshes.length * 2);
+            meshes = Arrays.copyOf(meshes, length);
+            runStart = Arrays.copyOf(runStart, length + 1);
+        }
+    }
+
+    private void ensureCommandCapacity(int capacity) {
+        if (capacity > items.length) {
+            int length = Math.max(capacity, items.length * 2);
+            items = Arrays.copyOf(items, length);
+            jointMatrices = Arrays.copyOf(jointMatrices, length);
+            data = Arrays.copyOf(data, length * COMMAND_SIZE_FLOATS);
+            lods = Arrays.copyOf(lods, length);
+        }
+    }
+
+    /**
+     * Writes the data of every command from the current state of its game item, splitting the work between the
+     * fork/join pool threads for large lists. The item references are released afterwards.
+     */
+    public void build() {
+        if (numCommands >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new BuildTask(0, numCommands));
+        } else {
+            build(0, numCommands, new Matrix4f());
+        }
+        Arrays.fill(items, 0, numCommands, null);
+    }
+
+    private void build(int from, int to, Matrix4f modelMatrix) {
+        for (int run = findRun(from); from < to; run++) {
+            Mesh mesh = meshes[run];
+            Texture text = mesh.getMaterial() != null ? mesh.getMaterial().getTexture() : null;
+            int end = Math.min(to, runStart[run + 1]);
+            for (int i = from; i < end; i++) {
+                GameItem gameItem = items[i];
+                Vector3f pos = gameItem.getPosition();
+                Quaternionf rotation = gameItem.getRotation();
+                float scale = gameItem.getScale();
+                modelMatrix.translationRotateScale(pos.x, pos.y, pos.z,
+                                                   rotation.x, rotation.y, rotation.z, rotation.w,
+                                                   scale, scale, scale);
+                int offset = i * COMMAND_SIZE_FLOATS;
+                modelMatrix.get(data, offset);
+                float textXOffset = 0;
+                float textYOffset = 0;
+                if (text != null) {
+                    int col = gameItem.getTextPos() % text.getNumCols();
+                    int row = gameItem.getTextPos() / text.getNumCols();
+                    textXOffset = (float) col / text.getNumCols();
+                    textYOffset = (float) row / text.getNumRows();
+                }
+                data[offset + MATRIX_SIZE_FLOATS] = textXOffset;
+                data[offset + MATRIX_SIZE_FLOATS + 1] = textYOffset;
+                data[offset + MATRIX_SIZE_FLOATS + 2] = gameItem.isSelected() ? 1 : 0;
+                lods[i] = gameItem.getLod();
+                jointMatrices[i] = gameItem instanceof AnimGameItem ?
+                        ((AnimGameItem) gameItem).getCurrentFrame().getJointMatrices() : null;
+            }
+            from = end;
+        }
+    }
+
+    private int findRun(int command) {
+        // Runs are never empty so their starts are strictly increasing
+        int run = Arrays.binarySearch(runStart, 0, numRuns + 1, command);
+        return run >= 0 ? run : -run - 2;
+    }
+
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    public Mesh getMesh(int run) {
+        return meshes[run];
+    }
+
+    public int getRunStart(int run) {
+        return runStart[run];
+    }
+
+    public int getRunEnd(int run) {
+        return runStart[run + 1];
+    }
+
+    public int getNumCommands() {
+        return numCommands;
+    }
+
+    /**
+     * @return the command data, {@link #COMMAND_SIZE_FLOATS} floats per command starting with its model matrix
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the level of detail of the item of every command
+     */
+    public int[] getLods() {
+        return lods;
+    }
+
+    public float getSelected(int command) {
+        return data[command * COMMAND_SIZE_FLOATS + MATRIX_SIZE_FLOATS + 2];
+    }
+
+    /**
+     * @return the joint matrices of the animation frame of the command item, or null if it is not animated
+     */
+    public Matrix4f[] getJointMatrices(int command) {
+        return jointMatrices[command];
+    }
+
+    private class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        BuildTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                build(from, to, new Matrix4f());
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BuildTask(from, mid), new BuildTask(mid, to));
+            }
+        }
+    }
+}
@@ -2,7 +2,6 @@ package engine.graph;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
-import org.joml.Vector4f;
 import engine.Scene;
 import engine.SceneLight;
 import engine.Utils;
@@ -15,12 +14,17 @@ import engine.graph.lights.SpotLight;
 import engine.graph.particles.IParticleEmitter;
 import engine.graph.shadow.ShadowCascade;
 import engine.graph.shadow.ShadowRenderer;
+import engine.graph.weather.Fog;
 import engine.items.GameItem;
 import engine.items.SkyBox;
+import engine.loaders.CompressedTextureCache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE2;
@@ -31,6 +35,16 @@ public class Renderer {
 
     private static final int MAX_SPOT_LIGHTS = 5;
 
+    private static final long TEXTURE_STREAMING_BUDGET_NANOS = 1_000_000;
+
+    private static final String[] SHADOW_MAP_UNIFORMS = new String[ShadowRenderer.NUM_CASCADES];
+
+    static {
+        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
+            SHADOW_MAP_UNIFORMS[i] = "shadowMap_" + i;
+        }
+    }
+
     private final Transformation transformation;
 
     private final ShadowRenderer shadowRenderer;
@@ -41,34 +55,122 @@ public class Renderer {
 
     private ShaderProgram particlesShaderProgram;
 
+    private ShaderProgram indirectShaderProgram;
+
+    private IndirectMeshBatch indirectBatch;
+
+    private boolean streamInstances;
+
+    private final SoaFrustumCuller frustumCuller;
+
+    private final LodSelector lodSelector;
+
+    private boolean selectLods;
+
+    private boolean useFrustumCuller;
+
     private final float specularPower;
 
     private final FrustumCullingFilter frustumFilter;
 
     private final List<GameItem> filteredItems;
 
+    /**
+     * Frames used by the pipelined rendering, one is recorded while the other one is drawn
+     */
+    private final FrameSnapshot[] frames;
+
+    private int recordIndex;
+
+    private final List<GameItem> recordedItems;
+
+    private final Matrix4f commandMatrix;
+
+    /**
+     * View space copies of the scene lights, reused every frame
+     */
+    private PointLight[] viewPointLights;
+
+    private SpotLight[] viewSpotLights;
+
+    private final DirectionalLight viewDirectionalLight;
+
+    private int numViewPointLights;
+
+    private int numViewSpotLights;
+
+    /**
+     * Per item uniform setters, kept in fields so no lambda is created while rendering
+     */
+    private final Consumer<GameItem> itemUniformsSetter = this::setItemUniforms;
+
+    private final IntConsumer commandUniformsSetter = this::setCommandUniforms;
+
+    private RenderCommandList replayedCommands;
+
     public Renderer() {
         transformation = new Transformation();
         specularPower = 10f;
         shadowRenderer = new ShadowRenderer();
         frustumFilter = new FrustumCullingFilter();
         filteredItems = new ArrayList<>();
+        frustumCuller = new SoaFrustumCuller();
+        lodSelector = new LodSelector();
+        frames = new FrameSnapshot[]{new FrameSnapshot(), new FrameSnapshot()};
+        recordedItems = new ArrayList<>();
+        commandMatrix = new Matrix4f();
+        viewPointLights = new PointLight[MAX_POINT_LIGHTS];
+        viewSpotLights = new SpotLight[MAX_SPOT_LIGHTS];
+        viewDirectionalLight = new DirectionalLight(new Vector3f(), new Vector3f(), 0);
     }
 
     public void init(Window window) throws Exception {
         shadowRenderer.init(window);
         setupSkyBoxShader();
         setupSceneShader();
+        if (window.getOptions().multiDrawIndirect && IndirectMeshBatch.isSupported()) {
+            setupIndirectShader();
+            indirectBatch = new IndirectMeshBatch();
+        }
+        streamInstances = window.getOptions().streamInstanceData && InstancedMesh.isStreamingSupported();
+        CompressedTextureCache.getInstance().setEnabled(window.getOptions().compressedTextures
+                                                        && Texture.isCompressionSupported());
+        // Only compressed textures come with levels to stream
+        TextureStreamer.getInstance().setEnabled(window.getOptions().textureStreaming
+                                                 && CompressedTextureCache.getInstance().isEnabled());
+        GeometryRegistry.getInstance().setEnabled(window.getOptions().sharedGeometry);
+        VertexLayout.setCompactEnabled(window.getOptions().compactVertices);
+        MeshOptimizer.setEnabled(window.getOptions().optimizeMeshes);
+        MeshSimplifier.setEnabled(window.getOptions().levelsOfDetail);
+        selectLods = window.getOptions().levelsOfDetail;
 //        setupParticlesShader();
     }
 
     public void render(Window window, Camera camera, Scene scene, boolean sceneChanged) {
         clear();
 
-        if (window.getOptions().frustumCulling) {
+        Window.WindowOptions opts = window.getOptions();
+        useFrustumCuller = opts.frustumCulling && opts.soaFrustumCulling;
+        if (opts.frustumCulling) {
             frustumFilter.updateFrustum(window.getProjectionMatrix(), camera.getViewMatrix());
-            frustumFilter.filter(scene.getGameMeshes());
-            frustumFilter.filter(scene.getGameInstancedMeshes());
+            if (useFrustumCuller) {
+                frustumCuller.update(scene);
+                frustumCuller.cull(frustumFilter.getProjViewMatrix());
+            } else {
+                frustumFilter.filter(scene.getSpatialIndex());
+            }
+        }
+        scene.clearMovedItems();
+
+        if (streamInstances) {
+            updateStreamedInstances(scene);
+        }
+        if (selectLods) {
+            lodSelector.update(scene, camera.getPosition(), window.getHeight());
+        }
+        if (TextureStreamer.getInstance().isEnabled()) {
+            TextureStreamer.getInstance().update(scene, camera.getPosition(), window.getHeight());
+            TextureStreamer.getInstance().upload(TEXTURE_STREAMING_BUDGET_NANOS);
         }
 
         // Render depth map before view ports has been set up
@@ -82,11 +184,168 @@ public class Renderer {
         window.updateProjectionMatrix();
 
         renderScene(window, camera, scene);
-        renderSkyBox(window, camera, scene);
+        renderSkyBox(window.getProjectionMatrix(), camera.getViewMatrix(), scene.getSkyBox(), scene.getSceneLight());
 //        renderParticles(window, camera, scene);
 
         //renderAxes(camera);
         renderCrossHair(window);
+        // Every cached view of the mesh maps has caught up with the changes of this frame
+        scene.clearChanges();
+    }
+
+    /**
+     * Culls the scene and records the draw commands of the visible items, together with the camera and lights, in the
+     * frame that will be drawn by the next {@link #renderFrame(Window)} following a {@link #swapFrames()}. Meant to
+     * run on the simulation thread: no GL call is made here, and the GL thread may be drawing the other frame.
+     */
+    public void recordFrame(Window window, Camera camera, Scene scene, boolean sceneChanged) {
+        FrameSnapshot frame = frames[recordIndex];
+        frame.capture(window, camera, scene, sceneChanged);
+
+        Window.WindowOptions opts = window.getOptions();
+        useFrustumCuller = opts.frustumCulling && opts.soaFrustumCulling;
+        if (opts.frustumCulling) {
+            frustumFilter.updateFrustum(frame.getProjectionMatrix(), frame.getViewMatrix());
+            if (useFrustumCuller) {
+                frustumCuller.update(scene);
+                frustumCuller.cull(frustumFilter.getProjViewMatrix());
+            } else {
+                frustumFilter.filter(scene.getSpatialIndex());
+            }
+        }
+        scene.clearMovedItems();
+        scene.clearChanges();
+        if (selectLods) {
+            lodSelector.update(scene, camera.getPosition(), window.getHeight());
+        }
+        if (TextureStreamer.getInstance().isEnabled()) {
+            TextureStreamer.getInstance().update(scene, camera.getPosition(), window.getHeight());
+        }
+
+        recordCommands(frame.getMeshCommands(), scene.getGameMeshes());
+        recordCommands(frame.getInstancedMeshCommands(), scene.getGameInstancedMeshes());
+        frame.setReady(true);
+    }
+
+    private void recordCommands(RenderCommandList commands, Map<? extends Mesh, List<GameItem>> mapMeshes) {
+        for (Map.Entry<? extends Mesh, List<GameItem>> entry : mapMeshes.entrySet()) {
+            getVisibleItems(entry.getKey(), entry.getValue(), recordedItems);
+            commands.addRun(entry.getKey(), recordedItems);
+        }
+        recordedItems.clear();
+        commands.build();
+    }
+
+    /**
+     * Makes the last recorded frame the one to be drawn. Must be called while no frame is being recorded.
+     */
+    public void swapFrames() {
+        recordIndex = 1 - recordIndex;
+    }
+
+    /**
+     * Draws the frame recorded before the last {@link #swapFrames()}, only reading the snapshot and never the scene.
+     * The multi draw indirect batch is not used here, every mesh goes through the recorded commands.
+     */
+    public void renderFrame(Window window) {
+        clear();
+
+        FrameSnapshot frame = frames[1 - recordIndex];
+        if (!frame.isReady()) {
+            return;
+        }
+        if (TextureStreamer.getInstance().isEnabled()) {
+            TextureStreamer.getInstance().upload(TEXTURE_STREAMING_BUDGET_NANOS);
+        }
+
+        if (streamInstances) {
+            RenderCommandList commands = frame.getInstancedMeshCommands();
+            for (int run = 0; run < commands.getNumRuns(); run++) {
+                InstancedMesh mesh = (InstancedMesh) commands.getMesh(run);
+                mesh.updateStreamedInstances(commands.getData(), commands.getRunStart(run), commands.getRunEnd(run));
+            }
+        }
+
+        if (frame.isRenderShadows() && frame.isSceneChanged()) {
+            shadowRenderer.render(window, frame);
+        }
+
+        glViewport(0, 0, window.getWidth(), window.getHeight());
+
+        sceneShaderProgram.bind();
+        setSceneUniforms(sceneShaderProgram, frame.getProjectionMatrix(), frame.getViewMatrix(),
+                         frame.getSceneLight(), frame.getFog(), frame.isRenderShadows());
+
+        renderMeshCommands(frame.getMeshCommands());
+
+        renderInstancedMeshCommands(frame.getInstancedMeshCommands());
+
+        sceneShaderProgram.unbind();
+
+        renderSkyBox(frame.getProjectionMatrix(), frame.getViewMatrix(), frame.getSkyBox(), frame.getSceneLight());
+
+        renderCrossHair(window);
+    }
+
+    private void renderMeshCommands(RenderCommandList commands) {
+        sceneShaderProgram.setUniform("isInstanced", 0);
+
+        replayedCommands = commands;
+        for (int run = 0; run < commands.getNumRuns(); run++) {
+            Mesh mesh = commands.getMesh(run);
+            sceneShaderProgram.setUniform("material", mesh.getMaterial());
+
+            Texture text = mesh.getMaterial().getTexture();
+            if (text != null) {
+                sceneShaderProgram.setUniform("numCols", text.getNumCols());
+                sceneShaderProgram.setUniform("numRows", text.getNumRows());
+            }
+
+            shadowRenderer.bindTextures(GL_TEXTURE2);
+
+            int start = commands.getRunStart(run);
+            int end = commands.getRunEnd(run);
+            if (mesh.isDrawnInstanced(end - start)) {
+                sceneShaderProgram.setUniform("isInstanced", 1);
+                mesh.renderInstanced(commands.getData(), commands.getLods(), start, end);
+                sceneShaderProgram.setUniform("isInstanced", 0);
+            } else {
+                mesh.renderCommands(start, end, commands.getLods(), commandUniformsSetter);
+            }
+        }
+        replayedCommands = null;
+    }
+
+    private void setCommandUniforms(int command) {
+        sceneShaderProgram.setUniform("selectedNonInstanced", replayedCommands.getSelected(command));
+        commandMatrix.set(replayedCommands.getData(), command * RenderCommandList.COMMAND_SIZE_FLOATS);
+        sceneShaderProgram.setUniform("modelNonInstancedMatrix", commandMatrix);
+        Matrix4f[] jointMatrices = replayedCommands.getJointMatrices(command);
+        if (jointMatrices != null) {
+            sceneShaderProgram.setUniform("jointsMatrix", jointMatrices);
+        }
+    }
+
+    private void renderInstancedMeshCommands(RenderCommandList commands) {
+        sceneShaderProgram.setUniform("isInstanced", 1);
+
+        for (int run = 0; run < commands.getNumRuns(); run++) {
+            InstancedMesh mesh = (InstancedMesh) commands.getMesh(run);
+            Texture text = mesh.getMaterial().getTexture();
+            if (text != null) {
+                sceneShaderProgram.setUniform("numCols", text.getNumCols());
+                sceneShaderProgram.setUniform("numRows", text.getNumRows());
+            }
+
+            sceneShaderProgram.setUniform("material", mesh.getMaterial());
+            shadowRenderer.bindTextures(GL_TEXTURE2);
+
+            if (mesh.isStreaming()) {
+                mesh.renderStreamedInstances();
+            } else {
+                mesh.renderCommandsInstanced(commands.getData(), commands.getRunStart(run), commands.getRunEnd(run));
+            }
+        }
     }
 
     private void setupParticlesShader() throws Exception {
@@ -125,41 +384,55 @@ public class Renderer {
         sceneShaderProgram.createFragmentShader(Utils.loadResource("/shaders/scene.fs"));
         sceneShaderProgram.link();
 
-        // Create uniforms for view and projection matrices
-        sceneShaderProgram.createUniform("viewMatrix");
-        sceneShaderProgram.createUniform("projectionMatrix");
-        sceneShaderProgram.createUniform("texture_sampler");
-        sceneShaderProgram.createUniform("normalMap");
+        createSceneUniforms(sceneShaderProgram);
         // Create uniform for material
         sceneShaderProgram.createMaterialUniform("material");
-        // Create lighting related uniforms
-        sceneShaderProgram.createUniform("specularPower");
-        sceneShaderProgram.createUniform("ambientLight");
-        sceneShaderProgram.createPointLightListUniform("pointLights", MAX_POINT_LIGHTS);
-        sceneShaderProgram.createSpotLightListUniform("spotLights", MAX_SPOT_LIGHTS);
-        sceneShaderProgram.createDirectionalLightUniform("directionalLight");
-        sceneShaderProgram.createFogUniform("fog");
-
-        // Create uniforms for shadow mapping
-        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            sceneShaderProgram.createUniform("shadowMap_" + i);
-        }
-        sceneShaderProgram.createUniform("orthoProjectionMatrix", ShadowRenderer.NUM_CASCADES);
         sceneShaderProgram.createUniform("modelNonInstancedMatrix");
-        sceneShaderProgram.createUniform("lightViewMatrix", ShadowRenderer.NUM_CASCADES);
-        sceneShaderProgram.createUniform("cascadeFarPlanes", ShadowRenderer.NUM_CASCADES);
-        sceneShaderProgram.createUniform("renderShadow");
 
         // Create uniform for joint matrices
         sceneShaderProgram.createUniform("jointsMatrix");
 
         sceneShaderProgram.createUniform("isInstanced");
-        sceneShaderProgram.createUniform("numCols");
-        sceneShaderProgram.createUniform("numRows");
-
         sceneShaderProgram.createUniform("selectedNonInstanced");
     }
 
+    private void setupIndirectShader() throws Exception {
+        // Model matrices and materials come from storage buffers, only the per frame uniforms are needed
+        indirectShaderProgram = new ShaderProgram();
+        indirectShaderProgram.createVertexShader(Utils.loadResource("/shaders/scene_indirect.vs"));
+        indirectShaderProgram.createFragmentShader(Utils.loadResource("/shaders/scene_indirect.fs"));
+        indirectShaderProgram.link();
+
+        createSceneUniforms(indirectShaderProgram);
+    }
+
+    private void createSceneUniforms(ShaderProgram shaderProgram) throws Exception {
+        // Create uniforms for view and projection matrices
+        shaderProgram.createUniform("viewMatrix");
+        shaderProgram.createUniform("projectionMatrix");
+        shaderProgram.createUniform("texture_sampler");
+        shaderProgram.createUniform("normalMap");
+        // Create lighting related uniforms
+        shaderProgram.createUniform("specularPower");
+        shaderProgram.createUniform("ambientLight");
+        shaderProgram.createPointLightListUniform("pointLights", MAX_POINT_LIGHTS);
+        shaderProgram.createSpotLightListUniform("spotLights", MAX_SPOT_LIGHTS);
+        shaderProgram.createDirectionalLightUniform("directionalLight");
+        shaderProgram.createFogUniform("fog");
+
+        // Create uniforms for shadow mapping
+        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
+            shaderProgram.createUniform(SHADOW_MAP_UNIFORMS[i]);
+        }
+        shaderProgram.createUniform("orthoProjectionMatrix", ShadowRenderer.NUM_CASCADES);
+        shaderProgram.createUniform("lightViewMatrix", ShadowRenderer.NUM_CASCADES);
+        shaderProgram.createUniform("cascadeFarPlanes", ShadowRenderer.NUM_CASCADES);
+        shaderProgram.createUniform("renderShadow");
+
+        shaderProgram.createUniform("numCols");
+        shaderProgram.createUniform("numRows");
+    }
+
     public void clear() {
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
     }
@@ -196,16 +469,13 @@ public class Renderer {
         particlesShaderProgram.unbind();
     }
 
-    private void renderSkyBox(Window window, Camera camera, Scene scene) {
-        SkyBox skyBox = scene.getSkyBox();
+    private void renderSkyBox(Matrix4f projectionMatrix, Matrix4f viewMatrix, SkyBox skyBox, SceneLight sceneLight) {
         if (skyBox != null) {
             skyBoxShaderProgram.bind();
 
             skyBoxShaderProgram.setUniform("texture_sampler", 0);
 
-            Matrix4f projectionMatrix = window.getProjectionMatrix();
             skyBoxShaderProgram.setUniform("projectionMatrix", projectionMatrix);
-            Matrix4f viewMatrix = camera.getViewMatrix();
             float m30 = viewMatrix.m30();
             viewMatrix.m30(0);
             float m31 = viewMatrix.m31();
@@ -216,7 +486,7 @@ public class Renderer {
             Mesh mesh = skyBox.getMesh();
             Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(skyBox, viewMatrix);
             skyBoxShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
-            skyBoxShaderProgram.setUniform("ambientLight", scene.getSceneLight().getSkyBoxLight());
+            skyBoxShaderProgram.setUniform("ambientLight", sceneLight.getSkyBoxLight());
             skyBoxShaderProgram.setUniform("colour", mesh.getMaterial().getAmbientColour());
             skyBoxShaderProgram.setUniform("hasTexture", mesh.getMaterial().isTextured() ? 1 : 0);
 
@@ -230,38 +500,84 @@ public class Renderer {
     }
 
     public void renderScene(Window window, Camera camera, Scene scene) {
+        Matrix4f viewMatrix = camera.getViewMatrix();
+
+        if (indirectBatch != null) {
+            indirectShaderProgram.bind();
+            setSceneUniforms(indirectShaderProgram, window.getProjectionMatrix(), viewMatrix, scene.getSceneLight(),
+                             scene.getFog(), scene.isRenderShadows());
+            renderIndirectMeshes(scene);
+            indirectShaderProgram.unbind();
+        }
+
         sceneShaderProgram.bind();
+        setSceneUniforms(sceneShaderProgram, window.getProjectionMatrix(), viewMatrix, scene.getSceneLight(),
+                         scene.getFog(), scene.isRenderShadows());
 
-        Matrix4f viewMatrix = camera.getViewMatrix();
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
-        sceneShaderProgram.setUniform("viewMatrix", viewMatrix);
-        sceneShaderProgram.setUniform("projectionMatrix", projectionMatrix);
+        renderNonInstancedMeshes(scene);
+
+        renderInstancedMeshes(scene, viewMatrix);
+
+        sceneShaderProgram.unbind();
+    }
+
+    private void setSceneUniforms(ShaderProgram shaderProgram, Matrix4f projectionMatrix, Matrix4f viewMatrix,
+                                  SceneLight sceneLight, Fog fog, boolean renderShadows) {
+        shaderProgram.setUniform("viewMatrix", viewMatrix);
+        shaderProgram.setUniform("projectionMatrix", projectionMatrix);
 
         List<ShadowCascade> shadowCascades = shadowRenderer.getShadowCascades();
         for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
             ShadowCascade shadowCascade = shadowCascades.get(i);
-            sceneShaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix(), i);
-            sceneShaderProgram.setUniform("cascadeFarPlanes", ShadowRenderer.CASCADE_SPLITS[i], i);
-            sceneShaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix(), i);
+            shaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix(), i);
+            shaderProgram.setUniform("cascadeFarPlanes", ShadowRenderer.CASCADE_SPLITS[i], i);
+            shaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix(), i);
         }
 
-        SceneLight sceneLight = scene.getSceneLight();
-        renderLights(viewMatrix, sceneLight);
+        renderLights(shaderProgram, viewMatrix, sceneLight);
 
-        sceneShaderProgram.setUniform("fog", scene.getFog());
-        sceneShaderProgram.setUniform("texture_sampler", 0);
-        sceneShaderProgram.setUniform("normalMap", 1);
+        shaderProgram.setUniform("fog", fog);
+        shaderProgram.setUniform("texture_sampler", 0);
+        shaderProgram.setUniform("normalMap", 1);
         int start = 2;
         for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            sceneShaderProgram.setUniform("shadowMap_" + i, start + i);
+            shaderProgram.setUniform(SHADOW_MAP_UNIFORMS[i], start + i);
         }
-        sceneShaderProgram.setUniform("renderShadow", scene.isRenderShadows() ? 1 : 0);
+        shaderProgram.setUniform("renderShadow", renderShadows ? 1 : 0);
+    }
 
-        renderNonInstancedMeshes(scene);
+    private void renderIndirectMeshes(Scene scene) {
+        indirectBatch.update(scene);
+        shadowRenderer.bindTextures(GL_TEXTURE2);
+        indirectBatch.render(transformation, indirectShaderProgram, getFrustumCuller());
+    }
 
-        renderInstancedMeshes(scene, viewMatrix);
+    /**
+     * @return the structure of arrays culler holding the visible items of this frame, or null if items are culled
+     * through their inside frustum flag
+     */
+    public SoaFrustumCuller getFrustumCuller() {
+        return useFrustumCuller ? frustumCuller : null;
+    }
 
-        sceneShaderProgram.unbind();
+    public LodSelector getLodSelector() {
+        return lodSelector;
+    }
+
+    /**
+     * Collects the game items of a mesh which are inside the frustum
+     */
+    public void getVisibleItems(Mesh mesh, List<GameItem> gameItems, List<GameItem> result) {
+        if (useFrustumCuller) {
+            frustumCuller.getVisibleItems(mesh, result);
+            return;
+        }
+        result.clear();
+        for (GameItem gameItem : gameItems) {
+            if (gameItem.isInsideFrustum()) {
+                result.add(gameItem);
+            }
+        }
     }
 
     private void renderNonInstancedMeshes(Scene scene) {
@@ -270,6 +586,9 @@ public class Renderer {
         // Render each mesh with the associated game Items
         Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
         for (Mesh mesh : mapMeshes.keySet()) {
+            if (indirectBatch != null && indirectBatch.contains(mesh)) {
+                continue;
+            }
             sceneShaderProgram.setUniform("material", mesh.getMaterial());
 
             Texture text = mesh.getMaterial().getTexture();
@@ -280,17 +599,36 @@ public class Renderer {
 
             shadowRenderer.bindTextures(GL_TEXTURE2);
 
-            mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
-                sceneShaderProgram.setUniform("selectedNonInstanced", gameItem.isSelected() ? 1.0f : 0.0f);
-                Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-                sceneShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
-                if (gameItem instanceof AnimGameItem) {
-                    AnimGameItem animGameItem = (AnimGameItem) gameItem;
-                    AnimatedFrame frame = animGameItem.getCurrentFrame();
-                    sceneShaderProgram.setUniform("jointsMatrix", frame.getJointMatrices());
+            // Items sharing a prototype mesh, as the buildings do, are drawn with one instanced draw per level
+            List<GameItem> gameItems = mapMeshes.get(mesh);
+            if (mesh.isDrawnInstanced(gameItems.size())) {
+                sceneShaderProgram.setUniform("isInstanced", 1);
+                if (useFrustumCuller) {
+                    mesh.renderInstanced(frustumCuller.getItems(), frustumCuller.getVisibleIndices(),
+                                         frustumCuller.getVisibleStart(mesh), frustumCuller.getVisibleEnd(mesh),
+                                         transformation);
+                } else {
+                    mesh.renderInstanced(gameItems, transformation);
                 }
+                sceneShaderProgram.setUniform("isInstanced", 0);
+            } else if (useFrustumCuller) {
+                mesh.renderList(frustumCuller.getItems(), frustumCuller.getVisibleIndices(),
+                                frustumCuller.getVisibleStart(mesh), frustumCuller.getVisibleEnd(mesh),
+                                itemUniformsSetter);
+            } else {
+                mesh.renderList(gameItems, itemUniformsSetter);
             }
-            );
+        }
+    }
+
+    private void setItemUniforms(GameItem gameItem) {
+        sceneShaderProgram.setUniform("selectedNonInstanced", gameItem.isSelected() ? 1.0f : 0.0f);
+        Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+        sceneShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
+        if (gameItem instanceof AnimGameItem) {
+            AnimGameItem animGameItem = (AnimGameItem) gameItem;
+            AnimatedFrame frame = animGameItem.getCurrentFrame();
+            sceneShaderProgram.setUniform("jointsMatrix", frame.getJointMatrices());
         }
     }
 
@@ -308,64 +646,89 @@ public class Renderer {
 
             sceneShaderProgram.setUniform("material", mesh.getMaterial());
 
-            filteredItems.clear();
-            for (GameItem gameItem : mapMeshes.get(mesh)) {
-                if (gameItem.isInsideFrustum()) {
-                    filteredItems.add(gameItem);
-                }
+            if (mesh.isStreaming()) {
+                shadowRenderer.bindTextures(GL_TEXTURE2);
+                mesh.renderStreamedInstances();
+                continue;
             }
+
+            getVisibleItems(mesh, mapMeshes.get(mesh), filteredItems);
             shadowRenderer.bindTextures(GL_TEXTURE2);
 
             mesh.renderListInstanced(filteredItems, transformation, viewMatrix);
         }
     }
 
-    private void renderLights(Matrix4f viewMatrix, SceneLight sceneLight) {
+    /**
+     * Writes the instance data of the visible items once per frame, shared by the shadow and scene passes.
+     */
+    private void updateStreamedInstances(Scene scene) {
+        Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
+        for (Map.Entry<InstancedMesh, List<GameItem>> entry : mapMeshes.entrySet()) {
+            getVisibleItems(entry.getKey(), entry.getValue(), filteredItems);
+            entry.getKey().updateStreamedInstances(filteredItems, transformation);
+        }
+    }
+
+    private void renderLights(ShaderProgram shaderProgram, Matrix4f viewMatrix, SceneLight sceneLight) {
 
-        sceneShaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
-        sceneShaderProgram.setUniform("specularPower", specularPower);
+        shaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
+        shaderProgram.setUniform("specularPower", specularPower);
 
+        updateViewLights(viewMatrix, sceneLight);
+        for (int i = 0; i < numViewPointLights; i++) {
+            shaderProgram.setUniform("pointLights", viewPointLights[i], i);
+        }
+        for (int i = 0; i < numViewSpotLights; i++) {
+            shaderProgram.setUniform("spotLights", viewSpotLights[i], i);
+        }
+        shaderProgram.setUniform("directionalLight", viewDirectionalLight);
+    }
+
+    /**
+     * Copies the scene lights into the view space cache and transforms them to view coordinates, without any GL call
+     */
+    void updateViewLights(Matrix4f viewMatrix, SceneLight sceneLight) {
         // Process Point Lights
         PointLight[] pointLightList = sceneLight.getPointLightList();
         int numLights = pointLightList != null ? pointLightList.length : 0;
+        if (numLights > viewPointLights.length) {
+            viewPointLights = Arrays.copyOf(viewPointLights, numLights);
+        }
         for (int i = 0; i < numLights; i++) {
-            // Get a copy of the point light object and transform its position to view coordinates
-            PointLight currPointLight = new PointLight(pointLightList[i]);
-            Vector3f lightPos = currPointLight.getPosition();
-            Vector4f aux = new Vector4f(lightPos, 1);
-            aux.mul(viewMatrix);
-            lightPos.x = aux.x;
-            lightPos.y = aux.y;
-            lightPos.z = aux.z;
-            sceneShaderProgram.setUniform("pointLights", currPointLight, i);
+            // Copy the point light into the view space cache and transform its position to view coordinates
+            PointLight currPointLight = viewPointLights[i];
+            if (currPointLight == null) {
+                currPointLight = viewPointLights[i] = new PointLight(pointLightList[i]);
+            } else {
+                currPointLight.set(pointLightList[i]);
+            }
+            currPointLight.getPosition().mulPosition(viewMatrix);
         }
+        numViewPointLights = numLights;
 
         // Process Spot Ligths
         SpotLight[] spotLightList = sceneLight.getSpotLightList();
         numLights = spotLightList != null ? spotLightList.length : 0;
+        if (numLights > viewSpotLights.length) {
+            viewSpotLights = Arrays.copyOf(viewSpotLights, numLights);
+        }
         for (int i = 0; i < numLights; i++) {
-            // Get a copy of the spot light object and transform its position and cone direction to view coordinates
-            SpotLight currSpotLight = new SpotLight(spotLightList[i]);
-            Vector4f dir = new Vector4f(currSpotLight.getConeDirection(), 0);
-            dir.mul(viewMatrix);
-            currSpotLight.setConeDirection(new Vector3f(dir.x, dir.y, dir.z));
-
-            Vector3f lightPos = currSpotLight.getPointLight().getPosition();
-            Vector4f aux = new Vector4f(lightPos, 1);
-            aux.mul(viewMatrix);
-            lightPos.x = aux.x;
-            lightPos.y = aux.y;
-            lightPos.z = aux.z;
-
-            sceneShaderProgram.setUniform("spotLights", currSpotLight, i);
+            // Copy the spot light into the view space cache and transform its position and cone direction to view
+            // coordinates
+            SpotLight currSpotLight = viewSpotLights[i];
+            if (currSpotLight == null) {
+                currSpotLight = viewSpotLights[i] = new SpotLight(spotLightList[i]);
+            } else {
+                currSpotLight.set(spotLightList[i]);
+            }
+            currSpotLight.getConeDirection().mulDirection(viewMatrix);
+            currSpotLight.getPointLight().getPosition().mulPosition(viewMatrix);
         }
+        numViewSpotLights = numLights;
 
-        // Get a copy of the directional light object and transform its position to view coordinates
-        DirectionalLight currDirLight = new DirectionalLight(sceneLight.getDirectionalLight());
-        Vector4f dir = new Vector4f(currDirLight.getDirection(), 0);
-        dir.mul(viewMatrix);
-        currDirLight.setDirection(new Vector3f(dir.x, dir.y, dir.z));
-        sceneShaderProgram.setUniform("directionalLight", currDirLight);
+        // Copy the directional light into the view space cache and transform its direction to view coordinates
+        viewDirectionalLight.set(sceneLight.getDirectionalLight()).getDirection().mulDirection(viewMatrix);
     }
 
     private void renderCrossHair(Window window) {
@@ -445,5 +808,11 @@ public class Renderer {
         if (particlesShaderProgram != null) {
             particlesShaderProgram.cleanup();
         }
+        if (indirectShaderProgram != null) {
+            indirectShaderProgram.cleanup();
+        }
+        if (indirectBatch != null) {
+            indirectBatch.cleanup();
+        }
     }
 }
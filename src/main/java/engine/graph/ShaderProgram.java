@@ -17,6 +17,20 @@ import static org.lwjgl.opengl.GL20.*;
 
 public class ShaderProgram {
 
+    private static final String[] POINT_LIGHT_MEMBERS = {
+            ".colour", ".position", ".intensity", ".att.constant", ".att.linear", ".att.exponent"};
+
+    private static final String[] SPOT_LIGHT_MEMBERS = {
+            ".pl.colour", ".pl.position", ".pl.intensity", ".pl.att.constant", ".pl.att.linear", ".pl.att.exponent",
+            ".conedir", ".cutoff"};
+
+    private static final String[] DIRECTIONAL_LIGHT_MEMBERS = {".colour", ".direction", ".intensity"};
+
+    private static final String[] MATERIAL_MEMBERS = {
+            ".ambient", ".diffuse", ".specular", ".hasTexture", ".hasNormalMap", ".reflectance"};
+
+    private static final String[] FOG_MEMBERS = {".activeFog", ".colour", ".density"};
+
     private final int programId;
 
     private int vertexShaderId;
@@ -27,12 +41,19 @@ public class ShaderProgram {
 
     private final Map<String, Integer> uniforms;
 
+    /**
+     * Locations of the elements of array uniforms and of the members of struct uniforms, so they are set every frame
+     * without building their names
+     */
+    private final Map<String, int[]> uniformLocations;
+
     public ShaderProgram() throws Exception {
         programId = glCreateProgram();
         if (programId == 0) {
             throw new Exception("Could not create Shader");
         }
         uniforms = new HashMap<>();
+        uniformLocations = new HashMap<>();
     }
 
     public void createUniform(String uniformName) throws Exception {
@@ -44,72 +65,74 @@ public class ShaderProgram {
     }
 
     public void createUniform(String uniformName, int size) throws Exception {
-        for (int i=0; i<size; i++) {
-            createUniform(uniformName + "[" + i + "]");
-        }
+        createArrayUniform(uniformName, size, new String[]{""});
     }
 
     public void createPointLightListUniform(String uniformName, int size) throws Exception {
-        for (int i = 0; i < size; i++) {
-            createPointLightUniform(uniformName + "[" + i + "]");
-        }
+        createArrayUniform(uniformName, size, POINT_LIGHT_MEMBERS);
     }
 
     public void createPointLightUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".position");
-        createUniform(uniformName + ".intensity");
-        createUniform(uniformName + ".att.constant");
-        createUniform(uniformName + ".att.linear");
-        createUniform(uniformName + ".att.exponent");
+        createStructUniform(uniformName, POINT_LIGHT_MEMBERS);
     }
 
     public void createSpotLightListUniform(String uniformName, int size) throws Exception {
-        for (int i = 0; i < size; i++) {
-            createSpotLightUniform(uniformName + "[" + i + "]");
-        }
+        createArrayUniform(uniformName, size, SPOT_LIGHT_MEMBERS);
     }
 
     public void createSpotLightUniform(String uniformName) throws Exception {
-        createPointLightUniform(uniformName + ".pl");
-        createUniform(uniformName + ".conedir");
-        createUniform(uniformName + ".cutoff");
+        createStructUniform(uniformName, SPOT_LIGHT_MEMBERS);
     }
 
     public void createDirectionalLightUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".direction");
-        createUniform(uniformName + ".intensity");
+        createStructUniform(uniformName, DIRECTIONAL_LIGHT_MEMBERS);
     }
 
     public void createMaterialUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".ambient");
-        createUniform(uniformName + ".diffuse");
-        createUniform(uniformName + ".specular");
-        createUniform(uniformName + ".hasTexture");
-        createUniform(uniformName + ".hasNormalMap");
-        createUniform(uniformName + ".reflectance");
+        createStructUniform(uniformName, MATERIAL_MEMBERS);
     }
 
     public void createFogUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".activeFog");
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".density");
+        createStructUniform(uniformName, FOG_MEMBERS);
+    }
+
+    private int[] createStructUniform(String uniformName, String[] members) throws Exception {
+        int[] locations = new int[members.length];
+        for (int i = 0; i < members.length; i++) {
+            String memberName = uniformName + members[i];
+            createUniform(memberName);
+            locations[i] = uniforms.get(memberName);
+        }
+        uniformLocations.put(uniformName, locations);
+        return locations;
+    }
+
+    private void createArrayUniform(String uniformName, int size, String[] members) throws Exception {
+        int[] locations = new int[size * members.length];
+        for (int i = 0; i < size; i++) {
+            int[] elementLocations = createStructUniform(uniformName + "[" + i + "]", members);
+            System.arraycopy(elementLocations, 0, locations, i * members.length, members.length);
+        }
+        uniformLocations.put(uniformName, locations);
     }
 
     public void setUniform(String uniformName, Matrix4f value) {
+        setUniformMatrix(uniforms.get(uniformName), value);
+    }
+
+    public void setUniform(String uniformName, Matrix4f value, int index) {
+        setUniformMatrix(uniformLocations.get(uniformName)[index], value);
+    }
+
+    private static void setUniformMatrix(int location, Matrix4f value) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             // Dump the matrix into a float buffer
             FloatBuffer fb = stack.mallocFloat(16);
             value.get(fb);
-            glUniformMatrix4fv(uniforms.get(uniformName), false, fb);
+            glUniformMatrix4fv(location, false, fb);
         }
     }
 
-    public void setUniform(String uniformName, Matrix4f value, int index) {
-        setUniform(uniformName + "[" + index  + "]", value);
-    }
-
     public void setUniform(String uniformName, Matrix4f[] matrices) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             int length = matrices != null ? matrices.length : 0;
@@ -130,7 +153,7 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, float value, int index) {
-        setUniform(uniformName + "[" + index  + "]", value);
+        glUniform1f(uniformLocations.get(uniformName)[index], value);
     }
 
     public void setUniform(String uniformName, Vector3f value) {
@@ -149,17 +172,25 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, PointLight pointLight, int pos) {
-        setUniform(uniformName + "[" + pos + "]", pointLight);
+        setPointLight(uniformLocations.get(uniformName), pos * POINT_LIGHT_MEMBERS.length, pointLight);
     }
 
     public void setUniform(String uniformName, PointLight pointLight) {
-        setUniform(uniformName + ".colour", pointLight.getColor());
-        setUniform(uniformName + ".position", pointLight.getPosition());
-        setUniform(uniformName + ".intensity", pointLight.getIntensity());
+        setPointLight(uniformLocations.get(uniformName), 0, pointLight);
+    }
+
+    private static void setPointLight(int[] locations, int start, PointLight pointLight) {
+        setUniform(locations[start], pointLight.getColor());
+        setUniform(locations[start + 1], pointLight.getPosition());
+        glUniform1f(locations[start + 2], pointLight.getIntensity());
         PointLight.Attenuation att = pointLight.getAttenuation();
-        setUniform(uniformName + ".att.constant", att.getConstant());
-        setUniform(uniformName + ".att.linear", att.getLinear());
-        setUniform(uniformName + ".att.exponent", att.getExponent());
+        glUniform1f(locations[start + 3], att.getConstant());
+        glUniform1f(locations[start + 4], att.getLinear());
+        glUniform1f(locations[start + 5], att.getExponent());
+    }
+
+    private static void setUniform(int location, Vector3f value) {
+        glUniform3f(location, value.x, value.y, value.z);
     }
 
     public void setUniform(String uniformName, SpotLight[] spotLights) {
@@ -170,34 +201,44 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, SpotLight spotLight, int pos) {
-        setUniform(uniformName + "[" + pos + "]", spotLight);
+        setSpotLight(uniformLocations.get(uniformName), pos * SPOT_LIGHT_MEMBERS.length, spotLight);
     }
 
     public void setUniform(String uniformName, SpotLight spotLight) {
-        setUniform(uniformName + ".pl", spotLight.getPointLight());
-        setUniform(uniformName + ".conedir", spotLight.getConeDirection());
-        setUniform(uniformName + ".cutoff", spotLight.getCutOff());
+        setSpotLight(uniformLocations.get(uniformName), 0, spotLight);
+    }
+
+    private static void setSpotLight(int[] locations, int start, SpotLight spotLight) {
+        setPointLight(locations, start, spotLight.getPointLight());
+        setUniform(locations[start + POINT_LIGHT_MEMBERS.length], spotLight.getConeDirection());
+        glUniform1f(locations[start + POINT_LIGHT_MEMBERS.length + 1], spotLight.getCutOff());
     }
 
     public void setUniform(String uniformName, DirectionalLight dirLight) {
-        setUniform(uniformName + ".colour", dirLight.getColor());
-        setUniform(uniformName + ".direction", dirLight.getDirection());
-        setUniform(uniformName + ".intensity", dirLight.getIntensity());
+        int[] locations = uniformLocations.get(uniformName);
+        setUniform(locations[0], dirLight.getColor());
+        setUniform(locations[1], dirLight.getDirection());
+        glUniform1f(locations[2], dirLight.getIntensity());
     }
 
     public void setUniform(String uniformName, Material material) {
-        setUniform(uniformName + ".ambient", material.getAmbientColour());
-        setUniform(uniformName + ".diffuse", material.getDiffuseColour());
-        setUniform(uniformName + ".specular", material.getSpecularColour());
-        setUniform(uniformName + ".hasTexture", material.isTextured() ? 1 : 0);
-        setUniform(uniformName + ".hasNormalMap", material.hasNormalMap() ? 1 : 0);
-        setUniform(uniformName + ".reflectance", material.getReflectance());
+        int[] locations = uniformLocations.get(uniformName);
+        Vector4f ambient = material.getAmbientColour();
+        glUniform4f(locations[0], ambient.x, ambient.y, ambient.z, ambient.w);
+        Vector4f diffuse = material.getDiffuseColour();
+        glUniform4f(locations[1], diffuse.x, diffuse.y, diffuse.z, diffuse.w);
+        Vector4f specular = material.getSpecularColour();
+        glUniform4f(locations[2], specular.x, specular.y, specular.z, specular.w);
+        glUniform1i(locations[3], material.isTextured() ? 1 : 0);
+        glUniform1i(locations[4], material.hasNormalMap() ? 1 : 0);
+        glUniform1f(locations[5], material.getReflectance());
     }
 
     public void setUniform(String uniformName, Fog fog) {
-        setUniform(uniformName + ".activeFog", fog.isActive() ? 1 : 0);
-        setUniform(uniformName + ".colour", fog.getColour());
-        setUniform(uniformName + ".density", fog.getDensity());
+        int[] locations = uniformLocations.get(uniformName);
+        glUniform1i(locations[0], fog.isActive() ? 1 : 0);
+        setUniform(locations[1], fog.getColour());
+        glUniform1f(locations[2], fog.getDensity());
     }
 
     public void createVertexShader(String shaderCode) throws Exception {
@@ -0,0 +1,396 @@
+package engine.graph;
+
+import engine.Scene;
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Frustum culler keeping the bounding spheres of the scene items in flat arrays (x, y, z, radius), one entry per
+ * mesh and item pair. Spheres are tested against the six frustum planes in a branch free loop and the visible entries
+ * are compacted into an index list where the entries of each mesh form a contiguous run.
+ * <p>
+ * Entries of removed items are replaced by the last entry and entries of added items are appended, the arrays are
+ * only rebuilt when they have to grow or when the changes of the scene are no longer known.
+ * <p>
+ * Large scenes are split in chunks tested in parallel on the common fork/join pool.
+ */
+public class SoaFrustumCuller {
+
+    public static final int PARALLEL_THRESHOLD = 16 * 1024;
+
+    private static final int NUM_PLANES = 6;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final float[] planes;
+
+    private final Map<Mesh, Integer> meshIndices;
+
+    private final Map<GameItem, int[]> itemEntries;
+
+    /**
+     * Mesh slots left by meshes no longer in the scene
+     */
+    private final Deque<Integer> freeMeshIndices;
+
+    private Mesh[] meshes;
+
+    private int[] meshEntries;
+
+    private int[] visibleStart;
+
+    private int[] visibleEnd;
+
+    private GameItem[] items;
+
+    private int[] entryMesh;
+
+    private float[] meshRadius;
+
+    private float[] x;
+
+    private float[] y;
+
+    private float[] z;
+
+    private float[] radius;
+
+    private float[] distance;
+
+    private int[] visible;
+
+    private int numEntries;
+
+    private int numMeshes;
+
+    private int sceneModCount;
+
+    public SoaFrustumCuller() {
+        planes = new float[NUM_PLANES * 4];
+        meshIndices = new IdentityHashMap<>();
+        itemEntries = new IdentityHashMap<>();
+        freeMeshIndices = new ArrayDeque<>();
+        sceneModCount = -1;
+        allocate(0, 0);
+    }
+
+    /**
+     * Replaces and appends the entries of the items added to or removed from the scene, or given other meshes, then
+     * refreshes the entries of the items that have been moved. Everything is rebuilt when the culler was not up to
+     * date at the last {@link Scene#clearChanges()} or when the arrays are full.
+     */
+    public void update(Scene scene) {
+        int modCount = scene.getModCount();
+        if (modCount != sceneModCount) {
+            boolean incremental = sceneModCount == scene.getChangesModCount();
+            sceneModCount = modCount;
+            if (!incremental || !applyChanges(scene)) {
+                build(scene.getGameMeshes(), scene.getGameInstancedMeshes());
+                return;
+            }
+        }
+        for (GameItem gameItem : scene.getMovedItems()) {
+            int[] entries = itemEntries.get(gameItem);
+            if (entries != null) {
+                for (int entry : entries) {
+                    setEntry(entry, gameItem);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the entries of the changed items do not fit in the arrays
+     */
+    private boolean applyChanges(Scene scene) {
+        Collection<GameItem> changedItems = scene.getChangedItems();
+        int addedEntries = 0;
+        int addedMeshes = 0;
+        for (GameItem gameItem : changedItems) {
+            removeEntries(gameItem);
+        }
+        for (GameItem gameItem : changedItems) {
+            if (scene.contains(gameItem)) {
+                for (Mesh mesh : gameItem.getMeshes()) {
+                    addedEntries++;
+                    if (!meshIndices.containsKey(mesh)) {
+                        // Counted once per item, a few slots too many at worst
+                        addedMeshes++;
+                    }
+                }
+            }
+        }
+        if (numEntries + addedEntries > items.length
+                || numMeshes - freeMeshIndices.size() + addedMeshes > meshes.length) {
+            return false;
+        }
+        for (GameItem gameItem : changedItems) {
+            if (scene.contains(gameItem)) {
+                for (Mesh mesh : gameItem.getMeshes()) {
+                    addEntry(gameItem, mesh);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int countItems(Map<? extends Mesh, List<GameItem>> meshMap) {
+        int count = 0;
+        for (List<GameItem> gameItems : meshMap.values()) {
+            count += gameItems.size();
+        }
+        return count;
+    }
+
+    private static int withHeadroom(int size) {
+        return Math.max(MIN_CAPACITY, size + (size >> 1));
+    }
+
+    private void allocate(int entryCapacity, int meshCapacity) {
+        meshes = new Mesh[meshCapacity];
+        meshEntries = new int[meshCapacity];
+        visibleStart = new int[meshCapacity];
+        visibleEnd = new int[meshCapacity];
+        items = new GameItem[entryCapacity];
+        entryMesh = new int[entryCapacity];
+        meshRadius = new float[entryCapacity];
+        x = new float[entryCapacity];
+        y = new float[entryCapacity];
+        z = new float[entryCapacity];
+        radius = new float[entryCapacity];
+        distance = new float[entryCapacity];
+        visible = new int[entryCapacity];
+        numEntries = 0;
+        numMeshes = 0;
+        meshIndices.clear();
+        itemEntries.clear();
+        freeMeshIndices.clear();
+    }
+
+    private void build(Map<? extends Mesh, List<GameItem>> meshMap,
+                       Map<? extends Mesh, List<GameItem>> instancedMeshMap) {
+        // Room left for the items added later on, which are then appended
+        allocate(withHeadroom(countItems(meshMap) + countItems(instancedMeshMap)),
+                 withHeadroom(meshMap.size() + instancedMeshMap.size()));
+        for (Map<? extends Mesh, List<GameItem>> map : Arrays.asList(meshMap, instancedMeshMap)) {
+            for (Map.Entry<? extends Mesh, List<GameItem>> mapEntry : map.entrySet()) {
+                for (GameItem gameItem : mapEntry.getValue()) {
+                    addEntry(gameItem, mapEntry.getKey());
+                }
+            }
+        }
+    }
+
+    private void addEntry(GameItem gameItem, Mesh mesh) {
+        Integer meshIndex = meshIndices.get(mesh);
+        if (meshIndex == null) {
+            meshIndex = freeMeshIndices.isEmpty() ? numMeshes++ : freeMeshIndices.pop();
+            meshes[meshIndex] = mesh;
+            meshIndices.put(mesh, meshIndex);
+        }
+        meshEntries[meshIndex]++;
+        int entry = numEntries++;
+        items[entry] = gameItem;
+        entryMesh[entry] = meshIndex;
+        meshRadius[entry] = mesh.getBoundingRadius();
+        setEntry(entry, gameItem);
+
+        int[] entries = itemEntries.get(gameItem);
+        if (entries == null) {
+            entries = new int[]{entry};
+        } else {
+            entries = Arrays.copyOf(entries, entries.length + 1);
+            entries[entries.length - 1] = entry;
+        }
+        itemEntries.put(gameItem, entries);
+    }
+
+    private void removeEntries(GameItem gameItem) {
+        int[] entries = itemEntries.remove(gameItem);
+        if (entries == null) {
+            return;
+        }
+        // From the last one, so that none of the entries still to remove is moved in place of another
+        Arrays.sort(entries);
+        for (int i = entries.length - 1; i >= 0; i--) {
+            removeEntry(entries[i]);
+        }
+    }
+
+    private void removeEntry(int entry) {
+        int meshIndex = entryMesh[entry];
+        if (--meshEntries[meshIndex] == 0) {
+            meshIndices.remove(meshes[meshIndex]);
+            meshes[meshIndex] = null;
+            freeMeshIndices.push(meshIndex);
+        }
+        int last = --numEntries;
+        if (entry != last) {
+            GameItem moved = items[last];
+            items[entry] = moved;
+            entryMesh[entry] = entryMesh[last];
+            meshRadius[entry] = meshRadius[last];
+            x[entry] = x[last];
+            y[entry] = y[last];
+            z[entry] = z[last];
+            radius[entry] = radius[last];
+            int[] movedEntries = itemEntries.get(moved);
+            for (int i = 0; i < movedEntries.length; i++) {
+                if (movedEntries[i] == last) {
+                    movedEntries[i] = entry;
+                }
+            }
+        }
+        items[last] = null;
+    }
+
+    private void setEntry(int entry, GameItem gameItem) {
+        Vector3f pos = gameItem.getPosition();
+        x[entry] = pos.x;
+        y[entry] = pos.y;
+        z[entry] = pos.z;
+        radius[entry] = gameItem.isDisableFrustumCulling() ?
+                Float.POSITIVE_INFINITY : gameItem.getScale() * meshRadius[entry];
+    }
+
+    /**
+     * Tests every entry against the frustum defined by the given projection view matrix and rebuilds the visible
+     * index list.
+     */
+    public void cull(Matrix4f prjViewMatrix) {
+        extractPlanes(prjViewMatrix);
+        if (numEntries >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new CullTask(0, numEntries));
+        } else {
+            computeDistances(0, numEntries);
+        }
+
+        // Counted per mesh first, so that the visible entries of each mesh can be placed in a contiguous run
+        Arrays.fill(visibleEnd, 0, numMeshes, 0);
+        for (int i = 0; i < numEntries; i++) {
+            if (distance[i] >= 0) {
+                visibleEnd[entryMesh[i]]++;
+            }
+        }
+        int count = 0;
+        for (int m = 0; m < numMeshes; m++) {
+            visibleStart[m] = count;
+            count += visibleEnd[m];
+            visibleEnd[m] = visibleStart[m];
+        }
+        for (int i = 0; i < numEntries; i++) {
+            if (distance[i] >= 0) {
+                visible[visibleEnd[entryMesh[i]]++] = i;
+            }
+        }
+    }
+
+    private void extractPlanes(Matrix4f m) {
+        setPlane(0, m.m03() + m.m00(), m.m13() + m.m10(), m.m23() + m.m20(), m.m33() + m.m30());
+        setPlane(1, m.m03() - m.m00(), m.m13() - m.m10(), m.m23() - m.m20(), m.m33() - m.m30());
+        setPlane(2, m.m03() + m.m01(), m.m13() + m.m11(), m.m23() + m.m21(), m.m33() + m.m31());
+        setPlane(3, m.m03() - m.m01(), m.m13() - m.m11(), m.m23() - m.m21(), m.m33() - m.m31());
+        setPlane(4, m.m03() + m.m02(), m.m13() + m.m12(), m.m23() + m.m22(), m.m33() + m.m32());
+        setPlane(5, m.m03() - m.m02(), m.m13() - m.m12(), m.m23() - m.m22(), m.m33() - m.m32());
+    }
+
+    private void setPlane(int plane, float a, float b, float c, float d) {
+        float invLength = 1.0f / (float) Math.sqrt(a * a + b * b + c * c);
+        planes[plane * 4] = a * invLength;
+        planes[plane * 4 + 1] = b * invLength;
+        planes[plane * 4 + 2] = c * invLength;
+        planes[plane * 4 + 3] = d * invLength;
+    }
+
+    /**
+     * Stores for each entry the smallest signed distance of its sphere to the frustum planes, negative when outside.
+     * The loop has no branches so the JIT can vectorize it.
+     */
+    private void computeDistances(int from, int to) {
+        final float[] p = planes;
+        final float[] xs = x;
+        final float[] ys = y;
+        final float[] zs = z;
+        final float[] rs = radius;
+        final float[] out = distance;
+        for (int i = from; i < to; i++) {
+            float px = xs[i];
+            float py = ys[i];
+            float pz = zs[i];
+            float d = p[0] * px + p[1] * py + p[2] * pz + p[3];
+            d = Math.min(d, p[4] * px + p[5] * py + p[6] * pz + p[7]);
+            d = Math.min(d, p[8] * px + p[9] * py + p[10] * pz + p[11]);
+            d = Math.min(d, p[12] * px + p[13] * py + p[14] * pz + p[15]);
+            d = Math.min(d, p[16] * px + p[17] * py + p[18] * pz + p[19]);
+            d = Math.min(d, p[20] * px + p[21] * py + p[22] * pz + p[23]);
+            out[i] = d + rs[i];
+        }
+    }
+
+    public boolean contains(Mesh mesh) {
+        return meshIndices.containsKey(mesh);
+    }
+
+    public GameItem[] getItems() {
+        return items;
+    }
+
+    public int[] getVisibleIndices() {
+        return visible;
+    }
+
+    public int getVisibleStart(Mesh mesh) {
+        Integer meshIndex = meshIndices.get(mesh);
+        return meshIndex != null ? visibleStart[meshIndex] : 0;
+    }
+
+    public int getVisibleEnd(Mesh mesh) {
+        Integer meshIndex = meshIndices.get(mesh);
+        return meshIndex != null ? visibleEnd[meshIndex] : 0;
+    }
+
+    public void getVisibleItems(Mesh mesh, List<GameItem> result) {
+        result.clear();
+        Integer meshIndex = meshIndices.get(mesh);
+        if (meshIndex != null) {
+            for (int i = visibleStart[meshIndex], end = visibleEnd[meshIndex]; i < end; i++) {
+                result.add(items[visible[i]]);
+            }
+        }
+    }
+
+    private class CullTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        CullTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                computeDistances(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CullTask(from, mid), new CullTask(mid, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package engine.graph;
+
+/**
+ * Builds the vertex data of a square terrain chunk at a given level of detail, without touching OpenGL so it can run
+ * on a loader thread. Level 0 uses every height sample of the chunk, each following level skips every other sample of
+ * the previous one. Neighbour chunks at different levels do not share their border vertices, so every chunk gets a
+ * skirt, a strip hanging from its border, which hides the cracks between them.
+ * <p>
+ * Chunk vertices are relative to the chunk centre, the game item drawing it must be placed there.
+ */
+public class TerrainChunkBuilder {
+
+    /**
+     * Heights of the terrain on a regular grid of samples, in world units
+     */
+    public interface HeightSource {
+
+        float getHeight(int x, int z);
+    }
+
+    private final HeightSource source;
+
+    private final int cells;
+
+    private final float cellSize;
+
+    private final float textureScale;
+
+    /**
+     * @param cells        Number of grid cells along each side of a chunk, must be a power of two
+     * @param cellSize     Distance between two height samples, in world units
+     * @param textureScale Texture coordinates step between two height samples
+     */
+    public TerrainChunkBuilder(HeightSource source, int cells, float cellSize, float textureScale) {
+        if (cells <= 0 || (cells & (cells - 1)) != 0) {
+            throw new IllegalArgumentException("Chunk cells must be a power of two: " + cells);
+        }
+        this.source = source;
+        this.cells = cells;
+        this.cellSize = cellSize;
+        this.textureScale = textureScale;
+    }
+
+    public int getCells() {
+        return cells;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public float getChunkSize() {
+        return cells * cellSize;
+    }
+
+    /**
+     * @return the number of levels of detail a chunk can have, the last one is a single cell
+     */
+    public int getMaxLods() {
+        return Integer.numberOfTrailingZeros(cells) + 1;
+    }
+
+    /**
+     * Builds the chunk whose first sample is at (chunkX * cells, chunkZ * cells) in the height source.
+     */
+    public MeshData build(int chunkX, int chunkZ, int lod) {
+        int step = 1 << lod;
+        int side = cells / step + 1;
+        int perimeter = 4 * (side - 1);
+        int numVertices = side * side + perimeter;
+        float[] positions = new float[numVertices * 3];
+        float[] textCoords = new float[numVertices * 2];
+        float[] normals = new float[numVertices * 3];
+        int[] indices = new int[(side - 1) * (side - 1) * 6 + perimeter * 6];
+
+        int startX = chunkX * cells;
+        int startZ = chunkZ * cells;
+        float half = cells / 2f;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (int row = 0; row < side; row++) {
+            for (int col = 0; col < side; col++) {
+                int x = startX + col * step;
+                int z = startZ + row * step;
+                float y = source.getHeight(x, z);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+                setVertex(row * side + col, positions, textCoords, normals,
+                          (col * step - half) * cellSize, y, (row * step - half) * cellSize, x, z);
+            }
+        }
+
+        int index = 0;
+        for (int row = 0; row < side - 1; row++) {
+            for (int col = 0; col < side - 1; col++) {
+                // Same triangulation as the height map meshes
+                int leftTop = row * side + col;
+                int leftBottom = (row + 1) * side + col;
+                int rightBottom = (row + 1) * side + col + 1;
+                int rightTop = row * side + col + 1;
+
+                indices[index++] = leftTop;
+                indices[index++] = leftBottom;
+                indices[index++] = rightTop;
+
+                indices[index++] = rightTop;
+                indices[index++] = leftBottom;
+                indices[index++] = rightBottom;
+            }
+        }
+
+        // The crack between two levels can not be deeper than the height range of the chunk
+        float skirtDepth = maxY - minY + cellSize * step;
+        int skirtStart = side * side;
+        for (int i = 0; i < perimeter; i++) {
+            int border = getBorderVertex(i, side);
+            copyVertex(border, skirtStart + i, positions, textCoords, normals);
+            positions[(skirtStart + i) * 3 + 1] -= skirtDepth;
+        }
+        // The border is walked clockwise seen from above so the skirt faces outwards
+        for (int i = 0; i < perimeter; i++) {
+            int next = (i + 1) % perimeter;
+            int a = getBorderVertex(i, side);
+            int b = getBorderVertex(next, side);
+            int skirtA = skirtStart + i;
+            int skirtB = skirtStart + next;
+
+            indices[index++] = a;
+            indices[index++] = b;
+            indices[index++] = skirtA;
+
+            indices[index++] = b;
+            indices[index++] = skirtB;
+            indices[index++] = skirtA;
+        }
+        return new MeshData(positions, textCoords, normals, indices);
+    }
+
+    /**
+     * @return the index of the i-th border vertex, walking the top row left to right, the right column top to bottom,
+     * the bottom row right to left and the left column bottom to top
+     */
+    private static int getBorderVertex(int i, int side) {
+        int edge = side - 1;
+        if (i < edge) {
+            return i;
+        } else if (i < 2 * edge) {
+            return (i - edge) * side + edge;
+        } else if (i < 3 * edge) {
+            return edge * side + (3 * edge - i);
+        } else {
+            return (4 * edge - i) * side;
+        }
+    }
+
+    private void setVertex(int vertex, float[] positions, float[] textCoords, float[] normals,
+                           float posX, float posY, float posZ, int x, int z) {
+        positions[vertex * 3] = posX;
+        positions[vertex * 3 + 1] = posY;
+        positions[vertex * 3 + 2] = posZ;
+
+        textCoords[vertex * 2] = x * textureScale;
+        textCoords[vertex * 2 + 1] = z * textureScale;
+
+        // Central differences on the full resolution grid, so that every level and every chunk is lit the same way
+        float nx = source.getHeight(x - 1, z) - source.getHeight(x + 1, z);
+        float ny = 2 * cellSize;
+        float nz = source.getHeight(x, z - 1) - source.getHeight(x, z + 1);
+        float invLength = 1.0f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        normals[vertex * 3] = nx * invLength;
+        normals[vertex * 3 + 1] = ny * invLength;
+        normals[vertex * 3 + 2] = nz * invLength;
+    }
+
+    private static void copyVertex(int from, int to, float[] positions, float[] textCoords, float[] normals) {
+        System.arraycopy(positions, from * 3, positions, to * 3, 3);
+        System.arraycopy(textCoords, from * 2, textCoords, to * 2, 2);
+        System.arraycopy(normals, from * 3, normals, to * 3, 3);
+    }
+
+    /**
+     * @return the radius of the sphere centred on the chunk centre containing all its vertices
+     */
+    public static float getBoundingRadius(MeshData meshData) {
+        float[] positions = meshData.getPositions();
+        float maxSquared = 0;
+        for (int i = 0; i < positions.length; i += 3) {
+            float x = positions[i];
+            float y = positions[i + 1];
+            float z = positions[i + 2];
+            maxSquared = Math.max(maxSquared, x * x + y * y + z * z);
+        }
+        return (float) Math.sqrt(maxSquared);
+    }
+}
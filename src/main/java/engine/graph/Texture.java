@@ -2,18 +2,17 @@ package engine.graph;
 
 import de.matthiasmann.twl.utils.PNGDecoder;
 import de.matthiasmann.twl.utils.PNGDecoder.Format;
-import engine.Utils;
-import org.lwjgl.system.MemoryStack;
+import org.lwjgl.opengl.GL;
 
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_BASE_LEVEL;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
 import static org.lwjgl.opengl.GL30.glGenerateMipmap;
-import static org.lwjgl.stb.STBImage.stbi_load_from_memory;
-import static org.lwjgl.system.MemoryStack.stackPush;
 
 public class Texture {
 
@@ -23,6 +22,11 @@ public class Texture {
 
     private final int height;
 
+    /**
+     * Estimated video memory used by the texture, mip levels included
+     */
+    private volatile long sizeBytes;
+
     private int numRows = 1;
     
     private int numCols = 1;
@@ -39,6 +43,7 @@ public class Texture {
         this.id = glGenTextures();
         this.width = width;
         this.height = height;
+        this.sizeBytes = (long) width * height * 4;
         glBindTexture(GL_TEXTURE_2D, this.id);
         glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT, this.width, this.height, 0, pixelFormat, GL_FLOAT, (ByteBuffer) null);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
@@ -48,7 +53,7 @@ public class Texture {
     }
 
     public Texture(String fileName) throws Exception {
-        this(Utils.ioResourceToByteBuffer(fileName, 1024));
+        this(TextureData.load(fileName));
     }
 
     public Texture(String fileName, int numCols, int numRows) throws Exception  {
@@ -58,34 +63,82 @@ public class Texture {
     }
 
     public Texture(ByteBuffer imageData) {
-        try (MemoryStack stack = stackPush()) {
-            IntBuffer w = stack.mallocInt(1);
-            IntBuffer h = stack.mallocInt(1);
-            IntBuffer avChannels = stack.mallocInt(1);
+        this(TextureData.decode(imageData));
+    }
 
-            // Decode texture image into a byte buffer
-            ByteBuffer decodedImage = stbi_load_from_memory(imageData, w, h, avChannels, 4);
+    /**
+     * Uploads decoded pixels, which are freed afterwards. Compressed pixels come with their mip chain, RGBA ones get
+     * it generated.
+     */
+    public Texture(TextureData data) {
+        this(data, false);
+    }
 
-            this.width = w.get();
-            this.height = h.get();
+    /**
+     * @param streamed Whether the finest levels of compressed pixels are left to the {@link TextureStreamer}, which
+     *                 then keeps the pixels until the texture is deleted
+     */
+    public Texture(TextureData data, boolean streamed) {
+        boolean keepData = false;
+        try {
+            this.width = data.getWidth();
+            this.height = data.getHeight();
 
             // Create a new OpenGL texture
             this.id = glGenTextures();
             // Bind the texture
             glBindTexture(GL_TEXTURE_2D, this.id);
 
+            if (data.isCompressed()) {
+                ByteBuffer[] levels = data.getLevels();
+                // Sample the mip chain, keeping the nearest look of the uncompressed textures
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER,
+                                levels.length > 1 ? GL_NEAREST_MIPMAP_NEAREST : GL_NEAREST);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+                int baseLevel = 0;
+                TextureStreamer streamer = TextureStreamer.getInstance();
+                if (streamed && streamer.isEnabled()) {
+                    baseLevel = TextureStreamer.getInitialLevel(data);
+                    streamer.register(this, data, baseLevel);
+                    keepData = true;
+                }
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, baseLevel);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels.length - 1);
+                long size = 0;
+                for (int level = baseLevel; level < levels.length; level++) {
+                    glCompressedTexImage2D(GL_TEXTURE_2D, level, data.getFormat(), data.getLevelWidth(level),
+                                           data.getLevelHeight(level), 0, levels[level]);
+                    size += levels[level].remaining();
+                }
+                this.sizeBytes = size;
+                return;
+            }
+            this.sizeBytes = getMipmappedSize(width, height);
+
             // Tell OpenGL how to unpack the RGBA bytes. Each component is 1 byte size
             glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
             // Upload the texture data
-            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, decodedImage);
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+                         data.getPixels());
             // Generate Mip Map
             glGenerateMipmap(GL_TEXTURE_2D);
+        } finally {
+            if (!keepData) {
+                data.free();
+            }
         }
     }
 
+    /**
+     * @return whether the S3TC formats {@link TextureData#compress()} produces can be uploaded
+     */
+    public static boolean isCompressionSupported() {
+        return GL.getCapabilities().GL_EXT_texture_compression_s3tc;
+    }
+
     public Texture(InputStream is) throws Exception {
         try {
             // Load Texture file
@@ -93,6 +146,7 @@ public class Texture {
 
             this.width = decoder.getWidth();
             this.height = decoder.getHeight();
+            this.sizeBytes = getMipmappedSize(width, height);
 
             // Load texture contents into a byte buffer
             ByteBuffer buf = ByteBuffer.allocateDirect(
@@ -143,11 +197,30 @@ public class Texture {
         glBindTexture(GL_TEXTURE_2D, id);
     }
 
+    /**
+     * RGBA8 with a generated mip chain, which adds a third to the base level
+     */
+    private static long getMipmappedSize(int width, int height) {
+        return (long) width * height * 4 * 4 / 3;
+    }
+
+    /**
+     * @return the video memory used by the resident levels
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
     public int getId() {
         return id;
     }
 
     public void cleanup() {
+        TextureStreamer.getInstance().unregister(this);
         glDeleteTextures(id);
     }
 }
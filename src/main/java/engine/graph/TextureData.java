@@ -0,0 +1,195 @@
+package engine.graph;
+
+import engine.Utils;
+import engine.loaders.CompressedTextureCache;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+import static org.lwjgl.stb.STBImage.stbi_failure_reason;
+import static org.lwjgl.stb.STBImage.stbi_image_free;
+import static org.lwjgl.stb.STBImage.stbi_load_from_memory;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+/**
+ * Pixels of an image loaded on the CPU side, before they are uploaded to a {@link Texture}. Loading does not touch
+ * OpenGL, so it can run on a loader thread.
+ * <p>
+ * The pixels are either RGBA bytes decoded by stb_image, or a chain of block compressed levels going down to 1x1.
+ */
+public class TextureData {
+
+    private final ByteBuffer pixels;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Compressed internal format, 0 if the pixels are RGBA bytes
+     */
+    private final int format;
+
+    private final ByteBuffer[] levels;
+
+    /**
+     * Memory holding the levels when this class allocated it, null when it is mapped or not compressed
+     */
+    private final ByteBuffer levelsMemory;
+
+    private TextureData(ByteBuffer pixels, int width, int height) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.format = 0;
+        this.levels = null;
+        this.levelsMemory = null;
+    }
+
+    /**
+     * @param levels       Compressed levels, from the full size one down to 1x1
+     * @param levelsMemory Memory to free with {@link MemoryUtil#memFree(java.nio.Buffer)} once uploaded, may be null
+     */
+    public TextureData(int format, int width, int height, ByteBuffer[] levels, ByteBuffer levelsMemory) {
+        this.pixels = null;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.levels = levels;
+        this.levelsMemory = levelsMemory;
+    }
+
+    /**
+     * Loads an image, block compressed through the {@link CompressedTextureCache} when it is enabled
+     */
+    public static TextureData load(String fileName) throws Exception {
+        ByteBuffer imageData = Utils.ioResourceToByteBuffer(fileName, 1024);
+        CompressedTextureCache cache = CompressedTextureCache.getInstance();
+        if (cache.isEnabled()) {
+            return cache.load(fileName, imageData);
+        }
+        return decode(imageData);
+    }
+
+    /**
+     * @param imageData Content of an image file in any format supported by stb_image
+     */
+    public static TextureData decode(ByteBuffer imageData) {
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer avChannels = stack.mallocInt(1);
+
+            // Decode texture image into a byte buffer
+            ByteBuffer decodedImage = stbi_load_from_memory(imageData, w, h, avChannels, 4);
+            if (decodedImage == null) {
+                throw new IllegalArgumentException("Image could not be decoded: " + stbi_failure_reason());
+            }
+            return new TextureData(decodedImage, w.get(), h.get());
+        }
+    }
+
+    /**
+     * Compresses RGBA pixels with their whole mip chain, BC3 if any pixel is translucent and BC1 otherwise. These
+     * pixels are freed.
+     */
+    public TextureData compress() {
+        if (isCompressed()) {
+            return this;
+        }
+        boolean alpha = BlockCompressor.hasAlpha(pixels, width, height);
+        int format = alpha ? GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+        int blockBytes = alpha ? BlockCompressor.BC3_BLOCK_BYTES : BlockCompressor.BC1_BLOCK_BYTES;
+        int numLevels = getNumLevels(width, height);
+        int size = 0;
+        for (int level = 0; level < numLevels; level++) {
+            size += BlockCompressor.getCompressedSize(getLevelWidth(level), getLevelHeight(level), blockBytes);
+        }
+
+        ByteBuffer memory = MemoryUtil.memAlloc(size);
+        ByteBuffer[] levels = new ByteBuffer[numLevels];
+        ByteBuffer source = pixels;
+        ByteBuffer scratch = numLevels > 1 ?
+                MemoryUtil.memAlloc(Math.max(1, width / 2) * Math.max(1, height / 2) * 4) : null;
+        ByteBuffer halfScratch = numLevels > 2 ?
+                MemoryUtil.memAlloc(Math.max(1, width / 4) * Math.max(1, height / 4) * 4) : null;
+        try {
+            int offset = 0;
+            for (int level = 0; level < numLevels; level++) {
+                int levelWidth = getLevelWidth(level);
+                int levelHeight = getLevelHeight(level);
+                int levelSize = BlockCompressor.getCompressedSize(levelWidth, levelHeight, blockBytes);
+                ByteBuffer dest = MemoryUtil.memSlice(memory, offset, levelSize);
+                BlockCompressor.compress(source, levelWidth, levelHeight, alpha, dest);
+                levels[level] = dest;
+                offset += levelSize;
+                if (level + 1 < numLevels) {
+                    // Every level is filtered from the previous one, the two scratch buffers take turns
+                    ByteBuffer next = source == scratch ? halfScratch : scratch;
+                    BlockCompressor.downsample(source, levelWidth, levelHeight, next);
+                    source = next;
+                }
+            }
+        } finally {
+            MemoryUtil.memFree(scratch);
+            MemoryUtil.memFree(halfScratch);
+            free();
+        }
+        return new TextureData(format, width, height, levels, memory);
+    }
+
+    public static int getNumLevels(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    public boolean isCompressed() {
+        return levels != null;
+    }
+
+    /**
+     * @return the RGBA pixels, or null if compressed
+     */
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the compressed levels, or null if not compressed
+     */
+    public ByteBuffer[] getLevels() {
+        return levels;
+    }
+
+    public int getLevelWidth(int level) {
+        return Math.max(1, width >> level);
+    }
+
+    public int getLevelHeight(int level) {
+        return Math.max(1, height >> level);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void free() {
+        if (pixels != null) {
+            stbi_image_free(pixels);
+        }
+        if (levelsMemory != null) {
+            MemoryUtil.memFree(levelsMemory);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package engine.graph;
+
+import engine.Scene;
+import engine.Window;
+import engine.items.GameItem;
+import engine.loaders.assimp.TextureCache;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11.glBindTexture;
+import static org.lwjgl.opengl.GL11.glTexParameteri;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_BASE_LEVEL;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
+
+/**
+ * Streams the finest mip levels of compressed textures in and out depending on how large the items using them are on
+ * screen. A streamed texture starts with only its levels up to {@link #INITIAL_SIZE} texels resident, the others stay
+ * in the {@link TextureData} it was created from, usually mapped from the {@link engine.loaders.CompressedTextureCache}.
+ * <p>
+ * The work is split between three threads:
+ * <ul>
+ * <li>the thread updating the scene estimates the level each texture needs in {@link #update(Scene, Vector3f, int)},</li>
+ * <li>a loader thread pages in the levels to upload, which reads them from disk when they are mapped,</li>
+ * <li>the GL thread uploads them in {@link #upload(long)} and moves the texture base level.</li>
+ * </ul>
+ * Levels no longer needed are only dropped once the streamed textures go over their budget, the coarsest needs first.
+ */
+public class TextureStreamer {
+
+    /**
+     * Largest side of the finest level resident when a texture is created
+     */
+    public static final int INITIAL_SIZE = 64;
+
+    public static final String BUDGET_PROPERTY = "hittheground.streamingBudget";
+
+    private static final long DEFAULT_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * A texture only gives back a level once it needs one this much coarser than the resident one
+     */
+    private static final int DROP_HYSTERESIS = 2;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "texture-streamer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static TextureStreamer INSTANCE;
+
+    private final Map<Texture, Stream> streams;
+
+    /**
+     * Streams whose levels have been paged in, filled by the loader thread
+     */
+    private final Queue<Stream> paged;
+
+    private final List<Stream> dropCandidates;
+
+    private final long budgetBytes;
+
+    private volatile boolean enabled;
+
+    /**
+     * Written by the loader thread so that paging in levels is not optimised away
+     */
+    private volatile int pageChecksum;
+
+    private TextureStreamer(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        streams = new ConcurrentHashMap<>();
+        paged = new ConcurrentLinkedQueue<>();
+        dropCandidates = new ArrayList<>();
+    }
+
+    public static synchronized TextureStreamer getInstance() {
+        if (INSTANCE == null) {
+            long budgetBytes = Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET_BYTES / (1024 * 1024)) * 1024 * 1024;
+            INSTANCE = new TextureStreamer(budgetBytes);
+        }
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the finest level to upload when creating a texture from compressed data
+     */
+    static int getInitialLevel(TextureData data) {
+        int level = 0;
+        while (Math.max(data.getLevelWidth(level), data.getLevelHeight(level)) > INITIAL_SIZE) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Keeps the data of a texture created with its levels from baseLevel resident, the data is freed with the texture
+     */
+    void register(Texture texture, TextureData data, int baseLevel) {
+        streams.put(texture, new Stream(texture, data, baseLevel));
+    }
+
+    void unregister(Texture texture) {
+        Stream stream = streams.remove(texture);
+        if (stream != null) {
+            stream.removed = true;
+            // The loader thread may be paging it in, the data is freed once it is done
+            LOADER.execute(stream.data::free);
+        }
+    }
+
+    /**
+     * Estimates the finest level each streamed texture needs from the items of the scene using it, and requests the
+     * missing levels.
+     *
+     * @param viewportHeight Height of the viewport in pixels
+     */
+    public void update(Scene scene, Vector3f cameraPosition, int viewportHeight) {
+        if (streams.isEmpty()) {
+            return;
+        }
+        for (Stream stream : streams.values()) {
+            stream.neededSize = 0;
+        }
+        // Pixels covered by one world unit seen from one unit away
+        float pixelsPerUnit = viewportHeight / (2 * (float) Math.tan(Window.FOV / 2));
+        addNeeds(scene.getGameMeshes(), cameraPosition, pixelsPerUnit);
+        addNeeds(scene.getGameInstancedMeshes(), cameraPosition, pixelsPerUnit);
+
+        for (Stream stream : streams.values()) {
+            int needed = stream.getNeededLevel();
+            stream.neededLevel = needed;
+            if (needed < stream.baseLevel && !stream.requested) {
+                stream.requested = true;
+                int targetLevel = needed;
+                LOADER.execute(() -> page(stream, targetLevel));
+            }
+        }
+    }
+
+    private void addNeeds(Map<? extends Mesh, List<GameItem>> meshes, Vector3f cameraPosition, float pixelsPerUnit) {
+        for (Map.Entry<? extends Mesh, List<GameItem>> entry : meshes.entrySet()) {
+            Mesh mesh = entry.getKey();
+            Material material = mesh.getMaterial();
+            Stream stream = material != null && material.getTexture() != null ?
+                    streams.get(material.getTexture()) : null;
+            if (stream == null) {
+                continue;
+            }
+            float neededSize = stream.neededSize;
+            for (GameItem gameItem : entry.getValue()) {
+                float radius = mesh.getBoundingRadius() * gameItem.getScale();
+                float distance = Math.max(gameItem.getPosition().distance(cameraPosition) - radius, Window.Z_NEAR);
+                // The texture is assumed to be stretched once over the item
+                neededSize = Math.max(neededSize, 2 * radius * pixelsPerUnit / distance);
+            }
+            stream.neededSize = neededSize;
+        }
+    }
+
+    /**
+     * Runs on the loader thread
+     */
+    private void page(Stream stream, int targetLevel) {
+        if (stream.removed) {
+            return;
+        }
+        ByteBuffer[] levels = stream.data.getLevels();
+        int sum = 0;
+        for (int level = targetLevel; level < stream.baseLevel; level++) {
+            ByteBuffer buffer = levels[level];
+            for (int i = 0; i < buffer.remaining(); i += PAGE_SIZE) {
+                sum += buffer.get(buffer.position() + i);
+            }
+        }
+        pageChecksum = sum;
+        stream.pagedLevel = targetLevel;
+        paged.add(stream);
+    }
+
+    /**
+     * Uploads the levels paged in since the last call and drops unneeded levels if the streamed textures are over
+     * budget. Must be called from the GL thread.
+     *
+     * @param budgetNanos Time after which no more texture is uploaded, at least one texture is uploaded per call
+     */
+    public void upload(long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        Stream stream;
+        while ((stream = paged.poll()) != null) {
+            if (!stream.removed) {
+                raiseResolution(stream, stream.pagedLevel);
+            }
+            stream.requested = false;
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        dropUnneeded();
+    }
+
+    private void raiseResolution(Stream stream, int level) {
+        if (level >= stream.baseLevel) {
+            return;
+        }
+        TextureData data = stream.data;
+        glBindTexture(GL_TEXTURE_2D, stream.texture.getId());
+        for (int i = level; i < stream.baseLevel; i++) {
+            glCompressedTexImage2D(GL_TEXTURE_2D, i, data.getFormat(), data.getLevelWidth(i), data.getLevelHeight(i),
+                                   0, data.getLevels()[i]);
+        }
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level);
+        stream.setBaseLevel(level);
+    }
+
+    private void dropUnneeded() {
+        long residentBytes = 0;
+        for (Stream stream : streams.values()) {
+            residentBytes += stream.texture.getSizeBytes();
+        }
+        if (residentBytes <= budgetBytes) {
+            return;
+        }
+        dropCandidates.clear();
+        for (Stream stream : streams.values()) {
+            if (stream.getDropLevel() >= stream.baseLevel + DROP_HYSTERESIS && !stream.requested) {
+                dropCandidates.add(stream);
+            }
+        }
+        // Textures with the most levels to give back first
+        dropCandidates.sort(Comparator.comparingInt((Stream stream) -> stream.baseLevel - stream.getDropLevel()));
+        for (Stream stream : dropCandidates) {
+            if (residentBytes <= budgetBytes) {
+                break;
+            }
+            long before = stream.texture.getSizeBytes();
+            lowerResolution(stream, stream.getDropLevel());
+            residentBytes -= before - stream.texture.getSizeBytes();
+        }
+    }
+
+    private void lowerResolution(Stream stream, int level) {
+        TextureData data = stream.data;
+        glBindTexture(GL_TEXTURE_2D, stream.texture.getId());
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level);
+        // A zero sized image gives the memory of a level back
+        for (int i = stream.baseLevel; i < level; i++) {
+            glCompressedTexImage2D(GL_TEXTURE_2D, i, data.getFormat(), 0, 0, 0, 0, 0L);
+        }
+        stream.setBaseLevel(level);
+    }
+
+    private static class Stream {
+
+        final Texture texture;
+
+        final TextureData data;
+
+        /**
+         * Finest level resident, only changed by the GL thread
+         */
+        volatile int baseLevel;
+
+        /**
+         * Set by the loader thread before the stream is added to the paged queue
+         */
+        volatile int pagedLevel;
+
+        volatile boolean requested;
+
+        volatile boolean removed;
+
+        /**
+         * Largest size in pixels of the items using the texture, only used by the thread updating the scene
+         */
+        float neededSize;
+
+        volatile int neededLevel;
+
+        final int initialLevel;
+
+        Stream(Texture texture, TextureData data, int baseLevel) {
+            this.texture = texture;
+            this.data = data;
+            this.baseLevel = baseLevel;
+            this.neededLevel = baseLevel;
+            this.initialLevel = baseLevel;
+        }
+
+        /**
+         * @return the level to drop to, textures never go coarser than when they were created
+         */
+        int getDropLevel() {
+            return Math.min(neededLevel, initialLevel);
+        }
+
+        int getNeededLevel() {
+            int numLevels = data.getLevels().length;
+            if (neededSize <= 0) {
+                return numLevels - 1;
+            }
+            int textureSize = Math.max(data.getWidth(), data.getHeight());
+            int level = 0;
+            while (level < numLevels - 1 && (textureSize >> (level + 1)) >= neededSize) {
+                level++;
+            }
+            return level;
+        }
+
+        void setBaseLevel(int level) {
+            baseLevel = level;
+            long size = 0;
+            ByteBuffer[] levels = data.getLevels();
+            for (int i = level; i < levels.length; i++) {
+                size += levels[i].remaining();
+            }
+            texture.setSizeBytes(size);
+            TextureCache.getInstance().updateSize(texture);
+        }
+    }
+}
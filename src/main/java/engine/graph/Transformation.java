@@ -1,6 +1,5 @@
 package engine.graph;
 
-import engine.Utils;
 import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
@@ -45,7 +44,7 @@ public class Transformation {
         // First do the rotation so camera rotates over its position
         return matrix
                 .rotation(rotation)
-                .translate(Utils.deepCopy(position).negate());
+                .translate(-position.x, -position.y, -position.z);
     }
 
     public static  Matrix4f updateGenericViewMatrix(Vector3f position, Vector3f rotation, Matrix4f matrix) {
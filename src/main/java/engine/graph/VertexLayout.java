@@ -0,0 +1,386 @@
+package engine.graph;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.GL_HALF_FLOAT;
+import static org.lwjgl.opengl.GL30.glVertexAttribIPointer;
+import static org.lwjgl.opengl.GL33.GL_INT_2_10_10_10_REV;
+
+/**
+ * Describes how the vertices of a {@link Mesh} are stored: which attributes it has, in which format, and how they are
+ * spread over vertex buffers, called streams. Attributes keep the locations the shaders declare them at.
+ * <p>
+ * The {@link #SEPARATE} layout is the historical one, every attribute in its own stream of 32 bit values, joint
+ * streams included for static meshes. The compact layouts interleave the attributes of a vertex in a single stream,
+ * store normals as signed normalized 10-10-10-2 values, texture coordinates as half floats when they are small enough
+ * to keep their precision, and only have joint streams for skinned meshes, with 8 bit weights and joint indices.
+ * Meshes with a compact layout use 16 bit indices when their vertex count allows.
+ * <p>
+ * Layouts are shared constants, so that meshes with the same format can be recognised by identity.
+ */
+public final class VertexLayout {
+
+    public static final int POSITION = 0;
+
+    public static final int TEXT_COORD = 1;
+
+    public static final int NORMAL = 2;
+
+    public static final int JOINT_WEIGHTS = 3;
+
+    public static final int JOINT_INDICES = 4;
+
+    private static final int NUM_ATTRIBUTES = 5;
+
+    /**
+     * Texture coordinates in [-MAX_HALF_TEXT_COORD, MAX_HALF_TEXT_COORD] are stored as half floats, larger ones, such as
+     * the coordinates of a tiled terrain, would lose a texel or more
+     */
+    private static final float MAX_HALF_TEXT_COORD = 2.0f;
+
+    /**
+     * Joint indices stored in a byte
+     */
+    private static final int MAX_COMPACT_JOINTS = 256;
+
+    public static final VertexLayout SEPARATE = new VertexLayout(false, false, false, true);
+
+    private static final VertexLayout COMPACT = new VertexLayout(true, true, true, false);
+
+    private static final VertexLayout COMPACT_FLOAT_TEXT_COORDS = new VertexLayout(true, false, true, false);
+
+    private static final VertexLayout COMPACT_SKINNED = new VertexLayout(true, true, true, true);
+
+    private static final VertexLayout COMPACT_SKINNED_FLOAT_TEXT_COORDS = new VertexLayout(true, false, true, true);
+
+    private static volatile boolean compactEnabled;
+
+    private final boolean compact;
+
+    private final boolean skinned;
+
+    private final Format[] formats;
+
+    private final int[] streams;
+
+    private final int[] offsets;
+
+    private final int[] strides;
+
+    private VertexLayout(boolean compact, boolean halfTextCoords, boolean packedNormals, boolean skinned) {
+        this.compact = compact;
+        this.skinned = skinned;
+        formats = new Format[NUM_ATTRIBUTES];
+        formats[POSITION] = Format.FLOAT3;
+        formats[TEXT_COORD] = halfTextCoords ? Format.HALF2 : Format.FLOAT2;
+        formats[NORMAL] = packedNormals ? Format.INT_2_10_10_10 : Format.FLOAT3;
+        if (skinned) {
+            formats[JOINT_WEIGHTS] = compact ? Format.UNORM_BYTE4 : Format.FLOAT4;
+            formats[JOINT_INDICES] = compact ? Format.UBYTE4 : Format.INT4;
+        }
+
+        streams = new int[NUM_ATTRIBUTES];
+        offsets = new int[NUM_ATTRIBUTES];
+        int numStreams = 0;
+        int stride = 0;
+        for (int attribute = 0; attribute < NUM_ATTRIBUTES; attribute++) {
+            if (formats[attribute] == null) {
+                streams[attribute] = -1;
+            } else if (compact) {
+                offsets[attribute] = stride;
+                stride += formats[attribute].bytes;
+            } else {
+                streams[attribute] = numStreams++;
+            }
+        }
+        if (compact) {
+            strides = new int[]{stride};
+        } else {
+            strides = new int[numStreams];
+            for (int attribute = 0; attribute < NUM_ATTRIBUTES; attribute++) {
+                if (streams[attribute] >= 0) {
+                    strides[streams[attribute]] = formats[attribute].bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the meshes created from now on use the compact layouts
+     */
+    public static void setCompactEnabled(boolean enabled) {
+        compactEnabled = enabled;
+    }
+
+    public static boolean isCompactEnabled() {
+        return compactEnabled;
+    }
+
+    /**
+     * Picks the layout of a mesh from its content
+     *
+     * @param jointIndices Joint indices of a skinned mesh, null for a static one
+     */
+    public static VertexLayout forMesh(FloatBuffer textCoords, IntBuffer jointIndices) {
+        if (!compactEnabled) {
+            return SEPARATE;
+        }
+        boolean skinned = jointIndices != null;
+        if (skinned) {
+            for (int i = jointIndices.position(), n = jointIndices.limit(); i < n; i++) {
+                if (jointIndices.get(i) < 0 || jointIndices.get(i) >= MAX_COMPACT_JOINTS) {
+                    return SEPARATE;
+                }
+            }
+        }
+        boolean halfTextCoords = true;
+        for (int i = textCoords.position(), n = textCoords.limit(); i < n && halfTextCoords; i++) {
+            halfTextCoords = Math.abs(textCoords.get(i)) <= MAX_HALF_TEXT_COORD;
+        }
+        if (skinned) {
+            return halfTextCoords ? COMPACT_SKINNED : COMPACT_SKINNED_FLOAT_TEXT_COORDS;
+        }
+        return halfTextCoords ? COMPACT : COMPACT_FLOAT_TEXT_COORDS;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public boolean isSkinned() {
+        return skinned;
+    }
+
+    public boolean hasAttribute(int attribute) {
+        return formats[attribute] != null;
+    }
+
+    public int getNumStreams() {
+        return strides.length;
+    }
+
+    public int getStream(int attribute) {
+        return streams[attribute];
+    }
+
+    public int getStride(int stream) {
+        return strides[stream];
+    }
+
+    /**
+     * @return the bytes of a vertex over all the streams
+     */
+    public int getVertexBytes() {
+        int bytes = 0;
+        for (int stride : strides) {
+            bytes += stride;
+        }
+        return bytes;
+    }
+
+    /**
+     * 16 bit indices are only used by the compact layouts, the separate one keeps its 32 bit indices
+     */
+    public boolean isShortIndices(int numVertices) {
+        return compact && numVertices <= 0x10000;
+    }
+
+    /**
+     * Points the attribute at the vertex buffer currently bound to GL_ARRAY_BUFFER, which holds its stream
+     *
+     * @param baseOffset Offset of the first vertex of the stream in the buffer, in bytes
+     */
+    public void setupAttribute(int attribute, long baseOffset) {
+        Format format = formats[attribute];
+        int stride = strides[streams[attribute]];
+        long offset = baseOffset + offsets[attribute];
+        if (format.integer) {
+            glVertexAttribIPointer(attribute, format.size, format.glType, stride, offset);
+        } else {
+            glVertexAttribPointer(attribute, format.size, format.glType, format.normalized, stride, offset);
+        }
+    }
+
+    /**
+     * Writes the vertices of a stream into a buffer allocated with {@link MemoryUtil}, to be freed by the caller.
+     * Missing skinning data is written as zeroes.
+     */
+    public ByteBuffer pack(int stream, int numVertices, FloatBuffer positions, FloatBuffer textCoords,
+                           FloatBuffer normals, FloatBuffer weights, IntBuffer jointIndices) {
+        int stride = strides[stream];
+        ByteBuffer buffer = MemoryUtil.memCalloc(numVertices * stride).order(ByteOrder.nativeOrder());
+        for (int attribute = 0; attribute < NUM_ATTRIBUTES; attribute++) {
+            if (streams[attribute] != stream) {
+                continue;
+            }
+            int offset = offsets[attribute];
+            switch (attribute) {
+                case POSITION:
+                    putFloats(buffer, offset, stride, positions, 3, numVertices, formats[attribute]);
+                    break;
+                case TEXT_COORD:
+                    putFloats(buffer, offset, stride, textCoords, 2, numVertices, formats[attribute]);
+                    break;
+                case NORMAL:
+                    putFloats(buffer, offset, stride, normals, 3, numVertices, formats[attribute]);
+                    break;
+                case JOINT_WEIGHTS:
+                    if (weights != null) {
+                        putFloats(buffer, offset, stride, weights, Mesh.MAX_WEIGHTS, numVertices, formats[attribute]);
+                    }
+                    break;
+                case JOINT_INDICES:
+                    if (jointIndices != null) {
+                        putInts(buffer, offset, stride, jointIndices, numVertices, formats[attribute]);
+                    }
+                    break;
+            }
+        }
+        return buffer;
+    }
+
+    private static void putFloats(ByteBuffer buffer, int offset, int stride, FloatBuffer src, int size,
+                                  int numVertices, Format format) {
+        int base = src.position();
+        for (int vertex = 0; vertex < numVertices; vertex++) {
+            int pos = vertex * stride + offset;
+            int index = base + vertex * size;
+            switch (format) {
+                case HALF2:
+                    buffer.putShort(pos, toHalf(src.get(index)));
+                    buffer.putShort(pos + 2, toHalf(src.get(index + 1)));
+                    break;
+                case INT_2_10_10_10:
+                    buffer.putInt(pos, packNormal(src.get(index), src.get(index + 1), src.get(index + 2)));
+                    break;
+                case UNORM_BYTE4:
+                    putWeights(buffer, pos, src, index);
+                    break;
+                default:
+                    for (int i = 0; i < size; i++) {
+                        buffer.putFloat(pos + i * Float.BYTES, src.get(index + i));
+                    }
+            }
+        }
+    }
+
+    private static void putInts(ByteBuffer buffer, int offset, int stride, IntBuffer src, int numVertices,
+                                Format format) {
+        int base = src.position();
+        for (int vertex = 0; vertex < numVertices; vertex++) {
+            int pos = vertex * stride + offset;
+            int index = base + vertex * Mesh.MAX_WEIGHTS;
+            for (int i = 0; i < Mesh.MAX_WEIGHTS; i++) {
+                if (format == Format.UBYTE4) {
+                    buffer.put(pos + i, (byte) src.get(index + i));
+                } else {
+                    buffer.putInt(pos + i * Integer.BYTES, src.get(index + i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Quantizes the weights of a vertex so that they still add up to what they did, the rounding error going to the
+     * heaviest one
+     */
+    private static void putWeights(ByteBuffer buffer, int pos, FloatBuffer src, int index) {
+        int heaviest = 0;
+        int sum = 0;
+        float total = 0;
+        for (int i = 0; i < Mesh.MAX_WEIGHTS; i++) {
+            float weight = Math.max(0, Math.min(1, src.get(index + i)));
+            int quantized = Math.round(weight * 255);
+            buffer.put(pos + i, (byte) quantized);
+            if (quantized > (buffer.get(pos + heaviest) & 0xFF)) {
+                heaviest = i;
+            }
+            sum += quantized;
+            total += weight;
+        }
+        int heaviestWeight = (buffer.get(pos + heaviest) & 0xFF) + Math.round(Math.min(1, total) * 255) - sum;
+        buffer.put(pos + heaviest, (byte) Math.max(0, Math.min(255, heaviestWeight)));
+    }
+
+    /**
+     * Packs a unit vector as signed normalized 10 bit components, the 2 bit w is left to 0
+     */
+    static int packNormal(float x, float y, float z) {
+        return packSnorm10(x) | packSnorm10(y) << 10 | packSnorm10(z) << 20;
+    }
+
+    private static int packSnorm10(float value) {
+        return Math.round(Math.max(-1, Math.min(1, value)) * 511) & 0x3FF;
+    }
+
+    /**
+     * Converts to an IEEE 754 half float, rounding to the nearest
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent >= 0x1F) {
+            // Overflows to infinity, NaN stays NaN
+            boolean nan = ((bits >>> 23) & 0xFF) == 0xFF && mantissa != 0;
+            return (short) (sign | 0x7C00 | (nan ? 0x200 : 0));
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            // Subnormal, the implicit leading bit becomes explicit
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            return (short) (sign | (mantissa + (1 << (shift - 1))) >> shift);
+        }
+        int half = sign | exponent << 10 | mantissa >> 13;
+        if ((mantissa & 0x1000) != 0) {
+            // A carry into the exponent is still the nearest value
+            half++;
+        }
+        return (short) half;
+    }
+
+    private enum Format {
+        FLOAT2(2, GL_FLOAT, false, false, 2 * Float.BYTES),
+        FLOAT3(3, GL_FLOAT, false, false, 3 * Float.BYTES),
+        FLOAT4(4, GL_FLOAT, false, false, 4 * Float.BYTES),
+        HALF2(2, GL_HALF_FLOAT, false, false, 2 * Short.BYTES),
+        INT_2_10_10_10(4, GL_INT_2_10_10_10_REV, true, false, Integer.BYTES),
+        UNORM_BYTE4(4, GL_UNSIGNED_BYTE, true, false, 4),
+        INT4(4, GL_INT, false, true, 4 * Integer.BYTES),
+        UBYTE4(4, GL_UNSIGNED_BYTE, false, true, 4);
+
+        final int size;
+
+        final int glType;
+
+        final boolean normalized;
+
+        /**
+         * Read as integers by the shaders
+         */
+        final boolean integer;
+
+        final int bytes;
+
+        Format(int size, int glType, boolean normalized, boolean integer, int bytes) {
+            this.size = size;
+            this.glType = glType;
+            this.normalized = normalized;
+            this.integer = integer;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package engine.graph.anim;
+
+import org.joml.Matrix4f;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joint matrices of a processed animation, packed as contiguous column major floats so that they can be cached and
+ * read back in bulk. The inverse bind matrices hold one matrix per joint, the local matrices one matrix per joint for
+ * every frame, frame after frame.
+ */
+public class AnimationData {
+
+    public static final int MATRIX_FLOATS = 16;
+
+    private final int numJoints;
+
+    private final int numFrames;
+
+    private final float[] invJointMatrices;
+
+    private final float[] localJointMatrices;
+
+    public AnimationData(int numJoints, int numFrames, float[] invJointMatrices, float[] localJointMatrices) {
+        this.numJoints = numJoints;
+        this.numFrames = numFrames;
+        this.invJointMatrices = invJointMatrices;
+        this.localJointMatrices = localJointMatrices;
+    }
+
+    public int getNumJoints() {
+        return numJoints;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public float[] getInvJointMatrices() {
+        return invJointMatrices;
+    }
+
+    public float[] getLocalJointMatrices() {
+        return localJointMatrices;
+    }
+
+    public List<Matrix4f> createInvJointMatrices() {
+        List<Matrix4f> result = new ArrayList<>(numJoints);
+        for (int i = 0; i < numJoints; i++) {
+            result.add(new Matrix4f().set(invJointMatrices, i * MATRIX_FLOATS));
+        }
+        return result;
+    }
+
+    public List<AnimatedFrame> createFrames(List<Matrix4f> invJointMatrices) {
+        List<AnimatedFrame> result = new ArrayList<>(numFrames);
+        int offset = 0;
+        for (int frame = 0; frame < numFrames; frame++) {
+            AnimatedFrame animatedFrame = new AnimatedFrame();
+            for (int i = 0; i < numJoints; i++) {
+                animatedFrame.setMatrix(i, new Matrix4f().set(localJointMatrices, offset), invJointMatrices.get(i));
+                offset += MATRIX_FLOATS;
+            }
+            result.add(animatedFrame);
+        }
+        return result;
+    }
+}
@@ -20,6 +20,16 @@ public class DirectionalLight {
         this(new Vector3f(light.getColor()), new Vector3f(light.getDirection()), light.getIntensity());
     }
 
+    /**
+     * Copies the values of another light into this one, without allocating
+     */
+    public DirectionalLight set(DirectionalLight light) {
+        color.set(light.getColor());
+        direction.set(light.getDirection());
+        intensity = light.getIntensity();
+        return this;
+    }
+
     public Vector3f getColor() {
         return color;
     }
@@ -29,6 +29,17 @@ public class PointLight {
                 pointLight.getIntensity(), pointLight.getAttenuation());
     }
 
+    /**
+     * Copies the values of another light into this one, without allocating
+     */
+    public PointLight set(PointLight pointLight) {
+        color.set(pointLight.getColor());
+        position.set(pointLight.getPosition());
+        intensity = pointLight.getIntensity();
+        attenuation = pointLight.getAttenuation();
+        return this;
+    }
+
     public Vector3f getColor() {
         return color;
     }
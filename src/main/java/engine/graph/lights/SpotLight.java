@@ -17,9 +17,19 @@ public class SpotLight {
     }
 
     public SpotLight(SpotLight spotLight) {
-        this(new PointLight(spotLight.getPointLight()),
-                new Vector3f(spotLight.getConeDirection()),
-                spotLight.getCutOff());
+        this.pointLight = new PointLight(spotLight.getPointLight());
+        this.coneDirection = new Vector3f(spotLight.getConeDirection());
+        this.cutOff = spotLight.getCutOff();
+    }
+
+    /**
+     * Copies the values of another light into this one, without allocating
+     */
+    public SpotLight set(SpotLight spotLight) {
+        pointLight.set(spotLight.getPointLight());
+        coneDirection.set(spotLight.getConeDirection());
+        cutOff = spotLight.getCutOff();
+        return this;
     }
 
     public PointLight getPointLight() {
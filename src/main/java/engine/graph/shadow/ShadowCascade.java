@@ -1,7 +1,6 @@
 package engine.graph.shadow;
 
 import org.joml.Matrix4f;
-import org.joml.Quaternionf;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import engine.Window;
@@ -30,6 +29,10 @@ public class ShadowCascade {
     private final float zFar;
 
     private final Vector4f tmpVec;
+
+    private final Vector3f lightPosition;
+
+    private final Vector3f lightAngles;
     
     public ShadowCascade(float zNear, float zFar) {
         this.zNear = zNear;
@@ -43,6 +46,8 @@ public class ShadowCascade {
             frustumCorners[i] = new Vector3f();
         }
         tmpVec = new Vector4f();
+        lightPosition = new Vector3f();
+        lightAngles = new Vector3f();
     }
 
     public Matrix4f getLightViewMatrix() {
@@ -74,12 +79,8 @@ public class ShadowCascade {
 
         // Go back from the centroid up to max.z - min.z in the direction of light
         Vector3f lightDirection = light.getDirection();
-        Vector3f lightPosInc = new Vector3f().set(lightDirection);
         float distance = maxZ - minZ;
-        lightPosInc.mul(distance);
-        Vector3f lightPosition = new Vector3f();
-        lightPosition.set(centroid);
-        lightPosition.add(lightPosInc);
+        lightPosition.set(lightDirection).mul(distance).add(centroid);
 
         updateLightViewMatrix(lightDirection, lightPosition);
 
@@ -90,8 +91,7 @@ public class ShadowCascade {
         float lightAngleX = (float) Math.toDegrees(Math.acos(lightDirection.z));
         float lightAngleY = (float) Math.toDegrees(Math.asin(lightDirection.x));
         float lightAngleZ = 0;
-        final Quaternionf light = new Quaternionf().rotate(lightAngleX, lightAngleY, lightAngleZ);
-        Transformation.updateGenericViewMatrix(lightPosition, new Vector3f(lightAngleX, lightAngleY, lightAngleZ), lightViewMatrix);
+        Transformation.updateGenericViewMatrix(lightPosition, lightAngles.set(lightAngleX, lightAngleY, lightAngleZ), lightViewMatrix);
     }
 
     private void updateLightProjectionMatrix() {
@@ -14,6 +14,8 @@ import engine.items.GameItem;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE2;
@@ -33,8 +35,22 @@ public class ShadowRenderer {
 
     private final List<GameItem> filteredItems;
 
+    private final Matrix4f commandMatrix;
+
+    /**
+     * Per item uniform setters, kept in fields so no lambda is created while rendering
+     */
+    private final Consumer<GameItem> itemUniformsSetter = this::setItemUniforms;
+
+    private final IntConsumer commandUniformsSetter = this::setCommandUniforms;
+
+    private Transformation itemTransformation;
+
+    private RenderCommandList replayedCommands;
+
     public ShadowRenderer() {
         filteredItems = new ArrayList<>();
+        commandMatrix = new Matrix4f();
     }
 
     public void init(Window window) throws Exception {
@@ -72,8 +88,7 @@ public class ShadowRenderer {
         depthShaderProgram.createUniform("orthoProjectionMatrix");
     }
 
-    private void update(Window window, Matrix4f viewMatrix, Scene scene) {
-        SceneLight sceneLight = scene.getSceneLight();
+    private void update(Window window, Matrix4f viewMatrix, SceneLight sceneLight) {
         DirectionalLight directionalLight = sceneLight != null ? sceneLight.getDirectionalLight() : null;
         for (int i = 0; i < NUM_CASCADES; i++) {
             ShadowCascade shadowCascade = shadowCascades.get(i);
@@ -82,7 +97,7 @@ public class ShadowRenderer {
     }
 
     public void render(Window window, Scene scene, Camera camera, Transformation transformation, Renderer renderer) {
-        update(window, camera.getViewMatrix(), scene);
+        update(window, camera.getViewMatrix(), scene.getSceneLight());
 
         // Setup view port to match the texture size
         glBindFramebuffer(GL_FRAMEBUFFER, shadowBuffer.getDepthMapFBO());
@@ -101,9 +116,9 @@ public class ShadowRenderer {
             glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, shadowBuffer.getDepthMapTexture().getIds()[i], 0);
             glClear(GL_DEPTH_BUFFER_BIT);
 
-            renderNonInstancedMeshes(scene, transformation);
+            renderNonInstancedMeshes(scene, transformation, renderer);
 
-            renderInstancedMeshes(scene, transformation);
+            renderInstancedMeshes(scene, transformation, renderer);
         }
 
         // Unbind
@@ -111,37 +126,132 @@ public class ShadowRenderer {
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
     }
 
-    private void renderNonInstancedMeshes(Scene scene, Transformation transformation) {
+    /**
+     * Renders the depth maps from the draw commands of a recorded frame
+     */
+    public void render(Window window, FrameSnapshot frame) {
+        update(window, frame.getViewMatrix(), frame.getSceneLight());
+
+        // Setup view port to match the texture size
+        glBindFramebuffer(GL_FRAMEBUFFER, shadowBuffer.getDepthMapFBO());
+        glViewport(0, 0, ShadowBuffer.SHADOW_MAP_WIDTH, ShadowBuffer.SHADOW_MAP_HEIGHT);
+        glClear(GL_DEPTH_BUFFER_BIT);
+
+        depthShaderProgram.bind();
+
+        // Render scene for each cascade map
+        for (int i = 0; i < NUM_CASCADES; i++) {
+            ShadowCascade shadowCascade = shadowCascades.get(i);
+
+            depthShaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix());
+            depthShaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix());
+
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, shadowBuffer.getDepthMapTexture().getIds()[i], 0);
+            glClear(GL_DEPTH_BUFFER_BIT);
+
+            renderMeshCommands(frame.getMeshCommands());
+
+            renderInstancedMeshCommands(frame.getInstancedMeshCommands());
+        }
+
+        // Unbind
+        depthShaderProgram.unbind();
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    private void renderMeshCommands(RenderCommandList commands) {
         depthShaderProgram.setUniform("isInstanced", 0);
 
+        replayedCommands = commands;
+        for (int run = 0; run < commands.getNumRuns(); run++) {
+            Mesh mesh = commands.getMesh(run);
+            int start = commands.getRunStart(run);
+            int end = commands.getRunEnd(run);
+            if (mesh.isDrawnInstanced(end - start)) {
+                depthShaderProgram.setUniform("isInstanced", 1);
+                mesh.renderInstanced(commands.getData(), commands.getLods(), start, end);
+                depthShaderProgram.setUniform("isInstanced", 0);
+            } else {
+                mesh.renderCommands(start, end, commands.getLods(), commandUniformsSetter);
+            }
+        }
+        replayedCommands = null;
+    }
+
+    private void setCommandUniforms(int command) {
+        commandMatrix.set(replayedCommands.getData(), command * RenderCommandList.COMMAND_SIZE_FLOATS);
+        depthShaderProgram.setUniform("modelNonInstancedMatrix", commandMatrix);
+        Matrix4f[] jointMatrices = replayedCommands.getJointMatrices(command);
+        if (jointMatrices != null) {
+            depthShaderProgram.setUniform("jointsMatrix", jointMatrices);
+        }
+    }
+
+    private void renderInstancedMeshCommands(RenderCommandList commands) {
+        depthShaderProgram.setUniform("isInstanced", 1);
+
+        for (int run = 0; run < commands.getNumRuns(); run++) {
+            InstancedMesh mesh = (InstancedMesh) commands.getMesh(run);
+            if (mesh.isStreaming()) {
+                mesh.renderStreamedInstances();
+            } else {
+                mesh.renderCommandsInstanced(commands.getData(), commands.getRunStart(run), commands.getRunEnd(run));
+            }
+        }
+    }
+
+    private void renderNonInstancedMeshes(Scene scene, Transformation transformation, Renderer renderer) {
+        depthShaderProgram.setUniform("isInstanced", 0);
+
+        SoaFrustumCuller frustumCuller = renderer.getFrustumCuller();
+        itemTransformation = transformation;
+
         // Render each mesh with the associated game Items
         Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
         for (Mesh mesh : mapMeshes.keySet()) {
-            mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
-                Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-                depthShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
-                if (gameItem instanceof AnimGameItem) {
-                    AnimGameItem animGameItem = (AnimGameItem) gameItem;
-                    AnimatedFrame frame = animGameItem.getCurrentFrame();
-                    depthShaderProgram.setUniform("jointsMatrix", frame.getJointMatrices());
+            List<GameItem> gameItems = mapMeshes.get(mesh);
+            if (mesh.isDrawnInstanced(gameItems.size())) {
+                depthShaderProgram.setUniform("isInstanced", 1);
+                if (frustumCuller != null) {
+                    mesh.renderInstanced(frustumCuller.getItems(), frustumCuller.getVisibleIndices(),
+                                         frustumCuller.getVisibleStart(mesh), frustumCuller.getVisibleEnd(mesh),
+                                         transformation);
+                } else {
+                    mesh.renderInstanced(gameItems, transformation);
                 }
+                depthShaderProgram.setUniform("isInstanced", 0);
+            } else if (frustumCuller != null) {
+                mesh.renderList(frustumCuller.getItems(), frustumCuller.getVisibleIndices(),
+                                frustumCuller.getVisibleStart(mesh), frustumCuller.getVisibleEnd(mesh),
+                                itemUniformsSetter);
+            } else {
+                mesh.renderList(gameItems, itemUniformsSetter);
             }
-            );
         }
     }
 
-    private void renderInstancedMeshes(Scene scene, Transformation transformation) {
+    private void setItemUniforms(GameItem gameItem) {
+        Matrix4f modelMatrix = itemTransformation.buildModelMatrix(gameItem);
+        depthShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
+        if (gameItem instanceof AnimGameItem) {
+            AnimGameItem animGameItem = (AnimGameItem) gameItem;
+            AnimatedFrame frame = animGameItem.getCurrentFrame();
+            depthShaderProgram.setUniform("jointsMatrix", frame.getJointMatrices());
+        }
+    }
+
+    private void renderInstancedMeshes(Scene scene, Transformation transformation, Renderer renderer) {
         depthShaderProgram.setUniform("isInstanced", 1);
 
         // Render each mesh with the associated game Items
         Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
         for (InstancedMesh mesh : mapMeshes.keySet()) {
-            filteredItems.clear();
-            for (GameItem gameItem : mapMeshes.get(mesh)) {
-                if (gameItem.isInsideFrustum()) {
-                    filteredItems.add(gameItem);
-                }
+            if (mesh.isStreaming()) {
+                // Instance data has already been written for this frame, only the draw is issued per cascade
+                mesh.renderStreamedInstances();
+                continue;
             }
+            renderer.getVisibleItems(mesh, mapMeshes.get(mesh), filteredItems);
             bindTextures(GL_TEXTURE2);
 
             mesh.renderListInstanced(filteredItems, transformation, null);
@@ -5,7 +5,6 @@ import engine.graph.Mesh;
 import engine.loaders.obj.MaterialLoader;
 import engine.loaders.obj.OBJLoader;
 import org.joml.Quaternionf;
-import org.joml.Vector3f;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -23,16 +22,36 @@ public class Building extends GameItem {
     public Building(String objFile, String textureDir, float scaling, Quaternionf rotation)
             throws Exception {
         super(objFile, textureDir, true);
+        setup(scaling, rotation);
+    }
+
+    /**
+     * @param meshes Meshes of the model, as loaded by {@link engine.loaders.assimp.StaticMeshesLoader}
+     */
+    public Building(Mesh[] meshes, float scaling, Quaternionf rotation) {
+        super(meshes);
+        setup(scaling, rotation);
+    }
+
+    private Building(Building prototype) {
+        super(prototype);
+    }
+
+    @Override
+    public Building newInstance() {
+        return new Building(this);
+    }
+
+    private void setup(float scaling, Quaternionf rotation) {
         for (Mesh mesh : getMeshes()) {
             mesh.setBoundingRadius(20);
         }
         scale = scaling;
         setRotation(rotation);
-
     }
 
-    public void setPosition(float posX, float posZ, Terrain terrain) {
-        final float posY = terrain.getHeight(new Vector3f(posX, 0, posZ));
+    public void setPosition(float posX, float posZ, ITerrain terrain) {
+        final float posY = terrain.getHeight(posX, posZ);
         setPosition(posX, posY, posZ);
     }
 
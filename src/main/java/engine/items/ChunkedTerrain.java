@@ -0,0 +1,365 @@
+package engine.items;
+
+import engine.GameEngine;
+import engine.Scene;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.MeshData;
+import engine.graph.TerrainChunkBuilder;
+import engine.loaders.assimp.TextureCache;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Unbounded terrain made of square chunks paged in and out around a point of interest, usually the plane. Each chunk
+ * has several levels of detail and the one drawn is picked from its distance to that point.
+ * <p>
+ * The work is split between three threads:
+ * <ul>
+ * <li>a loader thread builds the vertex data of new chunks,</li>
+ * <li>the GL thread uploads them in {@link #uploadChunks(long)} and deletes the meshes of dropped chunks,</li>
+ * <li>the thread updating the scene adds and removes chunks and switches their levels in
+ * {@link #update(Vector3f, Scene)}.</li>
+ * </ul>
+ * Meshes of dropped chunks are kept until the frame being drawn has changed, see {@link GameEngine#getFrameCount()},
+ * as a frame recorded before the chunk was dropped may still be drawn while the scene is updated.
+ */
+public class ChunkedTerrain implements ITerrain {
+
+    /**
+     * Frames to wait before deleting the meshes of a dropped chunk
+     */
+    private static final int RETIRE_DELAY = 1;
+
+    /**
+     * A chunk only switches to a coarser level once it is this much further than the level distance
+     */
+    private static final float LOD_HYSTERESIS = 1.1f;
+
+    private final ExecutorService loader;
+
+    private final TerrainChunkBuilder builder;
+
+    private final TerrainChunkBuilder.HeightSource source;
+
+    private final Material material;
+
+    private final int numLods;
+
+    private final int loadRadius;
+
+    private final float lodDistance;
+
+    private final Map<Long, Chunk> chunks;
+
+    private final List<GameItem> sceneItems;
+
+    /**
+     * Chunks whose vertex data is ready, filled by the loader thread
+     */
+    private final Queue<Chunk> generated;
+
+    /**
+     * Chunks whose meshes have been created, filled by the GL thread
+     */
+    private final Queue<Chunk> uploaded;
+
+    /**
+     * Meshes of dropped chunks waiting to be deleted by the GL thread
+     */
+    private final Queue<RetiredMeshes> retired;
+
+    /**
+     * @param numLods     Number of levels of detail of each chunk
+     * @param loadRadius  Chunks closer than this number of chunks from the point of interest are loaded
+     * @param lodDistance Distance up to which chunks are drawn at full resolution, each following level doubles it
+     */
+    public ChunkedTerrain(TerrainChunkBuilder builder, TerrainChunkBuilder.HeightSource source, String textureFile,
+                          int numLods, int loadRadius, float lodDistance) throws Exception {
+        this.builder = builder;
+        this.source = source;
+        // Every chunk mesh holds a reference of its own, released when the mesh is deleted
+        this.material = new Material(TextureCache.getInstance().getTexture(textureFile), 0.0f);
+        this.numLods = Math.min(numLods, builder.getMaxLods());
+        this.loadRadius = loadRadius;
+        this.lodDistance = lodDistance;
+        chunks = new HashMap<>();
+        sceneItems = new ArrayList<>();
+        generated = new ConcurrentLinkedQueue<>();
+        uploaded = new ConcurrentLinkedQueue<>();
+        retired = new ConcurrentLinkedQueue<>();
+        loader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "terrain-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Pages chunks in and out around the given position and updates the level of detail of the chunks in the scene.
+     * Chunks become visible once their meshes have been uploaded.
+     */
+    public void update(Vector3f position, Scene scene) {
+        Chunk chunk;
+        while ((chunk = uploaded.poll()) != null) {
+            if (chunks.get(key(chunk.x, chunk.z)) != chunk) {
+                retire(chunk.lodMeshes);
+                continue;
+            }
+            chunk.lod = getLod(chunk, position, -1);
+            chunk.item.setMesh(chunk.lodMeshes[chunk.lod]);
+            scene.addGameItems(new GameItem[]{chunk.item});
+            sceneItems.add(chunk.item);
+            chunk.inScene = true;
+        }
+
+        float chunkSize = builder.getChunkSize();
+        int centerX = (int) Math.floor(position.x / chunkSize);
+        int centerZ = (int) Math.floor(position.z / chunkSize);
+        for (int z = centerZ - loadRadius; z <= centerZ + loadRadius; z++) {
+            for (int x = centerX - loadRadius; x <= centerX + loadRadius; x++) {
+                long key = key(x, z);
+                if (!chunks.containsKey(key) && isInRange(x - centerX, z - centerZ, loadRadius)) {
+                    Chunk newChunk = new Chunk(x, z);
+                    chunks.put(key, newChunk);
+                    loader.execute(() -> generate(newChunk));
+                }
+            }
+        }
+
+        Iterator<Chunk> it = chunks.values().iterator();
+        while (it.hasNext()) {
+            chunk = it.next();
+            // One more chunk of margin so that flying along a chunk border does not page chunks in and out
+            if (!isInRange(chunk.x - centerX, chunk.z - centerZ, loadRadius + 1)) {
+                it.remove();
+                chunk.dropped = true;
+                if (chunk.inScene) {
+                    scene.removeGameItem(chunk.item);
+                    sceneItems.remove(chunk.item);
+                    retire(chunk.lodMeshes);
+                }
+            } else if (chunk.inScene) {
+                int lod = getLod(chunk, position, chunk.lod);
+                if (lod != chunk.lod) {
+                    chunk.lod = lod;
+                    scene.setGameItemMesh(chunk.item, chunk.lodMeshes[lod]);
+                }
+            }
+        }
+    }
+
+    private static boolean isInRange(int dx, int dz, int radius) {
+        return dx * dx + dz * dz <= radius * radius;
+    }
+
+    /**
+     * @param current The level currently drawn, or -1 if none
+     */
+    private int getLod(Chunk chunk, Vector3f position, int current) {
+        Vector3f center = chunk.item.getPosition();
+        float dx = center.x - position.x;
+        float dz = center.z - position.z;
+        float distance = (float) Math.sqrt(dx * dx + dz * dz + position.y * position.y);
+        int lod = getLod(distance);
+        if (lod > current && current >= 0 && getLod(distance / LOD_HYSTERESIS) <= current) {
+            lod = current;
+        }
+        return lod;
+    }
+
+    private int getLod(float distance) {
+        int lod = 0;
+        float limit = lodDistance;
+        while (distance >= limit && lod < numLods - 1) {
+            limit *= 2;
+            lod++;
+        }
+        return lod;
+    }
+
+    /**
+     * Runs on the loader thread
+     */
+    private void generate(Chunk chunk) {
+        if (chunk.dropped) {
+            return;
+        }
+        MeshData[] lodData = new MeshData[numLods];
+        for (int lod = 0; lod < numLods; lod++) {
+            lodData[lod] = builder.build(chunk.x, chunk.z, lod);
+        }
+        chunk.lodData = lodData;
+        generated.add(chunk);
+    }
+
+    /**
+     * Creates the meshes of the chunks built by the loader thread, and deletes the meshes of dropped chunks. Must be
+     * called from the GL thread.
+     *
+     * @param budgetNanos Time after which no more chunk is uploaded, at least one chunk is uploaded per call
+     */
+    public void uploadChunks(long budgetNanos) {
+        int frame = GameEngine.getFrameCount();
+        RetiredMeshes retiredMeshes;
+        while ((retiredMeshes = retired.peek()) != null && frame - retiredMeshes.frame >= RETIRE_DELAY) {
+            retired.poll();
+            for (Mesh mesh : retiredMeshes.meshes) {
+                deleteMesh(mesh);
+            }
+        }
+
+        long deadline = System.nanoTime() + budgetNanos;
+        Chunk chunk;
+        while ((chunk = generated.poll()) != null) {
+            if (chunk.dropped) {
+                continue;
+            }
+            Mesh[] lodMeshes = new Mesh[numLods];
+            for (int lod = 0; lod < numLods; lod++) {
+                MeshData meshData = chunk.lodData[lod];
+                Mesh mesh = meshData.createMesh();
+                mesh.setMaterial(material);
+                TextureCache.getInstance().retain(material.getTexture());
+                mesh.setBoundingRadius(TerrainChunkBuilder.getBoundingRadius(meshData));
+                lodMeshes[lod] = mesh;
+            }
+            chunk.lodData = null;
+            chunk.lodMeshes = lodMeshes;
+            uploaded.add(chunk);
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+    }
+
+    private static void deleteMesh(Mesh mesh) {
+        mesh.deleteBuffers();
+        TextureCache.getInstance().release(mesh.getMaterial().getTexture());
+    }
+
+    private void retire(Mesh[] meshes) {
+        retired.add(new RetiredMeshes(meshes, GameEngine.getFrameCount()));
+    }
+
+    @Override
+    public float getHeight(float x, float z) {
+        float cellSize = builder.getCellSize();
+        float cellX = x / cellSize;
+        float cellZ = z / cellSize;
+        if (!Float.isFinite(cellX) || !Float.isFinite(cellZ)) {
+            return Float.MIN_VALUE;
+        }
+        int col = (int) Math.floor(cellX);
+        int row = (int) Math.floor(cellZ);
+        float fx = cellX - col;
+        float fz = cellZ - row;
+
+        float leftTop = source.getHeight(col, row);
+        float rightTop = source.getHeight(col + 1, row);
+        float leftBottom = source.getHeight(col, row + 1);
+        float rightBottom = source.getHeight(col + 1, row + 1);
+        // Interpolate in the same triangles as the full resolution chunks
+        if (fx + fz < 1) {
+            return leftTop + (rightTop - leftTop) * fx + (leftBottom - leftTop) * fz;
+        } else {
+            return rightBottom + (leftBottom - rightBottom) * (1 - fx) + (rightTop - rightBottom) * (1 - fz);
+        }
+    }
+
+    /**
+     * @return the chunks currently in the scene
+     */
+    @Override
+    public GameItem[] getGameItems() {
+        return sceneItems.toArray(new GameItem[sceneItems.size()]);
+    }
+
+    /**
+     * Stops the loader thread and deletes every mesh but the ones of the chunks still in the scene, which are cleaned
+     * up with it. Must be called from the GL thread.
+     */
+    public void cleanup() {
+        loader.shutdownNow();
+        for (Chunk chunk : chunks.values()) {
+            chunk.dropped = true;
+            if (chunk.lodMeshes != null) {
+                for (Mesh mesh : chunk.lodMeshes) {
+                    if (!chunk.inScene || mesh != chunk.item.getMesh()) {
+                        deleteMesh(mesh);
+                    }
+                }
+            }
+        }
+        chunks.clear();
+        Chunk chunk;
+        while ((chunk = uploaded.poll()) != null) {
+            for (Mesh mesh : chunk.lodMeshes) {
+                deleteMesh(mesh);
+            }
+        }
+        RetiredMeshes retiredMeshes;
+        while ((retiredMeshes = retired.poll()) != null) {
+            for (Mesh mesh : retiredMeshes.meshes) {
+                deleteMesh(mesh);
+            }
+        }
+        generated.clear();
+        TextureCache.getInstance().release(material.getTexture());
+    }
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private class Chunk {
+
+        final int x;
+
+        final int z;
+
+        final GameItem item;
+
+        /**
+         * Set by the loader thread, read by the GL thread once the chunk has been polled from the generated queue
+         */
+        volatile MeshData[] lodData;
+
+        volatile Mesh[] lodMeshes;
+
+        volatile boolean dropped;
+
+        int lod;
+
+        boolean inScene;
+
+        Chunk(int x, int z) {
+            this.x = x;
+            this.z = z;
+            float chunkSize = builder.getChunkSize();
+            item = new GameItem();
+            item.setPosition((x + 0.5f) * chunkSize, 0, (z + 0.5f) * chunkSize);
+        }
+    }
+
+    private static class RetiredMeshes {
+
+        final Mesh[] meshes;
+
+        final int frame;
+
+        RetiredMeshes(Mesh[] meshes, int frame) {
+            this.meshes = meshes;
+            this.frame = frame;
+        }
+    }
+}
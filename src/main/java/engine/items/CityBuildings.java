@@ -1,7 +1,5 @@
 package engine.items;
 
-import org.joml.Vector3f;
-
 public class CityBuildings extends GameItem {
 
 
@@ -9,9 +7,9 @@ public class CityBuildings extends GameItem {
         return new GameItem[]{this};
     }
 
-    public CityBuildings(String objFile, String textureDir, Terrain terrain) throws Exception {
+    public CityBuildings(String objFile, String textureDir, ITerrain terrain) throws Exception {
         super(objFile, textureDir, true);
-        final float height = terrain.getHeight(new Vector3f(0, 0, 0));
+        final float height = terrain.getHeight(0, 0);
         setPosition(0, height, 0);
         scale = 0.1f;
         getMesh().setBoundingRadius(1000);
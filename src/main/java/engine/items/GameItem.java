@@ -1,5 +1,6 @@
 package engine.items;
 
+import engine.Utils;
 import engine.graph.Material;
 import engine.graph.Texture;
 import engine.loaders.assimp.StaticMeshesLoader;
@@ -8,7 +9,6 @@ import org.joml.Quaternionf;
 import org.joml.Vector3f;
 import engine.graph.Mesh;
 
-import java.io.File;
 
 public class GameItem {
 
@@ -28,6 +28,10 @@ public class GameItem {
 
     private boolean insideFrustum;
 
+    private int lod;
+
+    private final GameItem prototype;
+
     public GameItem(String objModel, String textureFile) throws Exception {
         this(objModel, textureFile, null);
     }
@@ -48,14 +52,12 @@ public class GameItem {
 
     public GameItem(String objModel, String textureDir, boolean assimp) throws Exception {
         this();
-        String fileName = Thread.currentThread().getContextClassLoader()
-                .getResource(objModel).getFile();
-        File file = new File(fileName);
-        Mesh[] meshes = StaticMeshesLoader.load(file.getAbsolutePath(), textureDir);
+        Mesh[] meshes = StaticMeshesLoader.load(Utils.getResourcePath(objModel), textureDir);
         setMeshes(meshes);
     }
 
     public GameItem() {
+        prototype = null;
         selected = false;
         position = new Vector3f(0, 0, 0);
         scale = 1;
@@ -65,6 +67,24 @@ public class GameItem {
         disableFrustumCulling = false;
     }
 
+    /**
+     * Creates an instance of the prototype, which shares its meshes and materials and starts from a copy of its
+     * transform and state. The meshes stay owned by the prototype, instances of the same prototype are drawn in the
+     * same batches.
+     */
+    protected GameItem(GameItem prototype) {
+        this.prototype = prototype.prototype != null ? prototype.prototype : prototype;
+        meshes = prototype.meshes;
+        selected = prototype.selected;
+        position = new Vector3f(prototype.position);
+        scale = prototype.scale;
+        rotation = new Quaternionf(prototype.rotation);
+        textPos = prototype.textPos;
+        insideFrustum = prototype.insideFrustum;
+        disableFrustumCulling = prototype.disableFrustumCulling;
+        lod = prototype.lod;
+    }
+
     public GameItem(Mesh mesh) {
         this();
         this.meshes = new Mesh[]{mesh};
@@ -75,6 +95,20 @@ public class GameItem {
         this.meshes = meshes;
     }
 
+    /**
+     * Subclasses with state of their own override this to return an instance of their type
+     */
+    public GameItem newInstance() {
+        return new GameItem(this);
+    }
+
+    /**
+     * @return the item this one is an instance of, or null if it is not one
+     */
+    public GameItem getPrototype() {
+        return prototype;
+    }
+
     public Vector3f getPosition() {
         return position;
     }
@@ -125,7 +159,13 @@ public class GameItem {
         this.meshes = new Mesh[]{mesh};
     }
 
+    /**
+     * Deletes the meshes, unless the item is an instance of a prototype owning them
+     */
     public void cleanup() {
+        if (prototype != null) {
+            return;
+        }
         int numMeshes = this.meshes != null ? this.meshes.length : 0;
         for (int i = 0; i < numMeshes; i++) {
             this.meshes[i].cleanUp();
@@ -140,6 +180,17 @@ public class GameItem {
         this.textPos = textPos;
     }
 
+    /**
+     * @return the level of detail the meshes of the item are drawn with, 0 for the full meshes
+     */
+    public int getLod() {
+        return lod;
+    }
+
+    public void setLod(int lod) {
+        this.lod = lod;
+    }
+
     public boolean isInsideFrustum() {
         return insideFrustum;
     }
@@ -0,0 +1,39 @@
+package engine.items;
+
+import org.joml.Vector3f;
+
+/**
+ * Ground the plane flies over, queried for its height at any world position.
+ */
+public interface ITerrain {
+
+    /**
+     * @return the height of the terrain at the given world coordinates, or Float.MIN_VALUE outside of the terrain
+     */
+    float getHeight(float x, float z);
+
+    default float getHeight(Vector3f position) {
+        return getHeight(position.x, position.z);
+    }
+
+    /**
+     * Samples the height of many positions at once.
+     *
+     * @param xz  The world coordinates, x and z of each position one after the other
+     * @param out Receives the height of each position, see {@link #getHeight(float, float)}
+     */
+    default void getHeights(float[] xz, float[] out) {
+        int count = xz.length / 2;
+        if (out.length < count) {
+            throw new IllegalArgumentException("Output holds " + out.length + " heights, " + count + " needed");
+        }
+        for (int i = 0; i < count; i++) {
+            out[i] = getHeight(xz[i * 2], xz[i * 2 + 1]);
+        }
+    }
+
+    /**
+     * @return the items drawing the terrain, added to the scene with it
+     */
+    GameItem[] getGameItems();
+}
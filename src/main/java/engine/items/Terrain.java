@@ -1,26 +1,43 @@
 package engine.items;
 
 import de.matthiasmann.twl.utils.PNGDecoder;
-import org.joml.Vector3f;
 import engine.graph.HeightMapMesh;
+import engine.graph.Texture;
+import engine.graph.TextureData;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 
-public class Terrain {
+public class Terrain implements ITerrain {
 
     private final GameItem[] gameItems;
 
     private final int terrainSize;
 
-    private final int verticesPerCol;
+    private final float scale;
 
-    private final int verticesPerRow;
+    /**
+     * World coordinates of the corner of the first block
+     */
+    private final float originX;
+
+    private final float originZ;
+
+    private final float blockWidth;
+
+    private final float blockDepth;
 
     /**
-     * It will hold the bounding box for each terrain block
+     * Unscaled heights of each block, indexed as the game items, and the size of their grids
      */
-    private final Box2D[][] boundingBoxes;
+    private final float[][] blockHeights;
+
+    private final int[] blockCols;
+
+    private final int[] blockRows;
+
     public Terrain(int terrainSize, float scale, float minY, float maxY, String heightMapFile, String textureFile,
                    int textInc) throws Exception {
         this(terrainSize, scale, minY, maxY, heightMapFile, textureFile, textInc, null);
@@ -42,54 +59,95 @@ public class Terrain {
      */
     public Terrain(int terrainSize, float scale, float minY, float maxY, String heightMapFile, String textureFile,
                    int textInc, String cityHeightFile) throws Exception {
+        this(terrainSize, scale, loadHeightMapMesh(minY, maxY, heightMapFile, textureFile, textInc),
+             cityHeightFile != null ? loadHeightMapMesh(minY, maxY, cityHeightFile, textureFile, textInc) : null);
+    }
+
+    /**
+     * Builds the terrain from height maps already loaded. The height maps may have been built without a mesh, in that
+     * case only the height queries are usable.
+     *
+     * @param cityHeightMapMesh Height map of the central block, may be null
+     */
+    public Terrain(int terrainSize, float scale, HeightMapMesh heightMapMesh, HeightMapMesh cityHeightMapMesh) {
         this.terrainSize = terrainSize;
+        this.scale = scale;
         gameItems = new GameItem[terrainSize * terrainSize];
-        final PNGData terrainHeightMap = decodePng(heightMapFile);
-
+        blockHeights = new float[terrainSize * terrainSize][];
+        blockCols = new int[terrainSize * terrainSize];
+        blockRows = new int[terrainSize * terrainSize];
 
-        // The number of vertices per column and row
-        verticesPerCol = terrainHeightMap.width - 1;
-        verticesPerRow = terrainHeightMap.height - 1;
+        blockWidth = HeightMapMesh.getXLength() * scale;
+        blockDepth = HeightMapMesh.getZLength() * scale;
+        originX = HeightMapMesh.STARTX * scale - ((float) terrainSize - 1) / (float) 2 * blockWidth;
+        originZ = HeightMapMesh.STARTZ * scale - ((float) terrainSize - 1) / (float) 2 * blockDepth;
 
-        HeightMapMesh heightMapMesh = new HeightMapMesh(minY, maxY, terrainHeightMap.buf, terrainHeightMap.width,
-                                          terrainHeightMap.height, textureFile, textInc);
-        HeightMapMesh cityHeightMapMesh;
-        if (cityHeightFile != null) {
-            final PNGData cityHeightMap = decodePng(cityHeightFile);
-            cityHeightMapMesh = new HeightMapMesh(minY, maxY, cityHeightMap.buf, cityHeightMap.width,
-                                                  cityHeightMap.height, textureFile, textInc);
-        } else {
-            cityHeightMapMesh = null;
-        }
-
-        boundingBoxes = new Box2D[terrainSize][terrainSize];
         for (int row = 0; row < terrainSize; row++) {
             for (int col = 0; col < terrainSize; col++) {
-                float xDisplacement = (col - ((float) terrainSize - 1) / (float) 2) * scale * HeightMapMesh.getXLength();
-                float zDisplacement = (row - ((float) terrainSize - 1) / (float) 2) * scale * HeightMapMesh.getZLength();
+                float xDisplacement = (col - ((float) terrainSize - 1) / (float) 2) * blockWidth;
+                float zDisplacement = (row - ((float) terrainSize - 1) / (float) 2) * blockDepth;
 
-                GameItem terrainBlock;
+                HeightMapMesh blockMesh;
                 if (col == terrainSize / 2 && row == terrainSize / 2 && cityHeightMapMesh != null) {
-                    terrainBlock = new GameItem(cityHeightMapMesh.getMesh());
+                    blockMesh = cityHeightMapMesh;
                 } else {
-                    terrainBlock = new GameItem(heightMapMesh.getMesh());
+                    blockMesh = heightMapMesh;
                 }
-
+                GameItem terrainBlock = new GameItem(blockMesh.getMesh());
                 terrainBlock.setScale(scale);
                 terrainBlock.setPosition(xDisplacement, 0, zDisplacement);
-                gameItems[row * terrainSize + col] = terrainBlock;
 
-                if (col == terrainSize / 2 && row == terrainSize / 2 && cityHeightMapMesh != null) {
-                    boundingBoxes[row][col] = getBoundingBox(terrainBlock, cityHeightMapMesh);
-                } else {
-                    boundingBoxes[row][col] = getBoundingBox(terrainBlock, heightMapMesh);
-                }
+                int block = row * terrainSize + col;
+                gameItems[block] = terrainBlock;
+                blockHeights[block] = blockMesh.getHeights();
+                blockCols[block] = blockMesh.getNumCols();
+                blockRows[block] = blockMesh.getNumRows();
             }
         }
     }
 
-    private PNGData decodePng(String heightMapFile) throws IOException {
-        PNGDecoder decoder = new PNGDecoder(getClass().getResourceAsStream(heightMapFile));
+    /**
+     * Does the whole CPU side of the terrain construction, height maps and texture decoding, on the calling thread.
+     *
+     * @return the GL side, to call from the GL thread
+     */
+    public static Callable<Terrain> prepare(int terrainSize, float scale, float minY, float maxY, String heightMapFile,
+                                            String textureFile, int textInc, String cityHeightFile) throws Exception {
+        HeightMapMesh heightMapMesh = loadHeightMap(minY, maxY, heightMapFile, textInc);
+        HeightMapMesh cityHeightMapMesh = cityHeightFile != null ?
+                loadHeightMap(minY, maxY, cityHeightFile, textInc) : null;
+        TextureData textureData = TextureData.load(textureFile);
+        return () -> {
+            Texture texture = new Texture(textureData);
+            heightMapMesh.createMesh(texture);
+            if (cityHeightMapMesh != null) {
+                cityHeightMapMesh.createMesh(texture);
+            }
+            return new Terrain(terrainSize, scale, heightMapMesh, cityHeightMapMesh);
+        };
+    }
+
+    /**
+     * Loads the heights of a height map without creating its mesh
+     */
+    public static HeightMapMesh loadHeightMap(float minY, float maxY, String heightMapFile) throws IOException {
+        return loadHeightMap(minY, maxY, heightMapFile, 1);
+    }
+
+    private static HeightMapMesh loadHeightMap(float minY, float maxY, String heightMapFile,
+                                               int textInc) throws IOException {
+        PNGData heightMap = decodePng(heightMapFile);
+        return new HeightMapMesh(minY, maxY, heightMap.buf, heightMap.width, heightMap.height, textInc);
+    }
+
+    private static HeightMapMesh loadHeightMapMesh(float minY, float maxY, String heightMapFile, String textureFile,
+                                                   int textInc) throws Exception {
+        PNGData heightMap = decodePng(heightMapFile);
+        return new HeightMapMesh(minY, maxY, heightMap.buf, heightMap.width, heightMap.height, textureFile, textInc);
+    }
+
+    private static PNGData decodePng(String heightMapFile) throws IOException {
+        PNGDecoder decoder = new PNGDecoder(Terrain.class.getResourceAsStream(heightMapFile));
         ByteBuffer buf = ByteBuffer.allocateDirect(
                 4 * decoder.getWidth() * decoder.getHeight());
         decoder.decode(buf, decoder.getWidth() * 4, PNGDecoder.Format.RGBA);
@@ -99,133 +157,110 @@ public class Terrain {
         return new PNGData(buf, height, width);
     }
 
-    public float getHeight(Vector3f position) {
-        float result = Float.MIN_VALUE;
-        // For each terrain block we get the bounding box, translate it to view coodinates
-        // and check if the position is contained in that bounding box
-        Box2D boundingBox = null;
-        boolean found = false;
-        GameItem terrainBlock = null;
-        for (int row = 0; row < terrainSize && !found; row++) {
-            for (int col = 0; col < terrainSize && !found; col++) {
-                terrainBlock = gameItems[row * terrainSize + col];
-                boundingBox = boundingBoxes[row][col];
-                found = boundingBox.contains(position.x, position.z);
-            }
-        }
-
-        // If we have found a terrain block that contains the position we need
-        // to calculate the height of the terrain on that position
-        if (found) {
-            Vector3f[] triangle = getTriangle(position, boundingBox, terrainBlock);
-            result = interpolateHeight(triangle[0], triangle[1], triangle[2], position.x, position.z);
+    @Override
+    public float getHeight(float x, float z) {
+        float blockX = (x - originX) / blockWidth;
+        float blockZ = (z - originZ) / blockDepth;
+        // Written so that NaN coordinates are outside too
+        if (!(blockX >= 0 && blockZ >= 0 && blockX < terrainSize && blockZ < terrainSize)) {
+            return Float.MIN_VALUE;
         }
-
-        return result;
+        int col = (int) blockX;
+        int row = (int) blockZ;
+        int block = row * terrainSize + col;
+        return getBlockHeight(blockHeights[block], blockCols[block], blockRows[block], blockX - col, blockZ - row);
     }
 
-    protected Vector3f[] getTriangle(Vector3f position, Box2D boundingBox, GameItem terrainBlock) {
-        // Get the column and row of the heightmap associated to the current position
-        float cellWidth = boundingBox.width / (float) verticesPerCol;
-        float cellHeight = boundingBox.height / (float) verticesPerRow;
-        int col = (int) ((position.x - boundingBox.x) / cellWidth);
-        int row = (int) ((position.z - boundingBox.y) / cellHeight);
-
-        Vector3f[] triangle = new Vector3f[3];
-        triangle[1] = new Vector3f(
-                boundingBox.x + col * cellWidth,
-                getWorldHeight(row + 1, col, terrainBlock, boundingBox),
-                boundingBox.y + (row + 1) * cellHeight);
-        triangle[2] = new Vector3f(
-                boundingBox.x + (col + 1) * cellWidth,
-                getWorldHeight(row, col + 1, terrainBlock, boundingBox),
-                boundingBox.y + row * cellHeight);
-        if (position.z < getDiagonalZCoord(triangle[1].x, triangle[1].z, triangle[2].x, triangle[2].z, position.x)) {
-            triangle[0] = new Vector3f(
-                    boundingBox.x + col * cellWidth,
-                    getWorldHeight(row, col, terrainBlock, boundingBox),
-                    boundingBox.y + row * cellHeight);
-        } else {
-            triangle[0] = new Vector3f(
-                    boundingBox.x + (col + 1) * cellWidth,
-                    getWorldHeight(row + 2, col + 1, terrainBlock, boundingBox),
-                    boundingBox.y + (row + 1) * cellHeight);
+    /**
+     * Groups the positions by block first, then interpolates the positions of each block one after the other, so that
+     * a single height array is read at a time instead of jumping between blocks from one position to the next.
+     */
+    @Override
+    public void getHeights(float[] xz, float[] out) {
+        int count = xz.length / 2;
+        if (out.length < count) {
+            throw new IllegalArgumentException("Output holds " + out.length + " heights, " + count + " needed");
+        }
+        int numBlocks = blockHeights.length;
+        int[] pointBlocks = new int[count];
+        float[] uv = new float[count * 2];
+        // Counting sort of the positions by block, blockStart[block + 1] first counts the positions of the block
+        int[] blockStart = new int[numBlocks + 1];
+        for (int i = 0; i < count; i++) {
+            float blockX = (xz[i * 2] - originX) / blockWidth;
+            float blockZ = (xz[i * 2 + 1] - originZ) / blockDepth;
+            if (!(blockX >= 0 && blockZ >= 0 && blockX < terrainSize && blockZ < terrainSize)) {
+                out[i] = Float.MIN_VALUE;
+                pointBlocks[i] = -1;
+                continue;
+            }
+            int col = (int) blockX;
+            int row = (int) blockZ;
+            int block = row * terrainSize + col;
+            pointBlocks[i] = block;
+            uv[i * 2] = blockX - col;
+            uv[i * 2 + 1] = blockZ - row;
+            blockStart[block + 1]++;
+        }
+        for (int block = 0; block < numBlocks; block++) {
+            blockStart[block + 1] += blockStart[block];
+        }
+        int[] next = Arrays.copyOf(blockStart, numBlocks);
+        int[] order = new int[blockStart[numBlocks]];
+        for (int i = 0; i < count; i++) {
+            if (pointBlocks[i] >= 0) {
+                order[next[pointBlocks[i]]++] = i;
+            }
         }
 
-        return triangle;
-    }
-
-    protected float getDiagonalZCoord(float x1, float z1, float x2, float z2, float x) {
-        float z = ((z1 - z2) / (x1 - x2)) * (x - x1) + z1;
-        return z;
-    }
-
-    protected float getWorldHeight(int row, int col, GameItem gameItem, Box2D box2D) {
-        float y = box2D.heightMapMesh.getHeight(row, col);
-        return y * gameItem.getScale() + gameItem.getPosition().y;
-    }
-
-    protected float interpolateHeight(Vector3f pA, Vector3f pB, Vector3f pC, float x, float z) {
-        // Plane equation ax+by+cz+d=0
-        float a = (pB.y - pA.y) * (pC.z - pA.z) - (pC.y - pA.y) * (pB.z - pA.z);
-        float b = (pB.z - pA.z) * (pC.x - pA.x) - (pC.z - pA.z) * (pB.x - pA.x);
-        float c = (pB.x - pA.x) * (pC.y - pA.y) - (pC.x - pA.x) * (pB.y - pA.y);
-        float d = -(a * pA.x + b * pA.y + c * pA.z);
-        // y = (-d -ax -cz) / b
-        float y = (-d - a * x - c * z) / b;
-        return y;
+        for (int block = 0; block < numBlocks; block++) {
+            float[] heights = blockHeights[block];
+            int cols = blockCols[block];
+            int rows = blockRows[block];
+            for (int j = blockStart[block]; j < blockStart[block + 1]; j++) {
+                int i = order[j];
+                out[i] = getBlockHeight(heights, cols, rows, uv[i * 2], uv[i * 2 + 1]);
+            }
+        }
     }
 
     /**
-     * Gets the bounding box of a terrain block
+     * Interpolates the height inside the triangle of the height map grid containing the position. Cells are split
+     * along the diagonal going from their bottom left to their top right corner, the same way the mesh is built.
      *
-     * @param terrainBlock A GameItem instance that defines the terrain block
-     * @return The boundingg box of the terrain block
+     * @param u The position inside the block along x, from 0 to 1
+     * @param v The position inside the block along z, from 0 to 1
      */
-    private Box2D getBoundingBox(GameItem terrainBlock, HeightMapMesh heightMapMesh) {
-        float scale = terrainBlock.getScale();
-        Vector3f position = terrainBlock.getPosition();
-
-        float topLeftX = HeightMapMesh.STARTX * scale + position.x;
-        float topLeftZ = HeightMapMesh.STARTZ * scale + position.z;
-        float width = Math.abs(HeightMapMesh.STARTX * 2) * scale;
-        float height = Math.abs(HeightMapMesh.STARTZ * 2) * scale;
-        Box2D boundingBox = new Box2D(topLeftX, topLeftZ, width, height, heightMapMesh);
-        return boundingBox;
+    private float getBlockHeight(float[] heights, int cols, int rows, float u, float v) {
+        int cellsX = cols - 1;
+        int cellsZ = rows - 1;
+        float cellX = u * cellsX;
+        float cellZ = v * cellsZ;
+        int col = Math.min((int) cellX, cellsX - 1);
+        int row = Math.min((int) cellZ, cellsZ - 1);
+        float fx = cellX - col;
+        float fz = cellZ - row;
+
+        int i = row * cols + col;
+        float leftTop = heights[i];
+        float rightTop = heights[i + 1];
+        float leftBottom = heights[i + cols];
+        float rightBottom = heights[i + cols + 1];
+
+        float y;
+        if (fx + fz < 1) {
+            y = leftTop + (rightTop - leftTop) * fx + (leftBottom - leftTop) * fz;
+        } else {
+            y = rightBottom + (leftBottom - rightBottom) * (1 - fx) + (rightTop - rightBottom) * (1 - fz);
+        }
+        return y * scale;
     }
 
+    @Override
     public GameItem[] getGameItems() {
         return gameItems;
     }
 
-    static class Box2D {
-
-        public float x;
-
-        public float y;
-
-        public float width;
-
-        public float height;
-
-        HeightMapMesh heightMapMesh;
-
-        public Box2D(float x, float y, float width, float height, HeightMapMesh heightMapMesh) {
-            this.x = x;
-            this.y = y;
-            this.width = width;
-            this.height = height;
-            this.heightMapMesh = heightMapMesh;
-        }
-
-        public boolean contains(float x2, float y2) {
-            return x2 >= x
-                    && y2 >= y
-                    && x2 < x + width
-                    && y2 < y + height;
-        }
-    }
-
     static class PNGData {
         final ByteBuffer buf;
         final int height;
@@ -0,0 +1,43 @@
+package engine.items;
+
+import engine.graph.HeightMapMesh;
+import engine.graph.TerrainChunkBuilder;
+
+/**
+ * Height source repeating a height map over an unbounded world. Every other copy is mirrored, so the borders of two
+ * neighbour copies always match and the tiling has no seams.
+ */
+public class TiledHeightMap implements TerrainChunkBuilder.HeightSource {
+
+    private final float[] heights;
+
+    private final int numCols;
+
+    private final int numRows;
+
+    private final float heightScale;
+
+    /**
+     * @param heightScale Applied to the heights of the height map, usually the scale the map had as a terrain block
+     */
+    public TiledHeightMap(HeightMapMesh heightMap, float heightScale) {
+        this.heights = heightMap.getHeights();
+        this.numCols = heightMap.getNumCols();
+        this.numRows = heightMap.getNumRows();
+        this.heightScale = heightScale;
+    }
+
+    @Override
+    public float getHeight(int x, int z) {
+        return heights[mirror(z, numRows) * numCols + mirror(x, numCols)] * heightScale;
+    }
+
+    private static int mirror(int coord, int size) {
+        if (size == 1) {
+            return 0;
+        }
+        int period = 2 * (size - 1);
+        int pos = Math.floorMod(coord, period);
+        return pos < size ? pos : period - pos;
+    }
+}
@@ -0,0 +1,99 @@
+package engine.loaders;
+
+import engine.graph.anim.AnimationData;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Cache of processed skeletal animations, so that their source files are parsed and their joint matrices computed only
+ * once. Each animation is cooked into a file made of a header, the number of joints and frames, followed by the inverse
+ * bind matrices and the local joint matrices of every frame as flat float blocks.
+ * <p>
+ * Entries are keyed and checked by a {@link CacheFile}, as the {@link MeshCache} ones, the content hash covering every
+ * source the animation is computed from. The cache directory is read from the {@value #DIRECTORY_PROPERTY} system
+ * property, "off" disables the cache.
+ */
+public class AnimationCache {
+
+    public static final String DIRECTORY_PROPERTY = "hittheground.animationCache";
+
+    private static final int MAGIC = 0x41475448;
+
+    private static final int VERSION = 2;
+
+    private static final int ANIMATION_HEADER_BYTES = 2 * Integer.BYTES;
+
+    private static AnimationCache INSTANCE;
+
+    private final CacheFile cacheFile;
+
+    private AnimationCache() {
+        cacheFile = CacheFile.fromProperty(DIRECTORY_PROPERTY, "animation-cache", "animation", "anim", MAGIC,
+                                           VERSION);
+    }
+
+    public static synchronized AnimationCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new AnimationCache();
+        }
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return cacheFile.isEnabled();
+    }
+
+    /**
+     * @param key         Paths of the sources of the animation
+     * @param contentHash Hash of the sources content, as returned by {@link MeshCache#contentHash(java.io.InputStream)}
+     * @return the animation, or null if it is not cached or its sources have changed since
+     */
+    public AnimationData read(String key, long contentHash) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        ByteBuffer buffer = cacheFile.map(key, contentHash, ANIMATION_HEADER_BYTES);
+        if (buffer == null) {
+            return null;
+        }
+        int numJoints = buffer.getInt();
+        int numFrames = buffer.getInt();
+        float[] invJointMatrices = new float[numJoints * AnimationData.MATRIX_FLOATS];
+        float[] localJointMatrices = new float[numFrames * invJointMatrices.length];
+        if (buffer.remaining() != (long) Float.BYTES * (invJointMatrices.length + localJointMatrices.length)) {
+            return null;
+        }
+        buffer.asFloatBuffer().get(invJointMatrices).get(localJointMatrices);
+        return new AnimationData(numJoints, numFrames, invJointMatrices, localJointMatrices);
+    }
+
+    /**
+     * Cooks an animation. Failing to write the cache is not fatal, the animation is just processed again next time.
+     */
+    public void store(String key, long contentHash, AnimationData animation) {
+        if (!isEnabled()) {
+            return;
+        }
+        float[] invJointMatrices = animation.getInvJointMatrices();
+        float[] localJointMatrices = animation.getLocalJointMatrices();
+        long size = CacheFile.HEADER_BYTES + ANIMATION_HEADER_BYTES
+                + (long) Float.BYTES * (invJointMatrices.length + localJointMatrices.length);
+        if (size > Integer.MAX_VALUE) {
+            return;
+        }
+
+        ByteBuffer buffer = MemoryUtil.memAlloc((int) size).order(ByteOrder.nativeOrder());
+        try {
+            cacheFile.putHeader(buffer, key, contentHash);
+            buffer.putInt(animation.getNumJoints()).putInt(animation.getNumFrames());
+            buffer.asFloatBuffer().put(invJointMatrices).put(localJointMatrices);
+            buffer.clear();
+            cacheFile.write(key, channel -> CacheFile.write(channel, buffer));
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package engine.loaders;
+
+import engine.Utils;
+import engine.graph.Mesh;
+import engine.graph.Texture;
+import engine.graph.TextureData;
+import engine.loaders.assimp.StaticMeshesLoader;
+import engine.loaders.obj.OBJLoader;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Loads assets without blocking the game loop. Every asset is loaded in two stages:
+ * <ul>
+ * <li>the CPU stage, file reading, decoding and mesh building, runs on a worker thread and returns the GL stage,</li>
+ * <li>the GL stage, creating the OpenGL objects, is queued until the GL thread runs it in
+ * {@link #processUploads(long)}.</li>
+ * </ul>
+ * The returned futures complete on the GL thread. {@link #whenLoaded(CompletableFuture, Consumer)} hands their result
+ * to the thread updating the scene instead, in {@link #dispatchLoaded()}.
+ */
+public class AssetLoader {
+
+    private final ExecutorService workers;
+
+    /**
+     * GL stages of the assets whose CPU stage is done, filled by the workers
+     */
+    private final Queue<Upload<?>> uploads;
+
+    /**
+     * Callbacks of the loaded assets, filled by the GL thread
+     */
+    private final Queue<Runnable> loaded;
+
+    private final AtomicInteger pending;
+
+    public AssetLoader() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public AssetLoader(int numWorkers) {
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(numWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "asset-loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        uploads = new ConcurrentLinkedQueue<>();
+        loaded = new ConcurrentLinkedQueue<>();
+        pending = new AtomicInteger();
+    }
+
+    /**
+     * @param task CPU stage of the asset, run on a worker thread, returning its GL stage
+     */
+    public <T> CompletableFuture<T> load(Callable<Callable<T>> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pending.incrementAndGet();
+        workers.execute(() -> {
+            try {
+                uploads.add(new Upload<>(task.call(), future));
+            } catch (Throwable e) {
+                pending.decrementAndGet();
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<Texture> loadTexture(String fileName) {
+        return load(() -> {
+            TextureData data = TextureData.load(fileName);
+            return () -> new Texture(data);
+        });
+    }
+
+    /**
+     * @see OBJLoader#loadMesh(String)
+     */
+    public CompletableFuture<Mesh> loadMesh(String objFile) {
+        return load(() -> OBJLoader.prepareMesh(objFile));
+    }
+
+    /**
+     * @param resource Model in the class path, loaded with Assimp
+     * @see StaticMeshesLoader#load(String, String)
+     */
+    public CompletableFuture<Mesh[]> loadMeshes(String resource, String texturesDir) {
+        return load(() -> StaticMeshesLoader.prepare(Utils.getResourcePath(resource), texturesDir));
+    }
+
+    /**
+     * Runs the GL stage of the assets whose CPU stage is done. Must be called from the GL thread.
+     *
+     * @param budgetNanos Time after which no more asset is uploaded, at least one asset is uploaded per call
+     */
+    public void processUploads(long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        Upload<?> upload;
+        while ((upload = uploads.poll()) != null) {
+            upload.run();
+            pending.decrementAndGet();
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer from {@link #dispatchLoaded()} once the asset is loaded. If the asset fails to load, the
+     * failure is thrown from there instead.
+     */
+    public <T> void whenLoaded(CompletableFuture<T> future, Consumer<T> consumer) {
+        future.whenComplete((result, failure) -> loaded.add(() -> {
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                throw new IllegalStateException("Asset could not be loaded", cause);
+            }
+            consumer.accept(result);
+        }));
+    }
+
+    /**
+     * Calls the consumers of the assets loaded since the last call. Must be called from the thread updating the scene.
+     */
+    public void dispatchLoaded() {
+        Runnable callback;
+        while ((callback = loaded.poll()) != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @return whether every asset requested has been uploaded
+     */
+    public boolean isIdle() {
+        return pending.get() == 0;
+    }
+
+    /**
+     * Stops the workers. Assets not uploaded yet are dropped, their futures never complete.
+     */
+    public void cleanup() {
+        workers.shutdownNow();
+        uploads.clear();
+        loaded.clear();
+    }
+
+    private static class Upload<T> {
+
+        final Callable<T> glStage;
+
+        final CompletableFuture<T> future;
+
+        Upload(Callable<T> glStage, CompletableFuture<T> future) {
+            this.glStage = glStage;
+            this.future = future;
+        }
+
+        void run() {
+            try {
+                future.complete(glStage.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package engine.loaders;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.util.xxhash.XXHash.XXH64;
+
+/**
+ * Files of a cache of cooked assets, one per key in the cache directory. Every file starts with a header made of the
+ * magic number and version of the cache, the XXH64 hash of the source content and the hash of the key, followed by
+ * the payload written by the cache. Files are written in the native byte order, a file cooked on a machine with
+ * another order fails the magic check and is cooked again.
+ */
+class CacheFile {
+
+    static final int HEADER_BYTES = 3 * Integer.BYTES + Long.BYTES;
+
+    private static final long SEED = 0;
+
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final int MAX_NAME_LENGTH = 96;
+
+    private final Path directory;
+
+    private final String description;
+
+    private final String extension;
+
+    private final int magic;
+
+    private final int version;
+
+    private CacheFile(Path directory, String description, String extension, int magic, int version) {
+        this.directory = directory;
+        this.description = description;
+        this.extension = extension;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    /**
+     * @param property    System property holding the cache directory, "off" disables the cache
+     * @param defaultName Directory in ~/.hittheground used when the property is not set
+     * @param description What the cache holds, for the warnings
+     */
+    static CacheFile fromProperty(String property, String defaultName, String description, String extension,
+                                  int magic, int version) {
+        String value = System.getProperty(property);
+        Path directory;
+        if ("off".equalsIgnoreCase(value)) {
+            directory = null;
+        } else if (value != null && !value.isEmpty()) {
+            directory = Paths.get(value);
+        } else {
+            directory = Paths.get(System.getProperty("user.home"), ".hittheground", defaultName);
+        }
+        return new CacheFile(directory, description, extension, magic, version);
+    }
+
+    boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Maps the file of a key in the native byte order, without copying it
+     *
+     * @param payloadHeaderBytes Bytes the payload starts with, shorter files are ignored
+     * @return the file positioned after the header, or null if there is none, or it was cooked for another key,
+     * source content or format
+     */
+    ByteBuffer map(String key, long contentHash, int payloadHeaderBytes) throws IOException {
+        Path file = getFile(key);
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES + payloadHeaderBytes) {
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.nativeOrder());
+        if (buffer.getInt() != magic || buffer.getInt() != version || buffer.getLong() != contentHash
+                || buffer.getInt() != key.hashCode()) {
+            return null;
+        }
+        return buffer;
+    }
+
+    void putHeader(ByteBuffer buffer, String key, long contentHash) {
+        buffer.putInt(magic).putInt(version).putLong(contentHash).putInt(key.hashCode());
+    }
+
+    /**
+     * Writes the file of a key into a temporary file moved in place once complete, so that readers never see a
+     * partially written file. Failing is not fatal, a warning is printed and the asset is cooked again next time.
+     */
+    void write(String key, Payload payload) {
+        try {
+            Files.createDirectories(directory);
+            Path file = getFile(key);
+            Path tmpFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                    payload.write(channel);
+                }
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            System.err.println("Warning could not write " + description + " cache for " + key + ": " + e);
+        }
+    }
+
+    static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Path getFile(String key) {
+        String name = key.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(name.length() - MAX_NAME_LENGTH);
+        }
+        return directory.resolve(name + "-" + Integer.toHexString(key.hashCode()) + "." + extension);
+    }
+
+    /**
+     * @return the XXH64 hash of the content of the buffer, from its position to its limit
+     */
+    static long contentHash(ByteBuffer data) {
+        if (data.isDirect()) {
+            return XXH64(data, SEED);
+        }
+        ByteBuffer copy = MemoryUtil.memAlloc(data.remaining());
+        try {
+            copy.put(data.duplicate()).flip();
+            return XXH64(copy, SEED);
+        } finally {
+            MemoryUtil.memFree(copy);
+        }
+    }
+
+    /**
+     * @return the XXH64 hashes of the successive chunks of the stream, each one seeded with the previous one
+     */
+    static long contentHash(InputStream in) throws IOException {
+        byte[] bytes = new byte[CHUNK_BYTES];
+        ByteBuffer chunk = MemoryUtil.memAlloc(CHUNK_BYTES);
+        try {
+            long hash = SEED;
+            int filled;
+            do {
+                // Chunks are filled up, so the hash does not depend on how the stream splits its reads
+                filled = 0;
+                int read;
+                while (filled < CHUNK_BYTES && (read = in.read(bytes, filled, CHUNK_BYTES - filled)) != -1) {
+                    filled += read;
+                }
+                chunk.clear();
+                chunk.put(bytes, 0, filled).flip();
+                hash = XXH64(chunk, hash);
+            } while (filled == CHUNK_BYTES);
+            return hash;
+        } finally {
+            MemoryUtil.memFree(chunk);
+        }
+    }
+
+    interface Payload {
+
+        void write(FileChannel channel) throws IOException;
+    }
+}
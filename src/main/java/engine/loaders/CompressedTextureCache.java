@@ -0,0 +1,110 @@
+package engine.loaders;
+
+import engine.graph.TextureData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Cache of textures block compressed with their whole mip chain, so that they are decoded and compressed only once.
+ * Each texture is cooked into a file made of a header, the compressed format and size, followed by every level from
+ * the full size one down to 1x1. The following loads map that file and hand the levels to OpenGL without copying them.
+ * <p>
+ * Entries are keyed and checked by a {@link CacheFile}, as the {@link MeshCache} ones. The cache directory is read
+ * from the {@value #DIRECTORY_PROPERTY} system property, "off" disables the cache. It is disabled as well until
+ * {@link #setEnabled(boolean)} is called, by the renderer once it knows the compressed formats are supported.
+ */
+public class CompressedTextureCache {
+
+    public static final String DIRECTORY_PROPERTY = "hittheground.textureCache";
+
+    private static final int MAGIC = 0x43475448;
+
+    private static final int VERSION = 2;
+
+    private static final int TEXTURE_HEADER_BYTES = 3 * Integer.BYTES;
+
+    private static CompressedTextureCache INSTANCE;
+
+    private final CacheFile cacheFile;
+
+    private volatile boolean enabled;
+
+    private CompressedTextureCache() {
+        cacheFile = CacheFile.fromProperty(DIRECTORY_PROPERTY, "texture-cache", "texture", "tex", MAGIC, VERSION);
+    }
+
+    public static synchronized CompressedTextureCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new CompressedTextureCache();
+        }
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled && cacheFile.isEnabled();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Loads the texture cooked for an image, cooking it first if needed. Does not touch OpenGL.
+     *
+     * @param key       Path of the source image
+     * @param imageData Content of the source image, from its position to its limit
+     * @return the compressed texture
+     */
+    public TextureData load(String key, ByteBuffer imageData) throws IOException {
+        long contentHash = CacheFile.contentHash(imageData);
+        TextureData cooked = read(key, contentHash);
+        if (cooked == null) {
+            cooked = TextureData.decode(imageData).compress();
+            store(key, contentHash, cooked);
+        }
+        return cooked;
+    }
+
+    private TextureData read(String key, long contentHash) throws IOException {
+        ByteBuffer buffer = cacheFile.map(key, contentHash, TEXTURE_HEADER_BYTES);
+        if (buffer == null) {
+            return null;
+        }
+        int format = buffer.getInt();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        ByteBuffer[] levels = new ByteBuffer[TextureData.getNumLevels(width, height)];
+        for (int level = 0; level < levels.length; level++) {
+            int size = buffer.getInt();
+            ByteBuffer view = buffer.duplicate();
+            view.limit(buffer.position() + size);
+            levels[level] = view.slice();
+            buffer.position(buffer.position() + size);
+        }
+        return new TextureData(format, width, height, levels, null);
+    }
+
+    /**
+     * Failing to write the cache is not fatal, the texture is just compressed again next time
+     */
+    private void store(String key, long contentHash, TextureData texture) {
+        ByteBuffer[] levels = texture.getLevels();
+        ByteBuffer header = ByteBuffer.allocateDirect(CacheFile.HEADER_BYTES + TEXTURE_HEADER_BYTES)
+                .order(ByteOrder.nativeOrder());
+        cacheFile.putHeader(header, key, contentHash);
+        header.putInt(texture.getFormat()).putInt(texture.getWidth()).putInt(texture.getHeight());
+        header.flip();
+        ByteBuffer levelSize = ByteBuffer.allocateDirect(Integer.BYTES).order(ByteOrder.nativeOrder());
+        cacheFile.write(key, channel -> {
+            CacheFile.write(channel, header);
+            for (ByteBuffer level : levels) {
+                levelSize.clear();
+                levelSize.putInt(level.remaining()).flip();
+                CacheFile.write(channel, levelSize);
+                CacheFile.write(channel, level.duplicate());
+            }
+        });
+    }
+}
@@ -0,0 +1,48 @@
+package engine.loaders;
+
+/**
+ * Conversion of the decimal numbers scanned by the model parsers to floats, rounded as
+ * {@link Float#parseFloat(String)} does. The parsers read the digits themselves, without creating a string, and only
+ * fall back to the JDK for the numbers this fast path can not round exactly.
+ */
+public final class DecimalFloats {
+
+    /**
+     * Most digits accumulated in a long mantissa without overflowing it
+     */
+    public static final int MAX_DIGITS = 18;
+
+    /**
+     * Exactly representable powers of ten
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private DecimalFloats() {
+    }
+
+    /**
+     * @param mantissa  The digits of the number, without the decimal point
+     * @param numDigits Number of digits read into the mantissa
+     * @param exponent  Power of ten applied to the mantissa, minus the number of fraction digits
+     * @return the float closest to the number, or NaN if it can not be rounded exactly here and must be parsed by
+     * {@link Float#parseFloat(String)}
+     */
+    public static float toFloat(boolean negative, long mantissa, int numDigits, int exponent) {
+        // Mantissas up to 2^53 and powers of ten up to 10^22 are exact doubles, their product or quotient is then
+        // correctly rounded
+        if (numDigits > MAX_DIGITS || mantissa >= 1L << 53 || exponent < -22 || exponent > 22) {
+            return Float.NaN;
+        }
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        // Rounding that double to a float gives the correctly rounded float unless it lies exactly half way between
+        // two floats
+        if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L) {
+            return Float.NaN;
+        }
+        float result = (float) value;
+        return negative ? -result : result;
+    }
+}
@@ -0,0 +1,289 @@
+package engine.loaders;
+
+import engine.graph.LodChain;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.MeshData;
+import engine.loaders.assimp.TextureCache;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Cache of parsed models stored in a binary format that can be uploaded as it is. The first load of a model cooks it
+ * into a file made of a header, a material table and, for every mesh, its levels of detail if any and flat blocks of
+ * positions, texture coordinates, normals and indices, those of every level one after the other. The following loads
+ * map that file and hand the blocks to OpenGL without copying them.
+ * <p>
+ * Entries are keyed by the path of the source model and checked against the XXH64 hash of its content, so an edited
+ * model is cooked again, see {@link CacheFile} for the layout of the files.
+ * <p>
+ * The cache directory is read from the {@value #DIRECTORY_PROPERTY} system property, "off" disables the cache.
+ */
+public class MeshCache {
+
+    public static final String DIRECTORY_PROPERTY = "hittheground.meshCache";
+
+    private static final int MAGIC = 0x4D475448;
+
+    private static final int VERSION = 3;
+
+    private static final int NO_MATERIAL = -1;
+
+    private static final int MODEL_HEADER_BYTES = 2 * Integer.BYTES;
+
+    private static final int MESH_HEADER_BYTES = 6 * Integer.BYTES;
+
+    private static final int LOD_BYTES = Integer.BYTES + Float.BYTES;
+
+    private static final int MATERIAL_BYTES = 13 * Float.BYTES + Integer.BYTES;
+
+    private static MeshCache INSTANCE;
+
+    private final CacheFile cacheFile;
+
+    private MeshCache() {
+        cacheFile = CacheFile.fromProperty(DIRECTORY_PROPERTY, "mesh-cache", "mesh", "mesh", MAGIC, VERSION);
+    }
+
+    public static synchronized MeshCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new MeshCache();
+        }
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return cacheFile.isEnabled();
+    }
+
+    /**
+     * Computes the version of a source model content checked by {@link #load(String, long)}
+     */
+    public static long contentHash(InputStream in) throws IOException {
+        return CacheFile.contentHash(in);
+    }
+
+    public static long contentHash(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return contentHash(in);
+        }
+    }
+
+    /**
+     * Creates the meshes cooked for a model. Must be called from the GL thread.
+     *
+     * @param key         Path of the source model, plus anything else changing the cooked data
+     * @param contentHash Hash of the source model content, as returned by {@link #contentHash(InputStream)}
+     * @return the meshes, with their materials if any was cooked, or null if the model is not cached or its source
+     * has changed since
+     */
+    public Mesh[] load(String key, long contentHash) throws Exception {
+        ModelData model = read(key, contentHash);
+        return model != null ? model.createMeshes() : null;
+    }
+
+    /**
+     * Maps the file cooked for a model without creating any OpenGL object, so it can run on a loader thread.
+     *
+     * @return the model, or null if it is not cached or its source has changed since
+     * @see #load(String, long)
+     */
+    public ModelData read(String key, long contentHash) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        ByteBuffer buffer = cacheFile.map(key, contentHash, MODEL_HEADER_BYTES);
+        if (buffer == null) {
+            return null;
+        }
+        int numMaterials = buffer.getInt();
+        int numMeshes = buffer.getInt();
+
+        Material[] materials = new Material[numMaterials];
+        String[] texturePaths = new String[numMaterials];
+        for (int i = 0; i < numMaterials; i++) {
+            materials[i] = readMaterial(buffer);
+            texturePaths[i] = readPath(buffer);
+        }
+
+        int[] meshMaterials = new int[numMeshes];
+        FloatBuffer[] positions = new FloatBuffer[numMeshes];
+        FloatBuffer[] textCoords = new FloatBuffer[numMeshes];
+        FloatBuffer[] normals = new FloatBuffer[numMeshes];
+        IntBuffer[] indices = new IntBuffer[numMeshes];
+        LodChain[] lods = new LodChain[numMeshes];
+        for (int i = 0; i < numMeshes; i++) {
+            meshMaterials[i] = buffer.getInt();
+            int numPositions = buffer.getInt();
+            int numTextCoords = buffer.getInt();
+            int numNormals = buffer.getInt();
+            int numIndices = buffer.getInt();
+            int numLods = buffer.getInt();
+            if (numLods > 0) {
+                int[] indexCounts = new int[numLods];
+                float[] errors = new float[numLods];
+                for (int lod = 0; lod < numLods; lod++) {
+                    indexCounts[lod] = buffer.getInt();
+                    errors[lod] = buffer.getFloat();
+                }
+                lods[i] = new LodChain(indexCounts, errors);
+            }
+            positions[i] = nextBlock(buffer, numPositions).asFloatBuffer();
+            textCoords[i] = nextBlock(buffer, numTextCoords).asFloatBuffer();
+            normals[i] = nextBlock(buffer, numNormals).asFloatBuffer();
+            indices[i] = nextBlock(buffer, numIndices).asIntBuffer();
+        }
+        return ModelData.fromBuffers(materials, texturePaths, meshMaterials, positions, textCoords, normals, indices,
+                                     lods);
+    }
+
+    /**
+     * @return a view of the next block of 4 byte elements of the mapped file, which is skipped
+     */
+    private static ByteBuffer nextBlock(ByteBuffer buffer, int numElements) {
+        int end = buffer.position() + numElements * Float.BYTES;
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end);
+        buffer.position(end);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static Material readMaterial(ByteBuffer buffer) {
+        Vector4f ambient = readColour(buffer);
+        Vector4f diffuse = readColour(buffer);
+        Vector4f specular = readColour(buffer);
+        float reflectance = buffer.getFloat();
+        return new Material(ambient, diffuse, specular, reflectance);
+    }
+
+    private static String readPath(ByteBuffer buffer) {
+        int pathBytes = buffer.getInt();
+        if (pathBytes == 0) {
+            return null;
+        }
+        byte[] path = new byte[pathBytes];
+        buffer.get(path);
+        buffer.position(align(buffer.position()));
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    private static Vector4f readColour(ByteBuffer buffer) {
+        return new Vector4f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    }
+
+    /**
+     * Cooks a model. Failing to write the cache is not fatal, the model is just parsed again next time.
+     *
+     * @param materials     Materials of the model, may be empty
+     * @param texturePaths  Path of the texture of each material, as accepted by the {@link TextureCache}, or null
+     * @param meshes        Vertex data of the meshes
+     * @param meshMaterials Index of the material of each mesh, or -1 if it has none
+     */
+    public void store(String key, long contentHash, Material[] materials, String[] texturePaths,
+                      MeshData[] meshes, int[] meshMaterials) {
+        int numMeshes = meshes.length;
+        FloatBuffer[] positions = new FloatBuffer[numMeshes];
+        FloatBuffer[] textCoords = new FloatBuffer[numMeshes];
+        FloatBuffer[] normals = new FloatBuffer[numMeshes];
+        IntBuffer[] indices = new IntBuffer[numMeshes];
+        for (int i = 0; i < numMeshes; i++) {
+            positions[i] = FloatBuffer.wrap(meshes[i].getPositions());
+            textCoords[i] = FloatBuffer.wrap(meshes[i].getTextCoords());
+            normals[i] = FloatBuffer.wrap(meshes[i].getNormals());
+            indices[i] = IntBuffer.wrap(meshes[i].getIndices());
+        }
+        store(key, contentHash, materials, texturePaths, meshMaterials, positions, textCoords, normals, indices,
+              new LodChain[numMeshes]);
+    }
+
+    /**
+     * Same as {@link #store(String, long, Material[], String[], MeshData[], int[])} with the vertex data of every mesh
+     * in the remaining content of buffers, which is left untouched
+     *
+     * @param lods Levels of detail of every mesh, whose indices then hold all the levels, null entries for the meshes
+     *             without
+     */
+    public void store(String key, long contentHash, Material[] materials, String[] texturePaths, int[] meshMaterials,
+                      FloatBuffer[] positions, FloatBuffer[] textCoords, FloatBuffer[] normals, IntBuffer[] indices,
+                      LodChain[] lods) {
+        if (!isEnabled()) {
+            return;
+        }
+        byte[][] paths = new byte[materials.length][];
+        long size = CacheFile.HEADER_BYTES + MODEL_HEADER_BYTES;
+        for (int i = 0; i < materials.length; i++) {
+            paths[i] = texturePaths[i] != null ? texturePaths[i].getBytes(StandardCharsets.UTF_8) : new byte[0];
+            size += MATERIAL_BYTES + align(paths[i].length);
+        }
+        int numMeshes = meshMaterials.length;
+        for (int i = 0; i < numMeshes; i++) {
+            size += MESH_HEADER_BYTES + (long) Float.BYTES * (positions[i].remaining() + textCoords[i].remaining()
+                    + normals[i].remaining() + indices[i].remaining());
+            if (lods[i] != null) {
+                size += (long) LOD_BYTES * lods[i].getNumLods();
+            }
+        }
+        if (size > Integer.MAX_VALUE) {
+            return;
+        }
+
+        ByteBuffer buffer = MemoryUtil.memAlloc((int) size).order(ByteOrder.nativeOrder());
+        try {
+            cacheFile.putHeader(buffer, key, contentHash);
+            buffer.putInt(materials.length).putInt(numMeshes);
+            for (int i = 0; i < materials.length; i++) {
+                Material material = materials[i];
+                putColour(buffer, material.getAmbientColour());
+                putColour(buffer, material.getDiffuseColour());
+                putColour(buffer, material.getSpecularColour());
+                buffer.putFloat(material.getReflectance());
+                buffer.putInt(paths[i].length);
+                buffer.put(paths[i]);
+                buffer.position(align(buffer.position()));
+            }
+            for (int i = 0; i < numMeshes; i++) {
+                buffer.putInt(meshMaterials[i])
+                        .putInt(positions[i].remaining())
+                        .putInt(textCoords[i].remaining())
+                        .putInt(normals[i].remaining())
+                        .putInt(indices[i].remaining())
+                        .putInt(lods[i] != null ? lods[i].getNumLods() : 0);
+                for (int lod = 0; lods[i] != null && lod < lods[i].getNumLods(); lod++) {
+                    buffer.putInt(lods[i].getIndexCount(lod)).putFloat(lods[i].getError(lod));
+                }
+                putFloats(buffer, positions[i]);
+                putFloats(buffer, textCoords[i]);
+                putFloats(buffer, normals[i]);
+                buffer.asIntBuffer().put(indices[i].duplicate());
+                buffer.position(buffer.position() + indices[i].remaining() * Integer.BYTES);
+            }
+            buffer.flip();
+            cacheFile.write(key, channel -> CacheFile.write(channel, buffer));
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private static void putColour(ByteBuffer buffer, Vector4f colour) {
+        buffer.putFloat(colour.x).putFloat(colour.y).putFloat(colour.z).putFloat(colour.w);
+    }
+
+    private static void putFloats(ByteBuffer buffer, FloatBuffer data) {
+        buffer.asFloatBuffer().put(data.duplicate());
+        buffer.position(buffer.position() + data.remaining() * Float.BYTES);
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+}
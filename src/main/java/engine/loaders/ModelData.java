@@ -0,0 +1,212 @@
+package engine.loaders;
+
+import engine.graph.GeometryRegistry;
+import engine.graph.LodChain;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.MeshData;
+import engine.graph.TextureData;
+import engine.loaders.assimp.TextureCache;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Model loaded on the CPU side, waiting for its meshes and textures to be created on the GL thread. Its materials have
+ * no texture yet, only the paths of the textures to give them.
+ * <p>
+ * The vertex data is either kept in arrays, as built by a loader, or in off heap buffers uploaded as they are. Those
+ * buffers are either mapped from the {@link MeshCache} or allocated by a loader, the latter are freed with the model.
+ */
+public class ModelData {
+
+    private final Material[] materials;
+
+    private final String[] texturePaths;
+
+    private final int[] meshMaterials;
+
+    private final MeshData[] meshData;
+
+    private final FloatBuffer[] positions;
+
+    private final FloatBuffer[] textCoords;
+
+    private final FloatBuffer[] normals;
+
+    private final IntBuffer[] indices;
+
+    /**
+     * Levels of detail of the meshes in buffers, whose indices hold all the levels, or null
+     */
+    private final LodChain[] lods;
+
+    private final boolean ownsBuffers;
+
+    private final Map<String, TextureData> textures;
+
+    private ModelData(Material[] materials, String[] texturePaths, int[] meshMaterials, MeshData[] meshData,
+                      FloatBuffer[] positions, FloatBuffer[] textCoords, FloatBuffer[] normals, IntBuffer[] indices,
+                      LodChain[] lods, boolean ownsBuffers) {
+        this.materials = materials;
+        this.texturePaths = texturePaths;
+        this.meshMaterials = meshMaterials;
+        this.meshData = meshData;
+        this.positions = positions;
+        this.textCoords = textCoords;
+        this.normals = normals;
+        this.indices = indices;
+        this.lods = lods;
+        this.ownsBuffers = ownsBuffers;
+        textures = new HashMap<>();
+    }
+
+    /**
+     * @param texturePaths  Path of the texture of each material, as accepted by the {@link TextureCache}, or null
+     * @param meshMaterials Index of the material of each mesh, or -1 if it has none
+     */
+    public ModelData(Material[] materials, String[] texturePaths, int[] meshMaterials, MeshData[] meshData) {
+        this(materials, texturePaths, meshMaterials, meshData, null, null, null, null, null, false);
+    }
+
+    static ModelData fromBuffers(Material[] materials, String[] texturePaths, int[] meshMaterials,
+                                 FloatBuffer[] positions, FloatBuffer[] textCoords, FloatBuffer[] normals,
+                                 IntBuffer[] indices, LodChain[] lods) {
+        return new ModelData(materials, texturePaths, meshMaterials, null, positions, textCoords, normals, indices,
+                             lods, false);
+    }
+
+    /**
+     * Creates a model from buffers allocated with {@link MemoryUtil}, which it frees once its meshes are created or
+     * once it is freed
+     *
+     * @param lods Levels of detail of every mesh, whose indices then hold all the levels, null entries for the meshes
+     *             without
+     */
+    public static ModelData fromAllocatedBuffers(Material[] materials, String[] texturePaths, int[] meshMaterials,
+                                                 FloatBuffer[] positions, FloatBuffer[] textCoords,
+                                                 FloatBuffer[] normals, IntBuffer[] indices, LodChain[] lods) {
+        return new ModelData(materials, texturePaths, meshMaterials, null, positions, textCoords, normals, indices,
+                             lods, true);
+    }
+
+    public int getNumMeshes() {
+        return meshMaterials.length;
+    }
+
+    /**
+     * Decodes the textures not cached yet, so that {@link #createMeshes()} only has to upload them. May be called from
+     * any thread.
+     */
+    public void decodeTextures() throws Exception {
+        TextureCache textureCache = TextureCache.getInstance();
+        for (String path : texturePaths) {
+            if (path != null && !textures.containsKey(path) && !textureCache.contains(path)) {
+                textures.put(path, TextureData.load(path));
+            }
+        }
+    }
+
+    /**
+     * Creates the meshes and the textures of their materials. Every mesh holds a reference on its texture in the
+     * {@link TextureCache}. Must be called from the GL thread.
+     *
+     * @return the meshes, without material if they had none
+     */
+    public Mesh[] createMeshes() throws Exception {
+        return createMeshes(false);
+    }
+
+    /**
+     * Same as {@link #createMeshes()}, the meshes being requested from the {@link GeometryRegistry} when shared so that
+     * the ones identical to already loaded meshes are not uploaded again. Shared meshes must not be modified, apart
+     * from giving a material to the ones without.
+     */
+    public Mesh[] createMeshes(boolean shared) throws Exception {
+        TextureCache textureCache = TextureCache.getInstance();
+        GeometryRegistry registry = GeometryRegistry.getInstance();
+        Mesh[] meshes = new Mesh[meshMaterials.length];
+        try {
+            for (int i = 0; i < meshes.length; i++) {
+                Material material = null;
+                int materialIdx = meshMaterials[i];
+                if (materialIdx >= 0) {
+                    String path = texturePaths[materialIdx];
+                    if (path != null) {
+                        TextureData data = textures.remove(path);
+                        materials[materialIdx].setTexture(data != null ?
+                                textureCache.getTexture(path, data) : textureCache.getTexture(path));
+                    }
+                    material = materials[materialIdx];
+                }
+                Mesh mesh;
+                if (!shared) {
+                    mesh = meshData != null ? meshData[i].createMesh() :
+                            new Mesh(positions[i], textCoords[i], normals[i], indices[i], lods[i]);
+                    mesh.setMaterial(material);
+                } else if (meshData != null) {
+                    mesh = getSharedMesh(registry, meshData[i], material);
+                } else {
+                    mesh = registry.getMesh(positions[i], textCoords[i], normals[i], indices[i], lods[i], material);
+                }
+                meshes[i] = mesh;
+            }
+        } finally {
+            freeBuffers();
+        }
+        return meshes;
+    }
+
+    private static Mesh getSharedMesh(GeometryRegistry registry, MeshData data, Material material) {
+        FloatBuffer positions = null;
+        FloatBuffer textCoords = null;
+        FloatBuffer normals = null;
+        IntBuffer indices = null;
+        try {
+            positions = MemoryUtil.memAllocFloat(data.getPositions().length);
+            positions.put(data.getPositions()).flip();
+            textCoords = MemoryUtil.memAllocFloat(data.getTextCoords().length);
+            textCoords.put(data.getTextCoords()).flip();
+            normals = MemoryUtil.memAllocFloat(data.getNormals().length);
+            normals.put(data.getNormals()).flip();
+            indices = MemoryUtil.memAllocInt(data.getIndices().length);
+            indices.put(data.getIndices()).flip();
+            return registry.getMesh(positions, textCoords, normals, indices, material);
+        } finally {
+            MemoryUtil.memFree(positions);
+            MemoryUtil.memFree(textCoords);
+            MemoryUtil.memFree(normals);
+            MemoryUtil.memFree(indices);
+        }
+    }
+
+    /**
+     * Frees the decoded textures, and the allocated buffers, when the model is dropped without its meshes being created
+     */
+    public void free() {
+        for (TextureData data : textures.values()) {
+            data.free();
+        }
+        textures.clear();
+        freeBuffers();
+    }
+
+    private void freeBuffers() {
+        if (!ownsBuffers) {
+            return;
+        }
+        for (int i = 0; i < meshMaterials.length; i++) {
+            MemoryUtil.memFree(positions[i]);
+            MemoryUtil.memFree(textCoords[i]);
+            MemoryUtil.memFree(normals[i]);
+            MemoryUtil.memFree(indices[i]);
+            positions[i] = null;
+            textCoords[i] = null;
+            normals[i] = null;
+            indices[i] = null;
+        }
+    }
+}
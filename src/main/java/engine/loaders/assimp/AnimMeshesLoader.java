@@ -4,12 +4,14 @@ import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.*;
-import engine.Utils;
+import org.lwjgl.system.MemoryUtil;
 import engine.graph.Material;
 import engine.graph.Mesh;
 import engine.graph.anim.AnimGameItem;
 import engine.graph.anim.AnimatedFrame;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -137,9 +139,12 @@ public class AnimMeshesLoader extends StaticMeshesLoader {
 //        return animations;
 //    }
 
-    private static void processBones(AIMesh aiMesh, List<Bone> boneList, List<Integer> boneIds,
-									 List<Float> weights) {
-        Map<Integer, List<VertexWeight>> weightSet = new HashMap<>();
+    /**
+     * Writes the first {@link Mesh#MAX_WEIGHTS} bones of every vertex, in the order of the bones of the mesh, into
+     * buffers allocated with zeroes
+     */
+    private static void processBones(AIMesh aiMesh, List<Bone> boneList, IntBuffer boneIds, FloatBuffer weights) {
+        int[] numVertexWeights = new int[aiMesh.mNumVertices()];
         int numBones = aiMesh.mNumBones();
         PointerBuffer aiBones = aiMesh.mBones();
         for (int i = 0; i < numBones; i++) {
@@ -151,51 +156,43 @@ public class AnimMeshesLoader extends StaticMeshesLoader {
             AIVertexWeight.Buffer aiWeights = aiBone.mWeights();
             for (int j = 0; j < numWeights; j++) {
                 AIVertexWeight aiWeight = aiWeights.get(j);
-                VertexWeight vw = new VertexWeight(bone.getBoneId(), aiWeight.mVertexId(),
-                        aiWeight.mWeight());
-                List<VertexWeight> vertexWeightList = weightSet.get(vw.getVertexId());
-                if (vertexWeightList == null) {
-                    vertexWeightList = new ArrayList<>();
-                    weightSet.put(vw.getVertexId(), vertexWeightList);
-                }
-                vertexWeightList.add(vw);
-            }
-        }
-
-        int numVertices = aiMesh.mNumVertices();
-        for (int i = 0; i < numVertices; i++) {
-            List<VertexWeight> vertexWeightList = weightSet.get(i);
-            int size = vertexWeightList != null ? vertexWeightList.size() : 0;
-            for (int j = 0; j < Mesh.MAX_WEIGHTS; j++) {
-                if (j < size) {
-                    VertexWeight vw = vertexWeightList.get(j);
-                    weights.add(vw.getWeight());
-                    boneIds.add(vw.getBoneId());
-                } else {
-                    weights.add(0.0f);
-                    boneIds.add(0);
+                int vertexId = aiWeight.mVertexId();
+                int slot = numVertexWeights[vertexId]++;
+                if (slot < Mesh.MAX_WEIGHTS) {
+                    boneIds.put(vertexId * Mesh.MAX_WEIGHTS + slot, bone.getBoneId());
+                    weights.put(vertexId * Mesh.MAX_WEIGHTS + slot, aiWeight.mWeight());
                 }
             }
         }
     }
 
     private static Mesh processMesh(AIMesh aiMesh, List<Material> materials, List<Bone> boneList) {
-        List<Float> vertices = new ArrayList<>();
-        List<Float> textures = new ArrayList<>();
-        List<Float> normals = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
-        List<Integer> boneIds = new ArrayList<>();
-        List<Float> weights = new ArrayList<>();
-
-        processVertices(aiMesh, vertices);
-        processNormals(aiMesh, normals);
-        processTextCoords(aiMesh, textures);
-        processIndices(aiMesh, indices);
-        processBones(aiMesh, boneList, boneIds, weights);
-
-        Mesh mesh = new Mesh(Utils.listToArray(vertices), Utils.listToArray(textures),
-                Utils.listToArray(normals), Utils.listIntToArray(indices),
-                Utils.listIntToArray(boneIds), Utils.listToArray(weights));
+        int numVertices = aiMesh.mNumVertices();
+        FloatBuffer vertices = null;
+        FloatBuffer textures = null;
+        FloatBuffer normals = null;
+        IntBuffer indices = null;
+        IntBuffer boneIds = null;
+        FloatBuffer weights = null;
+        Mesh mesh;
+        try {
+            vertices = processVertices(aiMesh);
+            normals = processNormals(aiMesh);
+            textures = processTextCoords(aiMesh);
+            indices = processIndices(aiMesh);
+            boneIds = MemoryUtil.memCallocInt(numVertices * Mesh.MAX_WEIGHTS);
+            weights = MemoryUtil.memCallocFloat(numVertices * Mesh.MAX_WEIGHTS);
+            processBones(aiMesh, boneList, boneIds, weights);
+
+            mesh = new Mesh(vertices, textures, normals, indices, boneIds, weights);
+        } finally {
+            MemoryUtil.memFree(vertices);
+            MemoryUtil.memFree(textures);
+            MemoryUtil.memFree(normals);
+            MemoryUtil.memFree(indices);
+            MemoryUtil.memFree(boneIds);
+            MemoryUtil.memFree(weights);
+        }
         Material material;
         int materialIdx = aiMesh.mMaterialIndex();
         if (materialIdx >= 0 && materialIdx < materials.size()) {
@@ -3,26 +3,79 @@ package engine.loaders.assimp;
 import org.joml.Vector4f;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.*;
-import engine.Utils;
+import org.lwjgl.system.MemoryUtil;
+import engine.graph.LodChain;
 import engine.graph.Material;
 import engine.graph.Mesh;
-import engine.graph.Texture;
+import engine.graph.MeshOptimizer;
+import engine.graph.MeshSimplifier;
+import engine.loaders.MeshCache;
+import engine.loaders.ModelData;
 
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.system.MemoryUtil.*;
 
 public class StaticMeshesLoader {
 
+    public static final int DEFAULT_FLAGS = aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices
+            | aiProcess_Triangulate | aiProcess_FixInfacingNormals;
+
     public static Mesh[] load(String resourcePath, String texturesDir) throws Exception {
-        return load(resourcePath, texturesDir,
-                aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices | aiProcess_Triangulate
-                        | aiProcess_FixInfacingNormals);
+        return load(resourcePath, texturesDir, DEFAULT_FLAGS);
     }
 
     public static Mesh[] load(String resourcePath, String texturesDir, int flags) throws Exception {
+        return createMeshes(read(resourcePath, texturesDir, flags));
+    }
+
+    /**
+     * Does the whole CPU side of {@link #load(String, String)}, textures decoding included, on the calling thread.
+     *
+     * @return the GL side, to call from the GL thread
+     */
+    public static Callable<Mesh[]> prepare(String resourcePath, String texturesDir) throws Exception {
+        ModelData model = read(resourcePath, texturesDir, DEFAULT_FLAGS);
+        model.decodeTextures();
+        return () -> createMeshes(model);
+    }
+
+    private static Mesh[] createMeshes(ModelData model) throws Exception {
+        Mesh[] meshes = model.createMeshes(true);
+        for (Mesh mesh : meshes) {
+            if (mesh.getMaterial() == null) {
+                mesh.setMaterial(new Material());
+            }
+        }
+        return meshes;
+    }
+
+    /**
+     * Reads the model from the {@link MeshCache} when it has already been cooked with the same flags, and imports and
+     * cooks it otherwise, building the levels of detail of its meshes when the {@link MeshSimplifier} is enabled. Does
+     * not touch OpenGL.
+     */
+    public static ModelData read(String resourcePath, String texturesDir, int flags) throws Exception {
+        MeshCache cache = MeshCache.getInstance();
+        String key = null;
+        long contentHash = 0;
+        if (cache.isEnabled()) {
+            key = "assimp:" + flags + (MeshOptimizer.isEnabled() ? ":optimized:" : ":")
+                    + (MeshSimplifier.isEnabled() ? "lods" + MeshSimplifier.getNumLods() + ":" : "") + texturesDir
+                    + ":" + resourcePath;
+            contentHash = MeshCache.contentHash(Paths.get(resourcePath));
+            ModelData cached = cache.read(key, contentHash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         AIScene aiScene = aiImportFile(resourcePath, flags);
         if (aiScene == null) {
             throw new Exception("Error loading model");
@@ -31,36 +84,89 @@ public class StaticMeshesLoader {
         int numMaterials = aiScene.mNumMaterials();
         PointerBuffer aiMaterials = aiScene.mMaterials();
         List<Material> materials = new ArrayList<>();
+        String[] texturePaths = new String[numMaterials];
         for (int i = 0; i < numMaterials; i++) {
             AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
-            processMaterial(aiMaterial, materials, texturesDir);
+            texturePaths[i] = processMaterial(aiMaterial, materials, texturesDir);
         }
 
+        // The vertex data is copied once, straight from the memory of the importer to buffers uploaded as they are
         int numMeshes = aiScene.mNumMeshes();
         PointerBuffer aiMeshes = aiScene.mMeshes();
-        Mesh[] meshes = new Mesh[numMeshes];
-        for (int i = 0; i < numMeshes; i++) {
-            AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-            Mesh mesh = processMesh(aiMesh, materials);
-            meshes[i] = mesh;
+        FloatBuffer[] positions = new FloatBuffer[numMeshes];
+        FloatBuffer[] textCoords = new FloatBuffer[numMeshes];
+        FloatBuffer[] normals = new FloatBuffer[numMeshes];
+        IntBuffer[] indices = new IntBuffer[numMeshes];
+        LodChain[] lods = new LodChain[numMeshes];
+        int[] meshMaterials = new int[numMeshes];
+        Material[] materialArray = materials.toArray(new Material[materials.size()]);
+        ModelData model = ModelData.fromAllocatedBuffers(materialArray, texturePaths, meshMaterials, positions,
+                                                         textCoords, normals, indices, lods);
+        try {
+            for (int i = 0; i < numMeshes; i++) {
+                AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+                positions[i] = processVertices(aiMesh);
+                normals[i] = processNormals(aiMesh);
+                textCoords[i] = processTextCoords(aiMesh);
+                indices[i] = processIndices(aiMesh);
+                if (MeshOptimizer.isEnabled()) {
+                    MeshOptimizer.optimize(positions[i], textCoords[i], normals[i], indices[i]);
+                }
+                if (MeshSimplifier.isEnabled()) {
+                    MeshSimplifier.Result result = MeshSimplifier.simplify(positions[i], indices[i],
+                                                                           MeshSimplifier.getNumLods());
+                    if (result != null) {
+                        IntBuffer lodIndices = memAllocInt(result.indices.length);
+                        lodIndices.put(result.indices).flip();
+                        memFree(indices[i]);
+                        indices[i] = lodIndices;
+                        lods[i] = result.lods;
+                    }
+                }
+                int materialIdx = aiMesh.mMaterialIndex();
+                meshMaterials[i] = materialIdx >= 0 && materialIdx < materials.size() ? materialIdx : -1;
+            }
+        } catch (Throwable t) {
+            model.free();
+            throw t;
+        } finally {
+            aiReleaseImport(aiScene);
         }
 
-        return meshes;
+        if (key != null) {
+            cache.store(key, contentHash, materialArray, texturePaths, meshMaterials, positions, textCoords, normals,
+                        indices, lods);
+        }
+        return model;
     }
 
-    protected static void processIndices(AIMesh aiMesh, List<Integer> indices) {
+    /**
+     * @return the indices of the faces of the mesh in a buffer allocated with {@link MemoryUtil}
+     */
+    protected static IntBuffer processIndices(AIMesh aiMesh) {
         int numFaces = aiMesh.mNumFaces();
-        AIFace.Buffer aiFaces = aiMesh.mFaces();
+        long faces = aiMesh.mFaces().address();
+        int numIndices = 0;
         for (int i = 0; i < numFaces; i++) {
-            AIFace aiFace = aiFaces.get(i);
-            IntBuffer buffer = aiFace.mIndices();
-            while (buffer.remaining() > 0) {
-                indices.add(buffer.get());
-            }
+            numIndices += memGetInt(faces + (long) i * AIFace.SIZEOF + AIFace.MNUMINDICES);
         }
+        IntBuffer indices = memAllocInt(numIndices);
+        long dest = memAddress(indices);
+        for (int i = 0; i < numFaces; i++) {
+            long face = faces + (long) i * AIFace.SIZEOF;
+            int faceBytes = memGetInt(face + AIFace.MNUMINDICES) * Integer.BYTES;
+            memCopy(memGetAddress(face + AIFace.MINDICES), dest, faceBytes);
+            dest += faceBytes;
+        }
+        return indices;
     }
 
-    protected static void processMaterial(AIMaterial aiMaterial, List<Material> materials,
+    /**
+     * Adds the material without its texture, which is left to the caller
+     *
+     * @return the path of the diffuse texture of the material, or null if it has none
+     */
+    protected static String processMaterial(AIMaterial aiMaterial, List<Material> materials,
 										  String texturesDir) throws Exception {
         AIColor4D colour = AIColor4D.create();
 
@@ -68,12 +174,10 @@ public class StaticMeshesLoader {
         Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_DIFFUSE, 0, path, (IntBuffer) null,
 									null, null, null, null, null);
         String textPath = path.dataString();
-        Texture texture = null;
+        String textureFile = null;
         if (textPath != null && textPath.length() > 0) {
-            TextureCache textCache = TextureCache.getInstance();
-            String textureFile = texturesDir + "/" + textPath;
+            textureFile = texturesDir + "/" + textPath;
             textureFile = textureFile.replace("//", "/");
-            texture = textCache.getTexture(textureFile);
         }
 
         Vector4f ambient = Material.DEFAULT_COLOUR;
@@ -98,62 +202,51 @@ public class StaticMeshesLoader {
         }
 
         Material material = new Material(ambient, diffuse, specular, 1.0f);
-        material.setTexture(texture);
         materials.add(material);
+        return textureFile;
     }
 
-    private static Mesh processMesh(AIMesh aiMesh, List<Material> materials) {
-        List<Float> vertices = new ArrayList<>();
-        List<Float> textures = new ArrayList<>();
-        List<Float> normals = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
-
-        processVertices(aiMesh, vertices);
-        processNormals(aiMesh, normals);
-        processTextCoords(aiMesh, textures);
-        processIndices(aiMesh, indices);
-
-        Mesh mesh = new Mesh(Utils.listToArray(vertices), Utils.listToArray(textures),
-                Utils.listToArray(normals), Utils.listIntToArray(indices));
-        Material material;
-        int materialIdx = aiMesh.mMaterialIndex();
-        if (materialIdx >= 0 && materialIdx < materials.size()) {
-            material = materials.get(materialIdx);
-        } else {
-            material = new Material();
-        }
-        mesh.setMaterial(material);
-
-        return mesh;
+    /**
+     * @return the normals of the mesh in a buffer allocated with {@link MemoryUtil}, zeroes if it has none
+     */
+    protected static FloatBuffer processNormals(AIMesh aiMesh) {
+        return copyVectors(aiMesh.mNormals(), aiMesh.mNumVertices());
     }
 
-    protected static void processNormals(AIMesh aiMesh, List<Float> normals) {
-        AIVector3D.Buffer aiNormals = aiMesh.mNormals();
-        while (aiNormals != null && aiNormals.remaining() > 0) {
-            AIVector3D aiNormal = aiNormals.get();
-            normals.add(aiNormal.x());
-            normals.add(aiNormal.y());
-            normals.add(aiNormal.z());
+    /**
+     * @return the first texture coordinates of the mesh, with their v axis flipped, in a buffer allocated with
+     * {@link MemoryUtil}, zeroes if it has none
+     */
+    protected static FloatBuffer processTextCoords(AIMesh aiMesh) {
+        int numVertices = aiMesh.mNumVertices();
+        AIVector3D.Buffer aiTextCoords = aiMesh.mTextureCoords(0);
+        if (aiTextCoords == null) {
+            return memCallocFloat(numVertices * 2);
         }
+        FloatBuffer textCoords = memAllocFloat(numVertices * 2);
+        long src = aiTextCoords.address();
+        for (int i = 0; i < numVertices; i++) {
+            long textCoord = src + (long) i * AIVector3D.SIZEOF;
+            textCoords.put(i * 2, memGetFloat(textCoord + AIVector3D.X));
+            textCoords.put(i * 2 + 1, 1 - memGetFloat(textCoord + AIVector3D.Y));
+        }
+        return textCoords;
     }
 
-    protected static void processTextCoords(AIMesh aiMesh, List<Float> textures) {
-        AIVector3D.Buffer textCoords = aiMesh.mTextureCoords(0);
-        int numTextCoords = textCoords != null ? textCoords.remaining() : 0;
-        for (int i = 0; i < numTextCoords; i++) {
-            AIVector3D textCoord = textCoords.get();
-            textures.add(textCoord.x());
-            textures.add(1 - textCoord.y());
-        }
+    /**
+     * @return the positions of the mesh in a buffer allocated with {@link MemoryUtil}
+     */
+    protected static FloatBuffer processVertices(AIMesh aiMesh) {
+        return copyVectors(aiMesh.mVertices(), aiMesh.mNumVertices());
     }
 
-    protected static void processVertices(AIMesh aiMesh, List<Float> vertices) {
-        AIVector3D.Buffer aiVertices = aiMesh.mVertices();
-        while (aiVertices.remaining() > 0) {
-            AIVector3D aiVertex = aiVertices.get();
-            vertices.add(aiVertex.x());
-            vertices.add(aiVertex.y());
-            vertices.add(aiVertex.z());
+    private static FloatBuffer copyVectors(AIVector3D.Buffer aiVectors, int numVectors) {
+        if (aiVectors == null) {
+            return memCallocFloat(numVectors * 3);
         }
+        FloatBuffer vectors = memAllocFloat(numVectors * 3);
+        // AIVector3D is three packed floats, the array is copied as it is
+        memCopy(aiVectors.address(), memAddress(vectors), numVectors * AIVector3D.SIZEOF);
+        return vectors;
     }
 }
@@ -1,33 +1,251 @@
 package engine.loaders.assimp;
 
 import engine.graph.Texture;
+import engine.graph.TextureData;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * Textures shared by path between the meshes using them. Each mesh holds a reference on its texture, taken with
+ * {@link #getTexture(String)} and given back with {@link #release(Texture)}. Textures nobody references stay resident
+ * until the cache goes over its video memory budget, then the least recently used ones are deleted first.
+ * <p>
+ * Cached textures are streamed by the {@link engine.graph.TextureStreamer} when it is enabled.
+ * <p>
+ * The budget is read in megabytes from the {@value #BUDGET_PROPERTY} system property. Lookups may be done from any
+ * thread, the methods creating or deleting textures must be called from the GL thread.
+ */
 public class TextureCache {
 
+    public static final String BUDGET_PROPERTY = "hittheground.textureBudget";
+
+    private static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
+
     private static TextureCache INSTANCE;
 
-    private Map<String, Texture> texturesMap;
-    
-    private TextureCache() {
-        texturesMap = new HashMap<>();
+    /**
+     * Entries in least recently used first order
+     */
+    private final Map<String, Entry> texturesMap;
+
+    private final Map<Integer, Entry> entriesById;
+
+    private long budgetBytes;
+
+    /**
+     * Sum of the sizes of the cached textures, kept up to date as they are added, evicted or streamed
+     */
+    private long residentBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private TextureCache(long budgetBytes) {
+        texturesMap = new LinkedHashMap<>(16, 0.75f, true);
+        entriesById = new HashMap<>();
+        this.budgetBytes = budgetBytes;
     }
-    
+
     public static synchronized TextureCache getInstance() {
         if ( INSTANCE == null ) {
-            INSTANCE = new TextureCache();
+            long budgetBytes = Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET_BYTES / (1024 * 1024)) * 1024 * 1024;
+            INSTANCE = new TextureCache(budgetBytes);
         }
         return INSTANCE;
     }
-    
+
+    /**
+     * Takes a reference on the texture of the path, loading it if needed. Must be called from the GL thread.
+     */
     public Texture getTexture(String path) throws Exception {
-        Texture texture = texturesMap.get(path);
-        if ( texture == null ) {
-            texture = new Texture(path);
-            texturesMap.put(path, texture);
+        synchronized (this) {
+            Entry entry = texturesMap.get(path);
+            if ( entry != null ) {
+                hits++;
+                entry.refCount++;
+                return entry.texture;
+            }
+        }
+        // Decoded without holding the lock, so that other threads are not blocked by the file read. The texture may
+        // be cached meanwhile, the pixels are then freed and the cached one is returned.
+        return getTexture(path, TextureData.load(path));
+    }
+
+    /**
+     * Same as {@link #getTexture(String)} with pixels decoded beforehand, which are freed when the texture is already
+     * cached. Must be called from the GL thread.
+     */
+    public synchronized Texture getTexture(String path, TextureData data) {
+        Entry entry = texturesMap.get(path);
+        if ( entry == null ) {
+            misses++;
+            entry = add(path, new Texture(data, true));
+        } else {
+            hits++;
+            entry.refCount++;
+            data.free();
+        }
+        return entry.texture;
+    }
+
+    /**
+     * Takes one more reference on a texture of this cache, for an owner sharing it with the one that got it
+     */
+    public synchronized void retain(Texture texture) {
+        entriesById.get(texture.getId()).refCount++;
+    }
+
+    /**
+     * Adds a texture with a first reference, so that it can not be evicted to make room for itself
+     */
+    private Entry add(String path, Texture texture) {
+        Entry entry = new Entry(texture);
+        entry.refCount = 1;
+        texturesMap.put(path, entry);
+        entriesById.put(texture.getId(), entry);
+        residentBytes += entry.sizeBytes;
+        evict();
+        return entry;
+    }
+
+    /**
+     * Accounts for a cached texture whose resident levels changed, see {@link Texture#getSizeBytes()}
+     */
+    public synchronized void updateSize(Texture texture) {
+        Entry entry = entriesById.get(texture.getId());
+        if ( entry != null ) {
+            long sizeBytes = texture.getSizeBytes();
+            residentBytes += sizeBytes - entry.sizeBytes;
+            entry.sizeBytes = sizeBytes;
+        }
+    }
+
+    /**
+     * Gives back a reference taken on a texture. Must be called from the GL thread.
+     *
+     * @return false if the texture does not come from this cache, its owner has to delete it
+     */
+    public synchronized boolean release(Texture texture) {
+        // Looked up by id, so that copies of a cached texture are recognised as well
+        Entry entry = entriesById.get(texture.getId());
+        if ( entry == null ) {
+            return false;
+        }
+        if ( entry.refCount > 0 ) {
+            entry.refCount--;
+        }
+        if ( entry.refCount == 0 ) {
+            evict();
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used textures nobody references until the resident ones fit in the budget
+     */
+    private void evict() {
+        Iterator<Entry> it = texturesMap.values().iterator();
+        while ( residentBytes > budgetBytes && it.hasNext() ) {
+            Entry entry = it.next();
+            if ( entry.refCount == 0 ) {
+                it.remove();
+                entriesById.remove(entry.texture.getId());
+                residentBytes -= entry.sizeBytes;
+                entry.texture.cleanup();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized boolean contains(String path) {
+        return texturesMap.containsKey(path);
+    }
+
+    /**
+     * Must be called from the GL thread, textures may be evicted right away
+     */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evict();
+    }
+
+    public synchronized Stats getStats() {
+        int referenced = 0;
+        for (Entry entry : texturesMap.values()) {
+            if ( entry.refCount > 0 ) {
+                referenced++;
+            }
+        }
+        return new Stats(hits, misses, evictions, texturesMap.size(), referenced, residentBytes, budgetBytes);
+    }
+
+    /**
+     * Deletes every texture, referenced or not. Must be called from the GL thread.
+     */
+    public synchronized void cleanup() {
+        for (Entry entry : texturesMap.values()) {
+            entry.texture.cleanup();
+        }
+        texturesMap.clear();
+        entriesById.clear();
+        residentBytes = 0;
+    }
+
+    private static class Entry {
+
+        final Texture texture;
+
+        int refCount;
+
+        /**
+         * Size counted in the resident bytes
+         */
+        long sizeBytes;
+
+        Entry(Texture texture) {
+            this.texture = texture;
+            sizeBytes = texture.getSizeBytes();
+        }
+    }
+
+    public static class Stats {
+
+        public final long hits;
+
+        public final long misses;
+
+        public final long evictions;
+
+        public final int numTextures;
+
+        public final int numReferenced;
+
+        public final long residentBytes;
+
+        public final long budgetBytes;
+
+        Stats(long hits, long misses, long evictions, int numTextures, int numReferenced, long residentBytes,
+              long budgetBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.numTextures = numTextures;
+            this.numReferenced = numReferenced;
+            this.residentBytes = residentBytes;
+            this.budgetBytes = budgetBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "textures: " + numTextures + " (" + numReferenced + " referenced), resident: "
+                    + (residentBytes >> 20) + "/" + (budgetBytes >> 20) + " MB, hits: " + hits + ", misses: " + misses
+                    + ", evictions: " + evictions;
         }
-        return texture;
     }
 }
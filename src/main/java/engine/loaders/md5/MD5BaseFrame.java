@@ -5,8 +5,6 @@ import org.joml.Vector3f;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MD5BaseFrame {
 
@@ -48,8 +46,6 @@ public class MD5BaseFrame {
 
     public static class MD5BaseFrameData {
 
-        private static final Pattern PATTERN_BASEFRAME = Pattern.compile("\\s*" + MD5Utils.VECTOR3_REGEXP + "\\s*" + MD5Utils.VECTOR3_REGEXP + ".*");
-
         private Vector3f position;
 
         private Quaternionf orientation;
@@ -76,21 +72,15 @@ public class MD5BaseFrame {
         }
 
         public static MD5BaseFrameData parseLine(String line) {
-            Matcher matcher = PATTERN_BASEFRAME.matcher(line);
-            MD5BaseFrameData result = null;
-            if (matcher.matches()) {
-                result = new MD5BaseFrameData();
-                float x = Float.parseFloat(matcher.group(1));
-                float y = Float.parseFloat(matcher.group(2));
-                float z = Float.parseFloat(matcher.group(3));
-                result.setPosition(new Vector3f(x, y, z));
-
-                x = Float.parseFloat(matcher.group(4));
-                y = Float.parseFloat(matcher.group(5));
-                z = Float.parseFloat(matcher.group(6));
-                result.setOrientation(new Vector3f(x, y, z));
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            Vector3f position = tokenizer.nextVector3();
+            Vector3f orientation = tokenizer.nextVector3();
+            if (tokenizer.isMalformed()) {
+                return null;
             }
-
+            MD5BaseFrameData result = new MD5BaseFrameData();
+            result.setPosition(position);
+            result.setOrientation(orientation);
             return result;
         }
     }
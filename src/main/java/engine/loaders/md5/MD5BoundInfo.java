@@ -4,8 +4,6 @@ import org.joml.Vector3f;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MD5BoundInfo {
 
@@ -44,8 +42,6 @@ public class MD5BoundInfo {
 
     private static class MD5Bound {
 
-        private static final Pattern PATTERN_BOUND = Pattern.compile("\\s*" + MD5Utils.VECTOR3_REGEXP + "\\s*" + MD5Utils.VECTOR3_REGEXP + ".*");
-
         private Vector3f minBound;
 
         private Vector3f maxBound;
@@ -72,20 +68,15 @@ public class MD5BoundInfo {
         }
 
         public static MD5Bound parseLine(String line) {
-            MD5Bound result = null;
-            Matcher matcher = PATTERN_BOUND.matcher(line);
-            if (matcher.matches()) {
-                result = new MD5Bound();
-                float x = Float.parseFloat(matcher.group(1));
-                float y = Float.parseFloat(matcher.group(2));
-                float z = Float.parseFloat(matcher.group(3));
-                result.setMinBound(new Vector3f(x, y, z));
-
-                x = Float.parseFloat(matcher.group(4));
-                y = Float.parseFloat(matcher.group(5));
-                z = Float.parseFloat(matcher.group(6));
-                result.setMaxBound(new Vector3f(x, y, z));
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            Vector3f minBound = tokenizer.nextVector3();
+            Vector3f maxBound = tokenizer.nextVector3();
+            if (tokenizer.isMalformed()) {
+                return null;
             }
+            MD5Bound result = new MD5Bound();
+            result.setMinBound(minBound);
+            result.setMaxBound(maxBound);
             return result;
         }
 
@@ -1,12 +1,12 @@
 package engine.loaders.md5;
 
-import engine.Utils;
-
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MD5Frame {
 
+    private static final int INITIAL_DATA_SIZE = 64;
+
     private int id;
 
     private float[] frameData;
@@ -39,32 +39,29 @@ public class MD5Frame {
 
     public static MD5Frame parse(String blockId, List<String> blockBody) throws Exception {
         MD5Frame result = new MD5Frame();
-        String[] tokens = blockId.trim().split("\\s+");
-        if (tokens != null && tokens.length >= 2) {
-            result.setId(Integer.parseInt(tokens[1]));
-        } else {
+        MD5Tokenizer idTokenizer = new MD5Tokenizer(blockId);
+        idTokenizer.nextWord();
+        result.setId(idTokenizer.nextInt());
+        if (idTokenizer.isMalformed()) {
             throw new Exception("Wrong frame definition: " + blockId);
         }
 
-        List<Float> data = new ArrayList<>();
+        float[] data = new float[INITIAL_DATA_SIZE];
+        int size = 0;
         for (String line : blockBody) {
-            List<Float> lineData = parseLine(line);
-            if (lineData != null) {
-                data.addAll(lineData);
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            while (tokenizer.hasNext()) {
+                float value = tokenizer.nextFloat();
+                if (tokenizer.isMalformed()) {
+                    throw new Exception("Wrong frame data: " + line);
+                }
+                if (size == data.length) {
+                    data = Arrays.copyOf(data, size * 2);
+                }
+                data[size++] = value;
             }
         }
-        float[] dataArr = Utils.listToArray(data);
-        result.setFrameData(dataArr);
-
+        result.setFrameData(Arrays.copyOf(data, size));
         return result;
     }
-
-    private static List<Float> parseLine(String line) {
-        String[] tokens = line.trim().split("\\s+");
-        List<Float> data = new ArrayList<>();
-        for (String token : tokens) {
-            data.add(Float.parseFloat(token));
-        }
-        return data;
-    }
 }
\ No newline at end of file
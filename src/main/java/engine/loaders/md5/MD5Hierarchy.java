@@ -2,8 +2,6 @@ package engine.loaders.md5;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MD5Hierarchy {
 
@@ -42,8 +40,6 @@ public class MD5Hierarchy {
 
     public static class MD5HierarchyData {
 
-        private static final Pattern PATTERN_HIERARCHY = Pattern.compile("\\s*\\\"([^\\\"]+)\\\"\\s*([-]?\\d+)\\s*(\\d+)\\s*(\\d+).*");
-
         private String name;
 
         private int parentIndex;
@@ -90,15 +86,19 @@ public class MD5Hierarchy {
         }
 
         public static MD5HierarchyData parseLine(String line) {
-            MD5HierarchyData result = null;
-            Matcher matcher = PATTERN_HIERARCHY.matcher(line);
-            if (matcher.matches()) {
-                result = new MD5HierarchyData();
-                result.setName(matcher.group(1));
-                result.setParentIndex(Integer.parseInt(matcher.group(2)));
-                result.setFlags(Integer.parseInt(matcher.group(3)));
-                result.setStartIndex(Integer.parseInt(matcher.group(4)));
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            String name = tokenizer.nextQuoted();
+            int parentIndex = tokenizer.nextInt();
+            int flags = tokenizer.nextInt();
+            int startIndex = tokenizer.nextInt();
+            if (name == null || tokenizer.isMalformed()) {
+                return null;
             }
+            MD5HierarchyData result = new MD5HierarchyData();
+            result.setName(name);
+            result.setParentIndex(parentIndex);
+            result.setFlags(flags);
+            result.setStartIndex(startIndex);
             return result;
         }
 
@@ -5,8 +5,6 @@ import org.joml.Vector3f;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MD5JointInfo {
 
@@ -45,15 +43,6 @@ public class MD5JointInfo {
 
     public static class MD5JointData {
 
-        private static final String PARENT_INDEX_REGEXP = "([-]?\\d+)";
-
-        private static final String NAME_REGEXP = "\\\"([^\\\"]+)\\\"";
-
-        private static final String JOINT_REGEXP = "\\s*" + NAME_REGEXP + "\\s*" + PARENT_INDEX_REGEXP + "\\s*"
-                + MD5Utils.VECTOR3_REGEXP + "\\s*" + MD5Utils.VECTOR3_REGEXP + ".*";
-
-        private static final Pattern PATTERN_JOINT = Pattern.compile(JOINT_REGEXP);
-
         private String name;
 
         private int parentIndex;
@@ -100,22 +89,19 @@ public class MD5JointInfo {
         }
 
         public static MD5JointData parseLine(String line) {
-            MD5JointData result = null;
-            Matcher matcher = PATTERN_JOINT.matcher(line);
-            if (matcher.matches()) {
-                result = new MD5JointData();
-                result.setName(matcher.group(1));
-                result.setParentIndex(Integer.parseInt(matcher.group(2)));
-                float x = Float.parseFloat(matcher.group(3));
-                float y = Float.parseFloat(matcher.group(4));
-                float z = Float.parseFloat(matcher.group(5));
-                result.setPosition(new Vector3f(x, y, z));
-
-                x = Float.parseFloat(matcher.group(6));
-                y = Float.parseFloat(matcher.group(7));
-                z = Float.parseFloat(matcher.group(8));
-                result.setOrientation(new Vector3f(x, y, z));
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            String name = tokenizer.nextQuoted();
+            int parentIndex = tokenizer.nextInt();
+            Vector3f position = tokenizer.nextVector3();
+            Vector3f orientation = tokenizer.nextVector3();
+            if (name == null || tokenizer.isMalformed()) {
+                return null;
             }
+            MD5JointData result = new MD5JointData();
+            result.setName(name);
+            result.setParentIndex(parentIndex);
+            result.setPosition(position);
+            result.setOrientation(orientation);
             return result;
         }
     }
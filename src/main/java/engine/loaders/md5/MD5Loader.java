@@ -11,13 +11,49 @@ import engine.graph.Texture;
 import engine.graph.anim.AnimGameItem;
 import engine.graph.anim.AnimVertex;
 import engine.graph.anim.AnimatedFrame;
+import engine.graph.anim.AnimationData;
+import engine.loaders.AnimationCache;
+import engine.loaders.MeshCache;
 
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class MD5Loader {
 
+    /**
+     * Loads an MD5 Model with an MD5 Animation, reading the processed animation from the {@link AnimationCache} when
+     * both files are unchanged since it was cooked
+     *
+     * @param meshModelFile Resource of the MD5 Model
+     * @param animFile Resource of the MD5 Animation
+     * @param defaultColour Default colour to use if there are no textures
+     * @return
+     * @throws Exception
+     */
+    public static AnimGameItem load(String meshModelFile, String animFile, Vector4f defaultColour) throws Exception {
+        MD5Model md5Model = MD5Model.parse(meshModelFile);
+
+        AnimationCache cache = AnimationCache.getInstance();
+        String key = meshModelFile + "|" + animFile;
+        long contentHash = 0;
+        AnimationData animation = null;
+        if (cache.isEnabled()) {
+            try (InputStream in = new SequenceInputStream(Utils.class.getResourceAsStream(meshModelFile),
+                                                          Utils.class.getResourceAsStream(animFile))) {
+                contentHash = MeshCache.contentHash(in);
+            }
+            animation = cache.read(key, contentHash);
+        }
+        if (animation == null) {
+            animation = processAnimation(md5Model, MD5AnimModel.parse(animFile));
+            cache.store(key, contentHash, animation);
+        }
+        return process(md5Model, animation, defaultColour);
+    }
+
     /**
      * Constructs and AnimGameItem instace based on a MD5 Model an MD5 Animation
      *
@@ -28,8 +64,12 @@ public class MD5Loader {
      * @throws Exception
      */
     public static AnimGameItem process(MD5Model md5Model, MD5AnimModel animModel, Vector4f defaultColour) throws Exception {
-        List<Matrix4f> invJointMatrices = calcInJointMatrices(md5Model);
-        List<AnimatedFrame> animatedFrames = processAnimationFrames(md5Model, animModel, invJointMatrices);
+        return process(md5Model, processAnimation(md5Model, animModel), defaultColour);
+    }
+
+    private static AnimGameItem process(MD5Model md5Model, AnimationData animation, Vector4f defaultColour) throws Exception {
+        List<Matrix4f> invJointMatrices = animation.createInvJointMatrices();
+        List<AnimatedFrame> animatedFrames = animation.createFrames(invJointMatrices);
 
         List<Mesh> list = new ArrayList<>();
         for (MD5Mesh md5Mesh : md5Model.getMeshes()) {
@@ -45,22 +85,97 @@ public class MD5Loader {
         return result;
     }
 
-    private static List<Matrix4f> calcInJointMatrices(MD5Model md5Model) {
-        List<Matrix4f> result = new ArrayList<>();
-
+    /**
+     * Computes the inverse bind matrix of every joint, and the local matrix of every joint in every frame, into
+     * contiguous floats
+     */
+    public static AnimationData processAnimation(MD5Model md5Model, MD5AnimModel animModel) {
         List<MD5JointInfo.MD5JointData> joints = md5Model.getJointInfo().getJoints();
-        for (MD5JointInfo.MD5JointData joint : joints) {
+        int numJoints = joints.size();
+        float[] invJointMatrices = new float[numJoints * AnimationData.MATRIX_FLOATS];
+        Matrix4f mat = new Matrix4f();
+        for (int i = 0; i < numJoints; i++) {
+            MD5JointInfo.MD5JointData joint = joints.get(i);
             // Calculate translation matrix using joint position
             // Calculates rotation matrix using joint orientation
             // Gets transformation matrix bu multiplying translation matrix by rotation matrix
             // Instead of multiplying we can apply rotation which is optimized internally
-            Matrix4f mat = new Matrix4f()
+            mat.identity()
                     .translate(joint.getPosition())
                     .rotate(joint.getOrientation())
-                    .invert();
-            result.add(mat);
+                    .invert()
+                    .get(invJointMatrices, i * AnimationData.MATRIX_FLOATS);
+        }
+
+        List<MD5Frame> frames = animModel.getFrames();
+        float[] localJointMatrices = new float[frames.size() * invJointMatrices.length];
+        int frameOffset = 0;
+        for (MD5Frame frame : frames) {
+            processAnimationFrame(md5Model, animModel, frame, localJointMatrices, frameOffset);
+            frameOffset += invJointMatrices.length;
+        }
+        return new AnimationData(numJoints, frames.size(), invJointMatrices, localJointMatrices);
+    }
+
+    private static void processAnimationFrame(MD5Model md5Model, MD5AnimModel animModel, MD5Frame frame,
+                                              float[] localJointMatrices, int frameOffset) {
+        List<MD5BaseFrame.MD5BaseFrameData> baseFrameDataList = animModel.getBaseFrame().getFrameDataList();
+        List<MD5Hierarchy.MD5HierarchyData> hierarchyList = animModel.getHierarchy().getHierarchyDataList();
+
+        List<MD5JointInfo.MD5JointData> joints = md5Model.getJointInfo().getJoints();
+        int numJoints = joints.size();
+        float[] frameData = frame.getFrameData();
+        Quaternionf orientation = new Quaternionf();
+        Matrix4f jointMat = new Matrix4f();
+        Matrix4f parentMat = new Matrix4f();
+        for (int i = 0; i < numJoints; i++) {
+            MD5JointInfo.MD5JointData joint = joints.get(i);
+            MD5BaseFrame.MD5BaseFrameData baseFrameData = baseFrameDataList.get(i);
+            Vector3f basePosition = baseFrameData.getPosition();
+            Quaternionf baseOrientation = baseFrameData.getOrientation();
+            float x = basePosition.x;
+            float y = basePosition.y;
+            float z = basePosition.z;
+            float qx = baseOrientation.x;
+            float qy = baseOrientation.y;
+            float qz = baseOrientation.z;
+
+            int flags = hierarchyList.get(i).getFlags();
+            int startIndex = hierarchyList.get(i).getStartIndex();
+
+            if ((flags & 1) > 0) {
+                x = frameData[startIndex++];
+            }
+            if ((flags & 2) > 0) {
+                y = frameData[startIndex++];
+            }
+            if ((flags & 4) > 0) {
+                z = frameData[startIndex++];
+            }
+            if ((flags & 8) > 0) {
+                qx = frameData[startIndex++];
+            }
+            if ((flags & 16) > 0) {
+                qy = frameData[startIndex++];
+            }
+            if ((flags & 32) > 0) {
+                qz = frameData[startIndex++];
+            }
+            // Update Quaternion's w component
+            MD5Utils.calculateQuaternion(qx, qy, qz, orientation);
+
+            // Translation followed by rotation for this joint
+            jointMat.translationRotate(x, y, z, orientation);
+
+            // Joint position is relative to joint's parent index position. Use parent matrices
+            // to transform it to model space
+            if (joint.getParentIndex() > -1) {
+                parentMat.set(localJointMatrices, frameOffset + joint.getParentIndex() * AnimationData.MATRIX_FLOATS);
+                parentMat.mul(jointMat, jointMat);
+            }
+
+            jointMat.get(localJointMatrices, frameOffset + i * AnimationData.MATRIX_FLOATS);
         }
-        return result;
     }
 
     private static Mesh generateMesh(MD5Model md5Model, MD5Mesh md5Mesh) {
@@ -126,73 +241,6 @@ public class MD5Loader {
         return mesh;
     }
 
-    private static List<AnimatedFrame> processAnimationFrames(MD5Model md5Model, MD5AnimModel animModel, List<Matrix4f> invJointMatrices) {
-        List<AnimatedFrame> animatedFrames = new ArrayList<>();
-        List<MD5Frame> frames = animModel.getFrames();
-        for (MD5Frame frame : frames) {
-            AnimatedFrame data = processAnimationFrame(md5Model, animModel, frame, invJointMatrices);
-            animatedFrames.add(data);
-        }
-        return animatedFrames;
-    }
-
-    private static AnimatedFrame processAnimationFrame(MD5Model md5Model, MD5AnimModel animModel, MD5Frame frame, List<Matrix4f> invJointMatrices) {
-        AnimatedFrame result = new AnimatedFrame();
-
-        MD5BaseFrame baseFrame = animModel.getBaseFrame();
-        List<MD5Hierarchy.MD5HierarchyData> hierarchyList = animModel.getHierarchy().getHierarchyDataList();
-
-        List<MD5JointInfo.MD5JointData> joints = md5Model.getJointInfo().getJoints();
-        int numJoints = joints.size();
-        float[] frameData = frame.getFrameData();
-        for (int i = 0; i < numJoints; i++) {
-            MD5JointInfo.MD5JointData joint = joints.get(i);
-            MD5BaseFrame.MD5BaseFrameData baseFrameData = baseFrame.getFrameDataList().get(i);
-            Vector3f position = baseFrameData.getPosition();
-            Quaternionf orientation = baseFrameData.getOrientation();
-
-            int flags = hierarchyList.get(i).getFlags();
-            int startIndex = hierarchyList.get(i).getStartIndex();
-
-            if ((flags & 1) > 0) {
-                position.x = frameData[startIndex++];
-            }
-            if ((flags & 2) > 0) {
-                position.y = frameData[startIndex++];
-            }
-            if ((flags & 4) > 0) {
-                position.z = frameData[startIndex++];
-            }
-            if ((flags & 8) > 0) {
-                orientation.x = frameData[startIndex++];
-            }
-            if ((flags & 16) > 0) {
-                orientation.y = frameData[startIndex++];
-            }
-            if ((flags & 32) > 0) {
-                orientation.z = frameData[startIndex++];
-            }
-            // Update Quaternion's w component
-            orientation = MD5Utils.calculateQuaternion(orientation.x, orientation.y, orientation.z);
-
-            // Calculate translation and rotation matrices for this joint
-            Matrix4f translateMat = new Matrix4f().translate(position);
-            Matrix4f rotationMat = new Matrix4f().rotate(orientation);
-            Matrix4f jointMat = translateMat.mul(rotationMat);
-
-            // Joint position is relative to joint's parent index position. Use parent matrices
-            // to transform it to model space
-            if (joint.getParentIndex() > -1) {
-                Matrix4f parentMatrix = result.getLocalJointMatrices()[joint.getParentIndex()];
-                jointMat = new Matrix4f(parentMatrix).mul(jointMat);
-            }
-
-            result.setMatrix(i, jointMat, invJointMatrices.get(i));
-        }
-
-        return result;
-    }
-
     private static Mesh createMesh(List<AnimVertex> vertices, List<Integer> indices) {
         List<Float> positions = new ArrayList<>();
         List<Float> textCoords = new ArrayList<>();
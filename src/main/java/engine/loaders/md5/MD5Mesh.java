@@ -5,21 +5,9 @@ import org.joml.Vector3f;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MD5Mesh {
 
-    private static final Pattern PATTERN_SHADER = Pattern.compile("\\s*shader\\s*\\\"([^\\\"]+)\\\"");
-
-    private static final Pattern PATTERN_VERTEX = Pattern.compile("\\s*vert\\s*(\\d+)\\s*\\(\\s*("
-            + MD5Utils.FLOAT_REGEXP + ")\\s*(" + MD5Utils.FLOAT_REGEXP + ")\\s*\\)\\s*(\\d+)\\s*(\\d+)");
-
-    private static final Pattern PATTERN_TRI = Pattern.compile("\\s*tri\\s*(\\d+)\\s*(\\d+)\\s*(\\d+)\\s*(\\d+)");
-
-    private static final Pattern PATTERN_WEIGHT = Pattern.compile("\\s*weight\\s*(\\d+)\\s*(\\d+)\\s*" +
-            "(" + MD5Utils.FLOAT_REGEXP + ")\\s*" + MD5Utils.VECTOR3_REGEXP );
-
     private String texture;
 
     private List<MD5Vertex> vertices;
@@ -67,49 +55,57 @@ public class MD5Mesh {
         List<MD5Weight> weights = mesh.getWeights();
 
         for (String line : meshBlock) {
-            if (line.contains("shader")) {
-                Matcher textureMatcher = PATTERN_SHADER.matcher(line);
-                if (textureMatcher.matches()) {
-                    mesh.setTexture(textureMatcher.group(1));
-
-                }
-            } else if (line.contains("vert")) {
-                Matcher vertexMatcher = PATTERN_VERTEX.matcher(line);
-                if (vertexMatcher.matches()) {
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            String keyword = tokenizer.hasNext() ? tokenizer.nextWord() : null;
+            if (keyword == null) {
+                continue;
+            }
+            switch (keyword) {
+                case "shader":
+                    String texture = tokenizer.nextQuoted();
+                    if (texture != null) {
+                        mesh.setTexture(texture);
+                    }
+                    break;
+                case "vert":
                     MD5Vertex vertex = new MD5Vertex();
-                    vertex.setIndex(Integer.parseInt(vertexMatcher.group(1)));
-                    float x = Float.parseFloat(vertexMatcher.group(2));
-                    float y = Float.parseFloat(vertexMatcher.group(3));
+                    vertex.setIndex(tokenizer.nextInt());
+                    tokenizer.expect('(');
+                    float x = tokenizer.nextFloat();
+                    float y = tokenizer.nextFloat();
+                    tokenizer.expect(')');
                     vertex.setTextCoords(new Vector2f(x, y));
-                    vertex.setStartWeight(Integer.parseInt(vertexMatcher.group(4)));
-                    vertex.setWeightCount(Integer.parseInt(vertexMatcher.group(5)));
-                    vertices.add(vertex);
-                }
-            } else if (line.contains("tri")) {
-                Matcher triMatcher = PATTERN_TRI.matcher(line);
-                if (triMatcher.matches()) {
+                    vertex.setStartWeight(tokenizer.nextInt());
+                    vertex.setWeightCount(tokenizer.nextInt());
+                    if (!tokenizer.isMalformed()) {
+                        vertices.add(vertex);
+                    }
+                    break;
+                case "tri":
                     MD5Triangle triangle = new MD5Triangle();
-                    triangle.setIndex(Integer.parseInt(triMatcher.group(1)));
-                    triangle.setVertex0(Integer.parseInt(triMatcher.group(2)));
-                    triangle.setVertex1(Integer.parseInt(triMatcher.group(3)));
-                    triangle.setVertex2(Integer.parseInt(triMatcher.group(4)));
-                    triangles.add(triangle);
-                }
-            } else if (line.contains("weight")) {
-                Matcher weightMatcher = PATTERN_WEIGHT.matcher(line);
-                if (weightMatcher.matches()) {
+                    triangle.setIndex(tokenizer.nextInt());
+                    triangle.setVertex0(tokenizer.nextInt());
+                    triangle.setVertex1(tokenizer.nextInt());
+                    triangle.setVertex2(tokenizer.nextInt());
+                    if (!tokenizer.isMalformed()) {
+                        triangles.add(triangle);
+                    }
+                    break;
+                case "weight":
                     MD5Weight weight = new MD5Weight();
-                    weight.setIndex(Integer.parseInt(weightMatcher.group(1)));
-                    weight.setJointIndex(Integer.parseInt(weightMatcher.group(2)));
-                    weight.setBias(Float.parseFloat(weightMatcher.group(3)));
-                    float x = Float.parseFloat(weightMatcher.group(4));
-                    float y = Float.parseFloat(weightMatcher.group(5));
-                    float z = Float.parseFloat(weightMatcher.group(6));
-                    weight.setPosition(new Vector3f(x, y, z));
-                    weights.add(weight);
-                }
+                    weight.setIndex(tokenizer.nextInt());
+                    weight.setJointIndex(tokenizer.nextInt());
+                    weight.setBias(tokenizer.nextFloat());
+                    weight.setPosition(tokenizer.nextVector3());
+                    if (!tokenizer.isMalformed()) {
+                        weights.add(weight);
+                    }
+                    break;
+                default:
+                    break;
             }
         }
+
         return mesh;
     }
 
@@ -60,11 +60,10 @@ public class MD5ModelHeader {
         boolean finishHeader = false;
         for (int i = 0; i < numLines && !finishHeader; i++) {
             String line = lines.get(i);
-            String[] tokens = line.split("\\s+");
-            int numTokens = tokens != null ? tokens.length : 0;
-            if (numTokens > 1) {
-                String paramName = tokens[0];
-                String paramValue = tokens[1];
+            MD5Tokenizer tokenizer = new MD5Tokenizer(line);
+            String paramName = tokenizer.hasNext() ? tokenizer.nextWord() : null;
+            String paramValue = tokenizer.hasNext() ? tokenizer.nextString() : null;
+            if (paramName != null && paramValue != null) {
 
                 switch (paramName) {
                     case "MD5Version":
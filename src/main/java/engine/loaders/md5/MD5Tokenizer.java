@@ -0,0 +1,203 @@
+package engine.loaders.md5;
+
+import engine.loaders.DecimalFloats;
+import org.joml.Vector3f;
+
+/**
+ * Splits a line of an MD5 file into tokens by scanning its characters, without regular expressions nor intermediate
+ * strings for the numbers. Tokens are separated by whitespace, parentheses and quotes, a "//" comment ends the line.
+ * <p>
+ * Reading a token of the wrong kind, or past the end of the line, does not throw but marks the line as malformed, so
+ * that parsers skip the lines they do not understand like the patterns they replace did.
+ */
+class MD5Tokenizer {
+
+    private final String line;
+
+    private final int end;
+
+    private int pos;
+
+    private boolean malformed;
+
+    MD5Tokenizer(String line) {
+        this.line = line;
+        this.end = findCommentStart(line);
+    }
+
+    private static int findCommentStart(String line) {
+        boolean quoted = false;
+        for (int i = 0, n = line.length(); i < n; i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '/' && i + 1 < n && line.charAt(i + 1) == '/') {
+                return i;
+            }
+        }
+        return line.length();
+    }
+
+    boolean isMalformed() {
+        return malformed;
+    }
+
+    boolean hasNext() {
+        skipWhitespace();
+        return pos < end;
+    }
+
+    /**
+     * @return the next token up to a whitespace, a parenthesis or a quote, or null if there is none
+     */
+    String nextWord() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < end && !isDelimiter(line.charAt(pos))) {
+            pos++;
+        }
+        if (pos == start) {
+            malformed = true;
+            return null;
+        }
+        return line.substring(start, pos);
+    }
+
+    /**
+     * @return the content of the next quoted string, or null if the next token is not one
+     */
+    String nextQuoted() {
+        if (!consume('"')) {
+            return null;
+        }
+        int start = pos;
+        while (pos < end && line.charAt(pos) != '"') {
+            pos++;
+        }
+        if (pos == end) {
+            malformed = true;
+            return null;
+        }
+        return line.substring(start, pos++);
+    }
+
+    /**
+     * @return the next quoted string if there is one, the next word otherwise
+     */
+    String nextString() {
+        skipWhitespace();
+        return pos < end && line.charAt(pos) == '"' ? nextQuoted() : nextWord();
+    }
+
+    int nextInt() {
+        skipWhitespace();
+        boolean negative = false;
+        if (pos < end && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+            negative = line.charAt(pos++) == '-';
+        }
+        int start = pos;
+        int value = 0;
+        while (pos < end && isDigit(line.charAt(pos))) {
+            value = value * 10 + (line.charAt(pos++) - '0');
+        }
+        if (pos == start || !endsToken()) {
+            malformed = true;
+            return 0;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the next token as a float, rounded as {@link Float#parseFloat(String)} does, which still handles the
+     * exponents and the numbers {@link DecimalFloats} can not round exactly
+     */
+    float nextFloat() {
+        skipWhitespace();
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+            negative = line.charAt(pos++) == '-';
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int numFractionDigits = 0;
+        while (pos < end && isDigit(line.charAt(pos))) {
+            mantissa = mantissa * 10 + (line.charAt(pos++) - '0');
+            numDigits++;
+        }
+        if (pos < end && line.charAt(pos) == '.') {
+            pos++;
+            while (pos < end && isDigit(line.charAt(pos))) {
+                mantissa = mantissa * 10 + (line.charAt(pos++) - '0');
+                numDigits++;
+                numFractionDigits++;
+            }
+        }
+        if (numDigits == 0) {
+            malformed = true;
+            return 0;
+        }
+        if (endsToken()) {
+            float value = DecimalFloats.toFloat(negative, mantissa, numDigits, -numFractionDigits);
+            if (!Float.isNaN(value)) {
+                return value;
+            }
+        }
+        // Exponents, which the exporters do not write, and the numbers not rounded exactly are left to the JDK
+        while (pos < end && !isDelimiter(line.charAt(pos))) {
+            pos++;
+        }
+        try {
+            return Float.parseFloat(line.substring(start, pos));
+        } catch (NumberFormatException e) {
+            malformed = true;
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a vector written as "( x y z )"
+     */
+    Vector3f nextVector3() {
+        Vector3f result = new Vector3f();
+        expect('(');
+        result.x = nextFloat();
+        result.y = nextFloat();
+        result.z = nextFloat();
+        expect(')');
+        return result;
+    }
+
+    void expect(char c) {
+        if (!consume(c)) {
+            malformed = true;
+        }
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (pos < end && line.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean endsToken() {
+        return pos == end || isDelimiter(line.charAt(pos));
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == '"';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
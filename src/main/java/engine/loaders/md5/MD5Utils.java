@@ -5,10 +5,6 @@ import org.joml.Vector3f;
 
 public class MD5Utils {
 
-    public static final String FLOAT_REGEXP = "[+-]?\\d*\\.?\\d*";
-
-    public static final String VECTOR3_REGEXP = "\\(\\s*(" + FLOAT_REGEXP + ")\\s*(" + FLOAT_REGEXP + ")\\s*(" + FLOAT_REGEXP + ")\\s*\\)";
-
     private MD5Utils() {
     }
 
@@ -17,7 +13,14 @@ public class MD5Utils {
     }
 
     public static Quaternionf calculateQuaternion(float x, float y, float z) {
-        Quaternionf orientation = new Quaternionf(x, y, z, 0);
+        return calculateQuaternion(x, y, z, new Quaternionf());
+    }
+
+    /**
+     * Same as {@link #calculateQuaternion(float, float, float)} storing the result in dest
+     */
+    public static Quaternionf calculateQuaternion(float x, float y, float z, Quaternionf dest) {
+        Quaternionf orientation = dest.set(x, y, z, 0);
         float temp = 1.0f - (orientation.x * orientation.x) - (orientation.y * orientation.y) - (orientation.z * orientation.z);
         if (temp < 0.0f) {
             orientation.w = 0.0f;
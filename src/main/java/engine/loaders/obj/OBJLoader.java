@@ -1,14 +1,20 @@
 package engine.loaders.obj;
 
 import engine.Utils;
-import engine.graph.InstancedMesh;
 import engine.graph.Material;
 import engine.graph.Mesh;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
+import engine.graph.MeshData;
+import engine.graph.MeshOptimizer;
+import engine.loaders.MeshCache;
+import engine.loaders.ModelData;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class OBJLoader {
 
@@ -16,215 +22,114 @@ public class OBJLoader {
         return loadMesh(fileName, 1);
     }
 
+    /**
+     * Parses the whole file for a single material, prefer {@link #loadMeshes(String, String)} to load every material
+     */
     public static Mesh loadMesh(String fileName, String materialName, Material material) throws Exception {
-        List<String> lines = Utils.readAllLines(fileName);
-
-        List<Vector3f> vertices = new ArrayList<>();
-        List<Vector2f> textures = new ArrayList<>();
-        List<Vector3f> normals = new ArrayList<>();
-        List<Face> faces = new ArrayList<>();
-
-        String curMat = "";
-
-        for (String line : lines) {
-            String[] tokens = line.split("\\s+");
-            switch (tokens[0]) {
-                case "v":
-                    // Geometric vertex
-                    Vector3f vec3f = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    vertices.add(vec3f);
-                    break;
-                case "vt":
-                    // Texture coordinate
-                    Vector2f vec2f = new Vector2f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]));
-                    textures.add(vec2f);
-                    break;
-                case "vn":
-                    // Vertex normal
-                    Vector3f vec3fNorm = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    normals.add(vec3fNorm);
-                    break;
-                case "f":
-                    if (curMat.equals(materialName)) {
-                        Face face = new Face(tokens[1], tokens[2], tokens[3]);
-                        faces.add(face);
-                    }
-                    break;
-                case "usemtl":
-                    curMat = tokens[1];
-                    break;
-                default:
-                    // Ignore other lines
-                    break;
-            }
-        }
-        Mesh mesh = reorderLists(vertices, textures, normals, faces, 1);
+        Mesh mesh = parseMeshData(readFile(fileName), materialName).createMesh();
         mesh.setMaterial(material);
         return mesh;
     }
 
     public static Mesh loadMesh(String fileName, int instances) throws Exception {
-        List<String> lines = Utils.readAllLines(fileName);
-
-        List<Vector3f> vertices = new ArrayList<>();
-        List<Vector2f> textures = new ArrayList<>();
-        List<Vector3f> normals = new ArrayList<>();
-        List<Face> faces = new ArrayList<>();
-
-        for (String line : lines) {
-            String[] tokens = line.split("\\s+");
-            switch (tokens[0]) {
-                case "v":
-                    // Geometric vertex
-                    Vector3f vec3f = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    vertices.add(vec3f);
-                    break;
-                case "vt":
-                    // Texture coordinate
-                    Vector2f vec2f = new Vector2f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]));
-                    textures.add(vec2f);
-                    break;
-                case "vn":
-                    // Vertex normal
-                    Vector3f vec3fNorm = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    normals.add(vec3fNorm);
-                    break;
-                case "f":
-                    Face face = new Face(tokens[1], tokens[2], tokens[3]);
-                    faces.add(face);
-                    break;
-                default:
-                    // Ignore other lines
-                    break;
-            }
+        if (instances > 1) {
+            return loadMeshData(fileName).createInstancedMesh(instances);
         }
-        return reorderLists(vertices, textures, normals, faces, instances);
+        return readMesh(fileName).createMeshes()[0];
     }
 
-    private static Mesh reorderLists(List<Vector3f> posList, List<Vector2f> textCoordList,
-                                     List<Vector3f> normList, List<Face> facesList, int instances) {
+    /**
+     * Does the whole CPU side of {@link #loadMesh(String)} on the calling thread.
+     *
+     * @return the GL side, to call from the GL thread
+     */
+    public static Callable<Mesh> prepareMesh(String fileName) throws Exception {
+        ModelData model = readMesh(fileName);
+        return () -> model.createMeshes()[0];
+    }
 
-        List<Integer> indices = new ArrayList<>();
-        // Create position array in the order it has been declared
-        float[] posArr = new float[posList.size() * 3];
-        int i = 0;
-        for (Vector3f pos : posList) {
-            posArr[i * 3] = pos.x;
-            posArr[i * 3 + 1] = pos.y;
-            posArr[i * 3 + 2] = pos.z;
-            i++;
+    /**
+     * Reads the mesh from the {@link MeshCache} when it has already been cooked, and parses and cooks it otherwise
+     */
+    private static ModelData readMesh(String fileName) throws Exception {
+        MeshCache cache = MeshCache.getInstance();
+        if (!cache.isEnabled()) {
+            return single(loadMeshData(fileName));
         }
-        float[] textCoordArr = new float[posList.size() * 2];
-        float[] normArr = new float[posList.size() * 3];
-
-        for (Face face : facesList) {
-            IdxGroup[] faceVertexIndices = face.getFaceVertexIndices();
-            for (IdxGroup indValue : faceVertexIndices) {
-                processFaceVertex(indValue, textCoordList, normList,
-                        indices, textCoordArr, normArr);
+        String key = (MeshOptimizer.isEnabled() ? "obj:optimized:" : "obj:") + fileName;
+        long contentHash;
+        try (InputStream in = Utils.class.getResourceAsStream(fileName)) {
+            if (in == null) {
+                throw new Exception("Model not found: " + fileName);
             }
+            contentHash = MeshCache.contentHash(in);
         }
-        int[] indicesArr = Utils.listIntToArray(indices);
-        Mesh mesh;
-        if (instances > 1) {
-            mesh = new InstancedMesh(posArr, textCoordArr, normArr, indicesArr, instances);
-        } else {
-            mesh = new Mesh(posArr, textCoordArr, normArr, indicesArr);
+        ModelData cached = cache.read(key, contentHash);
+        if (cached != null) {
+            return cached;
         }
-        return mesh;
+        MeshData meshData = loadMeshData(fileName);
+        cache.store(key, contentHash, new Material[0], new String[0], new MeshData[]{meshData}, new int[]{-1});
+        return single(meshData);
     }
 
-    private static void processFaceVertex(IdxGroup indices, List<Vector2f> textCoordList,
-                                          List<Vector3f> normList, List<Integer> indicesList,
-                                          float[] texCoordArr, float[] normArr) {
-
-        // Set index for vertex coordinates
-        int posIndex = indices.idxPos;
-        indicesList.add(posIndex);
-
-        // Reorder texture coordinates
-        if (indices.idxTextCoord >= 0) {
-            Vector2f textCoord = textCoordList.get(indices.idxTextCoord);
-            texCoordArr[posIndex * 2] = textCoord.x;
-            texCoordArr[posIndex * 2 + 1] = 1 - textCoord.y;
-        }
-        if (indices.idxVecNormal >= 0) {
-            // Reorder vectornormals
-            Vector3f vecNorm = normList.get(indices.idxVecNormal);
-            normArr[posIndex * 3] = vecNorm.x;
-            normArr[posIndex * 3 + 1] = vecNorm.y;
-            normArr[posIndex * 3 + 2] = vecNorm.z;
-        }
+    private static ModelData single(MeshData meshData) {
+        return new ModelData(new Material[0], new String[0], new int[]{-1}, new MeshData[]{meshData});
     }
 
-    protected static class Face {
-
-        /**
-         * List of idxGroup groups for a face triangle (3 vertices per face).
-         */
-        private IdxGroup[] idxGroups = new IdxGroup[3];
-
-        public Face(String v1, String v2, String v3) {
-            idxGroups = new IdxGroup[3];
-            // Parse the lines
-            idxGroups[0] = parseLine(v1);
-            idxGroups[1] = parseLine(v2);
-            idxGroups[2] = parseLine(v3);
-        }
-
-        private IdxGroup parseLine(String line) {
-            IdxGroup idxGroup = new IdxGroup();
-
-            String[] lineTokens = line.split("/");
-            int length = lineTokens.length;
-            idxGroup.idxPos = Integer.parseInt(lineTokens[0]) - 1;
-            if (length > 1) {
-                // It can be empty if the obj does not define text coords
-                String textCoord = lineTokens[1];
-                idxGroup.idxTextCoord = textCoord.length() > 0 ? Integer.parseInt(textCoord) - 1 : IdxGroup.NO_VALUE;
-                if (length > 2) {
-                    idxGroup.idxVecNormal = Integer.parseInt(lineTokens[2]) - 1;
-                }
+    /**
+     * Loads a mesh per material used by the file, parsing it only once.
+     *
+     * @param materialFile MTL file describing the materials, may be null. Faces using a material it does not describe
+     *                     get a default one.
+     */
+    public static Mesh[] loadMeshes(String fileName, String materialFile) throws Exception {
+        Map<String, Material> materials = materialFile != null ?
+                MaterialLoader.loadMaterials(materialFile) : new HashMap<>();
+        List<String> materialNames = new ArrayList<>();
+        MeshData[] meshData = OBJParser.parseByMaterial(readFile(fileName), true, materialNames);
+        Mesh[] meshes = new Mesh[meshData.length];
+        for (int i = 0; i < meshes.length; i++) {
+            if (MeshOptimizer.isEnabled()) {
+                MeshOptimizer.optimize(meshData[i]);
             }
-
-            return idxGroup;
-        }
-
-        public IdxGroup[] getFaceVertexIndices() {
-            return idxGroups;
+            meshes[i] = meshData[i].createMesh();
+            Material material = materials.get(materialNames.get(i));
+            meshes[i].setMaterial(material != null ? material : new Material());
         }
+        return meshes;
     }
 
-    protected static class IdxGroup {
-
-        public static final int NO_VALUE = -1;
-
-        public int idxPos;
+    /**
+     * Parses an OBJ file without creating any OpenGL object
+     */
+    public static MeshData loadMeshData(String fileName) throws Exception {
+        return parseMeshData(readFile(fileName), null);
+    }
 
-        public int idxTextCoord;
+    static ByteBuffer readFile(String fileName) throws Exception {
+        return Utils.ioResourceToByteBuffer(fileName, 64 * 1024);
+    }
 
-        public int idxVecNormal;
+    /**
+     * Parses large contents in parallel chunks
+     *
+     * @param data         OBJ content, from its position to its limit
+     * @param materialName If not null, only the faces using this material are kept
+     */
+    static MeshData parseMeshData(ByteBuffer data, String materialName) {
+        return parseMeshData(data, materialName, true);
+    }
 
-        public IdxGroup() {
-            idxPos = NO_VALUE;
-            idxTextCoord = NO_VALUE;
-            idxVecNormal = NO_VALUE;
+    /**
+     * @param parallel Whether the content may be split in chunks parsed on the fork/join pool, chunks are at least
+     *                 {@link OBJParser#MIN_CHUNK_BYTES} long
+     */
+    static MeshData parseMeshData(ByteBuffer data, String materialName, boolean parallel) {
+        MeshData meshData = OBJParser.parse(data, materialName, parallel);
+        if (MeshOptimizer.isEnabled()) {
+            MeshOptimizer.optimize(meshData);
         }
+        return meshData;
     }
 }
@@ -0,0 +1,673 @@
+package engine.loaders.obj;
+
+import engine.graph.MeshData;
+import engine.loaders.DecimalFloats;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses the raw bytes of an OBJ file in a single pass. Vertex attributes and face indices go straight into growable
+ * primitive arrays, no line, token or vector object is created on the way.
+ * <p>
+ * Large files can be split at line boundaries into chunks parsed in parallel on the fork/join pool. Each chunk keeps
+ * its own attribute arrays, the merge pass stitches them and resolves the face indices that depend on the attributes
+ * of the previous chunks: negative indices, relative to the last attribute defined, and the material of the faces
+ * before the first "usemtl" of a chunk.
+ * <p>
+ * Only the first three vertices of a face are kept, as the loader has always done.
+ */
+class OBJParser {
+
+    /**
+     * Smallest chunk worth parsing on its own thread
+     */
+    static final int MIN_CHUNK_BYTES = 256 * 1024;
+
+    private static final int NO_VALUE = -1;
+
+    private final byte[] data;
+
+    private final int end;
+
+    private int pos;
+
+    private float[] positions = new float[3 * 1024];
+
+    private int numPositions;
+
+    private float[] textCoords = new float[2 * 1024];
+
+    private int numTextCoords;
+
+    private float[] normals = new float[3 * 1024];
+
+    private int numNormals;
+
+    /**
+     * Position, texture coordinate and normal index of every face vertex, NO_VALUE if not defined
+     */
+    private int[] faceVertices = new int[3 * 3 * 1024];
+
+    private int numFaceVertices;
+
+    /**
+     * Slots of faceVertices holding negative indices, stored relative to the first attribute of the chunk until the
+     * merge pass
+     */
+    private int[] relativeSlots = new int[16];
+
+    private int numRelativeSlots;
+
+    /**
+     * Material of each run of faces, null for the first run of a chunk if it starts before any "usemtl"
+     */
+    private String[] runMaterials = new String[4];
+
+    /**
+     * First faceVertices slot of each run
+     */
+    private int[] runStarts = new int[4];
+
+    private int numRuns;
+
+    private OBJParser(byte[] data, int from, int to) {
+        this.data = data;
+        this.pos = from;
+        this.end = to;
+        numRuns = 1;
+    }
+
+    /**
+     * @param data         The file content, from its position to its limit
+     * @param materialName If not null, only the faces using this material are kept
+     * @param parallel     Whether the content may be split in chunks parsed on the fork/join pool
+     */
+    static MeshData parse(ByteBuffer data, String materialName, boolean parallel) {
+        OBJParser[] chunks = parseChunks(data, parallel);
+        Runs runs;
+        if (materialName == null) {
+            runs = new Runs();
+            for (int c = 0; c < chunks.length; c++) {
+                runs.add(c, 0, chunks[c].numFaceVertices);
+            }
+        } else {
+            runs = groupRuns(chunks).getOrDefault(materialName, new Runs());
+        }
+        return createMeshData(new Attributes(chunks), chunks, runs);
+    }
+
+    /**
+     * Parses the content once and splits its faces by material. Every mesh only holds the vertices its faces use.
+     *
+     * @param materials Filled with the material of each mesh, in the order of their first use. Faces before any
+     *                  "usemtl" get an empty material name.
+     */
+    static MeshData[] parseByMaterial(ByteBuffer data, boolean parallel, List<String> materials) {
+        OBJParser[] chunks = parseChunks(data, parallel);
+        Attributes attributes = new Attributes(chunks);
+        Map<String, Runs> groups = groupRuns(chunks);
+        MeshData[] meshes = new MeshData[groups.size()];
+        int i = 0;
+        for (Map.Entry<String, Runs> group : groups.entrySet()) {
+            materials.add(group.getKey());
+            meshes[i++] = compact(createMeshData(attributes, chunks, group.getValue()));
+        }
+        return meshes;
+    }
+
+    private static OBJParser[] parseChunks(ByteBuffer data, boolean parallel) {
+        // A bulk copy is cheap next to parsing and heap array accesses are much faster than buffer ones
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+
+        int numChunks = 1;
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (parallel && parallelism > 1) {
+            // A few chunks per thread so that a chunk made of slower lines does not keep the others waiting
+            numChunks = Math.max(1, Math.min(parallelism * 4, bytes.length / MIN_CHUNK_BYTES));
+        }
+        OBJParser[] chunks = new OBJParser[numChunks];
+        int chunkStart = 0;
+        for (int i = 0; i < numChunks; i++) {
+            int chunkEnd = bytes.length;
+            if (i < numChunks - 1) {
+                chunkEnd = Math.max(chunkStart, nextLine(bytes, (int) ((long) bytes.length * (i + 1) / numChunks)));
+            }
+            chunks[i] = new OBJParser(bytes, chunkStart, chunkEnd);
+            chunkStart = chunkEnd;
+        }
+        if (numChunks > 1) {
+            ForkJoinPool.commonPool().invoke(new ParseTask(chunks, 0, numChunks));
+        } else {
+            chunks[0].parse();
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the index of the first byte of the line following the given index
+     */
+    private static int nextLine(byte[] data, int index) {
+        while (index < data.length && !isLineEnd(data[index])) {
+            index++;
+        }
+        while (index < data.length && isLineEnd(data[index])) {
+            index++;
+        }
+        return index;
+    }
+
+    private void parse() {
+        while (pos < end) {
+            byte c = data[pos];
+            if (c == 'v') {
+                byte next = byteAt(pos + 1);
+                if (isSpace(next)) {
+                    pos += 2;
+                    parseVertex();
+                } else if (next == 't' && isSpace(byteAt(pos + 2))) {
+                    pos += 3;
+                    parseTextCoord();
+                } else if (next == 'n' && isSpace(byteAt(pos + 2))) {
+                    pos += 3;
+                    parseNormal();
+                }
+            } else if (c == 'f' && isSpace(byteAt(pos + 1))) {
+                pos += 2;
+                parseFace();
+            } else if (c == 'u' && startsWith("usemtl") && isSpace(byteAt(pos + 6))) {
+                pos += 7;
+                startRun(nextString());
+            }
+            skipLine();
+        }
+    }
+
+    private void startRun(String material) {
+        if (runStarts[numRuns - 1] == numFaceVertices) {
+            // No face since the previous "usemtl"
+            runMaterials[numRuns - 1] = material;
+            return;
+        }
+        if (numRuns == runStarts.length) {
+            runStarts = Arrays.copyOf(runStarts, numRuns * 2);
+            runMaterials = Arrays.copyOf(runMaterials, numRuns * 2);
+        }
+        runStarts[numRuns] = numFaceVertices;
+        runMaterials[numRuns] = material;
+        numRuns++;
+    }
+
+    private void parseVertex() {
+        if (numPositions + 3 > positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[numPositions++] = nextFloat();
+        positions[numPositions++] = nextFloat();
+        positions[numPositions++] = nextFloat();
+    }
+
+    private void parseTextCoord() {
+        if (numTextCoords + 2 > textCoords.length) {
+            textCoords = Arrays.copyOf(textCoords, textCoords.length * 2);
+        }
+        textCoords[numTextCoords++] = nextFloat();
+        textCoords[numTextCoords++] = nextFloat();
+    }
+
+    private void parseNormal() {
+        if (numNormals + 3 > normals.length) {
+            normals = Arrays.copyOf(normals, normals.length * 2);
+        }
+        normals[numNormals++] = nextFloat();
+        normals[numNormals++] = nextFloat();
+        normals[numNormals++] = nextFloat();
+    }
+
+    /**
+     * Parses the first three vertices of a face, each one made of a position index, then optionally a texture
+     * coordinate index, possibly empty, and a normal index: "v", "v/vt", "v//vn" or "v/vt/vn".
+     */
+    private void parseFace() {
+        if (numFaceVertices + 9 > faceVertices.length) {
+            faceVertices = Arrays.copyOf(faceVertices, faceVertices.length * 2);
+        }
+        for (int i = 0; i < 3; i++) {
+            skipSpaces();
+            if (isDelimiter(pos)) {
+                throw new IllegalArgumentException("Face with less than three vertices");
+            }
+            addIndex(nextIndex(), numPositions / 3);
+            int idxTextCoord = 0;
+            int idxNormal = 0;
+            if (pos < end && data[pos] == '/') {
+                pos++;
+                idxTextCoord = nextIndex();
+                if (pos < end && data[pos] == '/') {
+                    pos++;
+                    idxNormal = nextIndex();
+                }
+            }
+            addIndex(idxTextCoord, numTextCoords / 2);
+            addIndex(idxNormal, numNormals / 3);
+        }
+    }
+
+    /**
+     * @param index   Index as written in the file, 0 if not defined
+     * @param defined Number of attributes of its kind defined so far in the chunk
+     */
+    private void addIndex(int index, int defined) {
+        if (index > 0) {
+            faceVertices[numFaceVertices] = index - 1;
+        } else if (index < 0) {
+            if (numRelativeSlots == relativeSlots.length) {
+                relativeSlots = Arrays.copyOf(relativeSlots, numRelativeSlots * 2);
+            }
+            relativeSlots[numRelativeSlots++] = numFaceVertices;
+            faceVertices[numFaceVertices] = defined + index;
+        } else {
+            faceVertices[numFaceVertices] = NO_VALUE;
+        }
+        numFaceVertices++;
+    }
+
+    /**
+     * Groups the runs of faces of all the chunks by material, following the "usemtl" lines across chunk borders
+     */
+    private static Map<String, Runs> groupRuns(OBJParser[] chunks) {
+        Map<String, Runs> groups = new LinkedHashMap<>();
+        String material = "";
+        for (int c = 0; c < chunks.length; c++) {
+            OBJParser chunk = chunks[c];
+            for (int run = 0; run < chunk.numRuns; run++) {
+                if (chunk.runMaterials[run] != null) {
+                    material = chunk.runMaterials[run];
+                }
+                int runEnd = run + 1 < chunk.numRuns ? chunk.runStarts[run + 1] : chunk.numFaceVertices;
+                if (runEnd > chunk.runStarts[run]) {
+                    groups.computeIfAbsent(material, key -> new Runs()).add(c, chunk.runStarts[run], runEnd);
+                }
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Lays the attributes out per position for the given faces: every face vertex writes its texture coordinate and
+     * normal at the index of its position
+     */
+    private static MeshData createMeshData(Attributes attributes, OBJParser[] chunks, Runs runs) {
+        int numVertices = attributes.positions.length / 3;
+        int numTextCoords = attributes.numTextCoords / 2;
+        int numNormals = attributes.numNormals / 3;
+        float[] textCoords = attributes.textCoords;
+        float[] normals = attributes.normals;
+        float[] textCoordArr = new float[numVertices * 2];
+        float[] normArr = new float[numVertices * 3];
+        int[] indicesArr = new int[runs.getNumFaceVertices() / 3];
+        int numIndices = 0;
+        for (int run = 0; run < runs.size; run++) {
+            int[] faceVertices = chunks[runs.data[run * 3]].faceVertices;
+            int runEnd = runs.data[run * 3 + 2];
+            for (int i = runs.data[run * 3 + 1]; i < runEnd; i += 3) {
+                int idxPos = faceVertices[i];
+                int idxTextCoord = faceVertices[i + 1];
+                int idxNormal = faceVertices[i + 2];
+                indicesArr[numIndices++] = idxPos;
+                if (idxTextCoord >= 0) {
+                    checkIndex(idxTextCoord, numTextCoords);
+                    textCoordArr[idxPos * 2] = textCoords[idxTextCoord * 2];
+                    textCoordArr[idxPos * 2 + 1] = 1 - textCoords[idxTextCoord * 2 + 1];
+                }
+                if (idxNormal >= 0) {
+                    checkIndex(idxNormal, numNormals);
+                    normArr[idxPos * 3] = normals[idxNormal * 3];
+                    normArr[idxPos * 3 + 1] = normals[idxNormal * 3 + 1];
+                    normArr[idxPos * 3 + 2] = normals[idxNormal * 3 + 2];
+                }
+            }
+        }
+        // The positions are only shared with the meshes of other materials, which are compacted into their own arrays
+        return new MeshData(attributes.positions, textCoordArr, normArr, indicesArr);
+    }
+
+    /**
+     * @return the mesh without the vertices none of its faces use, the others keep their order
+     */
+    private static MeshData compact(MeshData meshData) {
+        int[] indices = meshData.getIndices();
+        int numVertices = meshData.getPositions().length / 3;
+        int[] remap = new int[numVertices];
+        for (int index : indices) {
+            remap[index] = 1;
+        }
+        int numUsed = 0;
+        for (int i = 0; i < numVertices; i++) {
+            remap[i] = remap[i] != 0 ? numUsed++ : NO_VALUE;
+        }
+        float[] positions = new float[numUsed * 3];
+        float[] textCoords = new float[numUsed * 2];
+        float[] normals = new float[numUsed * 3];
+        for (int i = 0; i < numVertices; i++) {
+            int to = remap[i];
+            if (to != NO_VALUE) {
+                System.arraycopy(meshData.getPositions(), i * 3, positions, to * 3, 3);
+                System.arraycopy(meshData.getTextCoords(), i * 2, textCoords, to * 2, 2);
+                System.arraycopy(meshData.getNormals(), i * 3, normals, to * 3, 3);
+            }
+        }
+        int[] newIndices = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            newIndices[i] = remap[indices[i]];
+        }
+        return new MeshData(positions, textCoords, normals, newIndices);
+    }
+
+    /**
+     * Turns the negative indices of the chunk into absolute ones, given the number of attributes defined before it
+     */
+    private void resolveRelativeIndices(int positionsBefore, int textCoordsBefore, int normalsBefore) {
+        for (int i = 0; i < numRelativeSlots; i++) {
+            int slot = relativeSlots[i];
+            int kind = slot % 3;
+            int index = faceVertices[slot] + (kind == 0 ? positionsBefore : kind == 1 ? textCoordsBefore : normalsBefore);
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("Relative index before the first attribute: " + index);
+            }
+            faceVertices[slot] = index;
+        }
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + (index + 1) + ", Size: " + size);
+        }
+    }
+
+    private String nextString() {
+        skipSpaces();
+        int tokenEnd = tokenEnd();
+        String value = decode(pos, tokenEnd);
+        pos = tokenEnd;
+        return value;
+    }
+
+    /**
+     * Parses the next token as a float without creating a string, reading each byte once. Decimal numbers, as usually
+     * found in OBJ files, are rounded as {@link Float#parseFloat(String)} does, which still handles anything else.
+     */
+    private float nextFloat() {
+        skipSpaces();
+        int start = pos;
+        int i = pos;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        int c;
+        while (i < end && (c = data[i] - '0') >= 0 && c <= 9) {
+            mantissa = mantissa * 10 + c;
+            digits++;
+            i++;
+        }
+        if (i < end && data[i] == '.') {
+            i++;
+            while (i < end && (c = data[i] - '0') >= 0 && c <= 9) {
+                mantissa = mantissa * 10 + c;
+                exponent--;
+                digits++;
+                i++;
+            }
+        }
+        if (i < end && (data[i] == 'e' || data[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (data[i] == '-' || data[i] == '+')) {
+                negativeExponent = data[i] == '-';
+                i++;
+            }
+            int exponentDigits = 0;
+            int value = 0;
+            while (i < end && (c = data[i] - '0') >= 0 && c <= 9 && exponentDigits < 4) {
+                value = value * 10 + c;
+                exponentDigits++;
+                i++;
+            }
+            if (exponentDigits == 0) {
+                return slowParseFloat(start);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (!isDelimiter(i) || digits == 0) {
+            return slowParseFloat(start);
+        }
+        float result = DecimalFloats.toFloat(negative, mantissa, digits, exponent);
+        if (Float.isNaN(result)) {
+            return slowParseFloat(start);
+        }
+        pos = i;
+        return result;
+    }
+
+    private float slowParseFloat(int start) {
+        pos = start;
+        int tokenEnd = tokenEnd();
+        pos = tokenEnd;
+        return Float.parseFloat(decode(start, tokenEnd));
+    }
+
+    /**
+     * Parses an index of a face vertex, which ends at a slash or at the end of the vertex token
+     *
+     * @return the index as written, 0 if it is empty
+     */
+    private int nextIndex() {
+        int start = pos;
+        int i = pos;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        int value = 0;
+        int c;
+        while (i < end && (c = data[i] - '0') >= 0 && c <= 9) {
+            value = value * 10 + c;
+            i++;
+        }
+        if (i == start) {
+            return 0;
+        }
+        if (i - start > 9 || (i < end && data[i] != '/' && !isDelimiter(i))) {
+            while (i < end && data[i] != '/' && !isDelimiter(i)) {
+                i++;
+            }
+            pos = i;
+            return Integer.parseInt(decode(start, i));
+        }
+        pos = i;
+        return negative ? -value : value;
+    }
+
+    private String decode(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private boolean startsWith(String keyword) {
+        if (pos + keyword.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (data[pos + i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte byteAt(int index) {
+        return index < end ? data[index] : (byte) '\n';
+    }
+
+    private void skipSpaces() {
+        while (pos < end && isSpace(data[pos])) {
+            pos++;
+        }
+    }
+
+    private int tokenEnd() {
+        int i = pos;
+        while (i < end) {
+            byte c = data[i];
+            if (isSpace(c) || isLineEnd(c)) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return true if the token ends before the given index
+     */
+    private boolean isDelimiter(int index) {
+        return index >= end || isSpace(data[index]) || isLineEnd(data[index]);
+    }
+
+    private void skipLine() {
+        while (pos < end && !isLineEnd(data[pos])) {
+            pos++;
+        }
+        while (pos < end && isLineEnd(data[pos])) {
+            pos++;
+        }
+    }
+
+    /**
+     * Same white space as the "\\s" regular expression, but for line ends
+     */
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+    }
+
+    private static boolean isLineEnd(byte c) {
+        return c == '\n' || c == '\r';
+    }
+
+    /**
+     * Attributes of all the chunks stitched together, with the negative face indices resolved
+     */
+    private static class Attributes {
+
+        final float[] positions;
+
+        final float[] textCoords;
+
+        final int numTextCoords;
+
+        final float[] normals;
+
+        final int numNormals;
+
+        Attributes(OBJParser[] chunks) {
+            int totalPositions = 0;
+            int totalTextCoords = 0;
+            int totalNormals = 0;
+            for (OBJParser chunk : chunks) {
+                chunk.resolveRelativeIndices(totalPositions / 3, totalTextCoords / 2, totalNormals / 3);
+                totalPositions += chunk.numPositions;
+                totalTextCoords += chunk.numTextCoords;
+                totalNormals += chunk.numNormals;
+            }
+            positions = new float[totalPositions];
+            numTextCoords = totalTextCoords;
+            numNormals = totalNormals;
+            if (chunks.length == 1) {
+                System.arraycopy(chunks[0].positions, 0, positions, 0, totalPositions);
+                textCoords = chunks[0].textCoords;
+                normals = chunks[0].normals;
+                return;
+            }
+            textCoords = new float[totalTextCoords];
+            normals = new float[totalNormals];
+            int positionsOffset = 0;
+            int textCoordsOffset = 0;
+            int normalsOffset = 0;
+            for (OBJParser chunk : chunks) {
+                System.arraycopy(chunk.positions, 0, positions, positionsOffset, chunk.numPositions);
+                System.arraycopy(chunk.textCoords, 0, textCoords, textCoordsOffset, chunk.numTextCoords);
+                System.arraycopy(chunk.normals, 0, normals, normalsOffset, chunk.numNormals);
+                positionsOffset += chunk.numPositions;
+                textCoordsOffset += chunk.numTextCoords;
+                normalsOffset += chunk.numNormals;
+            }
+        }
+    }
+
+    /**
+     * Ranges of the faceVertices of the chunks, as (chunk, from, to) triples
+     */
+    private static class Runs {
+
+        int[] data = new int[3 * 4];
+
+        int size;
+
+        void add(int chunk, int from, int to) {
+            if ((size + 1) * 3 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size * 3] = chunk;
+            data[size * 3 + 1] = from;
+            data[size * 3 + 2] = to;
+            size++;
+        }
+
+        int getNumFaceVertices() {
+            int count = 0;
+            for (int run = 0; run < size; run++) {
+                count += data[run * 3 + 2] - data[run * 3 + 1];
+            }
+            return count;
+        }
+    }
+
+    private static class ParseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final OBJParser[] chunks;
+
+        private final int from;
+
+        private final int to;
+
+        ParseTask(OBJParser[] chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                chunks[from].parse();
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(chunks, from, mid), new ParseTask(chunks, mid, to));
+            }
+        }
+    }
+}
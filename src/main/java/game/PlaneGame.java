@@ -2,14 +2,23 @@ package game;
 
 import engine.*;
 import engine.graph.Camera;
+import engine.graph.GeometryRegistry;
+import engine.graph.HeightMapMesh;
+import engine.graph.Mesh;
 import engine.graph.Renderer;
+import engine.graph.TerrainChunkBuilder;
 import engine.graph.lights.DirectionalLight;
 import engine.graph.weather.Fog;
 import engine.items.Building;
+import engine.items.ChunkedTerrain;
 import engine.items.City;
 import engine.items.CityBuildings;
+import engine.items.ITerrain;
 import engine.items.SkyBox;
 import engine.items.Terrain;
+import engine.items.TiledHeightMap;
+import engine.loaders.AssetLoader;
+import engine.loaders.assimp.TextureCache;
 import org.joml.Quaternionf;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
@@ -17,6 +26,7 @@ import org.joml.Vector3f;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 public class PlaneGame implements IGameLogic {
 
@@ -26,6 +36,24 @@ public class PlaneGame implements IGameLogic {
     private static final int BUILDING_SPACES = 60;
     public static final int NUMBER_OF_AVAILABLE_BUILDINGS = 4;
     public static final int NUMBER_OF_EXISTING_BUILDINGS = 5;
+    private static final long CHUNK_UPLOAD_BUDGET_NANOS = 2_000_000;
+    private static final long ASSET_UPLOAD_BUDGET_NANOS = 4_000_000;
+
+    private static final int TERRAIN_SIZE = 5;
+    private static final float TERRAIN_MIN_Y = 0f;
+    private static final float TERRAIN_MAX_Y = 0.25f;
+    private static final int TERRAIN_TEXT_INC = 40;
+    private static final BuildingModel[] BUILDING_MODELS = {
+            new BuildingModel("models/ob/building/building002.obj", null,
+                              4f, new Quaternionf(0.707f, 0, 0)),
+            new BuildingModel("models/ob/skycraper/skycraper001.obj", null,
+                              0.004f, new Quaternionf(0, 0, 0)),
+            new BuildingModel("models/ob/block/block001.obj", null,
+                              18f, new Quaternionf(0, 0, 0)),
+            new BuildingModel("models/buildings/obj/ResidentialBuildings001.obj",
+                              "/models/buildings/textures",
+                              1, new Quaternionf(0, 0, 0))
+    };
 
     private final Renderer renderer;
     private final Camera camera;
@@ -35,6 +63,8 @@ public class PlaneGame implements IGameLogic {
     private boolean firstTime;
     private static final float skyBoxScale = 500.0f;
     private boolean sceneChanged;
+    private ChunkedTerrain chunkedTerrain;
+    private AssetLoader assetLoader;
 
     PlaneGame() {
         renderer = new Renderer();
@@ -49,11 +79,19 @@ public class PlaneGame implements IGameLogic {
         renderer.init(window);
         scene = new Scene();
 
-        final Terrain terrain = prepareTerrain();
-        scene.setTerrain(terrain);
-//        scene.addGameItems(prepareCityBuildings(terrain).getGameItems());
-        for (Building building : prepareBuildings(terrain, NUMBER_OF_EXISTING_BUILDINGS)) {
-            scene.addGameItems(building.getGameItems());
+        if (window.getOptions().asyncLoading) {
+            loadAsync(window.getOptions().chunkedTerrain);
+        } else {
+            final ITerrain terrain;
+            if (window.getOptions().chunkedTerrain) {
+                chunkedTerrain = prepareChunkedTerrain();
+                terrain = chunkedTerrain;
+            } else {
+                terrain = prepareTerrain();
+            }
+            scene.setTerrain(terrain);
+//            scene.addGameItems(prepareCityBuildings(terrain).getGameItems());
+            addBuildings(prepareBuildings(terrain, NUMBER_OF_EXISTING_BUILDINGS, getAvailableBuildings()));
         }
 
         scene.setPlane(createPlane());
@@ -64,55 +102,118 @@ public class PlaneGame implements IGameLogic {
         setupCamera();
     }
 
+    /**
+     * Starts rendering before the terrain and the buildings are loaded, the plane stays still until the terrain is
+     * there and the buildings are placed once both are.
+     */
+    private void loadAsync(boolean chunked) throws Exception {
+        assetLoader = new AssetLoader();
+        final CompletableFuture<? extends ITerrain> terrainFuture;
+        if (chunked) {
+            // Chunks are streamed anyway, only the height map is loaded upfront
+            chunkedTerrain = prepareChunkedTerrain();
+            scene.setTerrain(chunkedTerrain);
+            terrainFuture = CompletableFuture.completedFuture(chunkedTerrain);
+        } else {
+            CompletableFuture<Terrain> terrain = assetLoader.load(
+                    () -> Terrain.prepare(TERRAIN_SIZE, skyBoxScale, TERRAIN_MIN_Y, TERRAIN_MAX_Y,
+                                          "/textures/heightmap.png", "/textures/terrain.png", TERRAIN_TEXT_INC,
+                                          "/textures/heightmap_city.png"));
+            assetLoader.whenLoaded(terrain, scene::setTerrain);
+            terrainFuture = terrain;
+        }
+
+        List<CompletableFuture<Mesh[]>> buildingMeshes = new ArrayList<>();
+        for (BuildingModel model : BUILDING_MODELS) {
+            buildingMeshes.add(assetLoader.loadMeshes(model.file, model.texturesDir));
+        }
+        CompletableFuture<List<Building>> buildingsFuture = CompletableFuture
+                .allOf(buildingMeshes.toArray(new CompletableFuture<?>[0]))
+                .thenCombine(terrainFuture, (ignored, terrain) -> {
+                    Building[] availableBuildings = new Building[BUILDING_MODELS.length];
+                    for (int i = 0; i < availableBuildings.length; i++) {
+                        BuildingModel model = BUILDING_MODELS[i];
+                        availableBuildings[i] = new Building(buildingMeshes.get(i).join(), model.scaling,
+                                                             model.rotation);
+                    }
+                    return prepareBuildings(terrain, NUMBER_OF_EXISTING_BUILDINGS, availableBuildings);
+                });
+        assetLoader.whenLoaded(buildingsFuture, this::addBuildings);
+    }
+
+    private void addBuildings(List<Building> buildings) {
+        for (Building building : buildings) {
+            scene.addGameItems(building.getGameItems());
+        }
+    }
+
     private Plane createPlane() throws Exception {
         return new Plane("models/plane/FA-22_Raptor.obj", "/models/plane");
     }
 
-    private List<Building> prepareBuildings(Terrain terrain, int numberOfBuildings) throws Exception {
+    private List<Building> prepareBuildings(ITerrain terrain, int numberOfBuildings, Building[] availableBuildings) {
         final Random random = new Random();
         List<Building> buildings = new ArrayList<>(numberOfBuildings);
-        final Building[] availableBuildings = getAvailableBuildings();
         float axis = numberOfBuildings * BUILDING_SPACES;
         for (float x = -axis / 2; x <= axis / 2; x += BUILDING_SPACES) {
             for (float z = -axis / 2; z  <= axis / 2; z += BUILDING_SPACES) {
                 final int buildingIndex = random.nextInt(NUMBER_OF_AVAILABLE_BUILDINGS);
-                final Building building = Utils.deepCopy(availableBuildings[buildingIndex]);
-                building.setPosition(x, z, terrain);
+                final Building building = availableBuildings[buildingIndex].newInstance();
+                building.setPosition(x, 0, z);
                 buildings.add(building);
                 building.setDisableFrustumCulling(false);
             }
         }
+        placeOnTerrain(buildings, terrain);
         return buildings;
     }
 
+    private void placeOnTerrain(List<Building> buildings, ITerrain terrain) {
+        final float[] xz = new float[buildings.size() * 2];
+        for (int i = 0; i < buildings.size(); i++) {
+            final Vector3f position = buildings.get(i).getPosition();
+            xz[i * 2] = position.x;
+            xz[i * 2 + 1] = position.z;
+        }
+        final float[] heights = new float[buildings.size()];
+        terrain.getHeights(xz, heights);
+        for (int i = 0; i < buildings.size(); i++) {
+            buildings.get(i).setPosition(xz[i * 2], heights[i], xz[i * 2 + 1]);
+        }
+    }
+
     private Building[] getAvailableBuildings() throws Exception {
-         return new Building[]{
-                new Building("models/ob/building/building002.obj", null,
-                             4f, new Quaternionf(0.707f, 0, 0)),
-                new Building("models/ob/skycraper/skycraper001.obj",null,
-                             0.004f, new Quaternionf(0, 0, 0)),
-                new Building("models/ob/block/block001.obj", null,
-                             18f, new Quaternionf(0, 0,0)),
-                 new Building("models/buildings/obj/ResidentialBuildings001.obj",
-                              "/models/buildings/textures",
-                              1, new Quaternionf(0, 0,0))
-        };
+        Building[] availableBuildings = new Building[BUILDING_MODELS.length];
+        for (int i = 0; i < availableBuildings.length; i++) {
+            BuildingModel model = BUILDING_MODELS[i];
+            availableBuildings[i] = new Building(model.file, model.texturesDir, model.scaling, model.rotation);
+        }
+        return availableBuildings;
     }
 
 
     private Terrain prepareTerrain() throws Exception {
+        return new Terrain(TERRAIN_SIZE, skyBoxScale, TERRAIN_MIN_Y, TERRAIN_MAX_Y,
+                "/textures/heightmap.png",
+                "/textures/terrain.png", TERRAIN_TEXT_INC,
+                "/textures/heightmap_city.png");
+    }
+
+    private ChunkedTerrain prepareChunkedTerrain() throws Exception {
         float terrainScale = skyBoxScale;
-        int terrainSize = 5;
         float minY = 0f;
         float maxY = 0.25f;
         int textInc = 40;
-        return new Terrain(terrainSize, terrainScale, minY, maxY,
-                "/textures/heightmap.png",
-                "/textures/terrain.png", textInc,
-                "/textures/heightmap_city.png");
+        // Same heights and texture density as a block of the classic terrain, repeated without bounds
+        HeightMapMesh heightMap = Terrain.loadHeightMap(minY, maxY, "/textures/heightmap.png");
+        float cellSize = HeightMapMesh.getXLength() * terrainScale / (heightMap.getNumCols() - 1);
+        TiledHeightMap heightSource = new TiledHeightMap(heightMap, terrainScale);
+        TerrainChunkBuilder builder = new TerrainChunkBuilder(heightSource, 32, cellSize,
+                                                              (float) textInc / heightMap.getNumCols());
+        return new ChunkedTerrain(builder, heightSource, "/textures/terrain.png", 4, 16, 150);
     }
 
-    private CityBuildings prepareCityBuildings(Terrain terrain) throws Exception {
+    private CityBuildings prepareCityBuildings(ITerrain terrain) throws Exception {
        return new CityBuildings("models/city2/The_city.obj", "/models/city2", terrain);
     }
 
@@ -167,9 +268,18 @@ public class PlaneGame implements IGameLogic {
 
     @Override
     public void update(float interval, MouseInput mouseInput, Window window) {
+        if (assetLoader != null) {
+            assetLoader.dispatchLoaded();
+        }
         rotateCamera(mouseInput);
         // Update camera position
-        scene.getPlane().update(scene.getTerrain(), CAMERA_POS_STEP);
+        if (scene.getTerrain() != null) {
+            scene.getPlane().update(scene.getTerrain(), CAMERA_POS_STEP);
+        }
+        scene.updateGameItem(scene.getPlane());
+        if (chunkedTerrain != null) {
+            chunkedTerrain.update(scene.getPlane().getPosition(), scene);
+        }
         moveCamera(scene.getPlane().getCameraDistance());
         updateLight();
 
@@ -205,11 +315,21 @@ public class PlaneGame implements IGameLogic {
         float zValue = (float) Math.cos(Math.toRadians(lightAngle));
         float yValue = (float) Math.sin(Math.toRadians(lightAngle));
         scene.getSceneLight().getDirectionalLight()
-                .setDirection(new Vector3f(0, yValue, zValue).normalize());
+                .getDirection().set(0, yValue, zValue).normalize();
     }
 
     @Override
     public void render(Window window) {
+        if (chunkedTerrain != null) {
+            chunkedTerrain.uploadChunks(CHUNK_UPLOAD_BUDGET_NANOS);
+        }
+        if (assetLoader != null) {
+            assetLoader.processUploads(ASSET_UPLOAD_BUDGET_NANOS);
+        }
+        if (window.getWindowOptions().pipelinedRendering) {
+            renderer.renderFrame(window);
+            return;
+        }
         if (firstTime) {
             sceneChanged = true;
             firstTime = false;
@@ -217,9 +337,45 @@ public class PlaneGame implements IGameLogic {
         renderer.render(window, camera, scene, sceneChanged);
     }
 
+    @Override
+    public void prepareFrame(Window window) {
+        if (firstTime) {
+            sceneChanged = true;
+            firstTime = false;
+        }
+        renderer.recordFrame(window, camera, scene, sceneChanged);
+    }
+
+    @Override
+    public void swapFrames() {
+        renderer.swapFrames();
+    }
+
     @Override
     public void cleanup() {
         renderer.cleanup();
+        if (assetLoader != null) {
+            assetLoader.cleanup();
+        }
+        if (chunkedTerrain != null) {
+            chunkedTerrain.cleanup();
+        }
         scene.cleanup();
+        GeometryRegistry.getInstance().cleanup();
+        TextureCache.getInstance().cleanup();
+    }
+
+    private static class BuildingModel {
+        final String file;
+        final String texturesDir;
+        final float scaling;
+        final Quaternionf rotation;
+
+        BuildingModel(String file, String texturesDir, float scaling, Quaternionf rotation) {
+            this.file = file;
+            this.texturesDir = texturesDir;
+            this.scaling = scaling;
+            this.rotation = rotation;
+        }
     }
 }
@@ -0,0 +1,57 @@
+#version 430
+
+const int NUM_CASCADES = 3;
+
+struct DrawData
+{
+    mat4 modelMatrix;
+    int materialIndex;
+    float selected;
+};
+
+layout (std430, binding=0) readonly buffer DrawDataBuffer
+{
+    DrawData drawData[];
+};
+
+layout (location=0) in vec3 position;
+layout (location=1) in vec2 texCoord;
+layout (location=2) in vec3 vertexNormal;
+layout (location=3) in int drawId;
+
+out vec2 outTexCoord;
+out vec3 mvVertexNormal;
+out vec3 mvVertexPos;
+out vec4 mlightviewVertexPos[NUM_CASCADES];
+out mat4 outModelViewMatrix;
+out float outSelected;
+flat out int outMaterialIndex;
+
+uniform mat4 viewMatrix;
+uniform mat4 projectionMatrix;
+uniform mat4 lightViewMatrix[NUM_CASCADES];
+uniform mat4 orthoProjectionMatrix[NUM_CASCADES];
+uniform int numCols;
+uniform int numRows;
+
+void main()
+{
+    // drawId is fed through the base instance of each indirect command
+    DrawData data = drawData[drawId];
+    mat4 modelMatrix = data.modelMatrix;
+    outSelected = data.selected;
+    outMaterialIndex = data.materialIndex;
+
+    mat4 modelViewMatrix = viewMatrix * modelMatrix;
+    vec4 mvPos = modelViewMatrix * vec4(position, 1.0);
+    gl_Position = projectionMatrix * mvPos;
+
+    outTexCoord = vec2(texCoord.x / numCols, texCoord.y / numRows);
+
+    mvVertexNormal = normalize(modelViewMatrix * vec4(vertexNormal, 0.0)).xyz;
+    mvVertexPos = mvPos.xyz;
+    for (int i = 0 ; i < NUM_CASCADES ; i++) {
+        mlightviewVertexPos[i] = orthoProjectionMatrix[i] * lightViewMatrix[i] * modelMatrix * vec4(position, 1.0);
+    }
+    outModelViewMatrix = modelViewMatrix;
+}
@@ -0,0 +1,40 @@
+package engine.graph;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MeshTest {
+
+    private static final float[] POSITIONS = {0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    private static final float[] TEXT_COORDS = {0, 0, 1, 0, 0, 1};
+
+    private static final int[] INDICES = {0, 1, 2};
+
+    @Test
+    public void staticMeshWithSeparateLayoutIsDrawnInstanced() {
+        Mesh mesh = Mesh.withoutBuffers(FloatBuffer.wrap(POSITIONS), FloatBuffer.wrap(TEXT_COORDS),
+                                        IntBuffer.wrap(INDICES), null, null);
+
+        // The default layout has joint streams, the mesh still has no joints
+        assertSame(VertexLayout.SEPARATE, mesh.getLayout());
+        assertTrue(mesh.getLayout().isSkinned());
+        assertTrue(mesh.isDrawnInstanced(Mesh.MIN_INSTANCES));
+        assertFalse(mesh.isDrawnInstanced(Mesh.MIN_INSTANCES - 1));
+    }
+
+    @Test
+    public void skinnedMeshIsNotDrawnInstanced() {
+        Mesh mesh = Mesh.withoutBuffers(FloatBuffer.wrap(POSITIONS), FloatBuffer.wrap(TEXT_COORDS),
+                                        IntBuffer.wrap(INDICES), IntBuffer.wrap(new int[4 * 3]),
+                                        FloatBuffer.wrap(new float[4 * 3]));
+
+        assertFalse(mesh.isDrawnInstanced(Mesh.MIN_INSTANCES));
+    }
+}
@@ -0,0 +1,127 @@
+package engine.graph;
+
+import engine.Scene;
+import engine.items.GameItem;
+import org.joml.Matrix4f;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SoaFrustumCullerTest {
+
+    private static final Matrix4f PROJ_VIEW = new Matrix4f().ortho(-10, 10, -10, 10, -10, 10);
+
+    private static Mesh createMesh() {
+        Mesh mesh = Mesh.withoutBuffers(FloatBuffer.wrap(new float[]{0, 0, 0, 1, 0, 0, 0, 0, 1}), null,
+                                        IntBuffer.wrap(new int[]{0, 1, 2}), null, null);
+        mesh.setBoundingRadius(1);
+        return mesh;
+    }
+
+    private static GameItem createItem(Mesh mesh, float x) {
+        GameItem gameItem = new GameItem(mesh);
+        gameItem.setPosition(x, 0, 0);
+        return gameItem;
+    }
+
+    private static void assertSameVisibleItems(SoaFrustumCuller expected, SoaFrustumCuller actual, Mesh... meshes) {
+        List<GameItem> expectedItems = new ArrayList<>();
+        List<GameItem> actualItems = new ArrayList<>();
+        for (Mesh mesh : meshes) {
+            expected.getVisibleItems(mesh, expectedItems);
+            actual.getVisibleItems(mesh, actualItems);
+            assertEquals(new HashSet<>(expectedItems), new HashSet<>(actualItems));
+            assertEquals(expectedItems.size(), actualItems.size());
+        }
+    }
+
+    @Test
+    public void changedItemsAreAppliedWithoutRebuilding() {
+        Mesh first = createMesh();
+        Mesh second = createMesh();
+        Mesh third = createMesh();
+        Scene scene = new Scene();
+        GameItem[] gameItems = new GameItem[10];
+        for (int i = 0; i < gameItems.length; i++) {
+            // Every third item is out of the frustum
+            gameItems[i] = createItem(i % 2 == 0 ? first : second, i % 3 == 0 ? 50 : i);
+        }
+        scene.addGameItems(gameItems);
+        SoaFrustumCuller culler = new SoaFrustumCuller();
+        culler.update(scene);
+        culler.cull(PROJ_VIEW);
+        scene.clearChanges();
+        GameItem[] entries = culler.getItems();
+
+        scene.removeGameItem(gameItems[2]);
+        scene.setGameItemMesh(gameItems[4], second);
+        scene.setGameItemMesh(gameItems[5], third);
+        scene.addGameItems(new GameItem[]{createItem(third, -5)});
+        culler.update(scene);
+        culler.cull(PROJ_VIEW);
+
+        SoaFrustumCuller rebuilt = new SoaFrustumCuller();
+        rebuilt.update(scene);
+        rebuilt.cull(PROJ_VIEW);
+        assertSame(entries, culler.getItems());
+        assertSameVisibleItems(rebuilt, culler, first, second, third);
+    }
+
+    @Test
+    public void removedMeshesFreeTheirSlots() {
+        Mesh first = createMesh();
+        Mesh second = createMesh();
+        Scene scene = new Scene();
+        GameItem gameItem = createItem(first, 0);
+        scene.addGameItems(new GameItem[]{gameItem, createItem(second, 1)});
+        SoaFrustumCuller culler = new SoaFrustumCuller();
+        culler.update(scene);
+        scene.clearChanges();
+
+        scene.removeGameItem(gameItem);
+        culler.update(scene);
+        culler.cull(PROJ_VIEW);
+
+        List<GameItem> visible = new ArrayList<>();
+        culler.getVisibleItems(first, visible);
+        assertEquals(0, visible.size());
+        culler.getVisibleItems(second, visible);
+        assertEquals(1, visible.size());
+    }
+
+    @Test
+    public void growingPastTheCapacityRebuilds() {
+        Mesh mesh = createMesh();
+        Scene scene = new Scene();
+        scene.addGameItems(new GameItem[]{createItem(mesh, 0)});
+        SoaFrustumCuller culler = new SoaFrustumCuller();
+        culler.update(scene);
+        scene.clearChanges();
+        GameItem[] entries = culler.getItems();
+
+        GameItem[] added = new GameItem[entries.length];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = createItem(mesh, i % 10);
+        }
+        scene.addGameItems(added);
+        culler.update(scene);
+        culler.cull(PROJ_VIEW);
+
+        assertNotSame(entries, culler.getItems());
+        List<GameItem> visible = new ArrayList<>();
+        culler.getVisibleItems(mesh, visible);
+        assertEquals(added.length + 1, visible.size());
+        assertEquals(new HashSet<>(visible).size(), visible.size());
+        assertTrue(new HashSet<>(visible).containsAll(Arrays.asList(added)));
+    }
+}